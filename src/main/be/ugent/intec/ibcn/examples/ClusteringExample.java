@@ -2,7 +2,7 @@ package be.ugent.intec.ibcn.examples;
 
 import be.ugent.intec.ibcn.geo.clustering.*;
 import be.ugent.intec.ibcn.geo.common.Util;
-import be.ugent.intec.ibcn.geo.common.datatypes.Point;
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
 import be.ugent.intec.ibcn.geo.common.io.ClusteringIO;
 
 /**
@@ -41,11 +41,11 @@ public class ClusteringExample {
          */
         
         // Load all the data from the file to cluster
-        Point [] data = cio.loadDataFromFile(trainingFile, cp.getLineParserClassNameForInput());
+        PointStore data = cio.loadPointStoreFromFile(trainingFile, cp.getLineParserClassNameForInput());
         
         // You could also load the first x lines of your training data using
 //        int x = 100000;
-//        Point [] data = cio.loadDataFromFile(trainingFile, cp.getLineParserClassNameForInput(), x);
+//        PointStore data = cio.loadPointStoreFromFile(trainingFile, cp.getLineParserClassNameForInput(), x);
         
         /**
          * Example of GridClustering with 1 degree latitude and 1 degree longitude
@@ -62,5 +62,44 @@ public class ClusteringExample {
 //        int k = 2500;
 //        AbstractClustering clusteringPam = new PamClustering(pp, data, k);
 //        clusteringPam.cluster(Util.applyTemplateValues(medoidTemplate, new String[]{""+k}));
+        
+        /**
+         * Example of CLARANS, a faster k-medoids variant that samples the swap
+         * candidates of each medoid.
+         */
+//        PamParameters pc = new PamParameters();
+//        pc.setAlgorithm(PamParameters.ALGORITHM_CLARANS);
+//        AbstractClustering clusteringClarans = PamClustering.create(pc, data, k);
+//        clusteringClarans.cluster(Util.applyTemplateValues(medoidTemplate, new String[]{"clarans-"+k}));
+        
+        /**
+         * Example of the streaming k-medoids, for training files that do not
+         * fit into memory. This one reads the training file itself, in chunks.
+         */
+//        StreamingParameters sp = new StreamingParameters();
+//        sp.setLineParserClassNameForInput(clusterParser);
+//        AbstractClustering clusteringStream = new StreamingClustering(sp, trainingFile, k);
+//        clusteringStream.cluster(Util.applyTemplateValues(medoidTemplate, new String[]{"stream-"+k}));
+        
+        /**
+         * Example of the partitioned clustering, that clusters tiles of 30 
+         * degrees in parallel and reconciles the medoids along the boundaries.
+         */
+//        PartitionedParameters tp = new PartitionedParameters();
+//        tp.setTile_degrees(30);
+//        AbstractClustering clusteringTiles = new PartitionedClustering(tp, data, k);
+//        clusteringTiles.cluster(Util.applyTemplateValues(medoidTemplate, new String[]{"tiles-"+k}));
+
+        /**
+         * Example of the incremental update of an existing clustering, after
+         * new items were appended to the training file. Only the clusters
+         * that drifted are optimized again, and the class IDs are kept.
+         */
+//        int previousSize = 100000; // The number of items clustered before
+//        IncrementalParameters ip = new IncrementalParameters();
+//        ip.setMax_cluster_size(5000);
+//        String medoidFile = Util.applyTemplateValues(medoidTemplate, new String[]{""+k});
+//        AbstractClustering clusteringUpdate = new IncrementalClustering(ip, data, medoidFile, previousSize);
+//        clusteringUpdate.cluster(medoidFile);
     }
 }
\ No newline at end of file
@@ -7,15 +7,15 @@ import be.ugent.intec.ibcn.geo.classifier.ClassifierParameters;
 import be.ugent.intec.ibcn.geo.classifier.NaiveBayes;
 import be.ugent.intec.ibcn.geo.clustering.AbstractClustering;
 import be.ugent.intec.ibcn.geo.clustering.ClusteringParameters;
-import be.ugent.intec.ibcn.geo.clustering.PamClustering;
+import be.ugent.intec.ibcn.geo.clustering.HierarchicalClustering;
 import be.ugent.intec.ibcn.geo.clustering.PamParameters;
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
 import be.ugent.intec.ibcn.geo.common.Util;
-import be.ugent.intec.ibcn.geo.common.datatypes.Point;
 import be.ugent.intec.ibcn.geo.common.io.ClusteringIO;
 import be.ugent.intec.ibcn.geo.features.GeoSpreadFeatureRanker;
 import be.ugent.intec.ibcn.referencing.AbstractReferencer;
 import be.ugent.intec.ibcn.referencing.MultiLevelSimilarityReferencer;
-import be.ugent.intec.ibcn.similarity.SimilarityIndexer;
+import be.ugent.intec.ibcn.similarity.MultiLevelSimilarityIndexer;
 import be.ugent.intec.ibcn.similarity.SimilarityParameters;
 import java.io.File;
 import java.util.ArrayList;
@@ -31,7 +31,8 @@ import java.util.List;
  * 
  * The workflow works as follows:
  *  1) 3 clustering configuration are made of the training data, 500, 2500 and
- *     10000 clusters (using Partition Around Medoids)
+ *     10000 clusters (using Partition Around Medoids for the 10000 clusters,
+ *     from which the 2500 and 500 clusters are derived)
  *  2) The geospread feature ranking method is used to rank the features found
  *     in the training data.
  *  3) Language Models are created (using multinomial Naive Bayes classification)
@@ -83,8 +84,8 @@ public class MediaEval2012PlacingExample {
         String featureFile  = dataDir + "features.geo";
         String medoidTemplate = dataDir + "medoids.@1";
         String classificationTemplate = dataDir + "classification.@1";
-        // Similarity index dir
-        String indexTemplate = dataDir + "simindex.@1/";
+        // Similarity store dir, shared by all the clusterings
+        String storeDir = dataDir + "simstore/";
         // Result file
         String resultFile = testFile + ".placing";
         
@@ -104,34 +105,39 @@ public class MediaEval2012PlacingExample {
          * Clustering
          */
         
-        // For each of the clusterings
+        // Check if all the clusterings are already found
+        boolean clusteringsFound = true;
         for (int clusters : clusterings) {
+            // Provide the full path and filename for the output
+            String clusteringOutputFile = Util.applyTemplateValues(
+                    medoidTemplate, new String[]{""+clusters});
+            if (!(new File(clusteringOutputFile)).exists())
+                clusteringsFound = false;
+        }
+        // If not, cluster all the levels in one run
+        if (!clusteringsFound) {
             // Prepare the parameters - use the default values
             ClusteringParameters cp = new ClusteringParameters();
             // But we set out own input parser
             cp.setLineParserClassNameForInput(clusterParser);
+            // Prepare the ClusteringIO
+            ClusteringIO cio = new ClusteringIO();
 
-            // Provide the full path and filename for the output
-            String clusteringOutputFile = Util.applyTemplateValues(
-                    medoidTemplate, new String[]{""+clusters});
-            // If the clustering is not already found
-            if (!(new File(clusteringOutputFile)).exists()) {
-                // Prepare the ClusteringIO
-                ClusteringIO cio = new ClusteringIO();
-
-                /**
-                * Load the input data
-                */
+            /**
+            * Load the input data
+            */
 
-                // Load all the data from the file to cluster
-                Point [] data = cio.loadDataFromFile(trainingFile, 
-                        cp.getLineParserClassNameForInput());
+            // Load all the data from the file to cluster
+            PointStore data = cio.loadPointStoreFromFile(trainingFile, 
+                    cp.getLineParserClassNameForInput());
 
-                PamParameters pp = new PamParameters();
-                AbstractClustering clusteringPam = new PamClustering(pp, data, clusters);
-                clusteringPam.cluster(clusteringOutputFile);
-            }            
-        } // End clustering loop
+            // Cluster the finest level, and derive the coarser levels from
+            // its medoids
+            PamParameters pp = new PamParameters();
+            AbstractClustering clusteringLevels = new HierarchicalClustering(
+                    pp, data, clusterings);
+            clusteringLevels.cluster(medoidTemplate);
+        } // End clustering
         
         /**
          * Feature ranking
@@ -223,8 +229,6 @@ public class MediaEval2012PlacingExample {
                         classificationTemplate, new String[]{""+clusters});
                 String medoidFile = Util.applyTemplateValues(
                         medoidTemplate, new String[]{""+clusters});
-                String indexDir = Util.applyTemplateValues(
-                        indexTemplate, new String[]{""+clusters});
 
                 SimilarityParameters sp = new SimilarityParameters();
                 // Set training file and parser
@@ -239,25 +243,26 @@ public class MediaEval2012PlacingExample {
 
                 // Set the output file
                 sp.setClassificationFile(classificationFile);
-                // Set the similarity index
-                sp.setSimilarityDirectory(indexDir);
+                // Set the similarity index, the store is used instead
+                sp.setSimilarityDirectory(storeDir);
                 // Set the number of similar items to retain
                 sp.setSimilarItemsToConsider(1);
                 // Init the parameters
                 sp.init();
 
-                // If the index does not already exist
-                if (!new File(indexDir).exists()) {
-                    // Create and init the index
-                    SimilarityIndexer simindexer = new SimilarityIndexer(sp);
-                    simindexer.index();
-                }
-
                 // Store the parameters
                 multi_parameters.add(sp);
             }
 
-            AbstractReferencer referencer = new MultiLevelSimilarityReferencer(multi_parameters);
+            // Index the training data for all the clusterings at once
+            MultiLevelSimilarityIndexer simindexer = 
+                    new MultiLevelSimilarityIndexer(multi_parameters, storeDir);
+            // If the store does not already exist
+            if (!new File(storeDir).exists())
+                simindexer.index();
+
+            AbstractReferencer referencer = new MultiLevelSimilarityReferencer(
+                    multi_parameters, storeDir);
             // Run referencing - output will go to file
             referencer.run(resultFile);
 
@@ -265,10 +270,7 @@ public class MediaEval2012PlacingExample {
             // As long as the clustering does not change, it is recommended to keep
             // it to speed things up
 
-            for (SimilarityParameters sp : multi_parameters) {
-                SimilarityIndexer simindexer = new SimilarityIndexer(sp);
-                simindexer.removeIndex();
-            }
+            simindexer.removeIndex();
         }
         
         /**
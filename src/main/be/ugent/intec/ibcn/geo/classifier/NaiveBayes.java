@@ -3,9 +3,7 @@ package be.ugent.intec.ibcn.geo.classifier;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -52,12 +50,15 @@ import be.ugent.intec.ibcn.geo.common.io.FileIO;
  * So, the classifier would be able to do ~3133 classes per batch. In case you
  * would like to use 20K classes, this would thus take 7 batches.
  * 
- * This class will write the intermediate results to a temp file, using its own 
- * IO methods. This information is then later on loaded using NaiveBayesResults 
- * for processing. 
+ * The results of the batches are merged in memory. By default, the merged
+ * results are written to the classification file, which is loaded later on 
+ * using NaiveBayesResults or NaiveBayesColumns for processing. Alternatively,
+ * the results can be kept in memory only and passed directly to a referencer,
+ * in which case files are only written as optional checkpoints.
  * 
  * For details, 
  *  @see NaiveBayesResults
+ *  @see NaiveBayesColumns
  * 
  * @author Olivier Van Laere <oliviervanlaere@gmail.com>
  */
@@ -143,16 +144,36 @@ public class NaiveBayes {
     }
     
     /**
-     * Actual classification.
+     * Actual classification. The results are written to the classification
+     * file.
      */
     public void classify() {
+        classify(parameters.getClassificationFile());
+    }
+    
+    /**
+     * Actual classification, keeping the results in memory, so they can be 
+     * passed on to a referencer directly.
+     * @param checkpointFile The file to write the results to, or null to 
+     * keep the results in memory only. If set, the results of the separate
+     * batches are written to intermediate files as well, so an interrupted 
+     * classification can be resumed.
+     * @return The results, indexed by the position of the test items in the
+     * test file.
+     */
+    public NaiveBayesColumns classify(String checkpointFile) {
         // Load the test data
         LOG.info("Loading test from {}", parameters.getTestFile());
         DataLoading dl = new DataLoading();
         this.test_data = dl.loadDataFromFile(parameters.getTestFile(), 
                 parameters.getTestParser(), parameters.getTestLimit(), 
                 parameters.features);
-
+        // Gather the IDs of the test items
+        int [] ids = new int[test_data.length];
+        for (int i = 0; i < test_data.length; i++)
+            ids[i] = test_data[i] != null ? test_data[i].getId() : -1;
+        // Prepare the merged results
+        NaiveBayesColumns merged_results = new NaiveBayesColumns(ids);
         
         int fileIndex = 0;
         int totalKnownClasses = parameters.getClassMapper().size();
@@ -160,10 +181,13 @@ public class NaiveBayes {
         for (int begin = 0; begin < totalKnownClasses; 
                 begin += this.naive_bayes_batch_size) {
             fileIndex = begin / this.naive_bayes_batch_size;
-            String itermediateFile = parameters.getClassificationFile() + "." + 
-                    fileIndex;
+            String itermediateFile = checkpointFile == null ? null :
+                    checkpointFile + "." + fileIndex;
+            NaiveBayesColumns results;
             // Check if tmp file exists, otherwise resume
-            if (!(new File(itermediateFile)).exists()) {
+            if (itermediateFile != null && new File(itermediateFile).exists())
+                results = new NaiveBayesColumns(itermediateFile, ids);
+            else {
                 // Init the internal NB
                 NaiveBayesInternal nb = new NaiveBayesInternal();
                 // Train the classifier from begin to end - determined by the 
@@ -172,61 +196,29 @@ public class NaiveBayes {
                         Math.min(begin + this.naive_bayes_batch_size, 
                         totalKnownClasses));
                 // Evaluate the test data
-                nb.evaluate(this.test_data, itermediateFile);
+                results = nb.evaluate(this.test_data, ids, itermediateFile);
             }
-        }
-        // Gather results from the different batches
-        NaiveBayesResults [] results = new NaiveBayesResults[fileIndex+1];
-        for (int index = 0; index <= fileIndex; index++) {
-            String file = parameters.getClassificationFile() + "." + index;
-            results[index] = new NaiveBayesResults(file);
-        }
-        // Prepare the merged results
-        NaiveBayesResults merged_results = new NaiveBayesResults();
-        // For each of the test items we just processed
-        // Actual file IDs start with 1 - this can be tricky if someone else
-        // implements it otherwise. Well, you got your warning here :)
-        for (int id = 1; id <= test_data.length; id++) {
-            // Track the best score and the fileindex in which it occurred.
-            double maxScore = Double.NEGATIVE_INFINITY;
-            int maxR = -1;
-            // For each of the files, check the lines against each other
-            for (int r = 0; r < results.length; r++) {
-                // Sanity check - bail out if this is violated
-                if (results[r].size() != results[0].size())
-                    throw new RuntimeException("The intermediate Naive Bayes "
-                        + "results differ in size. This should not happen!?");
-                // If the score under consideration is better than the current 
-                // best
-                if (results[r].getScore(id) > maxScore) {
-                    // Replace the best values
-                    maxScore = results[r].getScore(id);
-                    maxR = r;
-                }
+            // Merge the results of this batch: keep the best score for each
+            // test item, the first batch wins in case of equal scores
+            for (int i = 0; i < ids.length; i++) {
+                if (results.getPrediction(i) >= 0 && 
+                        (merged_results.getPrediction(i) < 0 || 
+                         results.getScore(i) > merged_results.getScore(i)))
+                    merged_results.put(i, results.getPrediction(i) + begin, 
+                            results.getScore(i), results.getFeatureCount(i));
             }
-            // Sanity check - bail out if this is violated
-            if (maxR < 0)
-                throw new RuntimeException("The best maxR cannot be be -1");
-            // Store the best result for this 
-            merged_results.putPrediction(id, results[maxR].getPrediction(id) + 
-                    (maxR * naive_bayes_batch_size));
-            merged_results.putScore(id, results[maxR].getScore(id));
-            merged_results.putFeatureCount(id, results[maxR].
-                    getFeatureCount(id));
         }
-        // Sanity check - bail out if this is violated
-        if (merged_results.size() != results[0].size())
-            throw new RuntimeException("Final Naive Bayes results"
-                    + "have unexpected size. This should not happen!?");
-        // Write the NB predictions to file
-        merged_results.writeNaiveBayesResultsToFile(
-                parameters.getClassificationFile());
-        // Remove the temp files
-        for (int index = 0; index <= fileIndex; index++)
-            new File(parameters.getClassificationFile() + "." + index).delete();
-        // At this point, for all of the test items, there is an entry on file
+        if (checkpointFile != null) {
+            // Write the NB predictions to file
+            merged_results.write(checkpointFile);
+            // Remove the temp files
+            for (int index = 0; index <= fileIndex; index++)
+                new File(checkpointFile + "." + index).delete();
+        }
+        // At this point, for all of the test items, there is a result
         // using the format:
         // ID ClassID Score #Features (used for classification).
+        return merged_results;
     }
     
     /**
@@ -450,14 +442,20 @@ public class NaiveBayes {
         /**
          * Evaluation of the NB model.
          * @param test_data Array of DataItem test data
-         * @param intermediateFile filename for the intermediate results 
+         * @param ids The IDs of the test data
+         * @param intermediateFile filename for the intermediate results, or
+         * null to keep the results in memory only
+         * @return The results for this batch, indexed by the position of the 
+         * test items
          */
-        public void evaluate(DataItem[] test_data, String intermediateFile) {
+        public NaiveBayesColumns evaluate(DataItem[] test_data, int [] ids,
+                String intermediateFile) {
             LOG.info("== Applying multinomial Naive Bayes model. ==");
             long start = System.currentTimeMillis();
-
+            // Each thread puts its results in its own part of the columns
+            NaiveBayesColumns results = new NaiveBayesColumns(ids);
             ExecutorService executor = Executors.newFixedThreadPool(NR_THREADS);
-            List<Future<File>> list = new ArrayList<Future<File>>();
+            List<Future<Integer>> list = new ArrayList<Future<Integer>>();
             int length = (int) (test_data.length * 1.0 / NR_THREADS);
             for (int i = 0; i < NR_THREADS; i++) {
                 int begin = i * length;
@@ -465,54 +463,29 @@ public class NaiveBayes {
                     length = test_data.length - (i * length);
                 }
                 int end = begin + length;
-                Callable<File> worker = new NaiveBayesEvaluateCallable(begin, 
-                        end, intermediateFile);
-                Future<File> submit = executor.submit(worker);
+                Callable<Integer> worker = new NaiveBayesEvaluateCallable(
+                        begin, end, results);
+                Future<Integer> submit = executor.submit(worker);
                 list.add(submit);
             }
-            // Now retrieve the result and write them to file
-            try {
-                PrintWriter results = new PrintWriter(
-                        new FileWriter(intermediateFile), true);
-                int results_counter = 0;
-                LOG.info("Merging individual thread result files");
-                long start_merge = System.currentTimeMillis();
-                for (Future<File> future : list) {
-                    try {
-                        File tmp_file = future.get();
-                        LOG.info("Processing " + tmp_file.getName());
-                        BufferedReader input = new BufferedReader(
-                                new FileReader(tmp_file));
-                        String line = input.readLine();
-                        while (line != null) {
-                            String [] values = line.split("\t");
-                            // ID PREDICTION SCORE FEATURES_USED
-                            results.println(values[0] + "\t" + values[1] + "\t" 
-                                    + values[2] + "\t" + values[3]);
-                            results_counter++;
-                            line = input.readLine();
-                        }
-                        input.close();
-                        tmp_file.delete();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        e.printStackTrace();
-                    }            
-                }
-                results.close();
-                long stop_merge = System.currentTimeMillis();
-                LOG.info("Merge complete ("+(stop_merge-start_merge)
-                        +" ms.)");
-                LOG.info("Lines: " + results_counter);
-            } catch (IOException e) {
-                LOG.error("IOException during writing of predictions: {}", e.getMessage());
+            // Now wait for the results
+            int results_counter = 0;
+            for (Future<Integer> future : list) {
+                try {
+                    results_counter += future.get();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }            
             }
+            LOG.info("Lines: " + results_counter);
             // This will make the executor accept no new threads
             // and finish all existing threads in the queue
             executor.shutdown();
-            // Wait until all threads are finish
-            while (!executor.isTerminated()) {}
+            // Optionally write the intermediate results to file
+            if (intermediateFile != null)
+                results.write(intermediateFile);
             // Stop the itmer and publish statistics
             long stop = System.currentTimeMillis();
             LOG.info("=============== [NaiveBayes] Results: ======="
@@ -521,12 +494,13 @@ public class NaiveBayes {
                     " ms.");
             LOG.info("============================================="
                     + "========");
+            return results;
         }
 
         /**
          * Helper class for multi-threaded evaluation of the NB model.
          */
-        private class NaiveBayesEvaluateCallable implements Callable<File> {
+        private class NaiveBayesEvaluateCallable implements Callable<Integer> {
 
             /**
              * Index of the beginning of the data this thread has to process.
@@ -539,46 +513,33 @@ public class NaiveBayes {
             private int end;
 
             /**
-             * Output destination.
+             * The results of the batch, shared between the threads.
              */
-            private String outputDir;
+            private NaiveBayesColumns results;
 
             /**
              * Constructor.
              * @param begin the beginning of the data this thread has to 
              * process.
              * @param end the end of the data this thread has to process.
-             * @param intermediateFile The filename of the intermediate result 
-             * of this Naive Bayes batch.
+             * @param results The results of the batch, shared between the
+             * threads, each thread only puts the results of its own part 
+             * of the data.
              */
             public NaiveBayesEvaluateCallable(int begin, int end, 
-                    String intermediateFile) {
+                    NaiveBayesColumns results) {
                 this.begin = begin;
                 this.end = end;
-                String path = new File(intermediateFile).getAbsoluteFile().
-                        toString();
-                this.outputDir = path.substring(0, path.lastIndexOf("/") + 1);
+                this.results = results;
             }
 
             /**
              * Evaluation of the NB model.
-             * @return a temporary File containing the predictions for this 
-             * smaller part of the data for the current batch.
+             * @return the number of test items processed.
              * @throws Exception
              */
             @Override
-            public File call() throws Exception {
-                // Create a tmp file for this thread
-                File tmp_file = File.createTempFile("NB_thread_results", 
-                        ".geo");
-                // Now get a tmp filename within the path of the preferred
-                // output destination
-                File tmp_file2 = new File(outputDir + tmp_file.getName());
-                // Already delete the first real temp file
-                tmp_file.delete();
-                // Open a writer to the output
-                PrintWriter file = new PrintWriter(new FileWriter(tmp_file2), 
-                        true);
+            public Integer call() throws Exception {
                 int processed = 0;
                 // For the part of the data this Callable processes
                 for (int i = begin; i < end; i++) {
@@ -587,35 +548,22 @@ public class NaiveBayes {
                     // Extra sanity check
                     if (item != null) {
                         processed++;
-                        // Print the ID
-                        file.print(item.getId() + "\t");
                         // Determine the best score for this item
                         Map<Integer, Double> scores = 
                                 new HashMap<Integer, Double>();
                         // For the current test item, evaluate the classes
                         int predictedClassId = getBestClass(item, scores);
-                        // By sorting all classes evaluated in this batch
-                        // in descending order
-                        scores = Util.sortByValueDescending(scores);
                         // If we have found a valid class (sanity check)
                         if (predictedClassId >= 0) {
-                            // Write the scores to file, tab separated
-                            for (Integer classId : scores.keySet()) {
-                                file.print(classId + "\t" + 
-                                        scores.get(classId) + "\t");
-                                file.flush();
-                                // Break after the 'winning' class ID and its 
-                                // score (in log space).
-                                break;
-                            }
-                            // Write the number of features used for 
-                            // classification to file as well.
-                            file.println(item.getData().length);
+                            // Store the 'winning' class ID, its score (in log 
+                            // space) and the number of features used for 
+                            // classification
+                            results.put(i, predictedClassId, 
+                                    scores.get(predictedClassId), 
+                                    item.getData().length);
                         } 
                         // This should not happen
                         else {
-                            // So, if it does, bail out
-                            file.close();
                             // Cry
                             throw new RuntimeException("[NULL PREDICTION] " + 
                                     item);
@@ -626,10 +574,7 @@ public class NaiveBayes {
                         }
                     }
                 }
-                // Close output
-                file.close();
-                // Return File object with tmp results
-                return tmp_file2;
+                return processed;
             }
 
             /**
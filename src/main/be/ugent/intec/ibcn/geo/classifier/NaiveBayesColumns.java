@@ -0,0 +1,231 @@
+package be.ugent.intec.ibcn.geo.classifier;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Columnar view on the results of the classification step for a given set of
+ * test items.
+ *
+ * Where NaiveBayesResults keeps the results in maps keyed by test item ID,
+ * this class keeps the prediction, the feature count and the score in
+ * primitive arrays, indexed by the position of the test item in the array of
+ * IDs it was created for (typically the position in the loaded test data).
+ * This avoids boxing every value, and allows to scan the results without any
+ * lookups.
+ *
+ * The results are either loaded from a classification file, or passed in
+ * memory from the classifier to the referencer, in which case writing them
+ * to file is optional.
+ *
+ * The file format is the same as for NaiveBayesResults
+ *  ID ClassID Score #Features_used
+ *
+ * @see NaiveBayesResults
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class NaiveBayesColumns {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(NaiveBayesColumns.class);
+
+    /**
+     * The IDs of the test items.
+     */
+    private int [] ids;
+
+    /**
+     * @param index The position of the test item
+     * @return the ID of the test item.
+     */
+    public int getId(int index) {
+        return this.ids[index];
+    }
+
+    /**
+     * The predicted class per test item, -1 if there is no result.
+     */
+    private int [] predictions;
+
+    /**
+     * @param index The position of the test item
+     * @return the predicted class for the test item, or -1 if there was no
+     * result for the test item.
+     */
+    public int getPrediction(int index) {
+        return this.predictions[index];
+    }
+
+    /**
+     * The number of features used per test item, -1 if there is no result.
+     */
+    private int [] features;
+
+    /**
+     * @param index The position of the test item
+     * @return the number of features that were used when predicting the class
+     * of the test item, or -1 if there was no result for the test item.
+     */
+    public int getFeatureCount(int index) {
+        return this.features[index];
+    }
+
+    /**
+     * The score of the prediction per test item.
+     */
+    private double [] scores;
+
+    /**
+     * @param index The position of the test item
+     * @return the score that was assigned to the prediction.
+     */
+    public double getScore(int index) {
+        return this.scores[index];
+    }
+
+    /**
+     * @return the number of test items.
+     */
+    public int size() {
+        return this.predictions.length;
+    }
+
+    /**
+     * Constructor, for empty results.
+     * @param ids The IDs of the test items. The results are indexed by the
+     * position of the ID in this array.
+     */
+    public NaiveBayesColumns(int [] ids) {
+        this.ids = ids;
+        this.predictions = new int[ids.length];
+        this.features = new int[ids.length];
+        this.scores = new double[ids.length];
+        Arrays.fill(predictions, -1);
+        Arrays.fill(features, -1);
+    }
+
+    /**
+     * Constructor.
+     * @param filename The filename containing the NB results.
+     * @param ids The IDs of the test items to load the results for. The
+     * results are indexed by the position of the ID in this array.
+     */
+    public NaiveBayesColumns(String filename, int [] ids) {
+        this(ids);
+        LOG.info("Loading NB Results from {}", filename);
+        // Sort the IDs, keeping track of their position
+        int [][] lookup = sortIds(ids);
+        try {
+            // Set up reader
+            BufferedReader in = new BufferedReader(new FileReader(filename));
+            String line = in.readLine();
+            // While we have lines
+            while (line != null) {
+                // Split the line on tabs
+                int t1 = line.indexOf('\t');
+                int t2 = line.indexOf('\t', t1 + 1);
+                int t3 = line.indexOf('\t', t2 + 1);
+                int id = Integer.parseInt(line.substring(0, t1));
+                // Find the position of the test item
+                int found = Arrays.binarySearch(lookup[0], id);
+                if (found >= 0)
+                    put(lookup[1][found],
+                            Integer.parseInt(line.substring(t1 + 1, t2)),
+                            Double.parseDouble(line.substring(t2 + 1, t3)),
+                            Integer.parseInt(line.substring(t3 + 1)));
+                line = in.readLine();
+            }
+            in.close();
+        }
+        catch (IOException e) {
+        	LOG.error("IOException: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Sort an array of IDs, keeping track of their positions.
+     * @param ids The IDs
+     * @return The sorted IDs, and the position of each sorted ID in the
+     * given array.
+     */
+    private static int[][] sortIds(int [] ids) {
+        long [] packed = new long[ids.length];
+        for (int i = 0; i < ids.length; i++)
+            packed[i] = ((long)ids[i] << 32) | i;
+        Arrays.sort(packed);
+        int [][] lookup = new int[2][ids.length];
+        for (int i = 0; i < packed.length; i++) {
+            lookup[0][i] = (int)(packed[i] >> 32);
+            lookup[1][i] = (int)packed[i];
+        }
+        return lookup;
+    }
+
+    /**
+     * Put the result for a test item.
+     * @param index The position of the test item
+     * @param prediction The predicted class
+     * @param score The score of the prediction
+     * @param featureCount The number of features used for the prediction
+     */
+    public void put(int index, int prediction, double score,
+            int featureCount) {
+        this.predictions[index] = prediction;
+        this.scores[index] = score;
+        this.features[index] = featureCount;
+    }
+
+    /**
+     * Get the results for another array of test item IDs, for instance for
+     * the same test items loaded by a different parser.
+     * @param ids The IDs of the test items
+     * @return The results, indexed by the position of the ID in the given
+     * array. Test items without results have a prediction of -1.
+     */
+    public NaiveBayesColumns align(int [] ids) {
+        NaiveBayesColumns aligned = new NaiveBayesColumns(ids);
+        int [][] lookup = sortIds(this.ids);
+        for (int i = 0; i < ids.length; i++) {
+            int found = Arrays.binarySearch(lookup[0], ids[i]);
+            if (found >= 0) {
+                int index = lookup[1][found];
+                aligned.put(i, predictions[index], scores[index],
+                        features[index]);
+            }
+        }
+        return aligned;
+    }
+
+    /**
+     * Write the results to file, in ascending order of ID, in the format
+     * read by NaiveBayesResults. Test items without results are skipped.
+     * @param filename The file to write the results to.
+     */
+    public void write(String filename) {
+        int [][] lookup = sortIds(ids);
+        try {
+            // Open writer
+            PrintWriter out = new PrintWriter(new FileWriter(filename));
+            // Write ID classID score #features_used
+            for (int i = 0; i < lookup[1].length; i++) {
+                int index = lookup[1][i];
+                if (predictions[index] >= 0)
+                    out.println(ids[index] + "\t" + predictions[index] + "\t" +
+                            scores[index] + "\t" + features[index]);
+            }
+            out.close();
+        } catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+        }
+    }
+}
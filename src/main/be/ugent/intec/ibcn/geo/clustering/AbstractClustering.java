@@ -1,23 +1,29 @@
 package be.ugent.intec.ibcn.geo.clustering;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import be.ugent.intec.ibcn.geo.clustering.datatypes.Cluster;
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
 import be.ugent.intec.ibcn.geo.common.datatypes.Point;
+import be.ugent.intec.ibcn.geo.common.io.FileIO;
 
 /**
  * This class provides the generic (and common) functionality of the clustering
  * algorithms in this framework.
  * 
  * In the current version of the clustering package, the input data is read
- * into an array. Although this has been tested to input sizes of millions of
- * training items, this introduced a bottleneck to the size of training files
- * that can be handled.
+ * into a PointStore, which keeps the points in primitive arrays and lets the
+ * clusters refer to the points by their index. Although this has been tested 
+ * to input sizes of millions of training items, this introduced a bottleneck 
+ * to the size of training files that can be handled.
  * 
  * Depending on the size of the input data you want to cluster, it is mandatory
  * to increase the -Xmx VM parameter to avoid OutOfMemoryExceptions.
@@ -47,10 +53,31 @@ public abstract class AbstractClustering {
         LOG.info("[ Available CPU's: {} ]", NR_THREADS);
     }
     
+    /**
+     * Class name of the parser for medoid files.
+     */
+    protected static final String MEDOID_PARSER =
+            "be.ugent.intec.ibcn.geo.common.io.parsers.LineParserMedoid";
+
+    /**
+     * The number of threads this clustering uses, all the available
+     * processors by default.
+     */
+    protected int threads = NR_THREADS;
+
+    /**
+     * Set the number of threads this clustering uses, e.g. 1 when several
+     * clusterings run in parallel.
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     /**
      * Holds a reference to the input data.
      */
-    protected Point [] data;
+    protected PointStore store;
     
     /**
      * Reference to the ClusteringParameters, used for intra-cluster 
@@ -66,6 +93,35 @@ public abstract class AbstractClustering {
         this.parameters = parameters;
     }
     
+    /**
+     * Find the medoids of one or more medoid files (ID,lat,lon) in the store,
+     * by their ID.
+     * @param medoidfiles The medoid files
+     * @return the indices of the medoids in the store, in the order of the
+     * store. Medoids of which the ID is not in the store are skipped.
+     */
+    protected int [] loadMedoids(String... medoidfiles) {
+        // Load the IDs of the medoids
+        Map<Integer, Integer> ids = new HashMap<Integer, Integer>();
+        for (String medoidfile : medoidfiles)
+            for (Point point : FileIO.loadMedoids(medoidfile, MEDOID_PARSER))
+                ids.put(point.getId(), -1);
+        // Find the medoids in the store
+        for (int p = 0; p < store.size(); p++) {
+            Integer index = ids.get(store.getId(p));
+            if (index != null && index < 0)
+                ids.put(store.getId(p), p);
+        }
+        int [] medoids = new int[ids.size()];
+        int count = 0;
+        for (int p : ids.values())
+            if (p >= 0)
+                medoids[count++] = p;
+        medoids = Arrays.copyOf(medoids, count);
+        Arrays.sort(medoids);
+        return medoids;
+    }
+
     /**
      * Abstract method declaration for the actual clustering call.
      * @param outputfile Filename of the file that will contain the clustering
@@ -87,18 +143,33 @@ public abstract class AbstractClustering {
          * Default max number of points to process by each of the threads.
          */
         private int sample_limit = 
-                parameters.optimization_overall_sample_limit / NR_THREADS;
+                parameters.optimization_overall_sample_limit / threads;
 
         /**
          * Keeps track of the Cluster this Thread is optimizing.
          */
         protected Cluster cluster;
 
+        /**
+         * The minimal improvement of the cost to accept a new center.
+         */
+        protected double min_improvement;
+
         /**
          * @param cluster the Cluster this Thread is optimizing.
          */
         public ClusterOptimizer(Cluster cluster) {
+            this(cluster, parameters.optimization_min_improvement);
+        }
+
+        /**
+         * @param cluster the Cluster this Thread is optimizing.
+         * @param min_improvement The minimal improvement of the cost to 
+         * accept a new center, instead of the one in the parameters
+         */
+        public ClusterOptimizer(Cluster cluster, double min_improvement) {
             this.cluster = cluster;
+            this.min_improvement = min_improvement;
         }
 
         /**
@@ -120,35 +191,33 @@ public abstract class AbstractClustering {
                 // Assume this will be the last iteration - so far
                 runMore = false;
                 // Initialize placeholders for the best configuration
-                Point bestCenter = cluster.getCenter();
+                int bestCenter = cluster.getCenter();
                 double cost = cluster.calculateCost();
                 double original_cost = cost;
 
-                // Make a copy of the datapoints because we are iterating 
-                // over the list
-                List<Point> datapoints = 
-                        new ArrayList<Point>(cluster.getElements());
+                // Prepare the evaluation of the center swaps, shared by the
+                // helpers. This takes a copy of the elements.
+                SwapEvaluator evaluator = new SwapEvaluator(cluster);
                 // Create helpers according to the number of threads we have
                 ClusterOptimizerHelper[] threads = 
-                        new ClusterOptimizerHelper[NR_THREADS];
+                        new ClusterOptimizerHelper[
+                        AbstractClustering.this.threads];
                 // Determine the size of each of the sub-problems
-                int unit = (int) (datapoints.size() * 1.0 / NR_THREADS);
+                int unit = (int) (evaluator.size() * 1.0 / 
+                        AbstractClustering.this.threads);
                 // For each of the threads
                 for (int i = 0; i < threads.length; i++) {
                     // Determine the workload
                     int end = (i + 1) * unit;
                     // Determine the workload for the remainder
                     if (i == threads.length - 1)
-                        end = datapoints.size();
-                    // Create a subset of potential best point candidates
-                    List<Point> subset = 
-                            new ArrayList(datapoints.subList(i * unit, end));
-                    // Init the helper thread with the subset of candidates, 
-                    // a copy of the cluster data and a sample limit 
-                    // (= min(elements in the subset, sample_limit)
-                    threads[i] = new ClusterOptimizerHelper(subset, 
-                            new Cluster(cluster), 
-                            (int)Math.min(subset.size(), sample_limit));
+                        end = evaluator.size();
+                    // Init the helper thread with the range of candidates, 
+                    // the current cost and a sample limit 
+                    // (= min(elements in the range, sample_limit)
+                    threads[i] = new ClusterOptimizerHelper(evaluator, 
+                            i * unit, end, cost, 
+                            (int)Math.min(end - i * unit, sample_limit));
                     // Start optimizing the cluster
                     threads[i].start();
                 }
@@ -160,14 +229,14 @@ public abstract class AbstractClustering {
                 }
                 // Gather the best result for each of the threads
                 for (int i = 0; i < threads.length; i++) {
-                    Point threadBest = threads[i].getBestCenter();
+                    int threadBest = threads[i].getBestCenter();
                     double threadCost = threads[i].getBestCost();
                     // If the thread cost is lower than the current best
                     if (threadCost < cost && 
                             // And the improvement is at least 
                             // optimization_min_improvement
                             (cost - threadCost)/threadCost >= 
-                            parameters.optimization_min_improvement) {
+                            min_improvement) {
                         // keep track of this new best configuration
                         bestCenter = threadBest;
                         cost = threadCost;
@@ -199,7 +268,7 @@ public abstract class AbstractClustering {
          * @return always true if a swap was made. The default optimization runs
          * until the iteration limit is hit.
          */
-        protected boolean finalSwap(Point bestCenter, Cluster cluster, 
+        protected boolean finalSwap(int bestCenter, Cluster cluster, 
             double original_cost, double cost) {
             // - Process the cluster change
             cluster.swapCenter(bestCenter);
@@ -211,19 +280,25 @@ public abstract class AbstractClustering {
          * Helper class that allows multi-threaded optimization of separate 
          * Clusters.
          * This class will search for a cluster center that minimizes the 
-         * overall cluster cost.
+         * overall cluster cost. The candidates are evaluated by a 
+         * SwapEvaluator, so the Cluster itself is never modified.
          */
         protected class ClusterOptimizerHelper extends Thread {
 
             /**
-             * A list of Points that are possible center candidates.
+             * Evaluator for the center swaps of the Cluster to be optimized.
+             */
+            private SwapEvaluator evaluator;
+
+            /**
+             * Index of the first candidate of this helper.
              */
-            private List<Point> datapoints;
+            private int begin;
 
             /**
-             * A copy of the original Cluster to be optimized.
+             * Index after the last candidate of this helper.
              */
-            private Cluster cluster;
+            private int end;
 
             /**
              * Keeps track of the best Cluster cost.
@@ -238,14 +313,16 @@ public abstract class AbstractClustering {
             }
 
             /**
-             * Keeps track of the Point that leads to the minimal Cluster cost.
+             * Keeps track of the point that leads to the minimal Cluster cost,
+             * -1 if none.
              */
-            private Point bestCenter = null;
+            private int bestCenter = -1;
 
             /**
-             * @return the Point that leads to the minimal Cluster cost.
+             * @return the index of the point that leads to the minimal Cluster
+             * cost, -1 if no point improves the current configuration.
              */
-            public Point getBestCenter() {
+            public int getBestCenter() {
                 return this.bestCenter;
             }
 
@@ -256,34 +333,39 @@ public abstract class AbstractClustering {
 
             /**
              * Constructor.
-             * @param datapoints A list of Points that are possible center 
-             * candidates
-             * @param cluster A copy of the original Cluster to be optimized.
+             * @param evaluator Evaluator for the center swaps of the Cluster 
+             * to be optimized
+             * @param begin Index of the first candidate
+             * @param end Index after the last candidate
+             * @param cost The cost of the current configuration
              * @param sample_count Sample size to use.
              */
-            public ClusterOptimizerHelper(List<Point> datapoints, 
-                    Cluster cluster, int sample_count) {
-                this.datapoints = datapoints;
-                this.cluster = cluster;
+            public ClusterOptimizerHelper(SwapEvaluator evaluator, int begin,
+                    int end, double cost, int sample_count) {
+                this.evaluator = evaluator;
+                this.begin = begin;
+                this.end = end;
                 this.sample_count = sample_count;
                 // Init the cluster cost based on the current center.
-                this.cost = cluster.getCost();
+                this.cost = cost;
             }
 
             /**
              * run() implementation.
              * Will try every possible center Point and store the optimal 
-             * configuration. In case sample_count < datapoints.size(), 
-             * sampling will be applied.
+             * configuration. In case sample_count < end - begin, sampling 
+             * will be applied.
              */
             @Override
             public void run() {
                 // Init and seed a random generator
                 Random rg = new Random(987654321L);
-                // Copy the datapoints
-                List<Point> copy = new ArrayList(datapoints);
-                // List of selected points
-                List<Point> samples = new ArrayList<Point>();
+                // Copy the candidates
+                List<Integer> copy = new ArrayList<Integer>(end - begin);
+                for (int i = begin; i < end; i++)
+                    copy.add(i);
+                // List of selected candidates
+                List<Integer> samples = new ArrayList<Integer>();
                 // While we do not have enough sample_count
                 while (samples.size() < sample_count) {
                     // Pick a random point
@@ -293,22 +375,22 @@ public abstract class AbstractClustering {
                     // Remove from the datapoints
                     copy.remove(index);
                 }
-                // For each point in the samples
-                for (Point p : samples) {
-                    // try making p the new center - cost is recalculated 
-                    // automatically
-                    cluster.swapCenter(p);
+                // For each candidate in the samples
+                for (int candidate : samples) {
+                    // Determine the cost of making the candidate the new 
+                    // center, up to the cost it needs to beat
+                    double candidate_cost = evaluator.cost(candidate, 
+                            cost - Math.max(0, 
+                            min_improvement));
                     // check if it has a lower configuration cost
                     // AND that the configuration change is larger than 
                     // optimization_min_improvement
-                    if (cluster.getCost() < cost && cost - cluster.getCost() > 
-                            parameters.optimization_min_improvement) {
+                    if (candidate_cost < cost && cost - candidate_cost > 
+                            min_improvement) {
                         // keep track of this configuration
-                        bestCenter = p;
-                        cost = cluster.getCost();
+                        bestCenter = evaluator.getElement(candidate);
+                        cost = candidate_cost;
                     }
-                    // undo the new configuration
-                    cluster.undoCenterSwap();
                     // and try the next one
                 }
             }
@@ -0,0 +1,650 @@
+package be.ugent.intec.ibcn.geo.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.ugent.intec.ibcn.geo.clustering.datatypes.Cluster;
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
+import be.ugent.intec.ibcn.geo.common.datatypes.Point;
+import be.ugent.intec.ibcn.geo.common.io.ClusteringIO;
+
+/**
+ * This class contains an implementation of CLARANS (Clustering Large
+ * Applications based on RANdomized Search), a k-medoids variant that samples
+ * the swap candidates of each medoid instead of evaluating all of them.
+ *
+ * For more details on the algorithm,
+ * @see http://dx.doi.org/10.1109/TKDE.2002.1033770
+ *
+ * Where PamClustering optimizes each cluster on its own points and then
+ * reassigns all the points, this implementation evaluates the exact change of
+ * the overall cost for each swap. As in FastPAM, the nearest and second
+ * nearest medoid of each point are cached after each assignment: when the
+ * medoid of a cluster is swapped for a candidate, its points either move to
+ * the candidate or to their second nearest medoid, while the points of other
+ * clusters only move if the candidate is closer than their current medoid.
+ *
+ * The candidates of a cluster are sampled from its own points. By the
+ * triangle inequality, a point of another cluster can only move to such a
+ * candidate if the candidate lies within twice the radius of that cluster
+ * from its medoid, so only the points of nearby clusters are visited.
+ *
+ * Each iteration evaluates the sampled candidates of all the clusters in
+ * parallel, and then applies the best swap of each cluster, most improving
+ * first, unless the swap involves a cluster that was already changed by
+ * another swap in the same iteration. This way, the overall cost decreases in
+ * every iteration. The algorithm stops when no swap improves the cost by more
+ * than the partial cost improvement threshold, or when the iteration limit is
+ * reached. Clusters below the minimum cluster size are not merged.
+ *
+ * @see PamParameters#setAlgorithm(int)
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class ClaransClustering extends PamClustering {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(ClaransClustering.class);
+
+    /**
+     * Index in the store of the medoid of each cluster.
+     */
+    private int [] medoids;
+
+    /**
+     * Nearest medoids of the current medoids.
+     */
+    private NearestMedoids index;
+
+    /**
+     * Position of the nearest medoid of each point.
+     */
+    private int [] nearest;
+
+    /**
+     * Distance to the nearest medoid of each point.
+     */
+    private double [] d1;
+
+    /**
+     * Position of the second nearest medoid of each point.
+     */
+    private int [] second;
+
+    /**
+     * Distance to the second nearest medoid of each point.
+     */
+    private double [] d2;
+
+    /**
+     * Position of the nearest other medoid of each medoid.
+     */
+    private int [] medoid_second;
+
+    /**
+     * Distance to the nearest other medoid of each medoid.
+     */
+    private double [] medoid_d2;
+
+    /**
+     * Start of the points of each cluster in the members, and the number of
+     * members at the end.
+     */
+    private int [] start;
+
+    /**
+     * Indices of the points, grouped per cluster. The points of a cluster are
+     * ordered by decreasing distance to their medoid.
+     */
+    private int [] members;
+
+    /**
+     * Largest distance of a point of each cluster to its medoid.
+     */
+    private double [] radius;
+
+    /**
+     * Largest radius of all the clusters.
+     */
+    private double max_radius;
+
+    /**
+     * Constructor
+     * @param parameters Parameters for the clustering
+     * @param store PointStore holding the data to cluster
+     * @param numberOfClusters the required number of clusters
+     */
+    public ClaransClustering(PamParameters parameters, PointStore store,
+            int numberOfClusters) {
+        super(parameters, store, numberOfClusters);
+    }
+
+    /**
+     * Constructor
+     * @param parameters Parameters for the clustering
+     * @param data Array of Point data to cluster
+     * @param numberOfClusters the required number of clusters
+     */
+    public ClaransClustering(PamParameters parameters, Point [] data,
+            int numberOfClusters) {
+        this(parameters, PointStore.create(data), numberOfClusters);
+    }
+
+    /**
+     * CLARANS clustering function.
+     * @param outputfile The filename of the results of the clustering
+     */
+    @Override
+    public void cluster(String outputfile) {
+        LOG.info("[CLARANS] Output will be written in {}", outputfile);
+        PamParameters pp = (PamParameters)parameters;
+        // Init a random generator - with seed for reproduceability
+        Random rg = new Random(123456789L);
+        // Init a ClusteringIO
+        ClusteringIO cio = new ClusteringIO();
+        // Init the overall timer
+        long overall_start = System.currentTimeMillis();
+
+        /*
+         * Step 1. Initialize: randomly select k of the n data points as the
+         * mediods.
+         */
+        LOG.info("[CLARANS][Algorithm][Step 1] Initial medoid selection. "
+                + "(# {})", numberOfClusters);
+        long start_time = System.currentTimeMillis();
+        medoids = selectInitialMedoids(rg);
+        LOG.info(" - Selected {} medoids. (Time: {} ms.)",
+        		medoids.length, (System.currentTimeMillis() - start_time));
+        // Prepare the caches
+        int n = store.size();
+        nearest = new int[n];
+        d1 = new double[n];
+        second = new int[n];
+        d2 = new double[n];
+        medoid_second = new int[medoids.length];
+        medoid_d2 = new double[medoids.length];
+        radius = new double[medoids.length];
+
+        /*
+         * Step 2. Associate each data point to the closest medoid.
+         */
+        double cost = assign();
+        LOG.info(" - Initial cost: {}", cost);
+        int iterations = 0;
+        while (iterations < iterationLimit) {
+            long iteration_start = System.currentTimeMillis();
+            LOG.info("\n========] Iteration {} [========\n",
+            		++iterations);
+            /*
+             * Step 3. Evaluate the sampled swap candidates of each cluster.
+             */
+            List<Swap> swaps = evaluate(iterations);
+            /*
+             * Step 4. Apply the best non-conflicting swaps.
+             */
+            int applied = apply(swaps, pp.cost_improvement_threshold_partial);
+            if (applied == 0)
+                break;
+            // Reassign the points to the new medoids
+            cost = assign();
+            LOG.info("[CLARANS][Algorithm] Iteration finished in {} ms.",
+            		(System.currentTimeMillis() - iteration_start));
+            LOG.info(" - {} clusters changed during iteration, cost: {}",
+            		applied, cost);
+            // Write the current iteration to the result file, just in case
+            cio.writeClusteringToFile(clusters(), outputfile,
+                    writeFullClustering);
+        }
+        long overall_stop = System.currentTimeMillis();
+
+        List<Cluster> clusters = clusters();
+        int clusters_threshold = 0;
+        int empty_clusters = 0;
+        int min_size = Integer.MAX_VALUE;
+        int max_size = 0;
+        for (Cluster cluster : clusters) {
+            // Keep track of stats
+            if (cluster.size() == 0)
+                empty_clusters++;
+            if (cluster.size() < pp.min_cluster_size)
+                clusters_threshold++;
+            if (cluster.size() < min_size && cluster.size() > 0)
+                min_size = cluster.size();
+            if (cluster.size() > max_size)
+                max_size = cluster.size();
+        }
+        // Write the final clustering to file
+        cio.writeClusteringToFile(clusters, outputfile,
+                parameters.isWriteFullClusteringToFile());
+
+        // Print some stats
+        LOG.info("[CLARANS] Clustering summary");
+        LOG.info(" - Finished after {} iterations.", iterations);
+        LOG.info(" - Total clusters: {}", clusters.size());
+        LOG.info(" - Empty clusters: {}", empty_clusters);
+        LOG.info(" - Clusters < {} : {}", pp.min_cluster_size,
+                clusters_threshold);
+        LOG.info(" - Min cluster size (>0): {}", min_size);
+        LOG.info(" - Max cluster size: {}", max_size);
+        LOG.info(" - Total cost: {}", cost);
+        LOG.info("[=======================]");
+        LOG.info(" Overall processing time: {} ms.",
+            (overall_stop - overall_start));
+    }
+
+    /**
+     * Assign the points to their nearest medoids, and update the caches.
+     * @return the overall cost, i.e. the sum of the distances of the points
+     * to their nearest medoid.
+     */
+    private double assign() {
+        int k = medoids.length;
+        index = new NearestMedoids(store, medoids);
+        index.assign(medoid, nearest, d1, second, d2, threads);
+        // Find the nearest other medoid of each medoid
+        int [] positions = new int[2];
+        double [] distances = new double[2];
+        for (int i = 0; i < k; i++) {
+            index.nearest(medoids[i], positions, distances);
+            int other = positions[0] == i ? 1 : 0;
+            medoid_second[i] = positions[other];
+            medoid_d2[i] = distances[other];
+        }
+        // Group the points per cluster
+        start = new int[k + 1];
+        for (int p = 0; p < nearest.length; p++)
+            if (!medoid[p])
+                start[nearest[p] + 1]++;
+        for (int i = 0; i < k; i++)
+            start[i + 1] += start[i];
+        members = new int[start[k]];
+        int [] cursor = Arrays.copyOf(start, k);
+        Arrays.fill(radius, 0);
+        double cost = 0;
+        for (int p = 0; p < nearest.length; p++) {
+            if (medoid[p])
+                continue;
+            int i = nearest[p];
+            members[cursor[i]++] = p;
+            radius[i] = Math.max(radius[i], d1[p]);
+            cost += d1[p];
+        }
+        max_radius = 0;
+        for (int i = 0; i < k; i++)
+            max_radius = Math.max(max_radius, radius[i]);
+        // Order the points of each cluster from far to near their medoid,
+        // sorting the clusters in parallel
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> list = new ArrayList<Future<?>>();
+        for (int i = 0; i < k; i++)
+            if (start[i + 1] - start[i] > 1)
+                list.add(executor.submit(new MemberSorter(i)));
+        for (Future<?> future : list) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        executor.shutdown();
+        return cost;
+    }
+
+    /**
+     * Stable merge sort of a range of the members, from far to near their
+     * medoid. Points at the same distance keep their order.
+     * @param from Start of the range (inclusive)
+     * @param to End of the range (exclusive)
+     * @param scratch Buffer of at least the size of the range
+     */
+    private void sortFarFirst(int from, int to, int [] scratch) {
+        // Insertion sort for small ranges
+        if (to - from <= 16) {
+            for (int q = from + 1; q < to; q++) {
+                int p = members[q];
+                int r = q - 1;
+                while (r >= from && Double.compare(d1[members[r]], d1[p]) < 0) {
+                    members[r + 1] = members[r];
+                    r--;
+                }
+                members[r + 1] = p;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sortFarFirst(from, middle, scratch);
+        sortFarFirst(middle, to, scratch);
+        // Already in order
+        if (Double.compare(d1[members[middle - 1]], d1[members[middle]]) >= 0)
+            return;
+        // Merge the sorted halves, the left one first on equal distances
+        System.arraycopy(members, from, scratch, 0, middle - from);
+        int left = 0;
+        int left_end = middle - from;
+        int right = middle;
+        int q = from;
+        while (left < left_end && right < to) {
+            if (Double.compare(d1[scratch[left]], d1[members[right]]) >= 0)
+                members[q++] = scratch[left++];
+            else
+                members[q++] = members[right++];
+        }
+        System.arraycopy(scratch, left, members, q, left_end - left);
+    }
+
+    /**
+     * @return the current clusters, with their points.
+     */
+    private List<Cluster> clusters() {
+        List<Cluster> clusters = new ArrayList<Cluster>(medoids.length);
+        for (int i = 0; i < medoids.length; i++) {
+            Cluster cluster = new Cluster(store, medoids[i]);
+            int size = start[i + 1] - start[i];
+            cluster.addAllElements(
+                    Arrays.copyOfRange(members, start[i], start[i + 1]), size);
+            clusters.add(cluster);
+        }
+        return clusters;
+    }
+
+    /**
+     * Evaluate the sampled swap candidates of all the clusters in parallel.
+     * @param iteration The current iteration, used to seed the sampling
+     * @return the best swap of each cluster that reduces the cost.
+     */
+    private List<Swap> evaluate(int iteration) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Swap>> list = new ArrayList<Future<Swap>>();
+        for (int i = 0; i < medoids.length; i++)
+            list.add(executor.submit(new SwapSearch(i,
+                    987654321L + (long)iteration * medoids.length + i)));
+        List<Swap> swaps = new ArrayList<Swap>();
+        for (Future<Swap> future : list) {
+            try {
+                Swap swap = future.get();
+                if (swap != null)
+                    swaps.add(swap);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        executor.shutdown();
+        return swaps;
+    }
+
+    /**
+     * Apply the swaps, most improving first, skipping the swaps that involve
+     * a cluster that was changed by an earlier swap.
+     * @param swaps The best swap of each cluster
+     * @param threshold The minimal cost reduction of a swap
+     * @return the number of swaps that were applied.
+     */
+    private int apply(List<Swap> swaps, double threshold) {
+        // Most improving swaps first
+        Collections.sort(swaps, new Comparator<Swap>() {
+
+            @Override
+            public int compare(Swap s1, Swap s2) {
+                if (s1.delta != s2.delta)
+                    return s1.delta < s2.delta ? -1 : 1;
+                return s1.cluster - s2.cluster;
+            }
+        });
+        boolean [] changed = new boolean[medoids.length];
+        int applied = 0;
+        double reduction = 0;
+        for (Swap swap : swaps) {
+            // Only swaps that improve the cost enough
+            if (-swap.delta <= threshold)
+                break;
+            boolean conflict = false;
+            for (int j : swap.touched)
+                conflict |= changed[j];
+            if (conflict)
+                continue;
+            for (int j : swap.touched)
+                changed[j] = true;
+            // Swap the medoid for the candidate
+            medoid[medoids[swap.cluster]] = false;
+            medoid[swap.candidate] = true;
+            medoids[swap.cluster] = swap.candidate;
+            reduction -= swap.delta;
+            applied++;
+        }
+        LOG.info(" - Applied {} of {} improving swaps, expected cost "
+                + "reduction: {}", applied, swaps.size(), reduction);
+        return applied;
+    }
+
+    /**
+     * The best swap found for a cluster.
+     */
+    private static class Swap {
+
+        /**
+         * Position of the cluster.
+         */
+        private int cluster;
+
+        /**
+         * Index of the candidate that replaces the medoid.
+         */
+        private int candidate;
+
+        /**
+         * Change of the overall cost, negative for an improvement.
+         */
+        private double delta;
+
+        /**
+         * Positions of the clusters that gain or lose points by this swap,
+         * including the cluster itself.
+         */
+        private int [] touched;
+
+        /**
+         * Constructor.
+         * @param cluster Position of the cluster
+         * @param candidate Index of the candidate
+         * @param delta Change of the overall cost
+         */
+        public Swap(int cluster, int candidate, double delta) {
+            this.cluster = cluster;
+            this.candidate = candidate;
+            this.delta = delta;
+        }
+    }
+
+    /**
+     * Helper class that orders the points of a single cluster from far to
+     * near their medoid.
+     */
+    private class MemberSorter implements Runnable {
+
+        /**
+         * The cluster to sort.
+         */
+        private int cluster;
+
+        /**
+         * Constructor.
+         * @param cluster The cluster to sort
+         */
+        public MemberSorter(int cluster) {
+            this.cluster = cluster;
+        }
+
+        @Override
+        public void run() {
+            int from = start[cluster];
+            int to = start[cluster + 1];
+            sortFarFirst(from, to, new int[(to - from + 1) / 2]);
+        }
+    }
+
+    /**
+     * Helper class that evaluates the sampled swap candidates of a single
+     * cluster against the current caches.
+     */
+    private class SwapSearch implements Callable<Swap> {
+
+        /**
+         * Position of the cluster.
+         */
+        private int cluster;
+
+        /**
+         * Seed for sampling the candidates.
+         */
+        private long seed;
+
+        /**
+         * Positions of the clusters whose points may move to a candidate.
+         */
+        private int [] neighbours;
+
+        /**
+         * Number of neighbouring clusters.
+         */
+        private int count = 0;
+
+        /**
+         * Constructor.
+         * @param cluster Position of the cluster
+         * @param seed Seed for sampling the candidates
+         */
+        public SwapSearch(int cluster, long seed) {
+            this.cluster = cluster;
+            this.seed = seed;
+        }
+
+        /**
+         * Evaluate the sampled candidates of the cluster.
+         * @return the best swap if it reduces the cost, or null.
+         */
+        @Override
+        public Swap call() {
+            int begin = start[cluster];
+            int size = start[cluster + 1] - begin;
+            if (size == 0)
+                return null;
+            // Find the clusters that may lose points to a candidate: a
+            // candidate lies within the radius of this cluster from its medoid
+            List<Integer> near = index.near(medoids[cluster],
+                    2 * max_radius + radius[cluster]);
+            neighbours = new int[near.size()];
+            for (int j : near)
+                if (j != cluster && start[j + 1] > start[j] &&
+                        store.distance(medoids[j], medoids[cluster]) <
+                        2 * radius[j] + radius[cluster])
+                    neighbours[count++] = j;
+            // Sample the candidates from the points of the cluster
+            Random rg = new Random(seed);
+            int [] pool = Arrays.copyOfRange(members, begin, begin + size);
+            int samples = Math.min(
+                    ((PamParameters)parameters).swap_candidates, size);
+            Swap best = null;
+            for (int s = 0; s < samples; s++) {
+                int r = s + rg.nextInt(size - s);
+                int candidate = pool[r];
+                pool[r] = pool[s];
+                pool[s] = candidate;
+                // Skip candidates on top of a medoid
+                if (d1[candidate] == 0 || d2[candidate] == 0)
+                    continue;
+                double delta = delta(candidate, null);
+                if (best == null || delta < best.delta)
+                    best = new Swap(cluster, candidate, delta);
+            }
+            if (best == null || best.delta >= 0)
+                return null;
+            // Determine the clusters involved in the best swap
+            List<Integer> touched = new ArrayList<Integer>();
+            delta(best.candidate, touched);
+            best.touched = new int[touched.size()];
+            for (int t = 0; t < best.touched.length; t++)
+                best.touched[t] = touched.get(t);
+            return best;
+        }
+
+        /**
+         * Determine the change of the overall cost if the medoid of the
+         * cluster is swapped for a candidate.
+         * @param candidate Index of the candidate, a point of the cluster
+         * @param touched If not null, collects the positions of the clusters
+         * that gain or lose points by the swap
+         * @return the change of the overall cost.
+         */
+        private double delta(int candidate, List<Integer> touched) {
+            double x = store.getX(candidate);
+            double y = store.getY(candidate);
+            double z = store.getZ(candidate);
+            if (touched != null)
+                touched.add(cluster);
+            double delta = 0;
+            // The points of the cluster move to the candidate or to their
+            // second nearest medoid. The candidate itself leaves the points.
+            for (int q = start[cluster]; q < start[cluster + 1]; q++) {
+                int o = members[q];
+                double d = PointStore.distance(x, y, z,
+                        store.getX(o), store.getY(o), store.getZ(o));
+                if (d <= d2[o])
+                    delta += d - d1[o];
+                else {
+                    delta += d2[o] - d1[o];
+                    if (touched != null)
+                        touched.add(second[o]);
+                }
+            }
+            // The old medoid becomes a point
+            double d = store.distance(medoids[cluster], candidate);
+            if (d <= medoid_d2[cluster])
+                delta += d;
+            else {
+                delta += medoid_d2[cluster];
+                if (touched != null)
+                    touched.add(medoid_second[cluster]);
+            }
+            // The points of nearby clusters move if the candidate is closer
+            for (int c = 0; c < count; c++) {
+                int j = neighbours[c];
+                double dm = store.distance(medoids[j], candidate);
+                boolean moved = false;
+                for (int q = start[j]; q < start[j + 1]; q++) {
+                    int o = members[q];
+                    // Nearer points can not move, as the points of the
+                    // cluster are ordered from far to near
+                    if (dm >= 2 * d1[o])
+                        break;
+                    double dox = PointStore.distance(x, y, z,
+                            store.getX(o), store.getY(o), store.getZ(o));
+                    if (dox < d1[o]) {
+                        delta += dox - d1[o];
+                        moved = true;
+                    }
+                }
+                if (moved && touched != null)
+                    touched.add(j);
+            }
+            return delta;
+        }
+    }
+}
@@ -14,6 +14,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import be.ugent.intec.ibcn.geo.clustering.datatypes.Cluster;
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
 import be.ugent.intec.ibcn.geo.common.datatypes.Point;
 import be.ugent.intec.ibcn.geo.common.io.ClusteringIO;
 
@@ -55,18 +56,42 @@ public class GridClustering extends AbstractClustering {
     /**
      * Constructor.
      * @param parameters Clustering parameters
-     * @param data Input data to cluster
+     * @param store Input data to cluster
      * @param grid_precision_rows Precision (in degrees) of the rows
      * @param grid_precision_columns Precision (in degrees) of the columns
      */
-    public GridClustering(ClusteringParameters parameters, Point [] data, 
+    public GridClustering(ClusteringParameters parameters, PointStore store, 
             double grid_precision_rows, double grid_precision_columns) {
         super(parameters);
-        this.data = data;
+        this.store = store;
         this.grid_precision_rows = grid_precision_rows;
         this.grid_precision_columns = grid_precision_columns;
     }
 
+    /**
+     * Constructor.
+     * @param parameters Clustering parameters
+     * @param store Input data to cluster
+     * @param grid_precision Precision (in degrees) of the rows and columns
+     */
+    public GridClustering(ClusteringParameters parameters, PointStore store, 
+            double grid_precision) {
+        this(parameters, store, grid_precision, grid_precision);
+    }
+
+    /**
+     * Constructor.
+     * @param parameters Clustering parameters
+     * @param data Input data to cluster
+     * @param grid_precision_rows Precision (in degrees) of the rows
+     * @param grid_precision_columns Precision (in degrees) of the columns
+     */
+    public GridClustering(ClusteringParameters parameters, Point [] data, 
+            double grid_precision_rows, double grid_precision_columns) {
+        this(parameters, PointStore.create(data), grid_precision_rows, 
+                grid_precision_columns);
+    }
+
     /**
      * Constructor.
      * @param parameters Clustering parameters
@@ -90,8 +115,7 @@ public class GridClustering extends AbstractClustering {
         // Perpare a threadpool
         ExecutorService executor = Executors.newFixedThreadPool(NR_THREADS);
         // Prepare the list of futures
-        List<Future<Map<Integer, Long>>> list = 
-                new ArrayList<Future<Map<Integer, Long>>>();
+        List<Future<long[]>> list = new ArrayList<Future<long[]>>();
         // Prepare a map for the clusters
         /**
          * Due to the large number of potential clusters (1 degree lat/
@@ -105,40 +129,41 @@ public class GridClustering extends AbstractClustering {
          */
         Map<Long, Cluster> clusters = new HashMap<Long, Cluster>();
         // Determine the block length to process by each thread.
-        int length = (int) (data.length * 1.0 / NR_THREADS);
+        int length = (int) (store.size() * 1.0 / NR_THREADS);
         for (int i = 0; i < NR_THREADS; i++) {
             int begin = i * length;
             if (i == NR_THREADS - 1) {
-                length = data.length - (i * length);
+                length = store.size() - (i * length);
             }
             int end = begin + length;
             // Create, track and submit the worker runnables, each with their 
             // blocks of data
-            Callable<Map<Integer, Long>> worker = 
-                    new GridCallable(data, begin, end);
-            Future<Map<Integer, Long>> submit = executor.submit(worker);
+            Callable<long[]> worker = new GridCallable(store, begin, end);
+            Future<long[]> submit = executor.submit(worker);
             list.add(submit);
         }        
         
         // Now retrieve the results
-        for (Future<Map<Integer, Long>> future : list) {
+        int begin = 0;
+        for (Future<long[]> future : list) {
             try {
-                Map<Integer, Long> cluster_mapping = future.get();
-                // For each id
-                for (Integer id : cluster_mapping.keySet()) {
-                    long cluster_id = cluster_mapping.get(id);
+                long [] cluster_mapping = future.get();
+                // For each point of the block
+                for (int i = 0; i < cluster_mapping.length; i++) {
+                    long cluster_id = cluster_mapping[i];
                     Cluster c = clusters.get(cluster_id);
                     // If there is not yet a cluster
                     if (c == null) {
                         // Create one with this data point as temporary center
-                        c = new Cluster(data[id-1]);
+                        c = new Cluster(store, begin + i);
+                        // Store the cluster id and cluster
+                        clusters.put(cluster_id, c);
                     }
                     else {
-                        c.addElement(data[id-1]);
+                        c.addElement(begin + i);
                     }
-                    // Store the cluster id and cluster
-                    clusters.put(cluster_id, c);
                 }
+                begin += cluster_mapping.length;
             } catch (InterruptedException e) {
                 e.printStackTrace();
             } catch (ExecutionException e) {
@@ -212,12 +237,12 @@ public class GridClustering extends AbstractClustering {
      * Helper class that determines for the input items to which cluster they
      * belong.
      */
-    private class GridCallable implements Callable<Map<Integer, Long>>{
+    private class GridCallable implements Callable<long[]>{
 
         /**
          * The data to process.
          */
-        private Point [] data;
+        private PointStore store;
 
         /**
          * Start of the data to process
@@ -231,44 +256,41 @@ public class GridClustering extends AbstractClustering {
 
         /**
          * Constructor.
-         * @param data Data to process
+         * @param store Data to process
          * @param begin startindex of the data to process
          * @param end endindex of the tadat to process
          */
-        public GridCallable(Point [] data, int begin, int end) {
-            this.data = data;
+        public GridCallable(PointStore store, int begin, int end) {
+            this.store = store;
             this.begin = begin;
             this.end = end;
         }
 
         /**
          * Actual grid clustering
+         * @return the cluster id of each point in the block
          */
         @Override
-        public Map<Integer, Long> call() throws Exception {
-            Map<Integer, Long> mapping = new HashMap<Integer, Long>();
+        public long[] call() throws Exception {
+            long [] mapping = new long[end - begin];
             try {
                 double scale_rows = 1. / grid_precision_rows;
                 double scale_columns = 1. / grid_precision_columns;
                 // For all the points this thread needs to process
                 for (int i = begin; i < end; i++) {
-                    Point p = this.data[i];
-                    // Sanity check
-                    if (p != null) {
-                        // Determine cell values
-                        int lat_adapted = (int)((p.getLatitude() + 90) * 
-                                scale_rows);
-                        int lon_adapted = (int)((p.getLongitude() + 180) * 
-                                scale_columns);
-                        // Map to a cluster id using the current scale parameters
-                        long id = (long)(lat_adapted * 360 * scale_rows + 
-                                lon_adapted);
-                        if (id < 0)
-                            throw new RuntimeException("Long underflow");
-                        // Assign this input point to the cluster with the given
-                        // ID
-                        mapping.put(p.getId(), id);
-                    }
+                    // Determine cell values
+                    int lat_adapted = (int)((store.getLatitude(i) + 90) * 
+                            scale_rows);
+                    int lon_adapted = (int)((store.getLongitude(i) + 180) * 
+                            scale_columns);
+                    // Map to a cluster id using the current scale parameters
+                    long id = (long)(lat_adapted * 360 * scale_rows + 
+                            lon_adapted);
+                    if (id < 0)
+                        throw new RuntimeException("Long underflow");
+                    // Assign this input point to the cluster with the given
+                    // ID
+                    mapping[i - begin] = id;
                 }
             }
             catch (Exception e) {
@@ -0,0 +1,277 @@
+package be.ugent.intec.ibcn.geo.clustering;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.ugent.intec.ibcn.geo.clustering.datatypes.Cluster;
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
+import be.ugent.intec.ibcn.geo.common.Util;
+import be.ugent.intec.ibcn.geo.common.io.ClusteringIO;
+
+/**
+ * This class contains a multi-resolution clustering, that produces the
+ * medoids of several numbers of clusters in a single run.
+ *
+ * The algorithm works as follows:
+ * 1. The data is clustered at the finest level, i.e. the largest number of
+ * clusters, by the k-medoids algorithm set in the parameters.
+ * 2. Each medoid is weighted by the size of its cluster.
+ * 3. Each coarser level is derived from the previous level by a weighted
+ * k-medoids clustering of its medoids: the medoids are seeded with weighted
+ * k-means++ and then improved by alternately assigning each finer medoid to
+ * its nearest coarser medoid, and swapping each coarser medoid for the member
+ * that minimizes the weighted sum of the distances to the members. The weight
+ * of a coarser medoid is the sum of the weights of its members.
+ *
+ * Only the finest level is clustered over all the data, the coarser levels
+ * only process the medoids of the level below. The medoids of each level are
+ * a subset of the medoids of the level below, and each finer medoid is mapped
+ * on a parent at the next coarser level, so a lookup can proceed from coarse
+ * to fine.
+ *
+ * The medoids of each level are written to a standard medoid file
+ * (ID,lat,lon). The parents of the medoids of each level, except the
+ * coarsest, are written to the same file name with a .parents suffix, one
+ * medoid per line as ID,parent ID.
+ *
+ * @see PamParameters
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class HierarchicalClustering extends AbstractClustering {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(HierarchicalClustering.class);
+
+    /**
+     * The numbers of clusters of the levels, from fine to coarse.
+     */
+    private int [] levels;
+
+    /**
+     * Constructor.
+     * @param parameters Parameters for the clustering of the finest level
+     * @param store PointStore holding the data to cluster
+     * @param levels The numbers of clusters of the levels, in any order
+     */
+    public HierarchicalClustering(PamParameters parameters, PointStore store,
+            int... levels) {
+        super(parameters);
+        this.store = store;
+        // Order the levels from fine to coarse
+        int [] sorted = Arrays.copyOf(levels, levels.length);
+        Arrays.sort(sorted);
+        this.levels = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++)
+            this.levels[i] = sorted[sorted.length - 1 - i];
+    }
+
+    /**
+     * @param template The template for the medoid files
+     * @param level The number of clusters of a level
+     * @return the medoid file of the level.
+     */
+    public static String getMedoidFile(String template, int level) {
+        if (!template.contains("@1"))
+            template = template + ".@1";
+        return Util.applyTemplateValues(template, new String[]{"" + level});
+    }
+
+    /**
+     * Multi-resolution clustering function.
+     * @param outputfile The template for the medoid files, in which @1 is
+     * replaced by the number of clusters of each level. Without @1, the
+     * number of clusters is appended to the file name.
+     */
+    @Override
+    public void cluster(String outputfile) {
+        PamParameters pp = (PamParameters)parameters;
+        // Init a random generator - with seed for reproduceability
+        Random rg = new Random(123456789L);
+        long overall_start = System.currentTimeMillis();
+
+        /*
+         * Step 1. Cluster the finest level over all the data.
+         */
+        String finest = getMedoidFile(outputfile, levels[0]);
+        LOG.info("[HIERARCHICAL][Algorithm][Step 1] Clustering level {} "
+                + "into {}", levels[0], finest);
+        PamClustering finest_clustering = PamClustering.create(pp, store,
+                levels[0]);
+        finest_clustering.setThreads(threads);
+        finest_clustering.cluster(finest);
+        int [] medoids = loadMedoids(finest);
+
+        /*
+         * Step 2. Weigh the medoids by the size of their cluster.
+         */
+        int [] nearest = new int[store.size()];
+        new NearestMedoids(store, medoids).assign(null, nearest, null, null,
+                null, threads);
+        double [] weights = new double[medoids.length];
+        for (int p = 0; p < nearest.length; p++)
+            weights[nearest[p]]++;
+
+        /*
+         * Step 3. Derive each coarser level from the previous one.
+         */
+        for (int l = 1; l < levels.length; l++) {
+            long start = System.currentTimeMillis();
+            LOG.info("[HIERARCHICAL][Algorithm][Step 3] Deriving level {} "
+                    + "from {} medoids.", levels[l], medoids.length);
+            int [] coarse = cluster(medoids, weights, levels[l], rg);
+            // Map each medoid on its parent
+            NearestMedoids index = new NearestMedoids(store, coarse);
+            int [] parents = new int[medoids.length];
+            double [] coarse_weights = new double[coarse.length];
+            for (int i = 0; i < medoids.length; i++) {
+                parents[i] = index.nearest(medoids[i]);
+                coarse_weights[parents[i]] += weights[i];
+            }
+            writeParents(medoids, coarse, parents, getMedoidFile(outputfile,
+                    levels[l - 1]) + ".parents");
+            writeMedoids(coarse, getMedoidFile(outputfile, levels[l]));
+            LOG.info(" - Level {}: {} medoids. (Time: {} ms.)", levels[l],
+                    coarse.length, (System.currentTimeMillis() - start));
+            medoids = coarse;
+            weights = coarse_weights;
+        }
+        LOG.info("[HIERARCHICAL] Overall processing time: {} ms.",
+                (System.currentTimeMillis() - overall_start));
+    }
+
+    /**
+     * Weighted k-medoids clustering of a set of points.
+     * @param points Indices of the points in the store
+     * @param weights The weight of each point
+     * @param k The number of clusters
+     * @param rg Random generator to use
+     * @return the indices of the medoids in the store.
+     */
+    private int [] cluster(int [] points, double [] weights, int k,
+            Random rg) {
+        PamParameters pp = (PamParameters)parameters;
+        int [] centers = new KMeansSeeding(store, 0, 0, threads).select(
+                points, weights, k, rg);
+        if (centers.length == points.length)
+            return centers;
+        int iterations = 0;
+        int changes;
+        do {
+            iterations++;
+            // Assign each point to its nearest center
+            NearestMedoids index = new NearestMedoids(store, centers);
+            int [] start = new int[centers.length + 1];
+            int [] nearest = new int[points.length];
+            for (int i = 0; i < points.length; i++) {
+                nearest[i] = index.nearest(points[i]);
+                start[nearest[i] + 1]++;
+            }
+            // Group the points per center
+            for (int c = 0; c < centers.length; c++)
+                start[c + 1] += start[c];
+            int [] members = new int[points.length];
+            int [] cursor = Arrays.copyOf(start, centers.length);
+            for (int i = 0; i < points.length; i++)
+                members[cursor[nearest[i]]++] = i;
+            // Swap each center for its best member
+            changes = 0;
+            double cost = 0;
+            for (int c = 0; c < centers.length; c++) {
+                double best_cost = cost(centers[c], points, weights, members,
+                        start[c], start[c + 1], Double.POSITIVE_INFINITY);
+                int best = centers[c];
+                for (int m = start[c]; m < start[c + 1]; m++) {
+                    int candidate = points[members[m]];
+                    double candidate_cost = cost(candidate, points, weights,
+                            members, start[c], start[c + 1], best_cost);
+                    if (candidate_cost < best_cost -
+                            pp.cost_improvement_threshold_partial) {
+                        best = candidate;
+                        best_cost = candidate_cost;
+                    }
+                }
+                if (best != centers[c]) {
+                    centers[c] = best;
+                    changes++;
+                }
+                cost += best_cost;
+            }
+            LOG.info(" - Iteration {}: {} medoids changed, cost {}",
+                    iterations, changes, cost);
+        }
+        while (changes > 0 && iterations < pp.iterationLimit);
+        return centers;
+    }
+
+    /**
+     * Determine the weighted sum of the distances of a candidate to the
+     * members of a cluster.
+     * @param candidate Index of the candidate in the store
+     * @param points Indices of the points in the store
+     * @param weights The weight of each point
+     * @param members Positions of the points, grouped per cluster
+     * @param begin Start of the members of the cluster
+     * @param end End of the members of the cluster
+     * @param bound The cost above which the exact cost is of no interest
+     * @return the cost, or a value larger than or equal to the bound if the
+     * summation was abandoned.
+     */
+    private double cost(int candidate, int [] points, double [] weights,
+            int [] members, int begin, int end, double bound) {
+        double sum = 0;
+        for (int m = begin; m < end; m++) {
+            sum += weights[members[m]] *
+                    store.distance(candidate, points[members[m]]);
+            // Abandon as soon as this candidate can no longer improve
+            if (sum >= bound)
+                return sum;
+        }
+        return sum;
+    }
+
+    /**
+     * Write the medoids of a level to file.
+     * @param medoids Indices of the medoids in the store
+     * @param medoidfile The file to write to
+     */
+    private void writeMedoids(int [] medoids, String medoidfile) {
+        List<Cluster> clusters = new ArrayList<Cluster>(medoids.length);
+        for (int medoid : medoids)
+            clusters.add(new Cluster(store, medoid));
+        new ClusteringIO().writeClusteringToFile(clusters, medoidfile, false);
+    }
+
+    /**
+     * Write the parent of each medoid of a level to file.
+     * @param medoids Indices of the medoids in the store
+     * @param coarse Indices of the medoids of the next coarser level
+     * @param parents Position in the coarser medoids of the parent of each
+     * medoid
+     * @param parentfile The file to write to
+     */
+    private void writeParents(int [] medoids, int [] coarse, int [] parents,
+            String parentfile) {
+        try {
+            PrintWriter file = new PrintWriter(new FileWriter(parentfile));
+            for (int i = 0; i < medoids.length; i++)
+                file.println(store.getId(medoids[i]) + "," +
+                        store.getId(coarse[parents[i]]));
+            file.close();
+        }
+        catch (IOException e) {
+            LOG.error("Error writing parents to file: {}", e.getMessage());
+            System.exit(1);
+        }
+    }
+}
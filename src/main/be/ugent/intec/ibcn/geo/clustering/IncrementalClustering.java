@@ -0,0 +1,493 @@
+package be.ugent.intec.ibcn.geo.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.ugent.intec.ibcn.geo.clustering.datatypes.Cluster;
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
+import be.ugent.intec.ibcn.geo.common.datatypes.Point;
+import be.ugent.intec.ibcn.geo.common.io.FileIO;
+
+/**
+ * This class contains an incremental update of an existing k-medoids
+ * clustering for newly arrived training points, as an alternative to
+ * clustering all the data again from scratch.
+ *
+ * The store holds the points that were clustered before, followed by the new
+ * points, e.g. as loaded from a training file to which the new items were
+ * appended. The algorithm works as follows:
+ * 1. All the points are assigned to their nearest existing medoid. The size
+ * and the cost of each cluster are compared with the size and the cost over
+ * the points that were clustered before only.
+ * 2. Clusters that dropped below the minimum cluster size are merged, i.e.
+ * their medoid is dropped and their points join the nearest other medoid.
+ * 3. Clusters above the maximum cluster size are split by a 2-medoids
+ * clustering of their points, until all the parts are small enough.
+ * 4. A few PAM iterations run over all the data, starting from the updated
+ * medoids. Only the clusters of which the size or the cost drifted beyond
+ * the drift threshold, and the clusters of which the membership changed by
+ * the merges and splits, are optimized again. As in PAM, clusters of which
+ * the membership changes in turn are optimized in the next iteration.
+ *
+ * The class ID of a medoid is its position in the medoid file, as used by the
+ * ClassMapper. The updated medoid file keeps the class ID of every cluster that
+ * is not merged. The first medoid of a split cluster keeps the class ID of the
+ * cluster, the others take the class IDs freed by the merges, and are only
+ * appended to the end of the file if there are no free class IDs left. If
+ * more class IDs are freed than taken, the last medoids of the file move to
+ * the free class IDs, so the class IDs stay consecutive.
+ *
+ * @see IncrementalParameters
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class IncrementalClustering extends AbstractClustering {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(IncrementalClustering.class);
+
+    /**
+     * The medoid file of the existing clustering.
+     */
+    private String medoidfile;
+
+    /**
+     * Number of points at the start of the store that were clustered before,
+     * the points after them are new.
+     */
+    private int previousSize;
+
+    /**
+     * Constructor.
+     * @param parameters Parameters for the update
+     * @param store PointStore holding the points that were clustered before,
+     * followed by the new points
+     * @param medoidfile The medoid file of the existing clustering
+     * @param previousSize The number of points at the start of the store that
+     * were clustered before
+     */
+    public IncrementalClustering(IncrementalParameters parameters,
+            PointStore store, String medoidfile, int previousSize) {
+        super(parameters);
+        this.store = store;
+        this.medoidfile = medoidfile;
+        this.previousSize = previousSize;
+    }
+
+    /**
+     * Incremental update function.
+     * @param outputfile The filename of the updated medoid file, which can be
+     * the same as the existing medoid file
+     */
+    @Override
+    public void cluster(String outputfile) {
+        IncrementalParameters ip = (IncrementalParameters)parameters;
+        LOG.info("[INCREMENTAL] Updating {} with {} new points.", medoidfile,
+                store.size() - previousSize);
+        long overall_start = System.currentTimeMillis();
+
+        /*
+         * Step 1. Assign all the points to the existing medoids.
+         */
+        LOG.info("[INCREMENTAL][Algorithm][Step 1] Assigning {} points.",
+                store.size());
+        long start = System.currentTimeMillis();
+        int [] classes = loadClasses();
+        int original_classes = classes.length;
+        // Keeps track of the classes that are removed
+        boolean [] removed = new boolean[original_classes];
+        for (int c = 0; c < original_classes; c++)
+            removed[c] = classes[c] < 0;
+        int [] before = new int[store.size()];
+        double [] distances = new double[store.size()];
+        assign(classes, before, distances);
+        // Compare the clusters before and after the new points
+        int [] previous_size = new int[classes.length];
+        double [] previous_cost = new double[classes.length];
+        int [] size = new int[classes.length];
+        double [] cost = new double[classes.length];
+        for (int p = 0; p < before.length; p++) {
+            if (before[p] < 0)
+                continue;
+            size[before[p]]++;
+            cost[before[p]] += distances[p];
+            if (p < previousSize) {
+                previous_size[before[p]]++;
+                previous_cost[before[p]] += distances[p];
+            }
+        }
+        boolean [] drifted = new boolean[classes.length];
+        int drifted_count = 0;
+        for (int c = 0; c < classes.length; c++) {
+            if (classes[c] >= 0 && (
+                    drift(previous_size[c], size[c]) > ip.drift_threshold ||
+                    drift(previous_cost[c], cost[c]) > ip.drift_threshold)) {
+                drifted[c] = true;
+                drifted_count++;
+            }
+        }
+        LOG.info(" - {} of {} clusters drifted. (Time: {} ms.)",
+                drifted_count, classes.length,
+                (System.currentTimeMillis() - start));
+
+        /*
+         * Step 2. Merge the clusters below the minimum cluster size.
+         */
+        int [] nearest = before;
+        int merged = 0;
+        if (ip.merge_cluster_below_threshold) {
+            LOG.info("[INCREMENTAL][Algorithm][Step 2] Merging clusters "
+                    + "below {}.", ip.min_cluster_size);
+            int remaining = 0;
+            for (int c = 0; c < classes.length; c++)
+                if (classes[c] >= 0 && size[c] >= ip.min_cluster_size)
+                    remaining++;
+            // Keep at least one cluster
+            for (int c = 0; c < classes.length && remaining > 0; c++) {
+                if (classes[c] >= 0 && size[c] < ip.min_cluster_size) {
+                    classes[c] = -1;
+                    removed[c] = true;
+                    merged++;
+                }
+            }
+            if (merged > 0) {
+                // The points of the merged clusters join other clusters
+                nearest = new int[store.size()];
+                assign(classes, nearest, null);
+            }
+            LOG.info(" - Merged {} clusters.", merged);
+        }
+
+        /*
+         * Step 3. Split the clusters above the maximum cluster size.
+         */
+        int splits = 0;
+        int added = 0;
+        if (ip.max_cluster_size > 0) {
+            LOG.info("[INCREMENTAL][Algorithm][Step 3] Splitting clusters "
+                    + "above {}.", ip.max_cluster_size);
+            start = System.currentTimeMillis();
+            int [][] members = group(classes.length, nearest);
+            Random rg = new Random(123456789L);
+            int length = classes.length;
+            for (int c = 0; c < length; c++) {
+                if (classes[c] < 0 || members[c].length <= ip.max_cluster_size)
+                    continue;
+                List<Integer> parts = new ArrayList<Integer>();
+                split(classes[c], members[c], rg, parts);
+                if (parts.size() == 1)
+                    continue;
+                splits++;
+                // The first part keeps the class ID of the cluster
+                classes[c] = parts.get(0);
+                int free = 0;
+                for (int i = 1; i < parts.size(); i++) {
+                    // Take the first free class ID, or append one
+                    while (free < classes.length && classes[free] >= 0)
+                        free++;
+                    if (free == classes.length)
+                        classes = Arrays.copyOf(classes, classes.length + 1);
+                    classes[free] = parts.get(i);
+                    added++;
+                }
+            }
+            LOG.info(" - Split {} clusters into {} extra clusters. "
+                    + "(Time: {} ms.)", splits, added,
+                    (System.currentTimeMillis() - start));
+        }
+        // Move the last medoids to the remaining free class IDs
+        int [] moved = compact(classes);
+        int [] medoids = Arrays.copyOf(classes, classes.length -
+                count(classes, -1));
+
+        /*
+         * Step 4. Re-optimize the clusters that drifted or changed.
+         */
+        LOG.info("[INCREMENTAL][Algorithm][Step 4] Re-optimizing {} "
+                + "clusters.", medoids.length);
+        // The assignment to the existing medoids, under the updated class
+        // IDs. The points of the drifted and removed clusters are left out,
+        // so that their clusters are optimized in the first PAM iteration.
+        int [] assignment = new int[store.size()];
+        for (int p = 0; p < before.length; p++) {
+            if (before[p] < 0 || drifted[before[p]] || removed[before[p]])
+                assignment[p] = -1;
+            else
+                assignment[p] = moved[before[p]];
+        }
+        PamClustering update = new PamClustering(ip, store, medoids.length);
+        update.setThreads(threads);
+        // Merging has been done, so PAM should not merge again
+        update.setMergeBelowThreshold(false);
+        update.setIterationLimit(ip.update_iteration_limit);
+        update.setInitialMedoids(medoids, assignment);
+        update.cluster(outputfile);
+
+        // Print some stats
+        int kept = 0;
+        int changed = 0;
+        for (int c = 0; c < original_classes; c++) {
+            if (removed[c])
+                continue;
+            if (moved[c] == c)
+                kept++;
+            else
+                changed++;
+        }
+        LOG.info("[INCREMENTAL] Update summary");
+        LOG.info(" - Drifted clusters: {}", drifted_count);
+        LOG.info(" - Merged clusters: {}", merged);
+        LOG.info(" - Split clusters: {} (+{})", splits, added);
+        LOG.info(" - Class IDs kept: {} of {}", kept, original_classes);
+        LOG.info(" - Class IDs moved: {}", changed);
+        LOG.info(" - Class IDs removed: {}", count(removed));
+        LOG.info(" - Total clusters: {}", medoids.length);
+        LOG.info("[INCREMENTAL] Overall processing time: {} ms.",
+                (System.currentTimeMillis() - overall_start));
+    }
+
+    /**
+     * Find the medoids of the existing medoid file in the store, in the order
+     * of the file.
+     * @return the index of the medoid of each class in the store, -1 for the
+     * classes of which the ID is not in the store.
+     */
+    private int [] loadClasses() {
+        List<Point> points = FileIO.loadMedoids(medoidfile, MEDOID_PARSER);
+        // Map the ID of each medoid to its class
+        Map<Integer, Integer> ids = new HashMap<Integer, Integer>();
+        for (int c = 0; c < points.size(); c++)
+            ids.put(points.get(c).getId(), c);
+        int [] classes = new int[points.size()];
+        Arrays.fill(classes, -1);
+        for (int p = 0; p < store.size(); p++) {
+            Integer c = ids.get(store.getId(p));
+            if (c != null && classes[c] < 0)
+                classes[c] = p;
+        }
+        int missing = count(classes, -1);
+        if (missing > 0)
+            LOG.warn("{} medoids not found in the store, their classes are "
+                    + "removed.", missing);
+        return classes;
+    }
+
+    /**
+     * Assign the points of the store to their nearest medoid, in parallel.
+     * @param classes The index of the medoid of each class, -1 for free
+     * classes
+     * @param nearest Holds the class of the nearest medoid of each point on
+     * return, -1 for the medoids
+     * @param distances Holds the distance to the nearest medoid of each point
+     * on return, or null if not needed
+     */
+    private void assign(int [] classes, int [] nearest, double [] distances) {
+        // Collect the medoids of the classes in use
+        int [] used = new int[classes.length];
+        int count = 0;
+        for (int c = 0; c < classes.length; c++)
+            if (classes[c] >= 0)
+                used[count++] = c;
+        int [] centers = new int[count];
+        boolean [] medoid = new boolean[store.size()];
+        for (int i = 0; i < count; i++) {
+            centers[i] = classes[used[i]];
+            medoid[centers[i]] = true;
+        }
+        new NearestMedoids(store, centers).assign(medoid, nearest, distances,
+                null, null, threads);
+        // Map the positions of the medoids on their classes
+        for (int p = 0; p < nearest.length; p++)
+            if (nearest[p] >= 0)
+                nearest[p] = used[nearest[p]];
+    }
+
+    /**
+     * @param before The size or the cost of a cluster before the new points
+     * @param after The size or the cost of the cluster after the new points
+     * @return the relative change of the size or the cost of the cluster.
+     */
+    private double drift(double before, double after) {
+        if (before == 0)
+            return after == 0 ? 0 : Double.POSITIVE_INFINITY;
+        return Math.abs(after - before) / before;
+    }
+
+    /**
+     * Group the points per class.
+     * @param size The number of classes
+     * @param nearest The class of each point, -1 for the points to skip
+     * @return the indices of the points of each class.
+     */
+    private int [][] group(int size, int [] nearest) {
+        // Count the points per class
+        int [] counts = new int[size];
+        for (int p = 0; p < nearest.length; p++)
+            if (nearest[p] >= 0)
+                counts[nearest[p]]++;
+        int [][] members = new int[size][];
+        for (int c = 0; c < size; c++)
+            members[c] = new int[counts[c]];
+        // Fill the groups
+        int [] cursor = new int[size];
+        for (int p = 0; p < nearest.length; p++)
+            if (nearest[p] >= 0)
+                members[nearest[p]][cursor[nearest[p]]++] = p;
+        return members;
+    }
+
+    /**
+     * Split a cluster in two, recursively, until all the parts are no larger
+     * than the maximum cluster size. A split is not made if all the points
+     * are at a single location, if one of the parts would be empty, or if one
+     * of the parts would be below the minimum cluster size while merging is
+     * enabled.
+     * @param center The index of the medoid of the cluster
+     * @param members The indices of the other points of the cluster
+     * @param rg Random generator to use
+     * @param parts Holds the medoids of the parts on return. The first one is
+     * the medoid of the part that holds the original medoid.
+     */
+    private void split(int center, int [] members, Random rg,
+            List<Integer> parts) {
+        IncrementalParameters ip = (IncrementalParameters)parameters;
+        if (members.length <= ip.max_cluster_size) {
+            parts.add(center);
+            return;
+        }
+        // All the points of the cluster, the medoid first
+        int [] points = new int[members.length + 1];
+        points[0] = center;
+        System.arraycopy(members, 0, points, 1, members.length);
+        // Seed the two medoids with k-means++
+        double [] weights = new double[points.length];
+        Arrays.fill(weights, 1);
+        int [] centers = new KMeansSeeding(store, 0, 0, threads).select(
+                points, weights, 2, rg);
+        // All the points at a single location, the seeds are then distinct
+        // points at the same location
+        if (store.distance(centers[0], centers[1]) == 0) {
+            parts.add(center);
+            return;
+        }
+        int [][] halves;
+        int iterations = 0;
+        boolean changed;
+        do {
+            iterations++;
+            changed = false;
+            halves = divide(points, centers);
+            // Optimize the medoid of each half
+            for (int h = 0; h < 2; h++) {
+                Cluster cluster = new Cluster(store, centers[h]);
+                cluster.addAllElements(halves[h], halves[h].length);
+                new ClusterOptimizer(cluster,
+                        ip.cost_improvement_threshold_partial).run();
+                if (cluster.getCenter() != centers[h]) {
+                    centers[h] = cluster.getCenter();
+                    changed = true;
+                }
+            }
+        }
+        while (changed && iterations < ip.iterationLimit);
+        halves = divide(points, centers);
+        // Do not split off empty parts, or parts that would be merged right
+        // away. As both parts are then smaller, the recursion ends.
+        if (halves[0].length == 0 || halves[1].length == 0 ||
+                store.distance(centers[0], centers[1]) == 0 ||
+                (ip.merge_cluster_below_threshold && Math.min(
+                halves[0].length, halves[1].length) < ip.min_cluster_size)) {
+            parts.add(center);
+            return;
+        }
+        // The half that holds the original medoid goes first
+        int first = store.distance(center, centers[0]) <=
+                store.distance(center, centers[1]) ? 0 : 1;
+        split(centers[first], halves[first], rg, parts);
+        split(centers[1 - first], halves[1 - first], rg, parts);
+    }
+
+    /**
+     * Divide points over the nearer of two medoids.
+     * @param points The indices of the points
+     * @param centers The indices of the two medoids
+     * @return the indices of the points nearest to each medoid, without the
+     * medoids themselves.
+     */
+    private int [][] divide(int [] points, int [] centers) {
+        int [][] halves = new int[2][points.length];
+        int [] counts = new int[2];
+        for (int p : points) {
+            if (p == centers[0] || p == centers[1])
+                continue;
+            int h = store.distance(p, centers[1]) <
+                    store.distance(p, centers[0]) ? 1 : 0;
+            halves[h][counts[h]++] = p;
+        }
+        halves[0] = Arrays.copyOf(halves[0], counts[0]);
+        halves[1] = Arrays.copyOf(halves[1], counts[1]);
+        return halves;
+    }
+
+    /**
+     * Move the last medoids to the free classes, so the classes in use are
+     * consecutive.
+     * @param classes The index of the medoid of each class, -1 for free
+     * classes, updated in place
+     * @return the new class of each class, -1 for the classes that were free.
+     */
+    private int [] compact(int [] classes) {
+        int [] moved = new int[classes.length];
+        for (int c = 0; c < classes.length; c++)
+            moved[c] = classes[c] < 0 ? -1 : c;
+        int free = 0;
+        int last = classes.length - 1;
+        while (true) {
+            // Find the first free class and the last class in use
+            while (free < classes.length && classes[free] >= 0)
+                free++;
+            while (last >= 0 && classes[last] < 0)
+                last--;
+            if (free >= last)
+                break;
+            classes[free] = classes[last];
+            classes[last] = -1;
+            moved[last] = free;
+        }
+        return moved;
+    }
+
+    /**
+     * @param flags An array of flags
+     * @return the number of flags that are set.
+     */
+    private int count(boolean [] flags) {
+        int count = 0;
+        for (boolean flag : flags)
+            if (flag)
+                count++;
+        return count;
+    }
+
+    /**
+     * @param values An array of values
+     * @param value A value
+     * @return the number of occurrences of the value in the array.
+     */
+    private int count(int [] values, int value) {
+        int count = 0;
+        for (int v : values)
+            if (v == value)
+                count++;
+        return count;
+    }
+}
@@ -0,0 +1,64 @@
+package be.ugent.intec.ibcn.geo.clustering;
+
+/**
+ * This class extends the PAM parameters with some parameters that are typical
+ * for the incremental update of an existing clustering. The PAM parameters are
+ * used to re-optimize the clusters that drifted. Unlike for PAM, clusters
+ * below the minimum cluster size are merged by default.
+ *
+ * @see IncrementalClustering
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class IncrementalParameters extends PamParameters {
+
+    /**
+     * Constructor.
+     */
+    public IncrementalParameters() {
+        this.merge_cluster_below_threshold = true;
+    }
+
+    /**
+     * Relative change of the size or the cost of a cluster, due to the new
+     * points, above which the cluster is re-optimized.
+     */
+    protected double drift_threshold = 0.1;
+
+    /**
+     * Set the relative change of the size or the cost of a cluster above
+     * which the cluster is re-optimized.
+     * @param drift_threshold the relative change, e.g. 0.1 for 10%
+     */
+    public void setDrift_threshold(double drift_threshold) {
+        this.drift_threshold = drift_threshold;
+    }
+
+    /**
+     * Configure the maximum cluster size, clusters above it are split. A
+     * value of 0 disables the splitting.
+     */
+    protected int max_cluster_size = 0;
+
+    /**
+     * Set the maximum cluster size.
+     * @param max_cluster_size the maximum cluster size, 0 for no limit
+     */
+    public void setMax_cluster_size(int max_cluster_size) {
+        this.max_cluster_size = max_cluster_size;
+    }
+
+    /**
+     * Max number of PAM iterations of the re-optimization over all the data.
+     */
+    protected int update_iteration_limit = 5;
+
+    /**
+     * Set the max number of PAM iterations of the re-optimization over all
+     * the data.
+     * @param update_iteration_limit the max number of iterations
+     */
+    public void setUpdate_iteration_limit(int update_iteration_limit) {
+        this.update_iteration_limit = update_iteration_limit;
+    }
+}
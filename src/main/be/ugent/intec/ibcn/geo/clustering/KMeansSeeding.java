@@ -0,0 +1,339 @@
+package be.ugent.intec.ibcn.geo.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
+import edu.wlu.cs.levy.CG.KDTree;
+import edu.wlu.cs.levy.CG.KeyDuplicateException;
+import edu.wlu.cs.levy.CG.KeySizeException;
+
+/**
+ * This class selects well spread initial medoids with k-means|| (scalable
+ * k-means++) seeding.
+ *
+ * For more details on the algorithm,
+ * @see http://dx.doi.org/10.14778/2180912.2180915
+ *
+ * Starting from a single random point, each round samples every point
+ * independently with a probability proportional to its distance to the
+ * nearest point sampled so far, oversampling about l points per round. The
+ * sampling and the distance updates are done in parallel over blocks of the
+ * store. After a few rounds, each sampled point is weighted by the number of
+ * points nearest to it, and the sample is reduced to k medoids with weighted
+ * k-means++ seeding.
+ *
+ * As k-medoids minimizes the sum of the distances rather than the sum of the
+ * squared distances, points are sampled proportional to their distance
+ * instead of the squared distance of k-means++. Points at the location of an
+ * already sampled point have a distance of 0 and are never sampled, so all the
+ * medoids are at distinct locations.
+ *
+ * @see PamParameters#setSeeding(int)
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class KMeansSeeding {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(KMeansSeeding.class);
+
+    /**
+     * Number of points per sampling block. Each block has its own random
+     * generator, so the sample does not depend on the number of threads.
+     */
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    /**
+     * The store holding the points.
+     */
+    private PointStore store;
+
+    /**
+     * Number of sampling rounds.
+     */
+    private int rounds;
+
+    /**
+     * Expected number of points sampled per round, as a factor of k.
+     */
+    private double oversampling;
+
+    /**
+     * The number of threads to use.
+     */
+    private int threads;
+
+    /**
+     * Distance of each point to its nearest sampled point.
+     */
+    private double [] d;
+
+    /**
+     * Constructor.
+     * @param store The store holding the points
+     * @param rounds Number of sampling rounds
+     * @param oversampling Expected number of points sampled per round, as a
+     * factor of k
+     * @param threads The number of threads to use
+     */
+    public KMeansSeeding(PointStore store, int rounds, double oversampling,
+            int threads) {
+        this.store = store;
+        this.rounds = rounds;
+        this.oversampling = oversampling;
+        this.threads = threads;
+    }
+
+    /**
+     * Select the initial medoids.
+     * @param k The number of medoids
+     * @param rg Random generator to use
+     * @return the indices of the medoids in the store.
+     */
+    public int [] select(int k, Random rg) {
+        int n = store.size();
+        d = new double[n];
+        Arrays.fill(d, Double.MAX_VALUE);
+        // Start from a single random point
+        int [] sample = new int[]{rg.nextInt(n)};
+        update(sample);
+        for (int round = 0; round < rounds; round++) {
+            // Sum of the distances
+            double phi = 0;
+            for (int p = 0; p < n; p++)
+                phi += d[p];
+            if (phi == 0)
+                break;
+            int [] picked = distinct(sample(oversampling * k / phi,
+                    rg.nextLong()));
+            LOG.info(" - Round {}: sampled {} points (cost {})",
+                    round + 1, picked.length, phi);
+            if (picked.length == 0)
+                break;
+            update(picked);
+            // Keep all the sampled points
+            int [] merged = Arrays.copyOf(sample,
+                    sample.length + picked.length);
+            System.arraycopy(picked, 0, merged, sample.length, picked.length);
+            sample = merged;
+        }
+        // Weigh each sampled point by the number of points nearest to it
+        int [] nearest = new int[n];
+        new NearestMedoids(store, sample).assign(null, nearest, null, null,
+                null, threads);
+        double [] weights = new double[sample.length];
+        for (int p = 0; p < n; p++)
+            weights[nearest[p]]++;
+        if (sample.length <= k)
+            return fill(sample, k, rg);
+        return reduce(sample, weights, k, rg);
+    }
+
+    /**
+     * Select medoids from a weighted set of points with weighted k-means++
+     * seeding.
+     * @param points Indices of the points in the store, at distinct locations
+     * @param weights The weight of each point
+     * @param k The number of medoids
+     * @param rg Random generator to use
+     * @return the indices of the medoids in the store, all the points if 
+     * there are no more than k.
+     */
+    public int [] select(int [] points, double [] weights, int k, Random rg) {
+        if (points.length <= k)
+            return Arrays.copyOf(points, points.length);
+        return reduce(points, weights, k, rg);
+    }
+
+    /**
+     * Update the distance of each point to its nearest sampled point, in
+     * parallel.
+     * @param picked The newly sampled points, at distinct locations
+     */
+    private void update(int [] picked) {
+        int [] nearest = new int[store.size()];
+        double [] distances = new double[store.size()];
+        new NearestMedoids(store, picked).assign(null, nearest, distances,
+                null, null, threads);
+        for (int p = 0; p < d.length; p++)
+            if (distances[p] < d[p])
+                d[p] = distances[p];
+    }
+
+    /**
+     * Sample each point with a probability proportional to its distance, in
+     * parallel blocks of a fixed size, each with its own random generator.
+     * @param factor The probability of a point per unit of distance
+     * @param seed Seed for the random generators of the blocks
+     * @return the sampled points, in the order of the store.
+     */
+    private int [] sample(final double factor, final long seed) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<int []>> list = new ArrayList<Future<int []>>();
+        int blocks = (store.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        for (int b = 0; b < blocks; b++) {
+            final int block = b;
+            list.add(executor.submit(new Callable<int []>() {
+
+                @Override
+                public int [] call() {
+                    Random rg = new Random(seed + block);
+                    int begin = block * BLOCK_SIZE;
+                    int end = Math.min(store.size(), begin + BLOCK_SIZE);
+                    int [] picked = new int[16];
+                    int count = 0;
+                    for (int p = begin; p < end; p++) {
+                        if (d[p] > 0 && rg.nextDouble() < factor * d[p]) {
+                            if (count == picked.length)
+                                picked = Arrays.copyOf(picked, count * 2);
+                            picked[count++] = p;
+                        }
+                    }
+                    return Arrays.copyOf(picked, count);
+                }
+            }));
+        }
+        // Concatenate the blocks
+        int [] result = new int[0];
+        for (Future<int []> future : list) {
+            try {
+                int [] picked = future.get();
+                int offset = result.length;
+                result = Arrays.copyOf(result, offset + picked.length);
+                System.arraycopy(picked, 0, result, offset, picked.length);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        executor.shutdown();
+        return result;
+    }
+
+    /**
+     * Drop the points at the location of an earlier point.
+     * @param points Indices of points in the store
+     * @return the points at distinct locations, in the same order.
+     */
+    private int [] distinct(int [] points) {
+        KDTree<Integer> kd = new KDTree<Integer>(3);
+        int [] result = new int[points.length];
+        int count = 0;
+        for (int p : points) {
+            try {
+                kd.insert(store.doubleKey(p), p);
+                result[count++] = p;
+            } catch (KeySizeException e) {
+                LOG.error("Error: {}", e.getMessage());
+            } catch (KeyDuplicateException e) {
+                // Same location as an earlier point
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Reduce the weighted sample to k medoids with weighted k-means++
+     * seeding.
+     * @param sample The sampled points
+     * @param weights The weight of each sampled point
+     * @param k The number of medoids
+     * @param rg Random generator to use
+     * @return the indices of the medoids in the store.
+     */
+    private int [] reduce(int [] sample, double [] weights, int k, Random rg) {
+        double [] dc = new double[sample.length];
+        Arrays.fill(dc, Double.MAX_VALUE);
+        double [] score = new double[sample.length];
+        int [] medoids = new int[k];
+        // The first one proportional to its weight only
+        int last = pick(weights, rg);
+        for (int m = 0; m < k; m++) {
+            medoids[m] = sample[last];
+            // Update the distances to the nearest medoid
+            for (int j = 0; j < sample.length; j++) {
+                dc[j] = Math.min(dc[j], store.distance(sample[j],
+                        sample[last]));
+                score[j] = weights[j] * dc[j];
+            }
+            if (m + 1 < k)
+                last = pick(score, rg);
+        }
+        return medoids;
+    }
+
+    /**
+     * Pick an index with a probability proportional to its score.
+     * @param scores The score of each index
+     * @param rg Random generator to use
+     * @return the picked index.
+     */
+    private int pick(double [] scores, Random rg) {
+        double total = 0;
+        for (double score : scores)
+            total += score;
+        double target = rg.nextDouble() * total;
+        int last = 0;
+        for (int j = 0; j < scores.length; j++) {
+            if (scores[j] <= 0)
+                continue;
+            last = j;
+            target -= scores[j];
+            if (target < 0)
+                return j;
+        }
+        // Rounding
+        return last;
+    }
+
+    /**
+     * Complete a sample with fewer than k points with random points at
+     * other locations.
+     * @param sample The sampled points
+     * @param k The number of medoids
+     * @param rg Random generator to use
+     * @return the indices of the medoids in the store.
+     */
+    private int [] fill(int [] sample, int k, Random rg) {
+        KDTree<Integer> kd = new KDTree<Integer>(3);
+        int [] medoids = Arrays.copyOf(sample, k);
+        int count = 0;
+        for (int p : sample) {
+            try {
+                kd.insert(store.doubleKey(p), p);
+                count++;
+            } catch (KeySizeException e) {
+                LOG.error("Error: {}", e.getMessage());
+            } catch (KeyDuplicateException e) {
+                LOG.error("Error: {}", e.getMessage());
+            }
+        }
+        int attempts = 0;
+        while (count < k && attempts++ < 100 * k) {
+            int p = rg.nextInt(store.size());
+            try {
+                kd.insert(store.doubleKey(p), p);
+                medoids[count++] = p;
+            } catch (KeySizeException e) {
+                LOG.error("Error: {}", e.getMessage());
+            } catch (KeyDuplicateException e) {
+                // Same location as a medoid
+            }
+        }
+        return Arrays.copyOf(medoids, count);
+    }
+}
@@ -0,0 +1,209 @@
+package be.ugent.intec.ibcn.geo.clustering;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
+import be.ugent.intec.ibcn.geo.common.datatypes.Point;
+import edu.wlu.cs.levy.CG.KDTree;
+import edu.wlu.cs.levy.CG.KeyDuplicateException;
+import edu.wlu.cs.levy.CG.KeySizeException;
+
+/**
+ * This class finds the nearest medoids of the points in a PointStore, using a
+ * KD-tree over the unit vectors of the medoids.
+ *
+ * Medoids are referred to by their position in the array of medoids the
+ * index was created for. The KD-tree is only read after its creation, so the
+ * nearest medoids of different points can be looked up concurrently.
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class NearestMedoids {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(NearestMedoids.class);
+
+    /**
+     * The store holding the points.
+     */
+    private PointStore store;
+
+    /**
+     * Indices of the medoids in the store.
+     */
+    private int [] medoids;
+
+    /**
+     * KD-tree mapping the unit vector of each medoid to its position.
+     */
+    private KDTree<Integer> kd = new KDTree<Integer>(3);
+
+    /**
+     * Constructor.
+     * @param store The store holding the points
+     * @param medoids Indices of the medoids in the store
+     */
+    public NearestMedoids(PointStore store, int [] medoids) {
+        this.store = store;
+        this.medoids = medoids;
+        for (int i = 0; i < medoids.length; i++) {
+            try {
+                // Insert each medoid
+                kd.insert(store.doubleKey(medoids[i]), i);
+            } catch (KeySizeException e) {
+                LOG.error("Error: {}", e.getMessage());
+            } catch (KeyDuplicateException e) {
+                LOG.error("Error: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param p Index of a point in the store
+     * @return the position of the medoid nearest to the point.
+     */
+    public int nearest(int p) {
+        try {
+            return kd.nearest(store.doubleKey(p));
+        } catch (KeySizeException e) {
+            LOG.error("Error: {}", e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Find the two nearest medoids of a point.
+     * @param p Index of a point in the store
+     * @param positions Holds the positions of the nearest and second
+     * nearest medoid on return, -1 if there is no such medoid
+     * @param distances Holds the distance to the nearest and second nearest
+     * medoid on return
+     */
+    public void nearest(int p, int [] positions, double [] distances) {
+        positions[0] = positions[1] = -1;
+        distances[0] = distances[1] = Double.MAX_VALUE;
+        try {
+            for (int i : kd.nearest(store.doubleKey(p), 2)) {
+                double d = store.distance(p, medoids[i]);
+                // Keep both in order of their distance
+                if (d < distances[0] || (d == distances[0] &&
+                        i < positions[0])) {
+                    positions[1] = positions[0];
+                    distances[1] = distances[0];
+                    positions[0] = i;
+                    distances[0] = d;
+                }
+                else {
+                    positions[1] = i;
+                    distances[1] = d;
+                }
+            }
+        } catch (KeySizeException e) {
+            LOG.error("Error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Find the medoids that may be within a given distance of a point.
+     * @param p Index of a point in the store
+     * @param distance A distance in kilometers
+     * @return the positions of the medoids within the cube that encloses all
+     * the unit vectors within the given distance of the point. This includes
+     * all the medoids within the given distance, but also some medoids
+     * farther away.
+     */
+    public List<Integer> near(int p, double distance) {
+        // Chord length of the distance on the unit sphere
+        double angle = Math.min(Math.PI, distance / Point.EARTH_R);
+        double chord = 2 * Math.sin(angle / 2);
+        double [] key = store.doubleKey(p);
+        double [] low = new double[3];
+        double [] high = new double[3];
+        for (int i = 0; i < 3; i++) {
+            low[i] = key[i] - chord;
+            high[i] = key[i] + chord;
+        }
+        try {
+            return kd.range(low, high);
+        } catch (KeySizeException e) {
+            LOG.error("Error: {}", e.getMessage());
+            return new ArrayList<Integer>();
+        }
+    }
+
+    /**
+     * Assign the points of the store to their nearest medoids, in parallel
+     * over blocks of the store.
+     * @param skip Flags the points to skip, e.g. the medoids themselves, or
+     * null to assign all the points
+     * @param nearest Holds the position of the nearest medoid of each point
+     * on return
+     * @param d1 Holds the distance to the nearest medoid of each point on
+     * return
+     * @param second Holds the position of the second nearest medoid of each
+     * point on return, or null if not needed
+     * @param d2 Holds the distance to the second nearest medoid of each
+     * point on return, or null if not needed
+     * @param threads The number of threads to use
+     */
+    public void assign(final boolean [] skip, final int [] nearest,
+            final double [] d1, final int [] second, final double [] d2,
+            int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> list = new ArrayList<Future<?>>();
+        int length = (store.size() + threads - 1) / threads;
+        for (int t = 0; t < threads; t++) {
+            final int begin = t * length;
+            final int end = Math.min(store.size(), begin + length);
+            list.add(executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    int [] positions = new int[2];
+                    double [] distances = new double[2];
+                    for (int p = begin; p < end; p++) {
+                        // Skip the flagged points
+                        if (skip != null && skip[p]) {
+                            nearest[p] = -1;
+                            continue;
+                        }
+                        if (second == null) {
+                            nearest[p] = nearest(p);
+                            if (d1 != null)
+                                d1[p] = store.distance(p,
+                                        medoids[nearest[p]]);
+                        }
+                        else {
+                            nearest(p, positions, distances);
+                            nearest[p] = positions[0];
+                            d1[p] = distances[0];
+                            second[p] = positions[1];
+                            d2[p] = distances[1];
+                        }
+                    }
+                }
+            }));
+        }
+        // Wait for all the blocks
+        for (Future<?> future : list) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        executor.shutdown();
+    }
+}
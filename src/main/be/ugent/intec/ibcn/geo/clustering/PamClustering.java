@@ -2,7 +2,6 @@ package be.ugent.intec.ibcn.geo.clustering;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -14,8 +13,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import be.ugent.intec.ibcn.geo.clustering.datatypes.Cluster;
-import be.ugent.intec.ibcn.geo.clustering.datatypes.InitialPoint;
-import be.ugent.intec.ibcn.geo.common.datatypes.Coordinate;
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
 import be.ugent.intec.ibcn.geo.common.datatypes.Point;
 import be.ugent.intec.ibcn.geo.common.io.ClusteringIO;
 import edu.wlu.cs.levy.CG.KDTree;
@@ -91,29 +89,134 @@ public class PamClustering extends AbstractClustering {
     }
 
     /**
-     * The dataset of Points
+     * Flags the points that are currently a medoid. All other points are 
+     * assigned to their closest medoid in each iteration. Different clusters
+     * only update the flags of their own points, so no synchronization is
+     * needed.
      */
-    private List<Point> points;
+    protected boolean [] medoid;
 
     /**
      * Holds the number of clusters we are looking for.
      */
     protected int numberOfClusters;
 
+    /**
+     * Given initial medoids, or null to select them.
+     */
+    private int [] initial_medoids = null;
+
+    /**
+     * Known assignment of the data points to the given initial medoids, or 
+     * null.
+     */
+    private int [] initial_assignment = null;
+
+    /**
+     * Start the clustering from given medoids instead of selecting them. If 
+     * the data points were already optimized as clusters around these 
+     * medoids, e.g. in separate parts of the data, their assignment at that
+     * time can be given, so that only the clusters of which the membership 
+     * changes are optimized in the first iteration.
+     * @param medoids The indices of the initial medoids in the store
+     * @param assignment The position in the medoids of the cluster each data 
+     * point belonged to, -1 for the medoids, or null if unknown
+     */
+    public void setInitialMedoids(int [] medoids, int [] assignment) {
+        this.initial_medoids = medoids;
+        this.initial_assignment = assignment;
+    }
+
+    /**
+     * Max number of iterations, the iteration limit of the parameters unless
+     * set otherwise.
+     */
+    protected int iterationLimit;
+
+    /**
+     * Set the max number of iterations of this clustering, without changing
+     * the parameters.
+     * @param iterationLimit the max number of iterations
+     */
+    public void setIterationLimit(int iterationLimit) {
+        this.iterationLimit = iterationLimit;
+    }
+
+    /**
+     * Whether to write the full clustering to file instead of the medoids
+     * only, as set in the parameters unless set otherwise.
+     */
+    protected boolean writeFullClustering;
+
+    /**
+     * Set whether this clustering writes the full clustering to file, 
+     * without changing the parameters.
+     * @param writeFullClustering false to write the medoids only
+     */
+    public void setWriteFullClustering(boolean writeFullClustering) {
+        this.writeFullClustering = writeFullClustering;
+    }
+
+    /**
+     * Whether to merge the clusters below the minimum cluster size, as set
+     * in the parameters unless set otherwise.
+     */
+    protected boolean mergeBelowThreshold;
+
+    /**
+     * Set whether this clustering merges the clusters below the minimum
+     * cluster size, without changing the parameters.
+     * @param mergeBelowThreshold true to merge the small clusters
+     */
+    public void setMergeBelowThreshold(boolean mergeBelowThreshold) {
+        this.mergeBelowThreshold = mergeBelowThreshold;
+    }
+
     /**
      * Constructor
      * @param parameters Parameters for the PAM clustering
-     * @param data Array of Point data to cluster
+     * @param store PointStore holding the data to cluster
      * @param numberOfClusters the required number of clusters
      */
-    public PamClustering(PamParameters parameters, Point [] data, 
+    public PamClustering(PamParameters parameters, PointStore store, 
             int numberOfClusters) {
         super(parameters);
         this.numberOfClusters = numberOfClusters;
-        // Convert the input data to a synchronized List (as Vector 
-        // is deprecated)
-        this.points = Collections.synchronizedList(
-                new ArrayList<Point>(Arrays.asList(data)));
+        this.store = store;
+        this.medoid = new boolean[store.size()];
+        this.iterationLimit = parameters.iterationLimit;
+        this.writeFullClustering = parameters.writeFullClusteringToFile;
+        this.mergeBelowThreshold = parameters.merge_cluster_below_threshold;
+    }
+
+    /**
+     * Constructor
+     * @param parameters Parameters for the PAM clustering
+     * @param data Array of Point data to cluster
+     * @param numberOfClusters the required number of clusters
+     */
+    public PamClustering(PamParameters parameters, Point [] data, 
+            int numberOfClusters) {
+        this(parameters, PointStore.create(data), numberOfClusters);
+    }
+
+    /**
+     * Create the k-medoids clustering configured in the parameters.
+     * @param parameters Parameters for the clustering
+     * @param store PointStore holding the data to cluster
+     * @param numberOfClusters the required number of clusters
+     * @return the clustering, PamClustering unless another algorithm is set
+     * @see PamParameters#setAlgorithm(int)
+     */
+    public static PamClustering create(PamParameters parameters, 
+            PointStore store, int numberOfClusters) {
+        switch (parameters.getAlgorithm()) {
+            case PamParameters.ALGORITHM_CLARANS:
+                return new ClaransClustering(parameters, store, 
+                        numberOfClusters);
+            default:
+                return new PamClustering(parameters, store, numberOfClusters);
+        }
     }
 
     /**
@@ -128,13 +231,6 @@ public class PamClustering extends AbstractClustering {
         // Init a ClusteringIO
         ClusteringIO cio = new ClusteringIO();
         
-        // Store the original min improvement threshold
-        double original_optimization_min_improvement = 
-                parameters.optimization_min_improvement;
-        // Switch to an improvement threshold for clusters in progress
-        parameters.optimization_min_improvement = 
-                ((PamParameters)parameters).cost_improvement_threshold_partial;
-        
         // Init the overall timer
         long overall_start = System.currentTimeMillis();
         
@@ -144,63 +240,26 @@ public class PamClustering extends AbstractClustering {
          */
         LOG.info("[PAM][Algorithm][Step 1] Initial medoid selection. "
                 + "(# {})", numberOfClusters);
-        // Provide a map to track the current medoids
-        Map<Integer, InitialPoint> medoids = 
-                new HashMap<Integer, InitialPoint>(numberOfClusters);
         // Start a timer
         long start = System.currentTimeMillis();        
-        // make a D-dimensional KD-tree for the Coordinates
-        KDTree<Integer> initial_kd = new KDTree<Integer>(3);
-        // Now pick our random clusters
-        while (medoids.size() < numberOfClusters) {
-            // Pick a random index out of the list of all indices
-            int index = rg.nextInt(points.size());
-            
-            boolean valid_candidate = true;
-            Point p = points.get(index);
-            // If there are already medoids in the KD-tree
-            if (initial_kd.size() > 0) {
-                try {
-                    // Check their distance
-                    List<Integer> nbrs = initial_kd.nearest(
-                            new Coordinate(p).doubleKey(), 1);
-                    // If the current candidate is within 0.001m of a medoid
-                    if (p.distance(medoids.get(nbrs.get(0))) <= 1E-3)
-                        // Reject it as a valid candidate
-                        valid_candidate = false;                    
-                } catch (KeySizeException e) {
-                    LOG.error("Error: {}", e.getMessage());
-                }
-            }
-            // If we could add it
-            if (valid_candidate && !medoids.containsKey(p.getId())) {
-                // Add it to the medoids
-                medoids.put(p.getId(), new InitialPoint(p));
-                // Remove that element from the points
-                points.remove(index);
-                try {
-                    initial_kd.insert(new Coordinate(p).doubleKey(), p.getId());
-                } catch (KeySizeException e) {
-                    LOG.error("Error: {}", e.getMessage());
-                } catch (KeyDuplicateException e) {
-                    LOG.error("Error: {}", e.getMessage());
-                }
-            }
-            // Report progress per 10 000 medoids
-            if (medoids.size() % 10000 == 0)
-                LOG.info("{}", medoids.size());
-        }
+        int [] initial_medoids = selectInitialMedoids(rg);
         // Stop the timer - Init complete
         long stop = System.currentTimeMillis();
         LOG.info(" - Selected {} medoids. (Time: {} ms.)", 
-        		medoids.size(), (stop - start));
+        		initial_medoids.length, (stop - start));
         // Create a list of the current clusters
         List<Cluster> clusters = new ArrayList<Cluster>();
-        for (Point point : medoids.values()) {
-            clusters.add(new Cluster(point));
+        for (int point : initial_medoids) {
+            clusters.add(new Cluster(store, point));
         }
         // Init the iteration counter
         int iterations = 0;
+        // Holds the position of the nearest medoid of each data point
+        int [] nearest = new int[store.size()];
+        // Holds the assignment of the previous iteration, null if the 
+        // positions of the clusters changed since
+        int [] previous = initial_assignment == null ? null : 
+                Arrays.copyOf(initial_assignment, initial_assignment.length);
 
         /*
          * Step 2. Associate each data point to the closest medoid.
@@ -219,35 +278,15 @@ public class PamClustering extends AbstractClustering {
                 cluster.clearElements();
             }
             LOG.info("[PAM][Algorithm][Step 2] Assigning {} datapoints "
-            		+ "to the closest medoid.", points.size());
-
-            // make a D-dimensional KD-tree
-            KDTree<Integer> kd = new KDTree<Integer>(3);
-            for (int i = 0; i < clusters.size(); i++){
-                try {
-                    // Insert each medoid
-                    Point center = clusters.get(i).getCenter();
-                    kd.insert(new Coordinate(center).doubleKey(), i);
-                } catch (KeySizeException e) {
-                    LOG.error("Error: {}", e.getMessage());
-                } catch (KeyDuplicateException e) {
-                    LOG.error("Error: {}", e.getMessage());
-                }
-            }
+            		+ "to the closest medoid.", 
+                    store.size() - clusters.size());
 
-            // For each data point, find the nearest neighbour
-            for (Point p : points) {
-                try {
-                    List<Integer> nbrs = kd.nearest(
-                            new Coordinate(p).doubleKey(), 1);
-                    // Fetch the closest cluster
-                    Cluster best_cluster = clusters.get(nbrs.get(0));
-                    // Add this element to that cluster
-                    best_cluster.addElement(p);
-                } catch (KeySizeException e) {
-                    LOG.error("Error: {}", e.getMessage());
-                }
-            }
+            // Find the nearest medoid of each data point, in parallel
+            NearestMedoids index = new NearestMedoids(store, 
+                    centers(clusters));
+            index.assign(medoid, nearest, null, null, null, threads);
+            // Add the data points to their clusters
+            bucket(clusters, nearest);
             // Calculate checksum - just for sanity
             int before_checksum = 0;
             for (Cluster cluster : clusters) {
@@ -265,13 +304,26 @@ public class PamClustering extends AbstractClustering {
             LOG.info("[PAM][Algorithm][Step 3] Improving cluster "
                     + "configurations.");
             // Create a thread pool
-            ExecutorService executor = Executors.newFixedThreadPool(NR_THREADS);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            // Only clusters with a changed membership can improve
+            boolean [] dirty = dirty(clusters.size(), nearest, previous);
+            // Keep the assignment to detect changes in the next iteration
+            if (previous == null)
+                previous = new int[nearest.length];
+            System.arraycopy(nearest, 0, previous, 0, nearest.length);
+            int optimized = 0;
             // For each cluster
-            for (Cluster cluster : clusters) {
+            for (int i = 0; i < clusters.size(); i++) {
+                // Skip the clusters that were optimized before as they are
+                if (!dirty[i])
+                    continue;
                 // start optimizing - this will go multithreaded in a 
-                // NR_THREADS * NR_THREADS way
-                executor.submit(new PamClusterOptimizer(cluster, points));
+                // threads * threads way
+                executor.submit(new PamClusterOptimizer(clusters.get(i)));
+                optimized++;
             }
+            LOG.info(" - Optimizing {} of {} clusters.", optimized, 
+                    clusters.size());
             // This will make the executor accept no new threads
             // and finish all existing threads in the queue
             executor.shutdown();
@@ -297,8 +349,7 @@ public class PamClustering extends AbstractClustering {
 
             // Optionally, merge clusters below a certain threshold
             // And only if there is more than 1 cluster
-            if (((PamParameters)parameters).merge_cluster_below_threshold 
-                    && clusters.size() > 1) {
+            if (mergeBelowThreshold && clusters.size() > 1) {
                 List<Cluster> clusters_below = new ArrayList<Cluster>();
                 List<Cluster> new_clusters = new ArrayList<Cluster>();
                 for (Cluster cluster : clusters) {
@@ -308,9 +359,9 @@ public class PamClustering extends AbstractClustering {
                         // Store the cluster that is below the threshold
                         clusters_below.add(cluster);
                         // Fetch it's center
-                        Point center = cluster.getCenter();
+                        int center = cluster.getCenter();
                         // Add it as a data point
-                        points.add(center);
+                        medoid[center] = false;
                         // Once the cluster is removed, the datapoints will be
                         // reset in the next iteration and everything will start
                         // all over again
@@ -326,12 +377,14 @@ public class PamClustering extends AbstractClustering {
                     Cluster cluster = clusters_below.get(0);
                     // Remove the center from the points list that was added in
                     // the removal step
-                    points.remove(cluster.getCenter());
+                    medoid[cluster.getCenter()] = true;
                     // Use this one for the new cluster configuration
                     new_clusters.add(cluster);
                 }
                 if (clusters_below.size() > 0) {
                     clusters = new_clusters;
+                    // The positions of the clusters changed
+                    previous = null;
                     // Flag a change so that a new iteration will be required
                     flagChange();
                     LOG.info("\n++++ > Clusters below threshold ({}) < ++++", 
@@ -342,13 +395,13 @@ public class PamClustering extends AbstractClustering {
             }
             // Write the current iteration to the result file, just in case
             cio.writeClusteringToFile(clusters, outputfile, 
-                    parameters.writeFullClusteringToFile);
+                    writeFullClustering);
         }
         // keep doing this for as long as there are changes to the clusters
         // or clusters are being merged
         // and the number of iterations is smaller than the iterationlimit
         while (clusterChanged() && 
-                iterations < ((PamParameters)parameters).iterationLimit);
+                iterations < iterationLimit);
 
         /*
          * 3. For each mediod m 
@@ -360,10 +413,6 @@ public class PamClustering extends AbstractClustering {
 
         long overall_stop = System.currentTimeMillis();
 
-        // Restore the original min improvement threshold
-        parameters.optimization_min_improvement = 
-                original_optimization_min_improvement;
-        
         int clusters_threshold = 0;
         int empty_clusters = 0;
         int min_size = Integer.MAX_VALUE;
@@ -398,7 +447,8 @@ public class PamClustering extends AbstractClustering {
     		((PamParameters)parameters).min_cluster_size, clusters_threshold);
         if (clusters.size() - empty_clusters != 0)
             LOG.info(" - Avg cluster size (non-empty): {}",
-            		((int) ((points.size() * 1.0) + clusters.size()) / 
+            		((int) (((store.size() - clusters.size()) * 1.0) + 
+                    clusters.size()) / 
                     (clusters.size() - empty_clusters)));
         LOG.info(" - Min cluster size (>0): {}", min_size);
         LOG.info(" - Max cluster size: {}", max_size);
@@ -407,28 +457,184 @@ public class PamClustering extends AbstractClustering {
             (overall_stop - overall_start));
     }
     
+    /**
+     * Select the initial medoids as configured in the parameters, unless 
+     * they were given. The selected points are flagged as a medoid.
+     * @param rg Random generator to use
+     * @return the indices of the initial medoids in the store.
+     * @see PamParameters#setSeeding(int)
+     */
+    protected int [] selectInitialMedoids(Random rg) {
+        PamParameters pp = (PamParameters)parameters;
+        if (initial_medoids != null) {
+            for (int point : initial_medoids)
+                medoid[point] = true;
+            return Arrays.copyOf(initial_medoids, initial_medoids.length);
+        }
+        if (pp.seeding == PamParameters.SEEDING_KMEANS_PARALLEL) {
+            int [] result = new KMeansSeeding(store, pp.seeding_rounds, 
+                    pp.seeding_oversampling, threads).select(
+                    numberOfClusters, rg);
+            for (int point : result)
+                medoid[point] = true;
+            return result;
+        }
+        return selectRandomMedoids(rg);
+    }
+
+    /**
+     * Randomly select the initial medoids, rejecting points within 0.001m 
+     * of an already selected medoid. The selected points are flagged as a
+     * medoid.
+     * @param rg Random generator to use
+     * @return the indices of the initial medoids in the store.
+     */
+    protected int [] selectRandomMedoids(Random rg) {
+        // Provide a map to track the current medoids, from their ID to their
+        // index in the store
+        Map<Integer, Integer> medoids = 
+                new HashMap<Integer, Integer>(numberOfClusters);
+        // make a D-dimensional KD-tree for the Coordinates
+        KDTree<Integer> initial_kd = new KDTree<Integer>(3);
+        // Keep a list of the points that are not a medoid yet
+        int [] candidates = new int[store.size()];
+        for (int c = 0; c < candidates.length; c++)
+            candidates[c] = c;
+        int remaining = candidates.length;
+        // Now pick our random clusters
+        while (medoids.size() < numberOfClusters) {
+            // Pick a random index out of the list of all indices
+            int index = rg.nextInt(remaining);
+            
+            boolean valid_candidate = true;
+            int p = candidates[index];
+            // If there are already medoids in the KD-tree
+            if (initial_kd.size() > 0) {
+                try {
+                    // Check their distance
+                    List<Integer> nbrs = initial_kd.nearest(
+                            store.doubleKey(p), 1);
+                    // If the current candidate is within 0.001m of a medoid
+                    if (store.distance(p, nbrs.get(0)) <= 1E-3)
+                        // Reject it as a valid candidate
+                        valid_candidate = false;                    
+                } catch (KeySizeException e) {
+                    LOG.error("Error: {}", e.getMessage());
+                }
+            }
+            // If we could add it
+            if (valid_candidate && !medoids.containsKey(store.getId(p))) {
+                // Add it to the medoids
+                medoids.put(store.getId(p), p);
+                medoid[p] = true;
+                // Remove that element from the candidates
+                System.arraycopy(candidates, index + 1, candidates, index, 
+                        --remaining - index);
+                try {
+                    initial_kd.insert(store.doubleKey(p), p);
+                } catch (KeySizeException e) {
+                    LOG.error("Error: {}", e.getMessage());
+                } catch (KeyDuplicateException e) {
+                    LOG.error("Error: {}", e.getMessage());
+                }
+            }
+            // Report progress per 10 000 medoids
+            if (medoids.size() % 10000 == 0)
+                LOG.info("{}", medoids.size());
+        }
+        // Return the medoids in the order of the map
+        int [] result = new int[medoids.size()];
+        int i = 0;
+        for (int point : medoids.values())
+            result[i++] = point;
+        return result;
+    }
+
+    /**
+     * @param clusters The current clusters
+     * @return the indices of the centers of the clusters, in the same order.
+     */
+    protected int [] centers(List<Cluster> clusters) {
+        int [] centers = new int[clusters.size()];
+        for (int i = 0; i < centers.length; i++)
+            centers[i] = clusters.get(i).getCenter();
+        return centers;
+    }
+
+    /**
+     * Determine the clusters of which the membership changed since the
+     * previous iteration. A cluster that keeps its center and its data points
+     * was already optimized in that configuration, and as the optimization is
+     * deterministic, it would not improve now either. A change of the center
+     * always changes the membership, as the new center was a data point of
+     * the cluster before, and is skipped in the assignment now.
+     * @param size The number of clusters
+     * @param nearest The position of the cluster of each data point, -1 for
+     * the medoids
+     * @param previous The positions in the previous iteration, or null if 
+     * unknown
+     * @return true for each cluster that needs to be optimized.
+     */
+    protected boolean [] dirty(int size, int [] nearest, int [] previous) {
+        boolean [] dirty = new boolean[size];
+        // Without a previous iteration, all clusters are new
+        if (previous == null) {
+            Arrays.fill(dirty, true);
+            return dirty;
+        }
+        for (int p = 0; p < nearest.length; p++) {
+            if (nearest[p] != previous[p]) {
+                // Both the cluster it left and the one it joined changed
+                if (nearest[p] >= 0)
+                    dirty[nearest[p]] = true;
+                if (previous[p] >= 0)
+                    dirty[previous[p]] = true;
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Add each data point to the cluster it was assigned to. The points are
+     * first grouped per cluster, so that each cluster receives all its points
+     * at once, in the order of the store, without any contention.
+     * @param clusters The current clusters
+     * @param nearest The position of the cluster of each data point, or -1 
+     * for the points to skip
+     */
+    protected void bucket(List<Cluster> clusters, int [] nearest) {
+        // Count the points per cluster
+        int [] counts = new int[clusters.size()];
+        for (int p = 0; p < nearest.length; p++)
+            if (nearest[p] >= 0)
+                counts[nearest[p]]++;
+        int [][] buckets = new int[counts.length][];
+        for (int i = 0; i < counts.length; i++)
+            buckets[i] = new int[counts[i]];
+        // Fill the buckets
+        int [] cursor = new int[counts.length];
+        for (int p = 0; p < nearest.length; p++)
+            if (nearest[p] >= 0)
+                buckets[nearest[p]][cursor[nearest[p]]++] = p;
+        for (int i = 0; i < counts.length; i++)
+            clusters.get(i).addAllElements(buckets[i], counts[i]);
+    }
+
     /**
      * Helper class that overrides the default Cluster optimizer. This allows
      * to reuse almost all of the code of the optimizer, while with minimal
      * effort, some administration specific to the PAM algorithm can be 
-     * executed.
+     * executed. Clusters in progress are optimized with the improvement 
+     * threshold for partial clusters.
      */
     private class PamClusterOptimizer extends ClusterOptimizer{
 
-        /**
-         * Reference to the overall dataset of Points. This has to be a 
-         * synchronized structure or the multithreading will loose datapoints 
-         * here.
-         */
-        private List<Point> dataset;
-
         /**
          * @param cluster the Cluster this Thread is optimizing.
-         * @param dataset reference to the overall dataset of Points.
          */
-        public PamClusterOptimizer(Cluster cluster, List<Point> dataset) {
-            super(cluster);
-            this.dataset = dataset;
+        public PamClusterOptimizer(Cluster cluster) {
+            super(cluster, 
+                ((PamParameters)parameters).cost_improvement_threshold_partial);
         }
 
         /**
@@ -443,17 +649,18 @@ public class PamClustering extends AbstractClustering {
          * optimization
          */
         @Override        
-        protected boolean finalSwap(Point bestCenter, Cluster cluster, 
+        protected boolean finalSwap(int bestCenter, Cluster cluster, 
             double original_cost, double cost) {
             LOG.info("[Thread-{}] {} -> {} (Cost: {} -> {})",
         		Thread.currentThread().getId(), 
-        		cluster.getCenter(), bestCenter, original_cost, cost);
+        		store.getPoint(cluster.getCenter()), 
+                store.getPoint(bestCenter), original_cost, cost);
             
             // Process the change in the dataset we are using by removin the 
             // point that becomes the new center
-            dataset.remove(bestCenter);
+            medoid[bestCenter] = true;
             // add the old center as a new datapoint
-            dataset.add(cluster.getCenter());
+            medoid[cluster.getCenter()] = false;
             // Process the cluster change
             cluster.swapCenter(bestCenter);
             // Mark this as a change to inform that a new PAM iteration is 
@@ -8,6 +8,107 @@ package be.ugent.intec.ibcn.geo.clustering;
  */
 public class PamParameters extends ClusteringParameters {
 
+    /**
+     * Constant for the original PAM algorithm.
+     * @see PamClustering
+     */
+    public static final int ALGORITHM_PAM = 0;
+
+    /**
+     * Constant for the CLARANS algorithm with spatial candidate sampling.
+     * @see ClaransClustering
+     */
+    public static final int ALGORITHM_CLARANS = 1;
+
+    /**
+     * The k-medoids algorithm to use. By default, the original PAM algorithm
+     * is used.
+     */
+    protected int algorithm = ALGORITHM_PAM;
+
+    /**
+     * Set the k-medoids algorithm to use.
+     * @param algorithm ALGORITHM_PAM or ALGORITHM_CLARANS
+     */
+    public void setAlgorithm(int algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * @return the k-medoids algorithm to use.
+     */
+    public int getAlgorithm() {
+        return this.algorithm;
+    }
+
+    /**
+     * Constant for selecting the initial medoids at random.
+     */
+    public static final int SEEDING_RANDOM = 0;
+
+    /**
+     * Constant for selecting the initial medoids with k-means|| seeding.
+     * @see KMeansSeeding
+     */
+    public static final int SEEDING_KMEANS_PARALLEL = 1;
+
+    /**
+     * The selection of the initial medoids. By default, the initial medoids
+     * are selected at random.
+     */
+    protected int seeding = SEEDING_RANDOM;
+
+    /**
+     * Set the selection of the initial medoids.
+     * @param seeding SEEDING_RANDOM or SEEDING_KMEANS_PARALLEL
+     */
+    public void setSeeding(int seeding) {
+        this.seeding = seeding;
+    }
+
+    /**
+     * Number of sampling rounds of the k-means|| seeding.
+     */
+    protected int seeding_rounds = 5;
+
+    /**
+     * Set the number of sampling rounds of the k-means|| seeding.
+     * @param seeding_rounds the number of sampling rounds
+     */
+    public void setSeeding_rounds(int seeding_rounds) {
+        this.seeding_rounds = seeding_rounds;
+    }
+
+    /**
+     * Expected number of points sampled per round of the k-means|| seeding,
+     * as a factor of the number of clusters.
+     */
+    protected double seeding_oversampling = 2;
+
+    /**
+     * Set the expected number of points sampled per round of the k-means||
+     * seeding, as a factor of the number of clusters.
+     * @param seeding_oversampling the oversampling factor
+     */
+    public void setSeeding_oversampling(double seeding_oversampling) {
+        this.seeding_oversampling = seeding_oversampling;
+    }
+
+    /**
+     * Number of swap candidates that are sampled per cluster in each 
+     * iteration of the CLARANS algorithm.
+     */
+    protected int swap_candidates = 32;
+
+    /**
+     * Set the number of swap candidates that are sampled per cluster in each
+     * iteration of the CLARANS algorithm.
+     * @param swap_candidates the number of swap candidates per cluster.
+     */
+    public void setSwap_candidates(int swap_candidates) {
+        this.swap_candidates = swap_candidates;
+    }
+
     /**
      * Max number of iterations that can be performed before the clustering
      * algorithm automatically ends.
@@ -0,0 +1,331 @@
+package be.ugent.intec.ibcn.geo.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
+
+/**
+ * This class contains a spatially partitioned k-medoids clustering, that
+ * splits one large clustering job into independent jobs per tile.
+ *
+ * The algorithm works as follows:
+ * 1. The points are split into tiles of a fixed number of degrees latitude
+ * and longitude.
+ * 2. The medoid budget is divided over the tiles proportional to their number
+ * of points (largest remainder), so dense regions get more medoids.
+ * 3. Each tile is clustered independently, by the k-medoids algorithm set in
+ * the parameters, and its medoids are written to a tile file. The tiles are
+ * clustered in parallel, each by a single thread, but each tile can as well be
+ * clustered by a separate process on a separate node, using clusterTile().
+ * 4. The medoids of all the tiles are merged. Near the tile boundaries, points
+ * may now be nearer to a medoid of a neighbouring tile. A boundary
+ * reconciliation pass runs PAM over all the data, starting from the merged
+ * medoids. As the assignment of each point within its own tile is known, only
+ * the clusters of which the membership changes, i.e. the clusters along the
+ * tile boundaries, are optimized again.
+ *
+ * The tile files and the final result are standard medoid files (ID,lat,lon)
+ * that can be read by FileIO.loadMedoids.
+ *
+ * @see PartitionedParameters
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class PartitionedClustering extends AbstractClustering {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(PartitionedClustering.class);
+
+    /**
+     * Holds the number of clusters we are looking for.
+     */
+    private int numberOfClusters;
+
+    /**
+     * Number of tile rows, i.e. latitude bands.
+     */
+    private int rows;
+
+    /**
+     * Number of tile columns, i.e. longitude bands.
+     */
+    private int columns;
+
+    /**
+     * Tile of each point.
+     */
+    private int [] tiles;
+
+    /**
+     * Indices of the points of each tile.
+     */
+    private int [][] members;
+
+    /**
+     * Medoid budget of each tile.
+     */
+    private int [] budgets;
+
+    /**
+     * Constructor.
+     * @param parameters Parameters for the clustering
+     * @param store PointStore holding the data to cluster
+     * @param numberOfClusters the required number of clusters
+     */
+    public PartitionedClustering(PartitionedParameters parameters,
+            PointStore store, int numberOfClusters) {
+        super(parameters);
+        this.store = store;
+        this.numberOfClusters = numberOfClusters;
+        split();
+    }
+
+    /**
+     * @return the number of tiles.
+     */
+    public int getNumberOfTiles() {
+        return rows * columns;
+    }
+
+    /**
+     * @param tile The tile
+     * @return the medoid budget of the tile, 0 for tiles without points.
+     */
+    public int getBudget(int tile) {
+        return budgets[tile];
+    }
+
+    /**
+     * Split the points into tiles and divide the medoid budget.
+     */
+    private void split() {
+        double degrees = ((PartitionedParameters)parameters).tile_degrees;
+        rows = (int)Math.ceil(180 / degrees);
+        columns = (int)Math.ceil(360 / degrees);
+        // Determine the tile of each point
+        tiles = new int[store.size()];
+        int [] counts = new int[rows * columns];
+        for (int p = 0; p < store.size(); p++) {
+            int row = (int)((store.getLatitude(p) + 90) / degrees);
+            int column = (int)((store.getLongitude(p) + 180) / degrees);
+            tiles[p] = Math.min(row, rows - 1) * columns +
+                    Math.min(column, columns - 1);
+            counts[tiles[p]]++;
+        }
+        members = new int[counts.length][];
+        for (int t = 0; t < counts.length; t++)
+            members[t] = new int[counts[t]];
+        int [] cursor = new int[counts.length];
+        for (int p = 0; p < store.size(); p++)
+            members[tiles[p]][cursor[tiles[p]]++] = p;
+        // Divide the budget proportional to the number of points
+        budgets = new int[counts.length];
+        double [] remainders = new double[counts.length];
+        int assigned = 0;
+        for (int t = 0; t < counts.length; t++) {
+            double share = (double)numberOfClusters * counts[t] /
+                    store.size();
+            budgets[t] = (int)share;
+            remainders[t] = share - budgets[t];
+            assigned += budgets[t];
+        }
+        // The remaining medoids go to the largest remainders
+        while (assigned < numberOfClusters) {
+            int best = -1;
+            for (int t = 0; t < counts.length; t++)
+                if (budgets[t] < counts[t] &&
+                        (best < 0 || remainders[t] > remainders[best]))
+                    best = t;
+            if (best < 0)
+                break;
+            budgets[best]++;
+            remainders[best] = -1;
+            assigned++;
+        }
+        int used = 0;
+        for (int t = 0; t < counts.length; t++)
+            if (budgets[t] > 0)
+                used++;
+        LOG.info("[PARTITIONED] {} points in {} tiles, {} tiles with medoids.",
+                store.size(), counts.length, used);
+    }
+
+    /**
+     * Partitioned clustering function.
+     * @param outputfile The filename of the results of the clustering. The
+     * medoids of each tile are written to outputfile.tile.N.
+     */
+    @Override
+    public void cluster(String outputfile) {
+        LOG.info("[PARTITIONED] Output will be written in {}", outputfile);
+        long overall_start = System.currentTimeMillis();
+
+        /*
+         * Step 1. Cluster the tiles in parallel.
+         */
+        LOG.info("[PARTITIONED][Algorithm][Step 1] Clustering tiles.");
+        long start = System.currentTimeMillis();
+        final List<String> tilefiles = new ArrayList<String>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> list = new ArrayList<Future<?>>();
+        for (int t = 0; t < getNumberOfTiles(); t++) {
+            if (budgets[t] == 0)
+                continue;
+            final int tile = t;
+            final String tilefile = outputfile + ".tile." + t;
+            tilefiles.add(tilefile);
+            list.add(executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    // The tiles run in parallel, so each tile runs on a
+                    // single thread
+                    clusterTile(tile, tilefile, 1);
+                }
+            }));
+        }
+        // Wait for all the tiles
+        for (Future<?> future : list) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        executor.shutdown();
+        LOG.info(" - Clustered {} tiles. (Time: {} ms.)", tilefiles.size(),
+                (System.currentTimeMillis() - start));
+
+        /*
+         * Step 2. Merge the tiles and reconcile the boundaries.
+         */
+        merge(tilefiles.toArray(new String[tilefiles.size()]), outputfile);
+        LOG.info("[PARTITIONED] Overall processing time: {} ms.",
+                (System.currentTimeMillis() - overall_start));
+    }
+
+    /**
+     * Cluster the points of a single tile and write its medoids to file.
+     * @param tile The tile to cluster
+     * @param tilefile The file to write the medoids of the tile to
+     */
+    public void clusterTile(int tile, String tilefile) {
+        clusterTile(tile, tilefile, threads);
+    }
+
+    /**
+     * Cluster the points of a single tile and write its medoids to file.
+     * @param tile The tile to cluster
+     * @param tilefile The file to write the medoids of the tile to
+     * @param threads The number of threads for the clustering of the tile
+     */
+    private void clusterTile(int tile, String tilefile, int threads) {
+        // Copy the points of the tile
+        PointStore data = new PointStore(members[tile].length);
+        for (int i = 0; i < members[tile].length; i++) {
+            int p = members[tile][i];
+            data.set(i, store.getId(p), store.getLatitude(p),
+                    store.getLongitude(p));
+        }
+        LOG.info("[PARTITIONED] Tile {}: {} medoids for {} points.", tile,
+                budgets[tile], data.size());
+        PamClustering clustering = PamClustering.create(
+                (PamParameters)parameters, data, budgets[tile]);
+        clustering.setThreads(threads);
+        // The tile files need to be medoid files
+        clustering.setWriteFullClustering(false);
+        clustering.cluster(tilefile);
+    }
+
+    /**
+     * Merge the medoids of the tiles, reconcile the clusters along the tile
+     * boundaries and write the result.
+     * @param tilefiles The medoid files of the tiles
+     * @param outputfile The filename of the results of the clustering
+     */
+    public void merge(String [] tilefiles, String outputfile) {
+        LOG.info("[PARTITIONED][Algorithm][Step 2] Merging {} tiles.",
+                tilefiles.length);
+        // Load the medoids of all the tiles
+        int [] medoids = loadMedoids(tilefiles);
+        LOG.info(" - Merged {} medoids.", medoids.length);
+        // Assign each point to the nearest medoid of its own tile, as in
+        // the clustering of the tile
+        int [] assignment = tileAssignment(medoids);
+        // Run PAM over all the data, starting from the merged medoids
+        PartitionedParameters pp = (PartitionedParameters)parameters;
+        PamClustering reconciliation = new PamClustering(pp, store,
+                medoids.length);
+        reconciliation.setThreads(threads);
+        reconciliation.setIterationLimit(pp.reconciliation_iteration_limit);
+        reconciliation.setInitialMedoids(medoids, assignment);
+        reconciliation.cluster(outputfile);
+    }
+
+    /**
+     * Determine the nearest medoid of each point among the medoids in its
+     * own tile, in parallel over the tiles.
+     * @param medoids The indices of the medoids in the store
+     * @return the position of the nearest medoid of each point within its
+     * tile, -1 for the medoids and for the points of tiles without medoids.
+     */
+    private int [] tileAssignment(final int [] medoids) {
+        final int [] assignment = new int[store.size()];
+        Arrays.fill(assignment, -1);
+        // Group the medoids per tile
+        final List<List<Integer>> positions = new ArrayList<List<Integer>>();
+        for (int t = 0; t < getNumberOfTiles(); t++)
+            positions.add(new ArrayList<Integer>());
+        final boolean [] medoid = new boolean[store.size()];
+        for (int i = 0; i < medoids.length; i++) {
+            positions.get(tiles[medoids[i]]).add(i);
+            medoid[medoids[i]] = true;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> list = new ArrayList<Future<?>>();
+        for (int t = 0; t < getNumberOfTiles(); t++) {
+            if (positions.get(t).isEmpty())
+                continue;
+            final int tile = t;
+            list.add(executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    List<Integer> local = positions.get(tile);
+                    int [] centers = new int[local.size()];
+                    for (int i = 0; i < centers.length; i++)
+                        centers[i] = medoids[local.get(i)];
+                    NearestMedoids index = new NearestMedoids(store, centers);
+                    for (int p : members[tile])
+                        if (!medoid[p])
+                            assignment[p] = local.get(index.nearest(p));
+                }
+            }));
+        }
+        // Wait for all the tiles
+        for (Future<?> future : list) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        executor.shutdown();
+        return assignment;
+    }
+}
@@ -0,0 +1,42 @@
+package be.ugent.intec.ibcn.geo.clustering;
+
+/**
+ * This class extends the PAM parameters with some parameters that are typical
+ * for the spatially partitioned clustering. The PAM parameters are used to
+ * cluster each tile.
+ *
+ * @see PartitionedClustering
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class PartitionedParameters extends PamParameters {
+
+    /**
+     * Size of the tiles in degrees latitude and longitude.
+     */
+    protected double tile_degrees = 30;
+
+    /**
+     * Set the size of the tiles in degrees latitude and longitude.
+     * @param tile_degrees the size of the tiles in degrees
+     */
+    public void setTile_degrees(double tile_degrees) {
+        this.tile_degrees = tile_degrees;
+    }
+
+    /**
+     * Max number of iterations of the boundary reconciliation over all the
+     * data.
+     */
+    protected int reconciliation_iteration_limit = 5;
+
+    /**
+     * Set the max number of iterations of the boundary reconciliation over
+     * all the data.
+     * @param reconciliation_iteration_limit the max number of iterations
+     */
+    public void setReconciliation_iteration_limit(
+            int reconciliation_iteration_limit) {
+        this.reconciliation_iteration_limit = reconciliation_iteration_limit;
+    }
+}
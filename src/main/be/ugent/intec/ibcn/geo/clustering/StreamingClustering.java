@@ -0,0 +1,632 @@
+package be.ugent.intec.ibcn.geo.clustering;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.ugent.intec.ibcn.geo.clustering.datatypes.Cluster;
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
+import be.ugent.intec.ibcn.geo.common.Util;
+import be.ugent.intec.ibcn.geo.common.datatypes.Point;
+import be.ugent.intec.ibcn.geo.common.io.ClusteringIO;
+import be.ugent.intec.ibcn.geo.common.io.parsers.LineParserPoint;
+import edu.wlu.cs.levy.CG.KDTree;
+import edu.wlu.cs.levy.CG.KeyDuplicateException;
+import edu.wlu.cs.levy.CG.KeyMissingException;
+import edu.wlu.cs.levy.CG.KeySizeException;
+
+/**
+ * This class contains a streaming (mini-batch) variant of k-medoids, for input
+ * files that are too large to load into memory.
+ *
+ * The input file is read in chunks of a fixed number of lines. Only the
+ * current chunk, the medoids and a bounded reservoir sample of the points of
+ * each cluster are kept in memory, so the memory use does not depend on the
+ * size of the input file.
+ *
+ * The algorithm works as follows:
+ * 1. A first pass over the file draws a uniform random sample of the points,
+ * from which k points at distinct locations become the initial medoids.
+ * 2. In each following pass, every chunk is parsed and its points are
+ * assigned to their nearest medoid, in parallel. Each point is offered to a
+ * reservoir sample of its cluster, so each reservoir is a uniform sample of
+ * the points assigned to the cluster so far in this pass.
+ * 3. After each chunk, the medoid of each cluster that received points is
+ * swapped for the sampled candidate that minimizes the sum of the distances
+ * to the points in the reservoir, if that improves the cost enough.
+ * 4. The passes end when no medoid changes during a pass, or when the pass
+ * limit is reached.
+ *
+ * As the points themselves are not kept, only the medoids are written to the
+ * output file, in the same format as the other clustering algorithms. The
+ * full clustering can not be written by this algorithm.
+ *
+ * @see StreamingParameters
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class StreamingClustering extends AbstractClustering {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(StreamingClustering.class);
+
+    /**
+     * The file holding the points to cluster.
+     */
+    private String inputfile;
+
+    /**
+     * Holds the number of clusters we are looking for.
+     */
+    private int numberOfClusters;
+
+    /**
+     * The current medoids, the medoid of cluster i at index i.
+     */
+    private PointStore centers;
+
+    /**
+     * KD-tree mapping the unit vector of each medoid to its cluster.
+     */
+    private KDTree<Integer> kd;
+
+    /**
+     * Reservoir sample of the points of each cluster, created when the first
+     * point is assigned to the cluster.
+     */
+    private PointStore [] reservoirs;
+
+    /**
+     * Number of points in the reservoir of each cluster.
+     */
+    private int [] filled;
+
+    /**
+     * Number of points assigned to each cluster during the current pass.
+     */
+    private long [] seen;
+
+    /**
+     * Constructor.
+     * @param parameters Parameters for the streaming clustering
+     * @param inputfile The file holding the points to cluster, parsed by the
+     * line parser for input set in the parameters
+     * @param numberOfClusters the required number of clusters
+     */
+    public StreamingClustering(StreamingParameters parameters,
+            String inputfile, int numberOfClusters) {
+        super(parameters);
+        this.inputfile = inputfile;
+        this.numberOfClusters = numberOfClusters;
+    }
+
+    /**
+     * Streaming k-medoids clustering function.
+     * @param outputfile The filename of the results of the clustering
+     */
+    @Override
+    public void cluster(String outputfile) {
+        LOG.info("[STREAM] Output will be written in {}", outputfile);
+        StreamingParameters sp = (StreamingParameters)parameters;
+        if (sp.writeFullClusteringToFile)
+            LOG.warn("[STREAM] Only the medoids can be written to file.");
+        // Init a random generator - with seed for reproduceability
+        Random rg = new Random(123456789L);
+        // Init a ClusteringIO
+        ClusteringIO cio = new ClusteringIO();
+        // Init the overall timer
+        long overall_start = System.currentTimeMillis();
+
+        /*
+         * Step 1. Initialize: select k points at distinct locations from a
+         * random sample of the input.
+         */
+        LOG.info("[STREAM][Algorithm][Step 1] Initial medoid selection. "
+                + "(# {})", numberOfClusters);
+        long start = System.currentTimeMillis();
+        selectInitialMedoids(rg);
+        LOG.info(" - Selected {} medoids. (Time: {} ms.)",
+                centers.size(), (System.currentTimeMillis() - start));
+
+        int passes = 0;
+        int changes;
+        double cost = 0;
+        long points = 0;
+        do {
+            long pass_start = System.currentTimeMillis();
+            LOG.info("\n========] Pass {} [========\n", ++passes);
+            // Clear the reservoirs
+            reservoirs = new PointStore[centers.size()];
+            filled = new int[centers.size()];
+            seen = new long[centers.size()];
+            changes = 0;
+            cost = 0;
+            points = 0;
+            ChunkReader reader = new ChunkReader(sp.chunk_size);
+            while (reader.next()) {
+                /*
+                 * Step 2. Assign the points of the chunk to the closest
+                 * medoid, and sample them per cluster.
+                 */
+                buildTree();
+                int [] nearest = new int[reader.size()];
+                double [] distances = new double[reader.size()];
+                PointStore chunk = reader.parse(nearest, distances);
+                boolean [] touched = new boolean[centers.size()];
+                for (int p = 0; p < chunk.size(); p++) {
+                    if (nearest[p] < 0)
+                        continue;
+                    cost += distances[p];
+                    points++;
+                    touched[nearest[p]] = true;
+                    sample(nearest[p], chunk, p, rg);
+                }
+                /*
+                 * Step 3. Update the medoids of the clusters that received
+                 * points.
+                 */
+                changes += updateMedoids(touched, rg);
+            }
+            reader.close();
+            LOG.info("[STREAM][Algorithm] Pass finished in {} ms.",
+                    (System.currentTimeMillis() - pass_start));
+            LOG.info(" - {} points assigned at a cost of {}", points, cost);
+            LOG.info(" - {} medoids changed during pass.", changes);
+            // Write the current medoids to the result file, just in case
+            cio.writeClusteringToFile(clusters(), outputfile, false);
+        }
+        // Keep going as long as medoids change, up to the pass limit
+        while (changes > 0 && passes < sp.passes);
+        long overall_stop = System.currentTimeMillis();
+
+        // Print some stats
+        LOG.info("[STREAM] Clustering summary");
+        LOG.info(" - Finished after {} passes.", passes);
+        LOG.info(" - Total clusters: {}", centers.size());
+        LOG.info(" - Points in last pass: {}", points);
+        LOG.info(" - Cost of last pass: {}", cost);
+        LOG.info("[=======================]");
+        LOG.info(" Overall processing time: {} ms.",
+            (overall_stop - overall_start));
+    }
+
+    /**
+     * Select the initial medoids from a uniform random sample of twice the
+     * required number of points, skipping points at the location of an
+     * already selected medoid.
+     * @param rg Random generator to use
+     */
+    private void selectInitialMedoids(Random rg) {
+        int size = 2 * numberOfClusters;
+        PointStore sample = new PointStore(size);
+        long count = 0;
+        // Draw the sample in a single pass
+        ChunkReader reader = new ChunkReader(
+                ((StreamingParameters)parameters).chunk_size);
+        while (reader.next()) {
+            PointStore chunk = reader.parse(null, null);
+            for (int p = 0; p < chunk.size(); p++) {
+                if (chunk.getId(p) == Integer.MIN_VALUE)
+                    continue;
+                // Algorithm R
+                long index = count < size ? count :
+                        (long)(rg.nextDouble() * (count + 1));
+                if (index < size)
+                    sample.set((int)index, chunk.getId(p),
+                            chunk.getLatitude(p), chunk.getLongitude(p));
+                count++;
+            }
+        }
+        reader.close();
+        // Visit the sample in a random order
+        int sampled = (int)Math.min(count, size);
+        int [] order = new int[sampled];
+        for (int i = 0; i < sampled; i++)
+            order[i] = i;
+        for (int i = sampled - 1; i > 0; i--) {
+            int j = rg.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        PointStore medoids = new PointStore(numberOfClusters);
+        KDTree<Integer> initial_kd = new KDTree<Integer>(3);
+        int selected = 0;
+        for (int i = 0; i < sampled && selected < numberOfClusters; i++) {
+            int p = order[i];
+            try {
+                // Rejects a point at the location of a medoid
+                initial_kd.insert(sample.doubleKey(p), selected);
+                medoids.set(selected++, sample.getId(p),
+                        sample.getLatitude(p), sample.getLongitude(p));
+            } catch (KeySizeException e) {
+                LOG.error("Error: {}", e.getMessage());
+            } catch (KeyDuplicateException e) {
+                // Try the next one
+            }
+        }
+        if (selected < numberOfClusters)
+            LOG.warn("Only {} distinct initial medoids found.", selected);
+        // Drop the unused entries
+        medoids.compact();
+        this.centers = medoids;
+    }
+
+    /**
+     * Build the KD-tree over the current medoids.
+     */
+    private void buildTree() {
+        kd = new KDTree<Integer>(3);
+        for (int i = 0; i < centers.size(); i++) {
+            try {
+                // Insert each medoid
+                kd.insert(centers.doubleKey(i), i);
+            } catch (KeySizeException e) {
+                LOG.error("Error: {}", e.getMessage());
+            } catch (KeyDuplicateException e) {
+                LOG.error("Error: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Offer a point to the reservoir of a cluster. After n points were
+     * offered, each of them is in the reservoir with the same probability.
+     * @param cluster The cluster of the point
+     * @param chunk The chunk holding the point
+     * @param p The index of the point in the chunk
+     * @param rg Random generator to use
+     */
+    private void sample(int cluster, PointStore chunk, int p, Random rg) {
+        int size = ((StreamingParameters)parameters).reservoir_size;
+        if (reservoirs[cluster] == null)
+            reservoirs[cluster] = new PointStore(size);
+        long index = seen[cluster] < size ? seen[cluster] :
+                (long)(rg.nextDouble() * (seen[cluster] + 1));
+        seen[cluster]++;
+        if (index < size) {
+            reservoirs[cluster].set((int)index, chunk.getId(p),
+                    chunk.getLatitude(p), chunk.getLongitude(p));
+            filled[cluster] = (int)Math.min(seen[cluster], size);
+        }
+    }
+
+    /**
+     * Update the medoids of the given clusters. The best candidate of each
+     * cluster is searched in parallel, the swaps are applied one at a time
+     * so that no two medoids end up at the same location.
+     * @param touched Flags the clusters to update
+     * @param rg Random generator to use
+     * @return the number of medoids that changed.
+     */
+    private int updateMedoids(boolean [] touched, Random rg) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> list = new ArrayList<Future<Integer>>();
+        List<Integer> updated = new ArrayList<Integer>();
+        for (int i = 0; i < touched.length; i++) {
+            if (touched[i]) {
+                list.add(executor.submit(
+                        new MedoidUpdater(i, rg.nextLong())));
+                updated.add(i);
+            }
+        }
+        int changes = 0;
+        for (int i = 0; i < list.size(); i++) {
+            try {
+                int best = list.get(i).get();
+                if (best >= 0 && swap(updated.get(i), best))
+                    changes++;
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        executor.shutdown();
+        return changes;
+    }
+
+    /**
+     * Swap the medoid of a cluster for a point of its reservoir, unless
+     * another medoid is at the location of that point. The KD-tree is kept
+     * up to date, so the swaps of the other clusters are checked against
+     * the new medoid.
+     * @param cluster The cluster
+     * @param candidate The index of the point in the reservoir of the cluster
+     * @return true if the medoid changed.
+     */
+    private boolean swap(int cluster, int candidate) {
+        PointStore reservoir = reservoirs[cluster];
+        double [] key = reservoir.doubleKey(candidate);
+        try {
+            // Take the current medoid out of the tree
+            kd.delete(centers.doubleKey(cluster));
+            // Do not move onto the location of another medoid
+            Integer other = kd.nearest(key);
+            if (other != null && PointStore.distance(reservoir.getX(candidate),
+                    reservoir.getY(candidate), reservoir.getZ(candidate),
+                    centers.getX(other), centers.getY(other),
+                    centers.getZ(other)) == 0) {
+                // Revert the swap
+                kd.insert(centers.doubleKey(cluster), cluster);
+                return false;
+            }
+            kd.insert(key, cluster);
+        } catch (KeySizeException e) {
+            LOG.error("Error: {}", e.getMessage());
+            return false;
+        } catch (KeyMissingException e) {
+            LOG.error("Error: {}", e.getMessage());
+            return false;
+        } catch (KeyDuplicateException e) {
+            LOG.error("Error: {}", e.getMessage());
+            return false;
+        }
+        centers.set(cluster, reservoir.getId(candidate),
+                reservoir.getLatitude(candidate),
+                reservoir.getLongitude(candidate));
+        return true;
+    }
+
+    /**
+     * @return the current medoids as clusters without elements.
+     */
+    private List<Cluster> clusters() {
+        List<Cluster> clusters = new ArrayList<Cluster>(centers.size());
+        for (int i = 0; i < centers.size(); i++)
+            clusters.add(new Cluster(centers, i));
+        return clusters;
+    }
+
+    /**
+     * Helper class that reads the input file one chunk of lines at a time.
+     * As in ClusteringIO, the first line of the file holds the number of
+     * lines and is skipped.
+     */
+    private class ChunkReader {
+
+        /**
+         * The input file.
+         */
+        private BufferedReader file;
+
+        /**
+         * The lines of the current chunk.
+         */
+        private String [] lines;
+
+        /**
+         * Number of lines in the current chunk.
+         */
+        private int size = 0;
+
+        /**
+         * @return the number of lines in the current chunk.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Constructor.
+         * @param chunk_size The number of lines per chunk
+         */
+        public ChunkReader(int chunk_size) {
+            this.lines = new String[chunk_size];
+            try {
+                this.file = new BufferedReader(new FileReader(inputfile));
+                // Skip the line count
+                file.readLine();
+            } catch (IOException e) {
+                LOG.error("Error loading data: {}", e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        /**
+         * Read the next chunk of non-empty lines.
+         * @return true if the chunk holds at least one line.
+         */
+        public boolean next() {
+            size = 0;
+            try {
+                String line;
+                while (size < lines.length &&
+                        (line = file.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() > 0)
+                        lines[size++] = line;
+                }
+            } catch (IOException e) {
+                LOG.error("Error loading data: {}", e.getMessage());
+                System.exit(1);
+            }
+            return size > 0;
+        }
+
+        /**
+         * Parse the lines of the current chunk in parallel, and optionally
+         * assign them to their nearest medoid.
+         * @param nearest Holds the cluster of each point on return, -1 for
+         * the lines that could not be parsed, or null to skip the assignment
+         * @param distances Holds the distance of each point to its medoid on
+         * return, or null to skip the assignment
+         * @return the points of the chunk, in the order of the lines. Lines
+         * that could not be parsed have an ID of Integer.MIN_VALUE.
+         */
+        public PointStore parse(final int [] nearest,
+                final double [] distances) {
+            final PointStore chunk = new PointStore(size);
+            final String parser_class =
+                    parameters.getLineParserClassNameForInput();
+            ExecutorService executor =
+                    Executors.newFixedThreadPool(threads);
+            List<Future<?>> list = new ArrayList<Future<?>>();
+            int length = (size + threads - 1) / threads;
+            for (int t = 0; t < threads; t++) {
+                final int begin = t * length;
+                final int end = Math.min(size, begin + length);
+                list.add(executor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // Each block has its own parser
+                        LineParserPoint parser =
+                                (LineParserPoint)Util.getParser(parser_class);
+                        for (int p = begin; p < end; p++) {
+                            Point point = parser.parse(lines[p]);
+                            if (point == null) {
+                                if (nearest != null)
+                                    nearest[p] = -1;
+                                continue;
+                            }
+                            chunk.set(p, point.getId(), point.getLatitude(),
+                                    point.getLongitude());
+                            if (nearest == null)
+                                continue;
+                            try {
+                                nearest[p] = kd.nearest(chunk.doubleKey(p));
+                                distances[p] = PointStore.distance(
+                                        chunk.getX(p), chunk.getY(p),
+                                        chunk.getZ(p),
+                                        centers.getX(nearest[p]),
+                                        centers.getY(nearest[p]),
+                                        centers.getZ(nearest[p]));
+                            } catch (KeySizeException e) {
+                                LOG.error("Error: {}", e.getMessage());
+                                nearest[p] = -1;
+                            }
+                        }
+                    }
+                }));
+            }
+            // Wait for all the blocks
+            for (Future<?> future : list) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+            executor.shutdown();
+            return chunk;
+        }
+
+        /**
+         * Close the input file.
+         */
+        public void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                LOG.error("Error closing file: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Helper class that finds the sampled candidate that minimizes the sum of
+     * the distances to the points in the reservoir of a cluster. The swap
+     * itself is left to the caller, @see swap().
+     */
+    private class MedoidUpdater implements Callable<Integer> {
+
+        /**
+         * The cluster to update.
+         */
+        private int cluster;
+
+        /**
+         * Seed for sampling the candidates.
+         */
+        private long seed;
+
+        /**
+         * Constructor.
+         * @param cluster The cluster to update
+         * @param seed Seed for sampling the candidates
+         */
+        public MedoidUpdater(int cluster, long seed) {
+            this.cluster = cluster;
+            this.seed = seed;
+        }
+
+        /**
+         * Find the best candidate for the medoid of the cluster.
+         * @return the index of the candidate in the reservoir, or -1 if no
+         * candidate improves enough on the current medoid.
+         */
+        @Override
+        public Integer call() {
+            PointStore reservoir = reservoirs[cluster];
+            int size = filled[cluster];
+            // The cost of the current medoid
+            double cost = cost(centers.getX(cluster), centers.getY(cluster),
+                    centers.getZ(cluster), Double.POSITIVE_INFINITY);
+            double best_cost = cost;
+            int best = -1;
+            // Sample the candidates from the reservoir
+            Random rg = new Random(seed);
+            int [] order = new int[size];
+            for (int i = 0; i < size; i++)
+                order[i] = i;
+            int samples = Math.min(
+                    ((StreamingParameters)parameters).swap_candidates, size);
+            for (int s = 0; s < samples; s++) {
+                int r = s + rg.nextInt(size - s);
+                int candidate = order[r];
+                order[r] = order[s];
+                order[s] = candidate;
+                double candidate_cost = cost(reservoir.getX(candidate),
+                        reservoir.getY(candidate), reservoir.getZ(candidate),
+                        best_cost);
+                if (candidate_cost < best_cost) {
+                    best = candidate;
+                    best_cost = candidate_cost;
+                }
+            }
+            if (best < 0 || (cost - best_cost) / Math.max(best_cost, 1E-9) <
+                    ((StreamingParameters)parameters).min_relative_improvement)
+                return -1;
+            return best;
+        }
+
+        /**
+         * Determine the sum of the distances of a unit vector to the points
+         * in the reservoir.
+         * @param x x-component of the unit vector
+         * @param y y-component of the unit vector
+         * @param z z-component of the unit vector
+         * @param bound The cost above which the exact cost is of no interest
+         * @return the cost, or a value larger than or equal to the bound if
+         * the summation was abandoned.
+         */
+        private double cost(double x, double y, double z, double bound) {
+            PointStore reservoir = reservoirs[cluster];
+            double sum = 0;
+            for (int i = 0; i < filled[cluster]; i++) {
+                sum += PointStore.distance(x, y, z, reservoir.getX(i),
+                        reservoir.getY(i), reservoir.getZ(i));
+                // Abandon as soon as this candidate can no longer improve
+                if (sum >= bound)
+                    return sum;
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package be.ugent.intec.ibcn.geo.clustering;
+
+/**
+ * This class extends the default clustering parameters with some parameters
+ * that are typical for the streaming k-medoids clustering algorithm.
+ *
+ * @see StreamingClustering
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class StreamingParameters extends ClusteringParameters {
+
+    /**
+     * Number of lines of the input file that are read and assigned at once.
+     */
+    protected int chunk_size = 100000;
+
+    /**
+     * Set the number of lines of the input file that are read and assigned
+     * at once.
+     * @param chunk_size the number of lines per chunk
+     */
+    public void setChunk_size(int chunk_size) {
+        this.chunk_size = chunk_size;
+    }
+
+    /**
+     * Maximum number of points sampled per cluster during a pass. The new
+     * medoid of a cluster is chosen from these points.
+     */
+    protected int reservoir_size = 512;
+
+    /**
+     * Set the maximum number of points sampled per cluster during a pass.
+     * @param reservoir_size the maximum number of points per cluster
+     */
+    public void setReservoir_size(int reservoir_size) {
+        this.reservoir_size = reservoir_size;
+    }
+
+    /**
+     * Number of sampled points that are evaluated as the new medoid of a
+     * cluster after each chunk.
+     */
+    protected int swap_candidates = 32;
+
+    /**
+     * Set the number of sampled points that are evaluated as the new medoid
+     * of a cluster after each chunk.
+     * @param swap_candidates the number of candidates per cluster
+     */
+    public void setSwap_candidates(int swap_candidates) {
+        this.swap_candidates = swap_candidates;
+    }
+
+    /**
+     * Max number of passes over the input file, not counting the initial
+     * pass that selects the initial medoids.
+     */
+    protected int passes = 3;
+
+    /**
+     * Set the max number of passes over the input file.
+     * @param passes the max number of passes
+     */
+    public void setPasses(int passes) {
+        this.passes = passes;
+    }
+
+    /**
+     * Minimal relative improvement of the cost of the sampled points of a
+     * cluster to swap its medoid. This value is by default set to 0.001
+     * (0.1%).
+     */
+    protected double min_relative_improvement = 0.001;
+
+    /**
+     * Set the minimal relative improvement of the cost of the sampled points
+     * of a cluster to swap its medoid.
+     * @param min_relative_improvement the minimal relative improvement
+     */
+    public void setMin_relative_improvement(double min_relative_improvement) {
+        this.min_relative_improvement = min_relative_improvement;
+    }
+}
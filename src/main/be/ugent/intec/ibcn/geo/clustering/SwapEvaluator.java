@@ -0,0 +1,115 @@
+package be.ugent.intec.ibcn.geo.clustering;
+
+import be.ugent.intec.ibcn.geo.clustering.datatypes.Cluster;
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
+
+/**
+ * This class evaluates the cost of swapping the center of a Cluster for one of
+ * its elements, without modifying the Cluster.
+ *
+ * Swapping the center for a candidate element makes the old center an element
+ * of the Cluster, so the cost of the new configuration is the sum of the
+ * distances of the candidate to all the members of the Cluster: the elements
+ * and the current center. The unit vectors of the members are gathered from
+ * the PointStore into contiguous arrays, and the great circle distance between
+ * two members follows from the cross and dot product of their vectors.
+ *
+ * As the cost only needs to be known if it improves on the best configuration
+ * so far, the summation of a candidate is abandoned as soon as the partial sum
+ * exceeds a given bound.
+ *
+ * The evaluator is read-only once it is created, so it can be shared by
+ * multiple threads evaluating different candidates.
+ *
+ * @see PointStore#distance(int, int)
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class SwapEvaluator {
+
+    /**
+     * Indices of the elements of the Cluster, the candidates for the center.
+     */
+    private int [] elements;
+
+    /**
+     * x-component of the unit vector of each member, the current center last.
+     */
+    private double [] x;
+
+    /**
+     * y-component of the unit vector of each member, the current center last.
+     */
+    private double [] y;
+
+    /**
+     * z-component of the unit vector of each member, the current center last.
+     */
+    private double [] z;
+
+    /**
+     * Constructor.
+     * @param cluster The Cluster. Candidates are referred to by their
+     * position in the elements of the Cluster.
+     */
+    public SwapEvaluator(Cluster cluster) {
+        PointStore store = cluster.getStore();
+        this.elements = cluster.getElements();
+        int n = elements.length;
+        this.x = new double[n + 1];
+        this.y = new double[n + 1];
+        this.z = new double[n + 1];
+        // Gather the unit vector of each member
+        for (int i = 0; i <= n; i++) {
+            int p = i < n ? elements[i] : cluster.getCenter();
+            x[i] = store.getX(p);
+            y[i] = store.getY(p);
+            z[i] = store.getZ(p);
+        }
+    }
+
+    /**
+     * @return the number of candidates, i.e. the number of elements.
+     */
+    public int size() {
+        return elements.length;
+    }
+
+    /**
+     * @param candidate Position of a candidate
+     * @return the index of the candidate in the PointStore.
+     */
+    public int getElement(int candidate) {
+        return elements[candidate];
+    }
+
+    /**
+     * @return the cost of the current configuration, i.e. the sum of the
+     * distances of the current center to the elements.
+     */
+    public double getCost() {
+        return cost(elements.length, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Determine the cost of the Cluster if a candidate would become the
+     * center.
+     * @param candidate Position of the candidate
+     * @param bound The cost above which the exact cost is of no interest
+     * @return the cost of the Cluster with the candidate as its center, or a
+     * value larger than or equal to the bound if the summation was abandoned.
+     */
+    public double cost(int candidate, double bound) {
+        double cx = x[candidate];
+        double cy = y[candidate];
+        double cz = z[candidate];
+        double sum = 0;
+        for (int i = 0; i < x.length; i++) {
+            sum += PointStore.distance(cx, cy, cz, x[i], y[i], z[i]);
+            // Abandon as soon as this candidate can no longer improve
+            if (sum >= bound)
+                return sum;
+        }
+        return sum;
+    }
+}
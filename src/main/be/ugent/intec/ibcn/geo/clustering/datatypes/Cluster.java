@@ -1,93 +1,134 @@
 package be.ugent.intec.ibcn.geo.clustering.datatypes;
 
-import be.ugent.intec.ibcn.geo.common.datatypes.Point;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
 
 /**
  * This class represents a cluster created by the Clustering algorithm.
  *
- * A Cluster has a specific Point as its center, and a Set of Points as
- * the elements that belong to this cluster.
- * 
+ * A Cluster has a specific point as its center, and a number of points as
+ * the elements that belong to this cluster. Points are referred to by their
+ * index in the PointStore that holds the input data of the clustering.
+ *
+ * @see PointStore
+ *
  * @author Olivier Van Laere <oliviervanlaere@gmail.com>
  */
 public class Cluster {
 
     /**
-     * Set of Points that represents the Points that belong to this cluster.
+     * Reference to the store holding the points.
+     */
+    protected PointStore store;
+
+    /**
+     * @return the store holding the points of this Cluster.
      */
-    protected Set<Point> elements = new HashSet<Point>();
+    public PointStore getStore() {
+        return this.store;
+    }
+
+    /**
+     * Indices of the points that belong to this cluster.
+     */
+    protected int [] elements = new int[4];
+
+    /**
+     * Number of points that belong to this cluster.
+     */
+    protected int size = 0;
 
     /**
      * Clear the elements that belong to this cluster.
      */
     public void clearElements() {
-        this.elements.clear();
+        this.size = 0;
+    }
+
+    /**
+     * @return the indices of the points that belong to this Cluster.
+     */
+    public int [] getElements() {
+        return Arrays.copyOf(elements, size);
     }
 
     /**
-     * @return the Set of Points that belong to this Cluster.
+     * @param i Position of an element in this Cluster
+     * @return the index of the point at the given position.
      */
-    public Set<Point> getElements() {
-        return this.elements;
+    public int getElement(int i) {
+        return elements[i];
     }
 
     /**
-     * Synchronized method that adds a Point to the Cluster.
-     * @param p Point to be added to the Cluster
-     * @return true if the element was added to the Cluster
+     * Synchronized method that adds a point to the Cluster.
+     * @param p Index of the point to be added to the Cluster
      */
-    public synchronized boolean addElement(Point p) {
-        return elements.add(p);
+    public synchronized void addElement(int p) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = p;
     }
 
-    public synchronized boolean addAllElements(Collection<Point> c) {
-        return elements.addAll(c);
+    /**
+     * Synchronized method that adds a number of points to the Cluster.
+     * @param c Indices of the points to be added to the Cluster
+     * @param count Number of points to add
+     */
+    public synchronized void addAllElements(int [] c, int count) {
+        if (size + count > elements.length)
+            elements = Arrays.copyOf(elements,
+                    Math.max(size + count, elements.length * 2));
+        System.arraycopy(c, 0, elements, size, count);
+        size += count;
     }
 
     /**
-     * Synchronized method that removes a Point from the Cluster.
-     * @param p Point to be removed to the Cluster
+     * Synchronized method that removes a point from the Cluster.
+     * @param p Index of the point to be removed from the Cluster
      * @return true if the element was removed from the Cluster
      */
-    public synchronized boolean removeElement(Point p) {
-        return elements.remove(p);
+    public synchronized boolean removeElement(int p) {
+        for (int i = 0; i < size; i++) {
+            if (elements[i] == p) {
+                elements[i] = elements[--size];
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * @return The size of the Cluster elements
      */
     public int size() {
-        return elements.size();
+        return size;
     }
 
     /**
-     * Reference to the Point center of this Cluster.
+     * Index of the center point of this Cluster.
      */
-    protected Point center;
+    protected int center;
 
     /**
-     * @return the center Point of this Cluster
+     * @return the index of the center point of this Cluster
      */
-    public Point getCenter() {
+    public int getCenter() {
         return center;
     }
 
     /**
-     * Set the center Point of this Cluster
-     * @param center a Point that will become the new Cluster center
+     * Set the center point of this Cluster
+     * @param center index of a point that will become the new Cluster center
      */
-    public void setCenter(Point center) {
+    public void setCenter(int center) {
         this.center = center;
     }
 
     /**
      * Reference to the original Cluster center, in case a cluster improvement
-     * needs to be undone.
+     * needs to be undone. -1 if there is none.
      */
-    protected Point center_original = null;
+    protected int center_original = -1;
 
     /**
      * Keep track of the Cluster cost, as calculated by the latest call to the
@@ -101,12 +142,14 @@ public class Cluster {
     public double getCost() {
         return this.cost;
     }
-    
+
     /**
      * Constructor.
-     * @param center The initial Cluster center
+     * @param store The store holding the points
+     * @param center Index of the initial Cluster center
      */
-    public Cluster(Point center) {
+    public Cluster(PointStore store, int center) {
+        this.store = store;
         this.center = center;
     }
 
@@ -115,7 +158,9 @@ public class Cluster {
      * @param other another Cluster on which this copy is based.
      */
     public Cluster(Cluster other){
-        this.elements = new HashSet<Point>(other.elements);
+        this.store = other.store;
+        this.elements = other.getElements();
+        this.size = other.size;
         this.center = other.center;
         this.center_original = other.center_original;
         this.cost = other.cost;
@@ -128,23 +173,22 @@ public class Cluster {
      */
     public double calculateCost() {
         double sum = 0;
-        for (Point p : elements)
-            sum += center.distance(p);
+        for (int i = 0; i < size; i++)
+            sum += store.distance(center, elements[i]);
         this.cost = sum;
         return cost;
     }
 
     /**
-     * Swap the current Cluster center for a new Point. This method will
+     * Swap the current Cluster center for a new point. This method will
      * store the original center and automatically invoke a new calculation
      * of the Cluster cost.
-     * @param p The Point that should become the new Cluster center.
+     * @param p Index of the point that should become the new Cluster center.
      */
-    public void swapCenter(Point p) {
+    public void swapCenter(int p) {
         this.center_original = center;
         this.center = p;
-        removeElement(p);
-        addElement(center_original);
+        replaceElement(p, center_original);
         calculateCost();
     }
 
@@ -153,20 +197,35 @@ public class Cluster {
      * Cluster center.
      */
     public void undoCenterSwap() {
-        if (center_original != null) {
-            Point p = this.center;
+        if (center_original >= 0) {
+            int p = this.center;
             this.center = center_original;
-            removeElement(center_original);
-            addElement(p);
-            center_original = null;
+            replaceElement(center_original, p);
+            center_original = -1;
         }
     }
 
+    /**
+     * Replace an element of this Cluster by another point, in place.
+     * @param p Index of the point to replace
+     * @param q Index of the point to replace it with
+     */
+    private synchronized void replaceElement(int p, int q) {
+        for (int i = 0; i < size; i++) {
+            if (elements[i] == p) {
+                elements[i] = q;
+                return;
+            }
+        }
+        // p was not an element, so just add q
+        addElement(q);
+    }
+
     /**
      * Clear some variables that make it possible to undo a center swap.
      */
     public void clearUndoSwap() {
-        this.center_original = null;
+        this.center_original = -1;
     }
 
     /**
@@ -174,8 +233,6 @@ public class Cluster {
      * @param obj
      * @return true if the center of the two clusters are equal (which means
      * equal ID)
-     * 
-     * @see Point
      */
     @Override
     public boolean equals(Object obj) {
@@ -186,11 +243,7 @@ public class Cluster {
             return false;
         }
         final Cluster other = (Cluster) obj;
-        if (this.center != other.center && (this.center == null || 
-                !this.center.equals(other.center))) {
-            return false;
-        }
-        return true;
+        return store.getId(center) == other.store.getId(other.center);
     }
 
     /**
@@ -200,28 +253,28 @@ public class Cluster {
     @Override
     public int hashCode() {
         int hash = 3;
-        hash = 79 * hash + (this.center != null ? this.center.hashCode() : 0);
+        hash = 79 * hash + store.getId(center);
         return hash;
     }
 
     /**
-     * @return A String representation of this cluster, with some added 
+     * @return A String representation of this cluster, with some added
      * statistics.
      */
     public String clustering() {
         StringBuilder result = new StringBuilder();
         result.append("[Cluster] Center: ");
-        result.append(center);
+        result.append(store.getPoint(center));
         result.append("\n");
         result.append("[Cluster] Size: ");
-        result.append(elements.size());
+        result.append(size);
         result.append("\n");
         result.append("[Cluster] Cost: ");
         result.append(cost);
         result.append("\n");
-        for (Point p : elements) {
+        for (int i = 0; i < size; i++) {
             result.append(" - ");
-            result.append(p);
+            result.append(store.getPoint(elements[i]));
             result.append("\n");
         }
         return result.toString();
@@ -233,28 +286,30 @@ public class Cluster {
     @Override
     public String toString() {
         StringBuilder result = new StringBuilder();
+        int center_id = store.getId(center);
         // ID, lat, lon of center element
-        result.append(center.getId());
+        result.append(center_id);
         result.append(",");
-        result.append(center.getLatitude());
+        result.append(store.getLatitude(center));
         result.append(",");
-        result.append(center.getLongitude());
+        result.append(store.getLongitude(center));
         result.append("\n");
         // Of all other elements
-        for (Point p : elements) {
+        for (int i = 0; i < size; i++) {
+            int p = elements[i];
             // That are not the center
-            if (p.getId() != center.getId()) {
+            if (store.getId(p) != center_id) {
                 // ID of center, ID, lat, lon of element
-                result.append(center.getId());
+                result.append(center_id);
                 result.append(",");
-                result.append(p.getId());
+                result.append(store.getId(p));
                 result.append(",");
-                result.append(p.getLatitude());
+                result.append(store.getLatitude(p));
                 result.append(",");
-                result.append(p.getLongitude());
+                result.append(store.getLongitude(p));
                 result.append("\n");
             }
         }
         return result.toString();
-    }    
-}
\ No newline at end of file
+    }
+}
@@ -0,0 +1,241 @@
+package be.ugent.intec.ibcn.geo.clustering.datatypes;
+
+import java.util.Arrays;
+
+import be.ugent.intec.ibcn.geo.common.datatypes.Point;
+
+/**
+ * This class stores the input data of the clustering algorithms as parallel
+ * primitive arrays, instead of an array of Point objects.
+ *
+ * For each point, the store holds its ID, its latitude and longitude and its
+ * position on the unit sphere as a 3D unit vector. The unit vectors are
+ * computed once when the point is stored, so distances between points can be
+ * computed without converting latitudes and longitudes over and over again,
+ * and they serve as the keys for the nearest neighbour search in a KD-tree.
+ *
+ * Points are referred to by their index in the store. Clusters only hold the
+ * indices of their center and elements, so they take a fraction of the memory
+ * of a Set of Point objects.
+ *
+ * @see Cluster
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class PointStore {
+
+    /**
+     * Number of points in the store.
+     */
+    private int size;
+
+    /**
+     * ID of each point.
+     */
+    private int [] ids;
+
+    /**
+     * Latitude of each point.
+     */
+    private double [] latitudes;
+
+    /**
+     * Longitude of each point.
+     */
+    private double [] longitudes;
+
+    /**
+     * x-component of the unit vector of each point.
+     */
+    private double [] x;
+
+    /**
+     * y-component of the unit vector of each point.
+     */
+    private double [] y;
+
+    /**
+     * z-component of the unit vector of each point.
+     */
+    private double [] z;
+
+    /**
+     * Constructor.
+     * @param capacity The maximum number of points in the store
+     */
+    public PointStore(int capacity) {
+        this.size = capacity;
+        this.ids = new int[capacity];
+        this.latitudes = new double[capacity];
+        this.longitudes = new double[capacity];
+        this.x = new double[capacity];
+        this.y = new double[capacity];
+        this.z = new double[capacity];
+        // Mark all the entries as not set
+        Arrays.fill(ids, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Create a store for an array of Points. Null values are skipped.
+     * @param data The Points to store
+     * @return a store holding the non-null Points, in the same order.
+     */
+    public static PointStore create(Point [] data) {
+        PointStore store = new PointStore(data.length);
+        for (int i = 0; i < data.length; i++)
+            if (data[i] != null)
+                store.set(i, data[i].getId(), data[i].getLatitude(),
+                        data[i].getLongitude());
+        store.compact();
+        return store;
+    }
+
+    /**
+     * Store a point at a given index. Different indices can be set
+     * concurrently.
+     * @param index The index of the point
+     * @param id The ID of the point
+     * @param latitude The latitude of the point
+     * @param longitude The longitude of the point
+     */
+    public void set(int index, int id, double latitude, double longitude) {
+        ids[index] = id;
+        latitudes[index] = latitude;
+        longitudes[index] = longitude;
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        x[index] = Math.cos(lat) * Math.cos(lon);
+        y[index] = Math.cos(lat) * Math.sin(lon);
+        z[index] = Math.sin(lat);
+    }
+
+    /**
+     * Remove the entries that were not set, keeping the order of the others.
+     */
+    public void compact() {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == Integer.MIN_VALUE)
+                continue;
+            ids[n] = ids[i];
+            latitudes[n] = latitudes[i];
+            longitudes[n] = longitudes[i];
+            x[n] = x[i];
+            y[n] = y[i];
+            z[n] = z[i];
+            n++;
+        }
+        if (n < size) {
+            this.size = n;
+            this.ids = Arrays.copyOf(ids, n);
+            this.latitudes = Arrays.copyOf(latitudes, n);
+            this.longitudes = Arrays.copyOf(longitudes, n);
+            this.x = Arrays.copyOf(x, n);
+            this.y = Arrays.copyOf(y, n);
+            this.z = Arrays.copyOf(z, n);
+        }
+    }
+
+    /**
+     * @return the number of points in the store.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @param index The index of a point
+     * @return the ID of the point.
+     */
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @param index The index of a point
+     * @return the latitude of the point.
+     */
+    public double getLatitude(int index) {
+        return latitudes[index];
+    }
+
+    /**
+     * @param index The index of a point
+     * @return the longitude of the point.
+     */
+    public double getLongitude(int index) {
+        return longitudes[index];
+    }
+
+    /**
+     * @param index The index of a point
+     * @return the x-component of the unit vector of the point.
+     */
+    public double getX(int index) {
+        return x[index];
+    }
+
+    /**
+     * @param index The index of a point
+     * @return the y-component of the unit vector of the point.
+     */
+    public double getY(int index) {
+        return y[index];
+    }
+
+    /**
+     * @param index The index of a point
+     * @return the z-component of the unit vector of the point.
+     */
+    public double getZ(int index) {
+        return z[index];
+    }
+
+    /**
+     * @param index The index of a point
+     * @return the unit vector of the point, as a key for a KD-tree.
+     */
+    public double [] doubleKey(int index) {
+        return new double []{x[index], y[index], z[index]};
+    }
+
+    /**
+     * @param index The index of a point
+     * @return the point as a Point object.
+     */
+    public Point getPoint(int index) {
+        return new Point(ids[index], latitudes[index], longitudes[index]);
+    }
+
+    /**
+     * Calculates the circle distance between two points.
+     * @param i The index of a point
+     * @param j The index of another point
+     * @return The distance in kilometers between the two points.
+     * @see Point#distanceCircle(Point)
+     */
+    public double distance(int i, int j) {
+        return distance(x[i], y[i], z[i], x[j], y[j], z[j]);
+    }
+
+    /**
+     * Calculates the circle distance between two unit vectors, from their
+     * cross and dot product.
+     * @param ax x-component of the first unit vector
+     * @param ay y-component of the first unit vector
+     * @param az z-component of the first unit vector
+     * @param bx x-component of the second unit vector
+     * @param by y-component of the second unit vector
+     * @param bz z-component of the second unit vector
+     * @return The distance in kilometers between the two unit vectors.
+     */
+    public static double distance(double ax, double ay, double az,
+            double bx, double by, double bz) {
+        double vx = ay * bz - az * by;
+        double vy = az * bx - ax * bz;
+        double vz = ax * by - ay * bx;
+        double dot = ax * bx + ay * by + az * bz;
+        return Math.atan2(Math.sqrt(vx * vx + vy * vy + vz * vz), dot) *
+                Point.EARTH_R;
+    }
+}
@@ -0,0 +1,81 @@
+package be.ugent.intec.ibcn.geo.common.datatypes;
+
+/**
+ * This class represents an extension of a regular DataItem, of which the
+ * features are dictionary encoded. The features are stored as a sorted array
+ * of distinct integer IDs, which allows features sets to be compared without
+ * hashing or boxing.
+ *
+ * Features that are unknown to the dictionary used for encoding have no ID,
+ * but they are still counted in the number of distinct features of the item.
+ *
+ * Also
+ * @see DataItem
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class EncodedDataItem extends DataItem {
+
+    /**
+     * Sorted array of the distinct feature IDs of this DataItem.
+     */
+    private int [] features;
+
+    /**
+     * @return the sorted array of the distinct feature IDs of this DataItem.
+     */
+    public int[] getFeatures() {
+        return this.features;
+    }
+
+    /**
+     * Number of distinct features of this DataItem, including the features
+     * without ID.
+     */
+    private int featureCount;
+
+    /**
+     * @return the number of distinct features of this DataItem, including the
+     * features that are unknown to the dictionary.
+     */
+    public int getFeatureCount() {
+        return this.featureCount;
+    }
+
+    /**
+     * Norm of the weight vector of this DataItem, 0 if unknown.
+     */
+    private double norm = 0;
+
+    /**
+     * @return the norm of the weight vector of this DataItem, 0 if unknown.
+     */
+    public double getNorm() {
+        return this.norm;
+    }
+
+    /**
+     * Set the norm of the weight vector of this DataItem.
+     * @param norm The norm
+     */
+    public void setNorm(double norm) {
+        this.norm = norm;
+    }
+
+    /**
+     * Constructor.
+     * @param id Id of the DataItem
+     * @param lat Latitude
+     * @param lon Longitude
+     * @param data Data to associate with this DataItem, can be null if the
+     * original features are no longer needed.
+     * @param features Sorted array of the distinct feature IDs
+     * @param featureCount Number of distinct features
+     */
+    public EncodedDataItem(int id, double lat, double lon, Object[] data,
+            int [] features, int featureCount) {
+        super(id, lat, lon, data);
+        this.features = features;
+        this.featureCount = featureCount;
+    }
+}
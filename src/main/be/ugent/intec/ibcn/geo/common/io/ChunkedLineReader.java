@@ -0,0 +1,205 @@
+package be.ugent.intec.ibcn.geo.common.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * Line reader that only reads the lines of a given byte range of a file.
+ *
+ * This allows a large input file to be split into a number of byte ranges
+ * (chunks) that can be read in parallel by different threads, each with their
+ * own file handle, instead of sharing a single (synchronized) reader.
+ *
+ * A chunk [start, end) owns every line of which the first byte falls within
+ * the range. When a chunk does not start at the beginning of a line, the
+ * partial line is skipped, as it is owned by the previous chunk. This way, the
+ * byte boundaries of the chunks do not need to be aligned on newlines, and the
+ * chunks together cover every line of the file exactly once.
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class ChunkedLineReader {
+
+    /**
+     * Size of the read buffer, in bytes.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The underlying file.
+     */
+    private RandomAccessFile file;
+
+    /**
+     * Charset used to decode the lines.
+     */
+    private Charset charset;
+
+    /**
+     * Read buffer.
+     */
+    private byte [] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Current read position in the buffer.
+     */
+    private int bufferPos = 0;
+
+    /**
+     * Number of valid bytes in the buffer.
+     */
+    private int bufferLen = 0;
+
+    /**
+     * Buffer holding the bytes of the line that is being read.
+     */
+    private byte [] line = new byte[256];
+
+    /**
+     * Byte position in the file of the next byte to read.
+     */
+    private long position;
+
+    /**
+     * @return the byte position in the file of the next line to read.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * End of the byte range (exclusive) for the lines to read.
+     */
+    private long end;
+
+    /**
+     * Constructor.
+     * @param filename Filename of the input file
+     * @param start Start of the byte range (inclusive)
+     * @param end End of the byte range (exclusive)
+     * @throws IOException
+     */
+    public ChunkedLineReader(String filename, long start, long end)
+            throws IOException {
+        this.file = new RandomAccessFile(filename, "r");
+        this.charset = Charset.defaultCharset();
+        this.end = end;
+        if (start > 0) {
+            // Position on the byte before the range and skip the remainder
+            // of the line that started before this chunk (if any)
+            this.file.seek(start - 1);
+            this.position = start - 1;
+            int b = read();
+            while (b != -1 && b != '\n')
+                b = read();
+        }
+        else
+            this.position = 0;
+    }
+
+    /**
+     * Read the next byte from the buffer, refilling it if necessary.
+     * @return the next byte or -1 at the end of the file
+     * @throws IOException
+     */
+    private int read() throws IOException {
+        if (bufferPos == bufferLen) {
+            bufferLen = file.read(buffer, 0, BUFFER_SIZE);
+            bufferPos = 0;
+            if (bufferLen <= 0) {
+                bufferLen = 0;
+                return -1;
+            }
+        }
+        position++;
+        return buffer[bufferPos++] & 0xff;
+    }
+
+    /**
+     * Read the next line of this chunk.
+     * @return The next line, without line terminator, or null if there are no
+     * more lines starting in this chunk.
+     * @throws IOException
+     */
+    public String readLine() throws IOException {
+        // Lines starting at or beyond the end belong to the next chunk
+        if (position >= end)
+            return null;
+        int length = 0;
+        int b = read();
+        if (b == -1)
+            return null;
+        while (b != -1 && b != '\n') {
+            if (length == line.length) {
+                byte [] larger = new byte[line.length * 2];
+                System.arraycopy(line, 0, larger, 0, length);
+                line = larger;
+            }
+            line[length++] = (byte)b;
+            b = read();
+        }
+        // Strip a trailing carriage return
+        if (length > 0 && line[length - 1] == '\r')
+            length--;
+        return new String(line, 0, length, charset);
+    }
+
+    /**
+     * Close the underlying file.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Split a file into a number of byte ranges of (roughly) equal size.
+     * @param filename Filename of the file to split
+     * @param chunks The number of chunks to create
+     * @return An array of chunks + 1 boundaries, where chunk i is the range
+     * [boundaries[i], boundaries[i+1]).
+     */
+    public static long[] split(String filename, int chunks) {
+        return split(new File(filename).length(), chunks);
+    }
+
+    /**
+     * Split a byte range [0, length) into a number of byte ranges of (roughly)
+     * equal size.
+     * @param length The length of the range to split
+     * @param chunks The number of chunks to create
+     * @return An array of chunks + 1 boundaries, where chunk i is the range
+     * [boundaries[i], boundaries[i+1]).
+     */
+    public static long[] split(long length, int chunks) {
+        long [] boundaries = new long[chunks + 1];
+        for (int i = 0; i <= chunks; i++)
+            boundaries[i] = (length * i) / chunks;
+        return boundaries;
+    }
+
+    /**
+     * Find the byte offset at which a given line starts.
+     * @param filename Filename of the input file
+     * @param lineNumber The (0-based) number of the line
+     * @return The byte offset of the start of the line, or the file length if
+     * the file has fewer lines.
+     * @throws IOException
+     */
+    public static long getOffsetOfLine(String filename, int lineNumber)
+            throws IOException {
+        ChunkedLineReader reader = new ChunkedLineReader(filename, 0,
+                Long.MAX_VALUE);
+        try {
+            int counter = 0;
+            while (counter < lineNumber && reader.readLine() != null)
+                counter++;
+            return reader.getPosition();
+        }
+        finally {
+            reader.close();
+        }
+    }
+}
@@ -15,6 +15,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import be.ugent.intec.ibcn.geo.clustering.datatypes.Cluster;
+import be.ugent.intec.ibcn.geo.clustering.datatypes.PointStore;
 import be.ugent.intec.ibcn.geo.common.Util;
 import be.ugent.intec.ibcn.geo.common.datatypes.Point;
 import be.ugent.intec.ibcn.geo.common.io.parsers.LineParserPoint;
@@ -29,10 +30,12 @@ import be.ugent.intec.ibcn.geo.common.io.parsers.LineParserPoint;
  * parse error), the number of lines in the file are counted (for large files, 
  * this may introduce a significant delay!).
  * 
- * The current IO for clustering, loads all the training items as Point objects
- * INTO AN ARRAY, so this component might be a bottleneck if you try to cluster
- * tens of millions training items. Be sure to set your -Xms and -Xmx memory 
- * sizes to appropriate values.
+ * The current IO for clustering, loads all the training items INTO MEMORY, so
+ * this component might be a bottleneck if you try to cluster tens of millions 
+ * training items. Be sure to set your -Xms and -Xmx memory sizes to 
+ * appropriate values. Loading the items into a PointStore, which keeps them in
+ * primitive arrays, takes considerably less memory than an array of Point 
+ * objects.
  * 
  * Also, the current IO loading divides the training data into a number of 
  * blocks. Due to this, the last thread, reads the input file and skips N-1 
@@ -113,7 +116,6 @@ public class ClusteringIO {
      */
     public Point[] loadDataFromFile(String filename, String lineparser, 
             int limit) {
-        LOG.info("=| Parser: {}", lineparser);
         // Fetch the number of lines to process
         int lines = FileIO.getNumberOfLines(filename);
         // Determine the number of lines to process in case a limit was set
@@ -121,6 +123,59 @@ public class ClusteringIO {
             lines = limit;
         // Prepare the array with the results
         Point[] data = new Point[lines];
+        loadData(filename, lineparser, limit, data, null);
+        return data;
+    }
+
+    /**
+     * Load all the data from file into a PointStore.
+     * @param filename File to read the data from
+     * @param lineparser Classname of the lineparser implementation to use
+     * @return a PointStore
+     */
+    public PointStore loadPointStoreFromFile(String filename, 
+            String lineparser) {
+        return loadPointStoreFromFile(filename, lineparser, -1);
+    }
+
+    /**
+     * Load data from file into a PointStore. The parsed Points are not kept, 
+     * only their ID, location and unit vector are stored.
+     * @param filename File to read the data from
+     * @param lineparser Classname of the lineparser implementation to use
+     * @param limit -1 means all lines, a value >= 0 means a limit on the lines 
+     * to process
+     * @return a PointStore, holding the items in the order of the file
+     */
+    public PointStore loadPointStoreFromFile(String filename, 
+            String lineparser, int limit) {
+        // Fetch the number of lines to process
+        int lines = FileIO.getNumberOfLines(filename);
+        // Determine the number of lines to process in case a limit was set
+        if (limit > 0 && limit < lines)
+            lines = limit;
+        // Prepare the store with the results
+        PointStore store = new PointStore(lines);
+        loadData(filename, lineparser, limit, null, store);
+        // Remove the lines that could not be parsed
+        store.compact();
+        return store;
+    }
+
+    /**
+     * Load data from file into either an array or a PointStore.
+     * @param filename File to read the data from
+     * @param lineparser Classname of the lineparser implementation to use
+     * @param limit -1 means all lines, a value >= 0 means a limit on the lines 
+     * to process
+     * @param data Array to load the data in, or null
+     * @param store PointStore to load the data in, or null
+     */
+    private void loadData(String filename, String lineparser, int limit,
+            Point [] data, PointStore store) {
+        LOG.info("=| Parser: {}", lineparser);
+        // Determine the number of lines to process
+        int lines = data != null ? data.length : store.size();
         // Print out the number of lines the code is going to read, and if this
         // is limited by a threshold, print this as well, to enable verification
         LOG.info("Loading {} data items..." + (lines == limit ? " ++ LIMITED BY VARIABLE ++" : ""),
@@ -133,7 +188,7 @@ public class ClusteringIO {
         // Create a list of DataLoaderHelper
         List<DataLoaderHelper> helpers = new ArrayList<DataLoaderHelper>();
         // Determine the block length for each thread to process
-        int length = (int) (data.length * 1.0 / NR_THREADS);
+        int length = (int) (lines * 1.0 / NR_THREADS);
         for (int i = 0; i < NR_THREADS; i++) {
             // +1 because of the initial line containing the line count of the 
             // file
@@ -141,14 +196,14 @@ public class ClusteringIO {
             // If this is the last thread
             if (i == NR_THREADS - 1) {
                 // The block length can be determined otherwise
-                length = data.length - (i * length);
+                length = lines - (i * length);
             }
             // Determine end value
             int end = begin + length;
             // Init the helper thread with a reference to the data, begin, end, 
             // filename and parser
-            DataLoaderHelper helper = new DataLoaderHelper(data, begin, end, 
-                    filename, lineparser);
+            DataLoaderHelper helper = new DataLoaderHelper(data, store, begin,
+                    end, filename, lineparser);
             // submit the helper
             executor.submit(helper);
             // track the helper instance
@@ -173,17 +228,21 @@ public class ClusteringIO {
         
         int counter = 0;
         // Check some stats for sanity purposes
-        for (Point item : data) {
-            if (item != null) {
-                counter++;
+        if (data != null) {
+            for (Point item : data) {
+                if (item != null) {
+                    counter++;
+                }
             }
         }
+        else {
+            for (DataLoaderHelper helper : helpers)
+                counter += helper.getLoaded();
+        }
         LOG.info("Loading complete. Non-null items: {} ( {} ms.)",
         		counter, (stop - start));
         LOG.info("+ Parser processed: {}", parser_processed);
         LOG.info("+ Parser errors   : {}", parser_errors);
-        
-        return data;
     }
 
     /**
@@ -192,10 +251,27 @@ public class ClusteringIO {
     private class DataLoaderHelper implements Runnable{
 
         /**
-         * Reference to the array that keeps the loaded data. 
+         * Reference to the array that keeps the loaded data, or null. 
          */
         private Point [] data;
 
+        /**
+         * Reference to the PointStore that keeps the loaded data, or null.
+         */
+        private PointStore store;
+
+        /**
+         * Number of items stored in the PointStore.
+         */
+        private int loaded = 0;
+
+        /**
+         * @return the number of items stored in the PointStore.
+         */
+        public int getLoaded() {
+            return this.loaded;
+        }
+
         /**
          * Index to start processing the input data.
          */
@@ -232,16 +308,20 @@ public class ClusteringIO {
 
         /**
          * Constructor.
-         * @param data Reference to the array that needs to contain the results
+         * @param data Reference to the array that needs to contain the 
+         * results, or null
+         * @param store Reference to the PointStore that needs to contain the
+         * results, or null
          * @param begin Start index
          * @param end End index
          * @param filename Filename to process
          * @param lineparserpoint class name of the LineParserPoint 
          * implementation to use
          */
-        public DataLoaderHelper(Point [] data, int begin, int end, 
-                String filename, String lineparserpoint) {
+        public DataLoaderHelper(Point [] data, PointStore store, int begin, 
+                int end, String filename, String lineparserpoint) {
             this.data = data;
+            this.store = store;
             this.begin = begin;
             this.end = end;
             this.filename = filename;
@@ -275,9 +355,17 @@ public class ClusteringIO {
                     // Trim the line, just to be sure
                     line = line.trim();
                     // If something remains
-                    if (line.length() > 0)
+                    if (line.length() > 0) {
                         // parse the line and store the result
-                        data[index-1] = parser.parse(line);
+                        Point p = parser.parse(line);
+                        if (data != null)
+                            data[index-1] = p;
+                        else if (p != null) {
+                            store.set(index-1, p.getId(), p.getLatitude(), 
+                                    p.getLongitude());
+                            loaded++;
+                        }
+                    }
                     ++counter;
                     // If we need to report progress
                     if ((counter - begin) % REPORT_SIZE == 0)
@@ -324,9 +412,11 @@ public class ClusteringIO {
                 }
                 else {
                     // Write the center data to file
-                    Point center = c.getCenter();
-                    file.println(center.getId() + "," + center.getLatitude() + 
-                            "," + center.getLongitude());
+                    PointStore store = c.getStore();
+                    int center = c.getCenter();
+                    file.println(store.getId(center) + "," + 
+                            store.getLatitude(center) + "," + 
+                            store.getLongitude(center));
                 }
             }
             file.close();
@@ -365,9 +455,11 @@ public class ClusteringIO {
                 }
                 else {
                     // Write the center data to file
-                    Point center = c.getCenter();
-                    file.println(center.getId() + "," + center.getLatitude() + 
-                            "," + center.getLongitude());
+                    PointStore store = c.getStore();
+                    int center = c.getCenter();
+                    file.println(store.getId(center) + "," + 
+                            store.getLatitude(center) + "," + 
+                            store.getLongitude(center));
                 }
             }
             file.close();
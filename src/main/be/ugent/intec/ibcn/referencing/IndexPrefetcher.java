@@ -0,0 +1,102 @@
+package be.ugent.intec.ibcn.referencing;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Prefetcher that loads the class indexes of the scheduled batches on a
+ * dedicated I/O thread, ahead of the similarity threads.
+ *
+ * The class indexes are loaded in the order their first batch was scheduled,
+ * which is the order the similarity threads pick up the batches. While the
+ * similarity threads compute the similarities for the current classes, the
+ * indexes of the next classes are read from disk, so the similarity threads
+ * do not stall on index loads. The number of indexes that are loaded but not
+ * yet in use is bounded by the lookahead, to bound the memory used.
+ *
+ * @see SharedClassIndex
+ * @see SimilarityScheduler
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class IndexPrefetcher implements Runnable {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(IndexPrefetcher.class);
+
+    /**
+     * The class indexes to load, in the order of their first batch.
+     */
+    private List<SharedClassIndex> indexes;
+
+    /**
+     * Permits for the indexes that can be loaded ahead.
+     */
+    private Semaphore window;
+
+    /**
+     * The I/O thread, null if not started.
+     */
+    private ExecutorService executor = null;
+
+    /**
+     * Constructor.
+     * @param batches The scheduled batches, in the order they are processed
+     * @param lookahead The number of indexes that can be loaded ahead of the
+     * batches that use them
+     */
+    public IndexPrefetcher(List<SimilarityScheduler.Batch> batches,
+            int lookahead) {
+        // Retain each class index once, at its first batch
+        Map<SharedClassIndex, Boolean> seen =
+                new IdentityHashMap<SharedClassIndex, Boolean>();
+        this.indexes = new ArrayList<SharedClassIndex>();
+        for (SimilarityScheduler.Batch batch : batches)
+            if (seen.put(batch.getIndex(), Boolean.TRUE) == null)
+                indexes.add(batch.getIndex());
+        this.window = new Semaphore(lookahead);
+    }
+
+    /**
+     * Start loading the indexes on the I/O thread.
+     */
+    public void start() {
+        executor = Executors.newSingleThreadExecutor();
+        executor.submit(this);
+    }
+
+    /**
+     * Stop loading indexes, for instance after all batches are done.
+     */
+    public void stop() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        int prefetched = 0;
+        try {
+            for (SharedClassIndex index : indexes) {
+                // Wait until an index that was loaded ahead is in use
+                window.acquire();
+                index.prefetch(window);
+                prefetched++;
+            }
+        } catch (InterruptedException e) {
+            // Stopped, the remaining indexes are loaded by the batches
+        }
+        LOG.debug("Prefetched {}/{} class indexes", prefetched,
+                indexes.size());
+    }
+}
@@ -1,13 +1,11 @@
 package be.ugent.intec.ibcn.referencing;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -18,15 +16,22 @@ import java.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import be.ugent.intec.ibcn.geo.classifier.NaiveBayesResults;
+import be.ugent.intec.ibcn.geo.classifier.NaiveBayesColumns;
 import be.ugent.intec.ibcn.geo.common.datatypes.DataItem;
+import be.ugent.intec.ibcn.geo.common.datatypes.EncodedDataItem;
 import be.ugent.intec.ibcn.geo.common.datatypes.Point;
 import be.ugent.intec.ibcn.geo.common.io.DataLoading;
 import be.ugent.intec.ibcn.geo.common.io.ReferencingIO;
-import be.ugent.intec.ibcn.similarity.SimilarItem;
+import be.ugent.intec.ibcn.similarity.IndexWeights;
+import be.ugent.intec.ibcn.similarity.MultiLevelSimilarityIndexer;
+import be.ugent.intec.ibcn.similarity.ParallelSimilarity;
 import be.ugent.intec.ibcn.similarity.Similarity;
+import be.ugent.intec.ibcn.similarity.SimilarityCache;
 import be.ugent.intec.ibcn.similarity.SimilarityIndexer;
 import be.ugent.intec.ibcn.similarity.SimilarityParameters;
+import be.ugent.intec.ibcn.similarity.SimilarityStore;
+import be.ugent.intec.ibcn.similarity.TagDictionary;
+import be.ugent.intec.ibcn.similarity.TopKCollector;
 
 /**
  * More advanced, multilevel similarity based georeferencer.
@@ -46,11 +51,24 @@ import be.ugent.intec.ibcn.similarity.SimilarityParameters;
  * at coarser levels. For this reason, if no features were used during 
  * classification at the given level, we fall back to a coarser level. So for 
  * each test item, we store at which level the item should be referenced.
+ * The classification results are loaded one level at a time, as primitive
+ * columns (@see NaiveBayesColumns), and the coarser levels are only loaded
+ * for the test items that are not resolved yet.
  * 
  * Then, for each of the different levels, and each of the classes along with
  * the items to georeference, we calculate the Jaccard similarity against the
  * training items that are in the given class, in a similar way as is done with
- * the regular @see SimilarityReferencer.
+ * the regular @see SimilarityReferencer. The classes of all the levels are
+ * scheduled together by a single @see SimilarityScheduler. Test items without
+ * features, and test items assigned to a class without training items, are 
+ * resolved to the medoid of their class before any work is scheduled. As in
+ * the SimilarityReferencer, the results of the similarity search are cached
+ * per level (@see SimilarityCache), and optionally persisted next to the
+ * index of each level, or in the similarity store.
+ * 
+ * The training items of the classes are either read from the index of each
+ * level created by the @see SimilarityIndexer, or from a single similarity
+ * store for all levels created by the @see MultiLevelSimilarityIndexer.
  * 
  * @see AbstractReferencer
  * 
@@ -66,13 +84,40 @@ public class MultiLevelSimilarityReferencer extends AbstractReferencer {
     /**
      * Test data, used for sharing between threads.
      */
-    private DataItem [] test_data;
+    private EncodedDataItem [] test_data;
+    
+    /**
+     * Dictionary used to encode the features of the test and training data.
+     */
+    private TagDictionary dictionary;
     
     /**
      * List of Similarity parameters for the different levels.
      */
     private List<SimilarityParameters> parameters;
     
+    /**
+     * Directory of the similarity store, or null to use the index of each
+     * level.
+     */
+    private String store = null;
+    
+    /**
+     * Cache for the results of the similarity search during a run.
+     */
+    private SimilarityCache cache;
+    
+    /**
+     * For each level, the idf of each feature of the dictionary for the 
+     * cosine similarity, null to use the Jaccard similarity.
+     */
+    private double [][] idf;
+    
+    /**
+     * For each level, the idf of features without ID.
+     */
+    private double [] defaultIdf;
+    
     /**
      * Constructor.
      * @param parameters Parameters for similarity search. The parameters
@@ -89,6 +134,19 @@ public class MultiLevelSimilarityReferencer extends AbstractReferencer {
         this.parameters = parameters;
     }
     
+    /**
+     * Constructor, reading the training items from a similarity store.
+     * @param parameters Parameters for similarity search, in ascending order
+     * of number of clusters, in the same order as used to create the store.
+     * @param store Directory of the similarity store created by the
+     * MultiLevelSimilarityIndexer
+     */
+    public MultiLevelSimilarityReferencer(List<SimilarityParameters> parameters,
+            String store) {
+        this(parameters);
+        this.store = store;
+    }
+    
     /**
      * Actual similarity search implementation.
      * @param outputFileName 
@@ -100,103 +158,208 @@ public class MultiLevelSimilarityReferencer extends AbstractReferencer {
                 getTestFile());
         DataLoading dl = new DataLoading();
         // Data is loaded WITHOUT feature selection
-        this.test_data = dl.loadDataFromFile(parameters.get(0).getTestFile(), 
+        DataItem [] data = dl.loadDataFromFile(parameters.get(0).getTestFile(), 
                 parameters.get(0).getTestParser(), 
                 parameters.get(0).getTestLimit(), null);
+        // Dictionary encode the features of the test data, once
+        this.dictionary = TagDictionary.fromData(data);
+        this.test_data = dictionary.encode(data, true);
         
-        // Prepare an array of classifier output results
-        NaiveBayesResults [] classifier_output = 
-                new NaiveBayesResults[parameters.size()];
-        // Prepare an array of class and item assignments
-        Map<Integer, List<Integer>>[] class_items = 
-                new HashMap[parameters.size()];
-
-        // Init the data 
-        for (int i = 0; i < this.parameters.size(); i++) {
-            classifier_output[i] = 
-                    new NaiveBayesResults(parameters.get(i).
-                    getClassificationFile());
-            class_items[i] = new HashMap<Integer, List<Integer>>();
-        }
-        
-        int counter = 0;      
+        // Check the test data, and gather the IDs of the test items
+        int [] ids = new int[test_data.length];
         for (int i = 0; i < test_data.length; i++) {
-            DataItem item = test_data[i];
             // Sanity check
-            if (item != null) {
-                // Loop over the multiple levels
-                for (int level_index = parameters.size() - 1; 
-                        level_index >= 0; ) {
-                    // Determine the number of features used at this level
-                    int numberOfFeaturesUsed = 
-                            classifier_output[level_index].
-                            getFeatureCount(item.getId());
-                    // If classification was guessing and there are coarser 
-                    // levels
-                    if (numberOfFeaturesUsed == 0 && level_index > 0) {
-                        level_index--;
-                        continue;
-                    }
-                    
-                    // If we end up here, we have a 'valid' or last resort 
-                    // classification
-                    
-                    // Determine class Id for the current level
-                    int classId = classifier_output[level_index].
-                            getPrediction(item.getId());
-                    
-                    List<Integer> list = class_items[level_index].get(classId);
-                    if (list == null)
-                        list = new ArrayList<Integer>();
-                    // the number in the list is the actual index in the array
-                    list.add(i); 
-                    class_items[level_index].put(classId, list);
-                    
-                    // Make sure we don't loop again
-                    level_index = -1;
-                }
-            }
-            else {
+            if (test_data[i] == null)
                 throw new RuntimeException(
                         "This should not happen? Test item id " + i);
+            ids[i] = test_data[i].getId();
+        }
+        
+        // The level and class each test item is referenced in, -1 while
+        // not resolved
+        int [] item_level = new int[test_data.length];
+        int [] item_class = new int[test_data.length];
+        Arrays.fill(item_level, -1);
+        int unresolved = test_data.length;
+        // Resolve the levels, starting at the finest level. Only the results
+        // of a single level are in memory at any time, and coarser levels are
+        // not loaded once all test items are resolved.
+        for (int level_index = parameters.size() - 1; 
+                level_index >= 0 && unresolved > 0; level_index--) {
+            NaiveBayesColumns classifier_output = new NaiveBayesColumns(
+                    parameters.get(level_index).getClassificationFile(), ids);
+            for (int i = 0; i < test_data.length; i++) {
+                if (item_level[i] >= 0)
+                    continue;
+                // Determine the number of features used at this level
+                int numberOfFeaturesUsed = 
+                        classifier_output.getFeatureCount(i);
+                // If classification was guessing and there are coarser 
+                // levels, leave the item for a coarser level
+                if (numberOfFeaturesUsed <= 0 && level_index > 0)
+                    continue;
+                // If we end up here, we have a 'valid' or last resort 
+                // classification
+                if (classifier_output.getPrediction(i) < 0) {
+                    LOG.error("No classification for test item {}", ids[i]);
+                    continue;
+                }
+                item_level[i] = level_index;
+                item_class[i] = classifier_output.getPrediction(i);
+                unresolved--;
             }
         }
-
+        
+        // Prepare the results
+        Map<Integer, Point> predictions = new TreeMap<Integer, Point>();
+        // Prepare the feature weights for the cosine similarity
+        this.idf = new double[parameters.size()][];
+        this.defaultIdf = new double[parameters.size()];
+        IndexWeights shared = null;
+        for (int i = 0; i < this.parameters.size(); i++) {
+            if (parameters.get(i).getSimilarityMeasure() != 
+                    Similarity.MEASURE_COSINE)
+                continue;
+            // The levels of a store share the same weights
+            IndexWeights weights = shared;
+            if (store == null)
+                weights = SimilarityReferencer.loadWeights(
+                        SimilarityIndexer.getWeightsFile(parameters.get(i)));
+            else if (shared == null)
+                weights = shared = SimilarityReferencer.loadWeights(
+                        MultiLevelSimilarityIndexer.getWeightsFile(store));
+            if (weights != null) {
+                idf[i] = weights.idf(dictionary);
+                defaultIdf[i] = weights.getDefaultIdf();
+            }
+        }
+        // Prepare the cache, with the results of previous runs if persisted
+        this.cache = new SimilarityCache();
+        for (int i = 0; i < this.parameters.size(); i++)
+            if (parameters.get(i).isPersistentCache())
+                cache.load(i, getCacheFile(i), dictionary, 
+                        parameters.get(i).getSimilarItemsToConsider(),
+                        getMeasure(i));
+        // Test items without features, or in a class without training items,
+        // have no similar items: resolve them to the medoid right away. The
+        // same goes for test items that are in the cache.
+        int resolved = 0;
+        int cached = 0;
+        // Test items with the same features as a scheduled test item, and
+        // their level
+        List<Integer> duplicates = new ArrayList<Integer>();
+        List<Integer> duplicate_levels = new ArrayList<Integer>();
+        // Map the class tables and the postings of the store once, for all
+        // the classes of all the levels
+        SimilarityStore similarityStore = store != null ?
+                new SimilarityStore(store) : null;
+        for (int i = 0; i < this.parameters.size(); i++) {
+            // The classes of this level that have training items, null if 
+            // unknown
+            BitSet indexed = similarityStore != null ?
+                    similarityStore.loadClasses(i) :
+                    SimilarityIndexer.loadClasses(parameters.get(i));
+            Point [] medoids = parameters.get(i).getClassMapper().
+                    getMedoids().toArray(new Point[0]);
+            for (int j = 0; j < test_data.length; j++) {
+                if (item_level[j] != i)
+                    continue;
+                if (test_data[j].getFeatureCount() == 0 || 
+                        (indexed != null && !indexed.get(item_class[j]))) {
+                    predictions.put(ids[j], medoids[item_class[j]]);
+                    // Mark the item as done
+                    item_level[j] = -1;
+                    resolved++;
+                    continue;
+                }
+                // Test items that were searched in a previous run
+                SimilarityCache.Entry entry = cache.get(i, item_class[j], 
+                        test_data[j]);
+                if (entry != null) {
+                    predictions.put(ids[j], estimate(entry, 
+                            parameters.get(i), medoids[item_class[j]]));
+                    item_level[j] = -1;
+                    cached++;
+                }
+                // Test items that are identical to a scheduled test item
+                else if (!cache.schedule(i, item_class[j], test_data[j])) {
+                    duplicates.add(j);
+                    duplicate_levels.add(i);
+                    item_level[j] = -1;
+                }
+            }
+        }
+        LOG.info("Resolved {} test items to the medoid of their class", 
+                resolved);
+        LOG.info("Resolved {} test items from the cache, {} duplicate test "
+                + "items", cached, duplicates.size());
+        
         LOG.info("Calculating similarities");
         
+        // Schedule the classes of all levels in batches, most expensive 
+        // first
+        SimilarityScheduler scheduler = new SimilarityScheduler();
+        // Loop over the different levels
+        for (int i = 0; i < this.parameters.size(); i++) {
+            // Group the test items of this level by class, the items remain
+            // in ascending order within a class
+            int classes = parameters.get(i).getClassMapper().size();
+            int [] start = new int[classes + 1];
+            for (int j = 0; j < test_data.length; j++)
+                if (item_level[j] == i)
+                    start[item_class[j] + 1]++;
+            for (int c = 0; c < classes; c++)
+                start[c + 1] += start[c];
+            Integer [] grouped = new Integer[start[classes]];
+            int [] fill = Arrays.copyOf(start, classes);
+            for (int j = 0; j < test_data.length; j++)
+                if (item_level[j] == i)
+                    // the number in the list is the actual index in the array
+                    grouped[fill[item_class[j]]++] = j;
+            List<Integer> items = Arrays.asList(grouped);
+            int used = 0;
+            // For each of the classes we need to process for this level
+            for (int classId = 0; classId < classes; classId++) {
+                if (start[classId] == start[classId + 1])
+                    continue;
+                List<Integer> class_items = 
+                        items.subList(start[classId], start[classId + 1]);
+                scheduler.addClass(similarityStore, i, parameters.get(i), 
+                        classId, class_items, test_data, dictionary);
+                used++;
+            }
+            // Print some stats
+            LOG.info("Clustering {} : actual used classes {}", parameters.get(i).
+                    getClassMapper().size(), used);
+        }
+        List<SimilarityScheduler.Batch> batches = 
+                scheduler.schedule(NR_THREADS);
+        
+        // Load the class indexes ahead of the batches on a separate thread
+        IndexPrefetcher prefetcher = null;
+        if (parameters.get(0).getPrefetchClasses() > 0) {
+            prefetcher = new IndexPrefetcher(batches,
+                    parameters.get(0).getPrefetchClasses());
+            prefetcher.start();
+        }
         // Prepare a thread pool
         ExecutorService executor = Executors.newFixedThreadPool(NR_THREADS);
         // Prepare a list for the futures
         List<Future<Map<Integer, Point>>> list = 
                 new ArrayList<Future<Map<Integer, Point>>>(); 
         
+        int counter = 0;
         int batches_launched = 0;
-        // Loop over the different levels
-        for (int i = 0; i < this.parameters.size(); i++) {
-            // Print some stats
-            LOG.info("Clustering {} : actual used classes {}", parameters.get(i).
-                    getClassMapper().size(), class_items[i].size());
-            
-            // For each of the classes we need to process for this level
-            for (int classId : class_items[i].keySet()) {
-            	
-            	// Batch this
-            	int batch_size = 50;
-            	List<Integer> items_to_process = class_items[i].get(classId);
-            	int batches = (items_to_process.size() / batch_size) + 1;
-            	for (int j = 0; j < batches; j++) {
-            		List<Integer> sublist = items_to_process.subList(
-            				j * batch_size, Math.min((j+1) * batch_size, items_to_process.size()));
-    	            // Init a Callable, track the future, execute
-            		Callable<Map<Integer, Point>> worker = new SimilarityHelperRunnable(classId, sublist, parameters.get(i));
-    	            Future<Map<Integer, Point>> submit = executor.submit(worker);
-    	            list.add(submit);
-    	            batches_launched++;
-            	}
-            }
+        // For each of the batches we need to process
+        for (SimilarityScheduler.Batch batch : batches) {
+            // Init a Callable, track the future, execute
+            Callable<Map<Integer, Point>> worker = 
+                    new SimilarityHelperRunnable(batch);
+            Future<Map<Integer, Point>> submit = executor.submit(worker);
+            list.add(submit);
+            batches_launched++;
         }
-        // Prepare the results
-        Map<Integer, Point> predictions = new TreeMap<Integer, Point>();
+        LOG.info("Similarity batches launched: {}", batches_launched);
         // Retrieve the results
         for (Future<Map<Integer, Point>> future : list) {
             try {
@@ -214,120 +377,163 @@ public class MultiLevelSimilarityReferencer extends AbstractReferencer {
         // This will make the executor accept no new threads
         // and finish all existing threads in the queue
         executor.shutdown();
+        if (prefetcher != null)
+            prefetcher.stop();
+        // Resolve the duplicate test items from the cache
+        for (int d = 0; d < duplicates.size(); d++) {
+            int j = duplicates.get(d);
+            int level = duplicate_levels.get(d);
+            SimilarityCache.Entry entry = cache.get(level, item_class[j], 
+                    test_data[j]);
+            Point medoid = parameters.get(level).getClassMapper().getMedoids().
+                    get(item_class[j]);
+            predictions.put(ids[j], entry == null ? medoid : 
+                    estimate(entry, parameters.get(level), medoid));
+        }
+        // Persist the cache for next runs
+        for (int i = 0; i < this.parameters.size(); i++)
+            if (parameters.get(i).isPersistentCache())
+                cache.save(i, getCacheFile(i), dictionary, 
+                        parameters.get(i).getSimilarItemsToConsider(),
+                        getMeasure(i));
         
         // Write to file
         ReferencingIO.writeLocationsToFile(predictions, outputFileName);
     }
     
     /**
-     * This class loads the similarity index from file for a given class.
-     * It will find the most similar items for each of the test items assigned
-     * to that class and return the location of the most similar item in 
+     * Get the similarity measure that is actually used for a level. The
+     * cosine similarity falls back to the Jaccard similarity when the
+     * feature weights are not available.
+     * @param level The level
+     * @return the similarity measure of the level.
+     */
+    private int getMeasure(int level) {
+        return idf[level] != null ? Similarity.MEASURE_COSINE : 
+                Similarity.MEASURE_JACCARD;
+    }
+    
+    /**
+     * Get the file of the persisted search results of a level.
+     * @param level The level
+     * @return the file of the persisted search results, next to the index of
+     * the level or in the similarity store.
+     */
+    private String getCacheFile(int level) {
+        if (store != null)
+            return MultiLevelSimilarityIndexer.getCacheFile(store, level);
+        return SimilarityIndexer.getCacheFile(parameters.get(level));
+    }
+    
+    /**
+     * Determine the location estimate from the result of a similarity search.
+     * @param entry The most similar items
+     * @param parameters The parameters of the level
+     * @param medoid The medoid of the class
+     * @return The aggregated location of the most similar items, or the 
+     * medoid if there are no similar items.
+     */
+    private static Point estimate(SimilarityCache.Entry entry, 
+            SimilarityParameters parameters, Point medoid) {
+        if (entry.size() == 0)
+            return medoid;
+        return entry.aggregate(parameters.getAggregationMethod());
+    }
+    
+    /**
+     * This class processes a batch of test items of a given class, using the
+     * similarity index of that class, which is shared with the other batches
+     * of the class. It will find the most similar items for each of the test
+     * items in the batch and return the location of the most similar item in 
      * a map.
      */
     private class SimilarityHelperRunnable implements 
             Callable<Map<Integer, Point>> {
     
         /**
-         * The classId of the class that is being processed.
-         */
-        private int classId;
-
-        /**
-         * List of IDs of test items assigned by the classifier in this class.
+         * The batch of test items to process.
          */
-        private List<Integer> items_for_this_class;
+        private SimilarityScheduler.Batch batch;
 
-        /**
-         * Local reference to the parameters used for processing in this 
-         * callable.
-         */
-        private SimilarityParameters parameters;
-        
         /**
          * Constructor.
-         * @param classId The class for which we will process the index.
-         * @param items_for_this_class The list of test IDs assigned to the 
-         * class.
-         * @param parameters Local reference to the parameters used for 
-         * processing in this callable.
+         * @param batch The batch of test items to process.
          */
-        public SimilarityHelperRunnable(int classId,  
-                List<Integer> items_for_this_class, 
-                SimilarityParameters parameters) {
-            this.classId = classId;
-            this.items_for_this_class = items_for_this_class;
-            this.parameters = parameters;
+        public SimilarityHelperRunnable(SimilarityScheduler.Batch batch) {
+            this.batch = batch;
         }
 
         @Override
         public Map<Integer, Point> call() throws Exception {
             // Prepare the result
             Map<Integer, Point> predictions = new HashMap<Integer, Point>();
-            
-            // Create a superset of all the features found in this class
-            Set<String> filter = new HashSet<String>();
-            // For each of the ids in this class
-            for (int i : items_for_this_class) {
-                // Fetch the DataItem
-                DataItem item = test_data[i];
-                // Sanity check
-                if (item != null) {
-                    // For each of the features
-                    for (Object f : item.getData())
-                        // Add to the filter set
-                        filter.add((String)f);
-                }
-                else {
-                    LOG.error("This should not happen!? {}", i);
-                }
-            }
-            
-            // Get the index file name for this level
-            String indexFile = SimilarityIndexer.getIndexFile(
-                    this.parameters, classId);
-            
-            // Is there an index for this class?
-            if (new File(indexFile).exists()) {
-                // Load the similarity data
-                DataItem [] items = SimilarityIndexer.loadSimilarityIndex(
-                        indexFile, this.parameters.getTrainingParser(), filter);
-                // For each of the items predicted in this class
-                for (int i : items_for_this_class) {
-                    DataItem item = test_data[i];
-                    // Sanity check
-                    if (item != null) {
-                        // Fetch the most similar items
-                        SortedSet<SimilarItem> similarities = 
-                                Similarity.jaccard(items, item, 
-                                this.parameters.getSimilarItemsToConsider());
-                        // If there are similar items found
-                        if (similarities.size() > 0) {
-                            predictions.put(item.getId(), 
-                                similarities.first().getItem());
+            // The class that is being processed
+            SharedClassIndex index = batch.getIndex();
+            int classId = index.getClassId();
+            // The parameters of the level of the class
+            SimilarityParameters parameters = index.getParameters();
+            try {
+                // Is there an index for this class?
+                if (index.exists()) {
+                    // Fetch the similarity data, shared within the class
+                    EncodedDataItem [] items = index.acquire();
+                    // Gather the test items of this batch
+                    List<Integer> batch_items = batch.getItems();
+                    EncodedDataItem [] queries = 
+                            new EncodedDataItem[batch_items.size()];
+                    for (int j = 0; j < queries.length; j++)
+                        queries[j] = test_data[batch_items.get(j)];
+                    // Fetch the most similar items, in parallel over ranges
+                    // of the index for very large classes
+                    int level = index.getLevel();
+                    TopKCollector [] similarities = idf[level] == null ?
+                            ParallelSimilarity.jaccard(items, queries, 
+                                parameters.getSimilarItemsToConsider(), 
+                                parameters.getParallelSearchThreshold()) :
+                            ParallelSimilarity.cosine(items, 
+                                index.getPostings(), idf[level], 
+                                defaultIdf[level], queries,
+                                parameters.getSimilarItemsToConsider(), 
+                                parameters.getParallelSearchThreshold());
+                    // For each of the items predicted in this batch
+                    for (int j = 0; j < queries.length; j++) {
+                        EncodedDataItem item = queries[j];
+                        // Sanity check
+                        if (item != null) {
+                            // Cache the most similar items, and aggregate 
+                            // their locations, falling back to the medoid if
+                            // there are no similar items
+                            SimilarityCache.Entry entry = cache.put(
+                                    index.getLevel(), classId, item, items, 
+                                    similarities[j]);
+                            predictions.put(item.getId(), estimate(entry, 
+                                    parameters, parameters.getClassMapper().
+                                        getMedoids().get(classId)));
                         }
-                        // If there are no similar items found
                         else {
-                            // Fall back to medoid
+                            LOG.error("This should not happen!? {}", 
+                                    batch_items.get(j));
+                        }
+                    }
+                }
+                // If not - this should not happen? - fallback to medoid 
+                // prediction
+                else {
+                    // For each of the items predicted in this batch
+                    for (int i : batch.getItems()) {
+                        EncodedDataItem item = test_data[i];
+                        // Sanity check
+                        if (item != null) {
                             predictions.put(item.getId(), 
-                                this.parameters.getClassMapper().getMedoids().
+                                parameters.getClassMapper().getMedoids().
                                     get(classId));
                         }
                     }
                 }
             }
-            // If not - this should not happen? - fallback to medoid prediction
-            else {
-                // For each of the items predicted in this class
-                for (int i : items_for_this_class) {
-                    DataItem item = test_data[i];
-                    // Sanity check
-                    if (item != null) {
-                        predictions.put(item.getId(), 
-                            this.parameters.getClassMapper().getMedoids().
-                                get(classId));
-                    }
-                }
+            finally {
+                // Release the index after the last batch of the class
+                index.release();
             }
             return predictions;
         }
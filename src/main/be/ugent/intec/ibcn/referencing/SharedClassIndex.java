@@ -0,0 +1,286 @@
+package be.ugent.intec.ibcn.referencing;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+import be.ugent.intec.ibcn.geo.common.datatypes.EncodedDataItem;
+import be.ugent.intec.ibcn.similarity.Similarity;
+import be.ugent.intec.ibcn.similarity.SimilarityIndexer;
+import be.ugent.intec.ibcn.similarity.SimilarityParameters;
+import be.ugent.intec.ibcn.similarity.SimilarityStore;
+import be.ugent.intec.ibcn.similarity.TagDictionary;
+import be.ugent.intec.ibcn.similarity.TagPostings;
+
+/**
+ * The similarity index of a single class, shared between all the batches of
+ * test items that were predicted in that class.
+ *
+ * The index is loaded from file by the first batch that needs it, filtered on
+ * the features of all the test items in the class, and released as soon as
+ * the last batch of the class has finished. This way, the test items of a
+ * large class can be processed by multiple threads without loading the index
+ * multiple times. The index can also be loaded ahead of its first batch by
+ * the IndexPrefetcher, so the batch does not have to wait for the disk.
+ *
+ * The index is either the index file of the class created by the
+ * SimilarityIndexer, or the class at a given level of a similarity store
+ * created by the MultiLevelSimilarityIndexer.
+ *
+ * @see SimilarityScheduler
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class SharedClassIndex {
+
+    /**
+     * Parameters of the level this class belongs to.
+     */
+    private SimilarityParameters parameters;
+
+    /**
+     * @return the parameters of the level this class belongs to.
+     */
+    public SimilarityParameters getParameters() {
+        return this.parameters;
+    }
+
+    /**
+     * The similarity store, or null to use the index file of the class.
+     */
+    private SimilarityStore store;
+
+    /**
+     * The level of the class.
+     */
+    private int level;
+
+    /**
+     * @return the level of the class, -1 if unknown.
+     */
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * The ID of the class.
+     */
+    private int classId;
+
+    /**
+     * @return the ID of the class.
+     */
+    public int getClassId() {
+        return this.classId;
+    }
+
+    /**
+     * The number of training items in the index, or -1 if there is no index.
+     */
+    private int size;
+
+    /**
+     * @return the number of training items in the index, or -1 if there is
+     * no index for this class.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return true if there is an index on file for this class.
+     */
+    public boolean exists() {
+        return this.size >= 0;
+    }
+
+    /**
+     * Indices of the test items predicted in this class.
+     */
+    private List<Integer> items;
+
+    /**
+     * @return the indices of the test items predicted in this class.
+     */
+    public List<Integer> getItems() {
+        return this.items;
+    }
+
+    /**
+     * Reference to the test data.
+     */
+    private EncodedDataItem [] test_data;
+
+    /**
+     * Dictionary used to encode the training items.
+     */
+    private TagDictionary dictionary;
+
+    /**
+     * The loaded index, or null if not loaded (yet or anymore).
+     */
+    private EncodedDataItem [] data = null;
+
+    /**
+     * The feature postings of the loaded index, null if not created (yet or
+     * anymore).
+     */
+    private TagPostings postings = null;
+
+    /**
+     * Flag indicating whether the index has been loaded.
+     */
+    private boolean loaded = false;
+
+    /**
+     * Permit of the prefetcher that loaded this index, released when the
+     * first batch acquires the index.
+     */
+    private Semaphore permit = null;
+
+    /**
+     * Number of batches that did not release the index yet.
+     */
+    private int pending = 0;
+
+    /**
+     * Constructor.
+     * @param parameters Parameters of the level this class belongs to
+     * @param classId The ID of the class
+     * @param items Indices of the test items predicted in this class
+     * @param test_data Reference to the test data
+     * @param dictionary Dictionary used to encode the training items
+     */
+    public SharedClassIndex(SimilarityParameters parameters, int classId,
+            List<Integer> items, EncodedDataItem [] test_data,
+            TagDictionary dictionary) {
+        this(null, -1, parameters, classId, items, test_data, dictionary);
+    }
+
+    /**
+     * Constructor.
+     * @param store The opened similarity store, or null to use the index
+     * file of the class
+     * @param level The level of the class, the level in the similarity store
+     * if a store is used
+     * @param parameters Parameters of the level this class belongs to
+     * @param classId The ID of the class
+     * @param items Indices of the test items predicted in this class
+     * @param test_data Reference to the test data
+     * @param dictionary Dictionary used to encode the training items
+     */
+    public SharedClassIndex(SimilarityStore store, int level,
+            SimilarityParameters parameters, int classId, List<Integer> items,
+            EncodedDataItem [] test_data, TagDictionary dictionary) {
+        this.store = store;
+        this.level = level;
+        this.parameters = parameters;
+        this.classId = classId;
+        this.items = items;
+        this.test_data = test_data;
+        this.dictionary = dictionary;
+        if (store != null)
+            this.size = store.getIndexSize(level, classId);
+        else
+            this.size = SimilarityIndexer.getIndexSize(parameters, classId);
+    }
+
+    /**
+     * Register a batch that will use this index.
+     */
+    synchronized void register() {
+        pending++;
+    }
+
+    /**
+     * Get the loaded index, loading it from file if this has not been done
+     * yet. Every call should be followed by a call to release().
+     * @return The training items of this class that share at least one
+     * feature with a test item in the class.
+     */
+    public synchronized EncodedDataItem[] acquire() {
+        load();
+        // Let the prefetcher move on, now the prefetched index is in use
+        if (permit != null) {
+            permit.release();
+            permit = null;
+        }
+        return data;
+    }
+
+    /**
+     * Load the index ahead of the batches that will use it, if any batch
+     * still needs it and it has not been loaded yet. The given permit is
+     * released as soon as the first batch acquires the prefetched index, or
+     * right away if the index was not prefetched.
+     * @param permit Permit of the prefetcher
+     * @see IndexPrefetcher
+     */
+    public synchronized void prefetch(Semaphore permit) {
+        if (pending > 0 && !loaded && exists()) {
+            load();
+            // Prepare the postings as well, for the cosine similarity
+            if (parameters.getSimilarityMeasure() ==
+                    Similarity.MEASURE_COSINE)
+                getPostings();
+            this.permit = permit;
+        }
+        else
+            permit.release();
+    }
+
+    /**
+     * Load the index from file, if this has not been done yet.
+     */
+    private void load() {
+        if (!loaded) {
+            // Create a superset of all the features found in this class
+            Set<String> filter = new HashSet<String>();
+            for (int i : items) {
+                EncodedDataItem item = test_data[i];
+                // Sanity check
+                if (item != null) {
+                    // For each of the features
+                    for (Object f : item.getData())
+                        // Add to the filter set
+                        filter.add((String)f);
+                }
+            }
+            // Load the similarity data
+            if (store != null)
+                data = store.loadSimilarityIndex(level, classId,
+                        parameters.getTrainingParser(), filter, dictionary);
+            else
+                data = SimilarityIndexer.loadSimilarityIndex(
+                        SimilarityIndexer.getIndexFile(parameters, classId),
+                        parameters.getTrainingParser(), filter, dictionary);
+            loaded = true;
+        }
+    }
+
+    /**
+     * Get the feature postings of the loaded index, creating them if this has
+     * not been done yet. Should only be called between acquire() and 
+     * release().
+     * @return The feature postings of the loaded index.
+     */
+    public synchronized TagPostings getPostings() {
+        if (postings == null) {
+            load();
+            postings = new TagPostings(data);
+        }
+        return postings;
+    }
+
+    /**
+     * Signal that a batch has finished using this index. After the last
+     * batch, the loaded index is released.
+     */
+    public synchronized void release() {
+        if (--pending <= 0) {
+            data = null;
+            postings = null;
+        }
+    }
+}
@@ -1,13 +1,11 @@
 package be.ugent.intec.ibcn.referencing;
 
-import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -18,15 +16,20 @@ import java.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import be.ugent.intec.ibcn.geo.classifier.NaiveBayesResults;
+import be.ugent.intec.ibcn.geo.classifier.NaiveBayesColumns;
 import be.ugent.intec.ibcn.geo.common.datatypes.DataItem;
+import be.ugent.intec.ibcn.geo.common.datatypes.EncodedDataItem;
 import be.ugent.intec.ibcn.geo.common.datatypes.Point;
 import be.ugent.intec.ibcn.geo.common.io.DataLoading;
 import be.ugent.intec.ibcn.geo.common.io.ReferencingIO;
-import be.ugent.intec.ibcn.similarity.SimilarItem;
+import be.ugent.intec.ibcn.similarity.IndexWeights;
+import be.ugent.intec.ibcn.similarity.ParallelSimilarity;
 import be.ugent.intec.ibcn.similarity.Similarity;
+import be.ugent.intec.ibcn.similarity.SimilarityCache;
 import be.ugent.intec.ibcn.similarity.SimilarityIndexer;
 import be.ugent.intec.ibcn.similarity.SimilarityParameters;
+import be.ugent.intec.ibcn.similarity.TagDictionary;
+import be.ugent.intec.ibcn.similarity.TopKCollector;
 
 /**
  * Actual implementation of a similarity based georeferencer.
@@ -37,13 +40,32 @@ import be.ugent.intec.ibcn.similarity.SimilarityParameters;
  * 
  * Next, the similarity index will be read from file, for this class, and the
  * Jaccard similarity will be calculate between all the training items in the 
- * class and each test item assigned to this class.
+ * class and each test item assigned to this class. Alternatively, the cosine
+ * similarity on idf weighted features can be used, which only visits the
+ * training items that share a feature with the test item. The classes are divided in
+ * batches by the @see SimilarityScheduler, based on their estimated cost.
  * 
  * The location of the most similar item is then returned as the location 
- * estimate for the test item. In case of absence of a similar item, we fall 
- * back to returning the location of the medoid of that class.
+ * estimate for the test item, or, when more similar items are retained, an
+ * aggregate of their locations (@see SpatialAggregation). In case of absence
+ * of a similar item, we fall back to returning the location of the medoid of
+ * that class. Test items without features, and test items assigned to a
+ * class without training items, are resolved to the medoid in a single pass
+ * before any similarity work is scheduled.
  * 
- * @see SimilarityIndexer
+ * The results of the similarity search are cached (@see SimilarityCache), so
+ * test items with the same features in the same class are only searched 
+ * once. The cache is optionally persisted next to the similarity index, so
+ * next runs can skip the search for test items that were searched before.
+ * 
+ * The classification results are either read from the classification file,
+ * or passed in memory from the classifier, in which case the location 
+ * estimates are returned rather than written to file. This allows to run 
+ * the classifier and the referencer as a single pipeline, e.g.
+ *  results = naiveBayes.classify(null);
+ *  estimates = referencer.reference(results);
+ * 
+ * @see SimilarityScheduler
  * @see Similarity
  * @see AbstractReferencer
  * 
@@ -59,7 +81,28 @@ public class SimilarityReferencer extends AbstractReferencer {
     /**
      * Test data, used for sharing between threads.
      */
-    private DataItem [] test_data;
+    private EncodedDataItem [] test_data;
+    
+    /**
+     * Dictionary used to encode the features of the test and training data.
+     */
+    private TagDictionary dictionary;
+    
+    /**
+     * Cache for the results of the similarity search during a run.
+     */
+    private SimilarityCache cache;
+    
+    /**
+     * The idf of each feature of the dictionary, for the cosine similarity,
+     * null to use the Jaccard similarity.
+     */
+    private double [] idf = null;
+    
+    /**
+     * The idf of features without ID, for the cosine similarity.
+     */
+    private double defaultIdf;
     
     /**
      * Constructor.
@@ -70,76 +113,155 @@ public class SimilarityReferencer extends AbstractReferencer {
     }
     
     /**
-     * Actual similarity search implementation.
+     * Actual similarity search implementation, reading the classification 
+     * results from file and writing the location estimates to file.
      * @param outputFileName 
      */
     @Override
     public void run(String outputFileName) {
+        // Write to file
+        ReferencingIO.writeLocationsToFile(reference(null), outputFileName);
+    }
+    
+    /**
+     * Actual similarity search implementation, using classification results
+     * that are passed in memory, e.g. from NaiveBayes.classify(String).
+     * @param results The classification results, or null to read them from 
+     * the classification file.
+     * @return A map containing the location estimate for each test item ID.
+     */
+    public Map<Integer, Point> reference(NaiveBayesColumns results) {
         // Load the test data
         LOG.info("Loading test from {}", parameters.getTestFile());
         DataLoading dl = new DataLoading();
         // Data is loaded WITHOUT feature selection
-        this.test_data = dl.loadDataFromFile(parameters.getTestFile(), 
+        DataItem [] data = dl.loadDataFromFile(parameters.getTestFile(), 
                 parameters.getTestParser(), parameters.getTestLimit(), null);
+        // Dictionary encode the features of the test data, once
+        this.dictionary = TagDictionary.fromData(data);
+        this.test_data = dictionary.encode(data, true);
         
-        NaiveBayesResults classifier_output = 
-                new NaiveBayesResults(parameters.getClassificationFile());
+        // Check the test data, and gather the IDs of the test items
+        int [] ids = new int[test_data.length];
+        for (int i = 0; i < test_data.length; i++) {
+            // Sanity check
+            if (test_data[i] == null)
+                throw new RuntimeException("This should not happen? "
+                        + "Test item id " + i);
+            ids[i] = test_data[i].getId();
+        }
+        // Match the classification results with the test data
+        NaiveBayesColumns classifier_output = results == null ?
+                new NaiveBayesColumns(parameters.getClassificationFile(), ids) :
+                results.align(ids);
+        SimilarityParameters sp = (SimilarityParameters)parameters;
+        // Prepare the feature weights for the cosine similarity
+        if (sp.getSimilarityMeasure() == Similarity.MEASURE_COSINE) {
+            IndexWeights weights = loadWeights(
+                    SimilarityIndexer.getWeightsFile(sp));
+            if (weights != null) {
+                this.idf = weights.idf(dictionary);
+                this.defaultIdf = weights.getDefaultIdf();
+            }
+        }
+        // The measure that is actually used, the cosine similarity falls
+        // back to the Jaccard similarity without feature weights
+        int measure = idf != null ? Similarity.MEASURE_COSINE : 
+                Similarity.MEASURE_JACCARD;
+        // Prepare the cache, with the results of previous runs if persisted
+        this.cache = new SimilarityCache();
+        if (sp.isPersistentCache())
+            cache.load(0, SimilarityIndexer.getCacheFile(sp), dictionary, 
+                    sp.getSimilarItemsToConsider(), measure);
         
         int counter = 0;
         Map<Integer, List<Integer>> class_items = 
                 new HashMap<Integer, List<Integer>>();
+        // Prepare the results
+        Map<Integer, Point> predictions = new TreeMap<Integer, Point>();
+        // The classes that have an index, null if unknown
+        BitSet indexed = SimilarityIndexer.loadClasses(
+                (SimilarityParameters)parameters);
+        Point [] medoids = parameters.getClassMapper().getMedoids().toArray(
+                new Point[0]);
+        int resolved = 0;
+        // Test items with the same features as a scheduled test item
+        List<Integer> duplicates = new ArrayList<Integer>();
+        int cached = 0;
         
         for (int i = 0; i < test_data.length; i++) {
-            DataItem item = test_data[i];
-            // Sanity check
-            if (item != null) {
-                // Determine class Id
-                int classId = classifier_output.getPrediction(item.getId());
-                // This info is ignored in this implementation
-                int numberOfFeaturesUsed = classifier_output.
-                        getFeatureCount(item.getId());
-                
-                List<Integer> list = class_items.get(classId);
-                if (list == null)
-                    list = new ArrayList<Integer>();
-                // the number in the list is the actual index in the array
-                list.add(i); 
-                class_items.put(classId, list);                    
+            // Determine class Id
+            int classId = classifier_output.getPrediction(i);
+            if (classId < 0) {
+                LOG.error("No classification for test item {}", ids[i]);
+                continue;
             }
-            else
-                throw new RuntimeException("This should not happen? "
-                        + "Test item id " + i);
+            // Test items without features, or in a class without index, have
+            // no similar items: resolve them to the medoid right away
+            if (test_data[i].getFeatureCount() == 0 || 
+                    (indexed != null && !indexed.get(classId))) {
+                predictions.put(ids[i], medoids[classId]);
+                resolved++;
+                continue;
+            }
+            // Test items that were searched in a previous run
+            SimilarityCache.Entry entry = cache.get(0, classId, test_data[i]);
+            if (entry != null) {
+                predictions.put(ids[i], estimate(entry, medoids[classId]));
+                cached++;
+                continue;
+            }
+            // Test items that are identical to a scheduled test item
+            if (!cache.schedule(0, classId, test_data[i])) {
+                duplicates.add(i);
+                continue;
+            }
+            List<Integer> list = class_items.get(classId);
+            if (list == null)
+                list = new ArrayList<Integer>();
+            // the number in the list is the actual index in the array
+            list.add(i); 
+            class_items.put(classId, list);                    
         }
 
+        LOG.info("Resolved {} test items to the medoid of their class", 
+                resolved);
+        LOG.info("Resolved {} test items from the cache, {} duplicate test "
+                + "items", cached, duplicates.size());
         LOG.info("Calculating similarities");
         // Print some stats
         LOG.info("Clustering {}: actual used classes {}.", 
         		parameters.getClassMapper().size(), class_items.size());
+        // Schedule the classes in batches, most expensive first
+        SimilarityScheduler scheduler = new SimilarityScheduler();
+        for (int classId : class_items.keySet())
+            scheduler.addClass((SimilarityParameters)parameters, classId, 
+                    class_items.get(classId), test_data, dictionary);
+        List<SimilarityScheduler.Batch> batches = 
+                scheduler.schedule(NR_THREADS);
+        // Load the class indexes ahead of the batches on a separate thread
+        IndexPrefetcher prefetcher = null;
+        if (sp.getPrefetchClasses() > 0) {
+            prefetcher = new IndexPrefetcher(batches,
+                    sp.getPrefetchClasses());
+            prefetcher.start();
+        }
         // Prepare a thread pool
         ExecutorService executor = Executors.newFixedThreadPool(NR_THREADS);
         // Prepare a list for the futures
         List<Future<Map<Integer, Point>>> list = 
                 new ArrayList<Future<Map<Integer, Point>>>();
         int batches_launched = 0;
-        // For each of the classes we need to process
-        for (int classId : class_items.keySet()) {
-        	// Batch this
-        	int batch_size = 50;
-        	List<Integer> items_to_process = class_items.get(classId);
-        	int batches = (items_to_process.size() / batch_size) + 1;
-        	for (int i = 0; i < batches; i++) {
-        		List<Integer> sublist = items_to_process.subList(
-        				i * batch_size, Math.min((i+1) * batch_size, items_to_process.size()));
-	            // Init a Callable, track the future, execute
-	            Callable<Map<Integer, Point>> worker = new SimilarityHelperRunnable(classId, sublist);
-	            Future<Map<Integer, Point>> submit = executor.submit(worker);
-	            list.add(submit);
-	            batches_launched++;
-        	}
+        // For each of the batches we need to process
+        for (SimilarityScheduler.Batch batch : batches) {
+            // Init a Callable, track the future, execute
+            Callable<Map<Integer, Point>> worker = 
+                    new SimilarityHelperRunnable(batch);
+            Future<Map<Integer, Point>> submit = executor.submit(worker);
+            list.add(submit);
+            batches_launched++;
         }
         LOG.info("Similarity batches launched: {}", batches_launched);
-        // Prepare the results
-        Map<Integer, Point> predictions = new TreeMap<Integer, Point>();
         // Retrieve the results
         for (Future<Map<Integer, Point>> future : list) {
             try {
@@ -157,92 +279,135 @@ public class SimilarityReferencer extends AbstractReferencer {
         // This will make the executor accept no new threads
         // and finish all existing threads in the queue
         executor.shutdown();
-        
-        // Write to file
-        ReferencingIO.writeLocationsToFile(predictions, outputFileName);
+        if (prefetcher != null)
+            prefetcher.stop();
+        // Resolve the duplicate test items from the cache
+        for (int i : duplicates) {
+            int classId = classifier_output.getPrediction(i);
+            SimilarityCache.Entry entry = cache.get(0, classId, test_data[i]);
+            predictions.put(ids[i], entry == null ? medoids[classId] : 
+                    estimate(entry, medoids[classId]));
+        }
+        // Persist the cache for next runs
+        if (sp.isPersistentCache())
+            cache.save(0, SimilarityIndexer.getCacheFile(sp), dictionary, 
+                    sp.getSimilarItemsToConsider(), measure);
+        return predictions;
+    }
+    
+    /**
+     * Load the feature weights of an index.
+     * @param filename The weights file
+     * @return The feature weights, or null if they are not available, in 
+     * which case the Jaccard similarity is used.
+     */
+    static IndexWeights loadWeights(String filename) {
+        IndexWeights weights = null;
+        try {
+            weights = IndexWeights.load(filename);
+        } catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+        }
+        if (weights == null)
+            LOG.error("No feature weights in {}, please rebuild the index. "
+                    + "Falling back to the Jaccard similarity.", filename);
+        return weights;
+    }
+    
+    /**
+     * Determine the location estimate from the result of a similarity search.
+     * @param entry The most similar items
+     * @param medoid The medoid of the class
+     * @return The aggregated location of the most similar items, or the 
+     * medoid if there are no similar items.
+     */
+    private Point estimate(SimilarityCache.Entry entry, Point medoid) {
+        if (entry.size() == 0)
+            return medoid;
+        return entry.aggregate(
+                ((SimilarityParameters)parameters).getAggregationMethod());
     }
     
     /**
-     * This class loads the similarity index from file for a given class.
-     * It will find the most similar items for each of the test items assigned
-     * to that class and return the location of the most similar item in 
+     * This class processes a batch of test items of a given class, using the
+     * similarity index of that class, which is shared with the other batches
+     * of the class. It will find the most similar items for each of the test
+     * items in the batch and return the location of the most similar item in 
      * a map.
      */
     private class SimilarityHelperRunnable implements 
             Callable<Map<Integer, Point>> {
     
         /**
-         * The classId of the class that is being processed.
-         */
-        private int classId;
-
-        /**
-         * List of IDs of test items assigned by the classifier in this class.
+         * The batch of test items to process.
          */
-        private List<Integer> items_for_this_class;
+        private SimilarityScheduler.Batch batch;
 
         /**
          * Constructor.
-         * @param classId The class for which we will process the index.
-         * @param items_for_this_class The list of test IDs assigned to 
-         * the class.
+         * @param batch The batch of test items to process.
          */
-        public SimilarityHelperRunnable(int classId,  
-                List<Integer> items_for_this_class) {
-            this.classId = classId;
-            this.items_for_this_class = items_for_this_class;
+        public SimilarityHelperRunnable(SimilarityScheduler.Batch batch) {
+            this.batch = batch;
         }
 
         @Override
         public Map<Integer, Point> call() throws Exception {
             // Prepare the result
             Map<Integer, Point> predictions = new HashMap<Integer, Point>();
-            
-            // Create a superset of all the features found in this class
-            Set<String> filter = new HashSet<String>();
-            // For each of the ids in this class
-            for (int i : items_for_this_class) {
-                // Fetch the DataItem
-                DataItem item = test_data[i];
-                // Sanity check
-                if (item != null) {
-                    // For each of the features
-                    for (Object f : item.getData())
-                        // Add to the filter set
-                        filter.add((String)f);
-                }
-                else {
-                    LOG.error("This should not happen!? {}", i);
-                }
-            }
-            
-            // Get the index file name
-            String indexFile = SimilarityIndexer.getIndexFile(
-                    (SimilarityParameters)parameters, classId);
-            
-            // Is there an index for this class?
-            if (new File(indexFile).exists()) {
-                // Load the similarity data
-                DataItem [] items = SimilarityIndexer.loadSimilarityIndex(
-                        indexFile, parameters.getTrainingParser(), filter);
-                // For each of the items predicted in this class
-                for (int i : items_for_this_class) {
-                    DataItem item = test_data[i];
-                    // Sanity check
-                    if (item != null) {
-                        // Fetch the most similar items
-                        SortedSet<SimilarItem> similarities = 
-                                Similarity.jaccard(items, item, 
-                                ((SimilarityParameters)parameters).
-                                getSimilarItemsToConsider());
-                        // If there are similar items found
-                        if (similarities.size() > 0) {
-                            predictions.put(item.getId(), 
-                                similarities.first().getItem());
+            // The class that is being processed
+            SharedClassIndex index = batch.getIndex();
+            int classId = index.getClassId();
+            try {
+                // Is there an index for this class?
+                if (index.exists()) {
+                    // Fetch the similarity data, shared within the class
+                    EncodedDataItem [] items = index.acquire();
+                    // Gather the test items of this batch
+                    List<Integer> batch_items = batch.getItems();
+                    EncodedDataItem [] queries = 
+                            new EncodedDataItem[batch_items.size()];
+                    for (int j = 0; j < queries.length; j++)
+                        queries[j] = test_data[batch_items.get(j)];
+                    // Fetch the most similar items, in parallel over ranges
+                    // of the index for very large classes
+                    SimilarityParameters sp = (SimilarityParameters)parameters;
+                    TopKCollector [] similarities = idf == null ?
+                            ParallelSimilarity.jaccard(items, queries, 
+                                sp.getSimilarItemsToConsider(), 
+                                sp.getParallelSearchThreshold()) :
+                            ParallelSimilarity.cosine(items, 
+                                index.getPostings(), idf, defaultIdf, queries,
+                                sp.getSimilarItemsToConsider(), 
+                                sp.getParallelSearchThreshold());
+                    // For each of the items predicted in this batch
+                    for (int j = 0; j < queries.length; j++) {
+                        EncodedDataItem item = queries[j];
+                        // Sanity check
+                        if (item != null) {
+                            // Cache the most similar items, and aggregate 
+                            // their locations, falling back to the medoid if
+                            // there are no similar items
+                            SimilarityCache.Entry entry = cache.put(0, 
+                                    classId, item, items, similarities[j]);
+                            predictions.put(item.getId(), estimate(entry, 
+                                    parameters.getClassMapper().getMedoids().
+                                        get(classId)));
                         }
-                        // If there are no similar items found
                         else {
-                            // Fall back to medoid
+                            LOG.error("This should not happen!? {}", 
+                                    batch_items.get(j));
+                        }
+                    }
+                }
+                // If not - this should not happen? - fallback to medoid 
+                // prediction
+                else {
+                    // For each of the items predicted in this batch
+                    for (int i : batch.getItems()) {
+                        EncodedDataItem item = test_data[i];
+                        // Sanity check
+                        if (item != null) {
                             predictions.put(item.getId(), 
                                 parameters.getClassMapper().getMedoids().
                                     get(classId));
@@ -250,18 +415,9 @@ public class SimilarityReferencer extends AbstractReferencer {
                     }
                 }
             }
-            // If not - this should not happen? - fallback to medoid prediction
-            else {
-                // For each of the items predicted in this class
-                for (int i : items_for_this_class) {
-                    DataItem item = test_data[i];
-                    // Sanity check
-                    if (item != null) {
-                        predictions.put(item.getId(), 
-                            parameters.getClassMapper().getMedoids().
-                                get(classId));
-                    }
-                }
+            finally {
+                // Release the index after the last batch of the class
+                index.release();
             }
             return predictions;
         }
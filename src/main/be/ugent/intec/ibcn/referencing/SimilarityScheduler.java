@@ -0,0 +1,193 @@
+package be.ugent.intec.ibcn.referencing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.ugent.intec.ibcn.geo.common.datatypes.EncodedDataItem;
+import be.ugent.intec.ibcn.similarity.SimilarityParameters;
+import be.ugent.intec.ibcn.similarity.SimilarityStore;
+import be.ugent.intec.ibcn.similarity.TagDictionary;
+
+/**
+ * Scheduler that divides the similarity search over the classes into batches
+ * of roughly equal cost and orders them, most expensive first.
+ *
+ * The cost of processing a batch of test items is estimated as the number of
+ * training items in the index of the class times the number of test items in
+ * the batch. As classes vary by orders of magnitude in both numbers, the test
+ * items of expensive classes are split over multiple batches that share a
+ * single loaded index, while cheap classes are processed as a single batch.
+ * Submitting the most expensive batches first keeps the large classes from
+ * starting late and dominating the total processing time.
+ *
+ * @see SharedClassIndex
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class SimilarityScheduler {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(SimilarityScheduler.class);
+
+    /**
+     * Number of batches per thread to aim for. Using more batches than threads
+     * evens out the errors in the cost estimation.
+     */
+    private static final int BATCHES_PER_THREAD = 4;
+
+    /**
+     * The classes to schedule.
+     */
+    private List<SharedClassIndex> classes = new ArrayList<SharedClassIndex>();
+
+    /**
+     * Add a class to schedule.
+     * @param parameters Parameters of the level the class belongs to
+     * @param classId The ID of the class
+     * @param items Indices of the test items predicted in this class
+     * @param test_data Reference to the test data
+     * @param dictionary Dictionary used to encode the training items
+     */
+    public void addClass(SimilarityParameters parameters, int classId,
+            List<Integer> items, EncodedDataItem [] test_data,
+            TagDictionary dictionary) {
+        classes.add(new SharedClassIndex(parameters, classId, items,
+                test_data, dictionary));
+    }
+
+    /**
+     * Add a class of a given level to schedule.
+     * @param store The opened similarity store, or null to use the index
+     * file of the class
+     * @param level The level of the class, the level in the store if a store
+     * is used
+     * @param parameters Parameters of the level the class belongs to
+     * @param classId The ID of the class
+     * @param items Indices of the test items predicted in this class
+     * @param test_data Reference to the test data
+     * @param dictionary Dictionary used to encode the training items
+     */
+    public void addClass(SimilarityStore store, int level,
+            SimilarityParameters parameters, int classId, List<Integer> items,
+            EncodedDataItem [] test_data, TagDictionary dictionary) {
+        classes.add(new SharedClassIndex(store, level, parameters, classId,
+                items, test_data, dictionary));
+    }
+
+    /**
+     * Estimate the cost of processing a number of test items in a class.
+     * @param index The class index
+     * @param items The number of test items
+     * @return The estimated cost
+     */
+    private static long cost(SharedClassIndex index, int items) {
+        // Classes without an index still cost something per item
+        return (long)Math.max(index.size(), 1) * items;
+    }
+
+    /**
+     * Divide the classes into batches and order them by decreasing cost.
+     * @param threads The number of threads that will process the batches
+     * @return The list of batches, most expensive first.
+     */
+    public List<Batch> schedule(int threads) {
+        // Determine the total cost
+        long total = 0;
+        for (SharedClassIndex index : classes)
+            total += cost(index, index.getItems().size());
+        // Determine the cost to aim for per batch
+        long target = Math.max(1, total / (threads * BATCHES_PER_THREAD));
+        List<Batch> batches = new ArrayList<Batch>();
+        for (SharedClassIndex index : classes) {
+            List<Integer> items = index.getItems();
+            // Determine the number of batches for this class
+            long cost = cost(index, items.size());
+            int count = (int)Math.min(items.size(),
+                    Math.max(1, (cost + target - 1) / target));
+            // Split the items evenly over the batches
+            int batch_size = (items.size() + count - 1) / count;
+            for (int begin = 0; begin < items.size(); begin += batch_size) {
+                List<Integer> sublist = items.subList(begin,
+                        Math.min(begin + batch_size, items.size()));
+                index.register();
+                batches.add(new Batch(index, sublist,
+                        cost(index, sublist.size())));
+            }
+        }
+        // Most expensive batches first
+        Collections.sort(batches, new Comparator<Batch>() {
+
+            @Override
+            public int compare(Batch b1, Batch b2) {
+                if (b1.getCost() != b2.getCost())
+                    return b1.getCost() > b2.getCost() ? -1 : 1;
+                return b1.getIndex().getClassId() - b2.getIndex().getClassId();
+            }
+        });
+        LOG.info("Scheduled {} classes in {} batches, target cost per batch: {}",
+                classes.size(), batches.size(), target);
+        return batches;
+    }
+
+    /**
+     * A batch of test items of a single class, to process using the shared
+     * index of that class.
+     */
+    public static class Batch {
+
+        /**
+         * The shared index of the class.
+         */
+        private SharedClassIndex index;
+
+        /**
+         * @return the shared index of the class.
+         */
+        public SharedClassIndex getIndex() {
+            return this.index;
+        }
+
+        /**
+         * Indices of the test items in this batch.
+         */
+        private List<Integer> items;
+
+        /**
+         * @return the indices of the test items in this batch.
+         */
+        public List<Integer> getItems() {
+            return this.items;
+        }
+
+        /**
+         * The estimated cost of this batch.
+         */
+        private long cost;
+
+        /**
+         * @return the estimated cost of this batch.
+         */
+        public long getCost() {
+            return this.cost;
+        }
+
+        /**
+         * Constructor.
+         * @param index The shared index of the class
+         * @param items Indices of the test items in this batch
+         * @param cost The estimated cost of this batch
+         */
+        public Batch(SharedClassIndex index, List<Integer> items, long cost) {
+            this.index = index;
+            this.items = items;
+            this.cost = cost;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package be.ugent.intec.ibcn.similarity;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.ugent.intec.ibcn.geo.common.Util;
+import be.ugent.intec.ibcn.geo.common.datatypes.DataItem;
+import be.ugent.intec.ibcn.geo.common.datatypes.Point;
+import be.ugent.intec.ibcn.geo.common.interfaces.LineParser;
+import be.ugent.intec.ibcn.geo.common.io.ChunkedLineReader;
+import be.ugent.intec.ibcn.geo.common.io.FileIO;
+
+/**
+ * ClassAssignmentScanner: runs through the training data once, on the fly,
+ * and determines to which class of one or more clusterings (levels) each
+ * training item belongs.
+ *
+ * The training file is split into byte ranges (chunks), aligned on line
+ * boundaries, so that each thread reads and processes its own part of the
+ * file. Each chunk keeps the class assignments of its own lines, in line
+ * order, and the chunks are concatenated afterwards. The assignments are
+ * keyed by line position, so the IDs of the training items can be
+ * arbitrary.
+ *
+ * While scanning, the document frequencies of the features of the items
+ * that are assigned to a class at any level are counted.
+ *
+ * The parameters of all levels should share the same training file, training
+ * parser and training limit.
+ *
+ * @see SimilarityIndexer
+ * @see MultiLevelSimilarityIndexer
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+class ClassAssignmentScanner {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(ClassAssignmentScanner.class);
+
+    /**
+     * Constant containing the number of processors available in the system.
+     */
+    protected static final int NR_THREADS =
+            Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Constant holding the number of chunks each thread processes on average
+     * when scanning the training data. Using more chunks than threads evens
+     * out the differences in processing time between the chunks.
+     */
+    protected static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Parameters for similarity indexing, one for each level.
+     */
+    private List<SimilarityParameters> parameters;
+
+    /**
+     * The number of training items in each class, for each level.
+     */
+    private int [][] class_count;
+
+    /**
+     * @return the number of training items in each class, for each level.
+     */
+    public int[][] getClassCounts() {
+        return this.class_count;
+    }
+
+    /**
+     * The document frequencies of the features of the training items that
+     * are assigned to a class at any level.
+     */
+    private IndexWeights weights;
+
+    /**
+     * @return the document frequencies of the features of the training items
+     * that are assigned to a class at any level.
+     */
+    public IndexWeights getWeights() {
+        return this.weights;
+    }
+
+    /**
+     * Constructor.
+     * @param parameters Parameters to use for similarity indexing, one for
+     * each level. All should share the same training file.
+     */
+    public ClassAssignmentScanner(List<SimilarityParameters> parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * Run through the training data and determine to which class each line
+     * belongs, for each of the levels.
+     * @return for each level, an array holding the class assignment for each
+     * line of the training file, including the line count on the first line,
+     * or -1 if the line was not assigned to a class
+     * @throws IOException if the training file, or any of its chunks, could
+     * not be scanned
+     */
+    public int[][] scan() throws IOException {
+        // Start a timer
+        long t1 = System.currentTimeMillis();
+        SimilarityParameters sp = parameters.get(0);
+        int levels = parameters.size();
+        // Fetch the number of lines to process
+        int lines = FileIO.getNumberOfLines(sp.getTrainingFile());
+        // Determine the number of lines to process in case a limit was set
+        if (sp.getTrainingLimit() > 0 && sp.getTrainingLimit() < lines)
+            lines = sp.getTrainingLimit();
+        // Determine the byte range to process, +1 to account for the
+        // line count on the first line
+        long length = (lines == sp.getTrainingLimit()) ?
+                ChunkedLineReader.getOffsetOfLine(
+                    sp.getTrainingFile(), lines + 1) :
+                new File(sp.getTrainingFile()).length();
+        // Split the input in chunks
+        long [] boundaries = ChunkedLineReader.split(length,
+                NR_THREADS * CHUNKS_PER_THREAD);
+        // Prepare a thread pool
+        ExecutorService executor = Executors.newFixedThreadPool(NR_THREADS);
+        // Prepare a list for the futures
+        List<Future<int[][]>> list = new ArrayList<Future<int[][]>>();
+        List<ScanHelper> workers = new ArrayList<ScanHelper>();
+        // For each of the chunks
+        for (int i = 0; i < boundaries.length - 1; i++) {
+            // Create callable, track future, submit
+            ScanHelper worker = new ScanHelper(boundaries[i],
+                    boundaries[i + 1]);
+            list.add(executor.submit(worker));
+            workers.add(worker);
+        }
+        // Prepare the class counts of each level
+        this.class_count = new int[levels][];
+        for (int level = 0; level < levels; level++)
+            class_count[level] = new int[parameters.get(level).
+                    getClassMapper().size()];
+        int assigned = 0;
+        int counter = 0;
+        // Now retrieve the results
+        for (Future<int[][]> future : list) {
+            try {
+                // Gather the local class counts of each level
+                int [][] local_count = future.get();
+                for (int level = 0; level < levels; level++) {
+                    for (int classId = 0; classId < local_count[level].length;
+                            classId++) {
+                        class_count[level][classId] +=
+                                local_count[level][classId];
+                        assigned += local_count[level][classId];
+                    }
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                throw new IOException("Scan interrupted", e);
+            } catch (ExecutionException e) {
+                // A missing chunk would shift the class of every later line
+                executor.shutdownNow();
+                throw new IOException("Scan of a chunk failed: " +
+                        e.getCause().getMessage(), e.getCause());
+            }
+            // Report progress
+            if (++counter % NR_THREADS == 0)
+                LOG.info("{}/{} chunks", counter, list.size());
+        }
+        // This will make the executor accept no new threads
+        // and finish all existing threads in the queue
+        executor.shutdown();
+        // Gather the class assignments and the document frequencies of the
+        // chunks, in line order
+        this.weights = new IndexWeights();
+        int [][] line_class = new int[levels][lines + 1];
+        int position = 0;
+        int noTags = 0;
+        for (ScanHelper worker : workers) {
+            int count = Math.min(worker.getLineCount(), lines + 1 - position);
+            for (int level = 0; level < levels; level++)
+                System.arraycopy(worker.getLineClasses()[level], 0,
+                        line_class[level], position, count);
+            position += count;
+            noTags += worker.getNoTags();
+            weights.addAll(worker.getWeights());
+        }
+        // Lines beyond the last chunk are not in a class
+        for (int level = 0; level < levels; level++)
+            Arrays.fill(line_class[level], position, lines + 1, -1);
+        // Report some stats
+        LOG.info("Training data without tags: {}", noTags);
+        LOG.info("Scan time: {}, class assignments: {}",
+        		(System.currentTimeMillis() - t1), assigned);
+        return line_class;
+    }
+
+    /**
+     * Callable that processes a byte range of the training data to find out to
+     * which class a given line belongs, for each of the levels.
+     */
+    private class ScanHelper implements Callable<int[][]> {
+
+        /**
+         * Start of the byte range this callable processes.
+         */
+        private long start;
+
+        /**
+         * End of the byte range (exclusive) this callable processes.
+         */
+        private long end;
+
+        /**
+         * Class assignment of each line this callable processed, for each
+         * level, in line order, -1 if the line was not assigned to a class.
+         */
+        private int [][] line_class;
+
+        /**
+         * @return the class assignment of each line this callable processed,
+         * for each level, in line order. Only the first getLineCount() values
+         * are valid.
+         */
+        public int [][] getLineClasses() {
+            return this.line_class;
+        }
+
+        /**
+         * Number of lines this callable processed.
+         */
+        private int lineCount = 0;
+
+        /**
+         * @return the number of lines this callable processed.
+         */
+        public int getLineCount() {
+            return this.lineCount;
+        }
+
+        /**
+         * Number of training items without tags in the lines this callable
+         * processed.
+         */
+        private int noTags = 0;
+
+        /**
+         * @return the number of training items without tags in the lines
+         * this callable processed.
+         */
+        public int getNoTags() {
+            return this.noTags;
+        }
+
+        /**
+         * Document frequencies of the features of the items in a class.
+         */
+        private IndexWeights weights = new IndexWeights();
+
+        /**
+         * @return the document frequencies of the features of the items in
+         * a class at any level, in the lines this callable processed.
+         */
+        public IndexWeights getWeights() {
+            return this.weights;
+        }
+
+        /**
+         * Constructor.
+         * @param start Start of the byte range this callable processes
+         * @param end End of the byte range this callable processes
+         */
+        public ScanHelper(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.line_class = new int[parameters.size()][1024];
+        }
+
+        /**
+         * Call implementation
+         * @return For each level, an array containing the number of lines in
+         * each class for the lines this callable processed. The class
+         * assignments themselves are kept per line, @see getLineClasses()
+         * @throws Exception if the chunk could not be processed completely,
+         * the scan then fails as a whole
+         */
+        @Override
+        public int[][] call() throws Exception {
+            int levels = parameters.size();
+            // Prepare the local class counts
+            int [][] class_count = new int[levels][];
+            for (int level = 0; level < levels; level++)
+                class_count[level] = new int[parameters.get(level).
+                        getClassMapper().size()];
+            // Get the parser
+            LineParser parser = Util.getParser(
+                    parameters.get(0).getTrainingParser());
+            // Open our own part of the input data
+            ChunkedLineReader in = new ChunkedLineReader(
+                    parameters.get(0).getTrainingFile(), start, end);
+            try {
+                String line = in.readLine();
+                while (line != null) {
+                    // Make room for the class assignments of this line
+                    if (lineCount == line_class[0].length)
+                        for (int level = 0; level < levels; level++)
+                            line_class[level] = Arrays.copyOf(
+                                    line_class[level], lineCount * 2);
+                    // The first line of the file holds the line count
+                    Point item = (start == 0 && lineCount == 0) ? null :
+                            parser.parse(line);
+                    boolean assigned = false;
+                    // Assign the item at each of the levels
+                    for (int level = 0; level < levels; level++) {
+                        int classId = -1;
+                        // If we have an item with features
+                        if (item != null)
+                            classId = parameters.get(level).getClassMapper().
+                                    findClassId(item);
+                        if (classId >= 0) {
+                            // Manage the item count in this class
+                            class_count[level][classId]++;
+                            assigned = true;
+                        }
+                        line_class[level][lineCount] = classId;
+                    }
+                    // Count the features of the items in a class
+                    if (assigned && item instanceof DataItem)
+                        weights.add((DataItem)item);
+                    if (item == null && (start > 0 || lineCount > 0))
+                        noTags++;
+                    lineCount++;
+                    line = in.readLine();
+                }
+            }
+            finally {
+                in.close();
+            }
+            // Return the result
+            return class_count;
+        }
+    }
+}
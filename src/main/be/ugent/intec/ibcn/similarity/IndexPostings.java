@@ -0,0 +1,398 @@
+package be.ugent.intec.ibcn.similarity;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+import be.ugent.intec.ibcn.geo.common.Util;
+import be.ugent.intec.ibcn.geo.common.datatypes.DataItem;
+import be.ugent.intec.ibcn.geo.common.interfaces.LineParser;
+import be.ugent.intec.ibcn.geo.common.io.ChunkedLineReader;
+
+/**
+ * Feature postings for the index file of a single class.
+ *
+ * The postings file is stored next to the index file and contains the byte
+ * offset of every item line in the index file, and a hash table that maps
+ * (the hash of) each feature to the items that contain it. Given the set of
+ * features of the test items, this allows to find the training items that
+ * share at least one feature with a test item, and to parse only those lines
+ * of the index, instead of the entire class.
+ *
+ * As features are stored by their hash, a lookup can return some items that
+ * do not contain any of the features. These are filtered out by the parser.
+ *
+ * When the feature weights of the index are known, the norms of the weight
+ * vectors of the items are written along with the postings, @see IndexWeights.
+ *
+ * The format of the postings file is:
+ *  items (int), buckets (int)
+ *  offsets of the item lines (long * items)
+ *  start of the postings of each bucket (int * (buckets + 1))
+ *  postings, ascending item numbers per bucket (int * postings)
+ *
+ * @see SimilarityIndexer
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class IndexPostings {
+
+    /**
+     * Extension of the postings file, appended to the name of the index file.
+     */
+    public static final String EXTENSION = ".postings";
+
+    /**
+     * Size of the header, in bytes.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Memory mapped postings file.
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * Number of items in the index.
+     */
+    private int items;
+
+    /**
+     * @return the number of items in the index.
+     */
+    public int size() {
+        return this.items;
+    }
+
+    /**
+     * Number of buckets of the hash table, a power of two.
+     */
+    private int buckets;
+
+    /**
+     * Filename of the index file.
+     */
+    private String indexFile;
+
+    /**
+     * Get the name of the postings file for a given index file.
+     * @param indexFile Filename of the index file
+     * @return the filename of the postings file
+     */
+    public static String getPostingsFile(String indexFile) {
+        return indexFile + EXTENSION;
+    }
+
+    /**
+     * Open the postings of a given index file.
+     * @param indexFile Filename of the index file
+     * @return The postings, or null if there are no postings for the index.
+     * @throws IOException
+     */
+    public static IndexPostings open(String indexFile) throws IOException {
+        File file = new File(getPostingsFile(indexFile));
+        if (!file.exists())
+            return null;
+        return new IndexPostings(file, indexFile);
+    }
+
+    /**
+     * Constructor.
+     * @param file The postings file
+     * @param indexFile Filename of the index file
+     * @throws IOException
+     */
+    private IndexPostings(File file, String indexFile) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            this.buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, in.length());
+        }
+        finally {
+            in.close();
+        }
+        this.items = buffer.getInt(0);
+        this.buckets = buffer.getInt(4);
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Determine the hash table bucket of a feature.
+     * @param feature The feature
+     * @param buckets The number of buckets, a power of two
+     * @return The bucket of the feature
+     */
+    static int bucket(String feature, int buckets) {
+        return bucket(feature.hashCode(), buckets);
+    }
+
+    /**
+     * @param item The number of an item
+     * @return The byte offset of the line of the item in the index file.
+     */
+    public long getOffset(int item) {
+        return buffer.getLong(HEADER_SIZE + 8 * item);
+    }
+
+    /**
+     * Find the items that possibly share at least one feature with the given
+     * set of features.
+     * @param filter Set of features
+     * @return A BitSet with the numbers of the candidate items.
+     */
+    public BitSet getCandidates(Set<String> filter) {
+        BitSet candidates = new BitSet(items);
+        int bucketTable = HEADER_SIZE + 8 * items;
+        int postings = bucketTable + 4 * (buckets + 1);
+        for (String feature : filter) {
+            int b = bucket(feature, buckets);
+            int start = buffer.getInt(bucketTable + 4 * b);
+            int end = buffer.getInt(bucketTable + 4 * (b + 1));
+            for (int i = start; i < end; i++)
+                candidates.set(buffer.getInt(postings + 4 * i));
+        }
+        return candidates;
+    }
+
+    /**
+     * Read the lines of the items that possibly share at least one feature
+     * with the given set of features, without reading the other lines.
+     * @param filter Set of features
+     * @return The lines of the candidate items, in the order of the index.
+     * @throws IOException
+     */
+    public List<String> readCandidates(Set<String> filter) throws IOException {
+        return readLines(getCandidates(filter));
+    }
+
+    /**
+     * Read the lines of a set of items, without reading the other lines.
+     * @param candidates The numbers of the items to read
+     * @return The lines of the items, in the order of the index.
+     * @throws IOException
+     */
+    public List<String> readLines(BitSet candidates) throws IOException {
+        int [] numbers = new int[candidates.cardinality()];
+        int count = 0;
+        for (int item = candidates.nextSetBit(0); item >= 0;
+                item = candidates.nextSetBit(item + 1))
+            numbers[count++] = item;
+        return readLines(numbers);
+    }
+
+    /**
+     * Read the lines of a set of items, without reading the other lines.
+     * @param numbers The ascending numbers of the items to read
+     * @return The lines of the items, in the order of the index.
+     * @throws IOException
+     */
+    public List<String> readLines(int [] numbers) throws IOException {
+        List<String> lines = new ArrayList<String>(numbers.length);
+        RandomAccessFile in = new RandomAccessFile(indexFile, "r");
+        try {
+            long length = in.length();
+            byte [] line = new byte[256];
+            for (int item : numbers) {
+                // The line ends where the next one starts
+                long begin = getOffset(item);
+                long end = item + 1 < items ? getOffset(item + 1) : length;
+                int size = (int)(end - begin);
+                if (line.length < size)
+                    line = new byte[size * 2];
+                in.seek(begin);
+                in.readFully(line, 0, size);
+                // Strip the line terminator
+                while (size > 0 && (line[size - 1] == '\n' ||
+                        line[size - 1] == '\r'))
+                    size--;
+                lines.add(new String(line, 0, size, Charset.defaultCharset()));
+            }
+        }
+        finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Create the postings file for a given index file.
+     * @param indexFile Filename of the index file
+     * @param lineparser Parser class to use to parse the index, the parser
+     * should return DataItems with String features
+     * @throws IOException
+     */
+    public static void create(String indexFile, String lineparser)
+            throws IOException {
+        create(indexFile, lineparser, null);
+    }
+
+    /**
+     * Create the postings file for a given index file, along with the norms
+     * of the weight vectors of the items.
+     * @param indexFile Filename of the index file
+     * @param lineparser Parser class to use to parse the index, the parser
+     * should return DataItems with String features
+     * @param weights The feature weights of the index, or null to only 
+     * create the postings
+     * @throws IOException
+     * @see IndexWeights
+     */
+    public static void create(String indexFile, String lineparser,
+            IndexWeights weights) throws IOException {
+        LineParser parser = Util.getParser(lineparser);
+        // Gather the offsets of the lines, and the feature hashes per item
+        long [] offsets = new long[1024];
+        double [] norms = weights == null ? null : new double[1024];
+        int [] hashes = new int[4096];
+        int [] owners = new int[4096];
+        int items = 0;
+        int occurrences = 0;
+        ChunkedLineReader in = new ChunkedLineReader(indexFile, 0,
+                Long.MAX_VALUE);
+        try {
+            // skip the line count on line one
+            in.readLine();
+            long offset = in.getPosition();
+            String line = in.readLine();
+            while (line != null) {
+                if (items == offsets.length) {
+                    offsets = grow(offsets);
+                    if (norms != null)
+                        norms = Arrays.copyOf(norms, offsets.length);
+                }
+                offsets[items] = offset;
+                DataItem item = (DataItem)parser.parse(line);
+                if (norms != null && item != null)
+                    norms[items] = weights.norm(item.getData());
+                if (item != null && item.getData() != null) {
+                    for (Object f : item.getData()) {
+                        if (occurrences == hashes.length) {
+                            hashes = grow(hashes);
+                            owners = grow(owners);
+                        }
+                        hashes[occurrences] = ((String)f).hashCode();
+                        owners[occurrences] = items;
+                        occurrences++;
+                    }
+                }
+                items++;
+                offset = in.getPosition();
+                line = in.readLine();
+            }
+        }
+        finally {
+            in.close();
+        }
+        // Build the hash table of the postings
+        int [] table = table(hashes, owners, occurrences);
+        // Write the postings file
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(getPostingsFile(indexFile))));
+        try {
+            out.writeInt(items);
+            out.writeInt(table[0]);
+            for (int i = 0; i < items; i++)
+                out.writeLong(offsets[i]);
+            for (int i = 1; i < table.length; i++)
+                out.writeInt(table[i]);
+        }
+        finally {
+            out.close();
+        }
+        // Write the norms of the items
+        if (norms != null)
+            IndexWeights.writeNorms(indexFile, norms, items);
+    }
+
+    /**
+     * Build the hash table that maps the feature hashes to the items.
+     * @param hashes The feature hash of each occurrence of a feature
+     * @param owners The item of each occurrence, in ascending order
+     * @param occurrences The number of occurrences
+     * @return The number of buckets, followed by the start of the postings of
+     * each bucket (buckets + 1) and the postings, ascending item numbers per
+     * bucket.
+     */
+    static int[] table(int [] hashes, int [] owners, int occurrences) {
+        // Determine the number of buckets
+        int buckets = 16;
+        while (buckets < occurrences / 2)
+            buckets <<= 1;
+        // Count the postings per bucket, an item is only added once to a
+        // bucket, as the items are added in ascending order
+        int [] start = new int[buckets + 1];
+        int [] last = new int[buckets];
+        Arrays.fill(last, -1);
+        int [] bucketOf = new int[occurrences];
+        int postings = 0;
+        for (int i = 0; i < occurrences; i++) {
+            int b = bucket(hashes[i], buckets);
+            if (last[b] != owners[i]) {
+                last[b] = owners[i];
+                bucketOf[i] = b;
+                start[b + 1]++;
+                postings++;
+            }
+            else
+                bucketOf[i] = -1;
+        }
+        for (int b = 0; b < buckets; b++)
+            start[b + 1] += start[b];
+        // Fill the buckets, after the number of buckets and their starts
+        int [] table = new int[buckets + 2 + postings];
+        table[0] = buckets;
+        System.arraycopy(start, 0, table, 1, buckets + 1);
+        int [] fill = new int[buckets];
+        for (int b = 0; b < buckets; b++)
+            fill[b] = buckets + 2 + start[b];
+        for (int i = 0; i < occurrences; i++)
+            if (bucketOf[i] >= 0)
+                table[fill[bucketOf[i]]++] = owners[i];
+        return table;
+    }
+
+    /**
+     * Determine the hash table bucket of a feature hash.
+     * @param hash The hash of the feature
+     * @param buckets The number of buckets, a power of two
+     * @return The bucket of the feature
+     */
+    static int bucket(int hash, int buckets) {
+        int h = hash;
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h & (buckets - 1);
+    }
+
+    /**
+     * @param values An array
+     * @return A copy of the array with twice the length.
+     */
+    private static long[] grow(long [] values) {
+        long [] larger = new long[values.length * 2];
+        System.arraycopy(values, 0, larger, 0, values.length);
+        return larger;
+    }
+
+    /**
+     * @param values An array
+     * @return A copy of the array with twice the length.
+     */
+    private static int[] grow(int [] values) {
+        int [] larger = new int[values.length * 2];
+        System.arraycopy(values, 0, larger, 0, values.length);
+        return larger;
+    }
+}
@@ -0,0 +1,281 @@
+package be.ugent.intec.ibcn.similarity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import be.ugent.intec.ibcn.geo.common.datatypes.DataItem;
+
+/**
+ * Feature weights for the cosine similarity measure.
+ *
+ * Features (tags) are weighted by their inverse document frequency (idf), so
+ * rare features weigh more than common features. As the features of an item
+ * form a set, the weight vector of an item holds the idf of each of its
+ * distinct features. The weight vectors are therefore fully determined by
+ * the document frequencies of the features, which are counted over the
+ * indexed training items at index time, and stored once in the weights file
+ * in the directory of the index. The norm of the weight vector of each
+ * training item is precomputed and stored next to each index file, in the
+ * order of the items in the index file, so the cosine similarity only needs
+ * the dot product over the shared features at query time.
+ *
+ * The idf of a feature is smoothed as ln((N + 1) / (df + 1)) + 1, with N the
+ * number of indexed items, so features that were not seen at index time
+ * (e.g. in appended training items or test items) still have a weight.
+ *
+ * The format of the weights file is:
+ *  items (int), features (int)
+ *  feature (UTF), document frequency (int), for each feature
+ *
+ * The format of a norms file is:
+ *  items (int)
+ *  norms (double * items)
+ *
+ * @see Similarity
+ * @see IndexPostings
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class IndexWeights {
+
+    /**
+     * Name of the weights file, in the directory of the index.
+     */
+    public static final String WEIGHTS_FILE = "weights";
+
+    /**
+     * Extension of the norms file, appended to the name of the index file.
+     */
+    public static final String NORMS_EXTENSION = ".norms";
+
+    /**
+     * Number of items the document frequencies were counted on.
+     */
+    private int items = 0;
+
+    /**
+     * @return the number of items the document frequencies were counted on.
+     */
+    public int size() {
+        return this.items;
+    }
+
+    /**
+     * Document frequency of each feature.
+     */
+    private Map<String, int[]> frequencies = new HashMap<String, int[]>();
+
+    /**
+     * Count the distinct features of an item.
+     * @param item DataItem with String features
+     */
+    public void add(DataItem item) {
+        items++;
+        Object [] data = item.getData();
+        if (data == null)
+            return;
+        for (int i = 0; i < data.length; i++) {
+            if (isDuplicate(data, i))
+                continue;
+            int [] df = frequencies.get((String)data[i]);
+            if (df == null)
+                frequencies.put((String)data[i], new int[]{1});
+            else
+                df[0]++;
+        }
+    }
+
+    /**
+     * Add the document frequencies counted on another set of items.
+     * @param other The document frequencies of the other items
+     */
+    public void addAll(IndexWeights other) {
+        items += other.items;
+        for (Map.Entry<String, int[]> e : other.frequencies.entrySet()) {
+            int [] df = frequencies.get(e.getKey());
+            if (df == null)
+                frequencies.put(e.getKey(), new int[]{e.getValue()[0]});
+            else
+                df[0] += e.getValue()[0];
+        }
+    }
+
+    /**
+     * @param data Features of an item
+     * @param i Index of a feature
+     * @return true if the feature also occurs earlier in the features.
+     */
+    private static boolean isDuplicate(Object [] data, int i) {
+        for (int j = 0; j < i; j++)
+            if (data[j].equals(data[i]))
+                return true;
+        return false;
+    }
+
+    /**
+     * @param df A document frequency
+     * @return the smoothed idf for the given document frequency.
+     */
+    private double idf(int df) {
+        return Math.log((items + 1.0) / (df + 1.0)) + 1;
+    }
+
+    /**
+     * @param feature A String feature
+     * @return the idf of the given feature.
+     */
+    public double idf(String feature) {
+        int [] df = frequencies.get(feature);
+        return idf(df == null ? 0 : df[0]);
+    }
+
+    /**
+     * @return the idf of a feature that was not seen at index time.
+     */
+    public double getDefaultIdf() {
+        return idf(0);
+    }
+
+    /**
+     * Determine the idf of the features of a dictionary.
+     * @param dictionary The dictionary
+     * @return the idf of each feature, indexed by the ID of the feature in
+     * the dictionary.
+     */
+    public double[] idf(TagDictionary dictionary) {
+        double [] result = new double[dictionary.size()];
+        for (int id = 0; id < result.length; id++)
+            result[id] = idf(dictionary.getFeature(id));
+        return result;
+    }
+
+    /**
+     * Determine the norm of the weight vector of an item.
+     * @param data Features of the item
+     * @return the norm of the weight vector of the item.
+     */
+    public double norm(Object [] data) {
+        if (data == null)
+            return 0;
+        double sum = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (isDuplicate(data, i))
+                continue;
+            double w = idf((String)data[i]);
+            sum += w * w;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Write the document frequencies to file.
+     * @param filename The weights file
+     * @throws IOException
+     */
+    public void write(String filename) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(filename)));
+        try {
+            out.writeInt(items);
+            out.writeInt(frequencies.size());
+            for (Map.Entry<String, int[]> e : frequencies.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue()[0]);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load the document frequencies from file.
+     * @param filename The weights file
+     * @return The weights, or null if there is no weights file.
+     * @throws IOException
+     */
+    public static IndexWeights load(String filename) throws IOException {
+        File file = new File(filename);
+        if (!file.exists())
+            return null;
+        IndexWeights weights = new IndexWeights();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            weights.items = in.readInt();
+            int features = in.readInt();
+            weights.frequencies = new HashMap<String, int[]>(features * 2);
+            for (int i = 0; i < features; i++)
+                weights.frequencies.put(in.readUTF(), new int[]{in.readInt()});
+        }
+        finally {
+            in.close();
+        }
+        return weights;
+    }
+
+    /**
+     * Get the name of the norms file for a given index file.
+     * @param indexFile Filename of the index file
+     * @return the filename of the norms file
+     */
+    public static String getNormsFile(String indexFile) {
+        return indexFile + NORMS_EXTENSION;
+    }
+
+    /**
+     * Write the norms of the items of an index file.
+     * @param indexFile Filename of the index file
+     * @param norms The norm of each item, in the order of the index file
+     * @param items The number of items
+     * @throws IOException
+     */
+    public static void writeNorms(String indexFile, double [] norms,
+            int items) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(getNormsFile(indexFile))));
+        try {
+            out.writeInt(items);
+            for (int i = 0; i < items; i++)
+                out.writeDouble(norms[i]);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Open the norms of the items of an index file.
+     * @param indexFile Filename of the index file
+     * @return The memory mapped norms, indexed by the number of the item in
+     * the index file, or null if there are no norms for the index.
+     * @throws IOException
+     */
+    public static DoubleBuffer openNorms(String indexFile) throws IOException {
+        File file = new File(getNormsFile(indexFile));
+        if (!file.exists())
+            return null;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = in.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, in.length());
+            buffer.position(4);
+            return buffer.slice().asDoubleBuffer();
+        }
+        finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package be.ugent.intec.ibcn.similarity;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.ugent.intec.ibcn.geo.common.ClassMapper;
+import be.ugent.intec.ibcn.geo.common.Util;
+import be.ugent.intec.ibcn.geo.common.datatypes.DataItem;
+import be.ugent.intec.ibcn.geo.common.datatypes.Point;
+import be.ugent.intec.ibcn.geo.common.interfaces.LineParser;
+import be.ugent.intec.ibcn.geo.common.io.FileIO;
+
+/**
+ * MultiLevelSimilarityIndexer: creates a single similarity store on file for
+ * multiple clusterings (levels) of the same training data at once.
+ *
+ * Where the SimilarityIndexer writes a copy of the training items grouped by
+ * the classes of a single clustering, the indices of the different levels
+ * only differ in the way the same training items are grouped. This indexer
+ * determines the classes of all the levels in a single scan over the training
+ * data, stores each training item only once and keeps a table per level that
+ * lists the items in each class. The feature postings of the stored items
+ * are used to load only the training items of a class that share features
+ * with the test items.
+ *
+ * The store directory contains the following files:
+ *  items: the training items that are in a class of at least one level, in
+ *  the order of the training file, preceded by the number of items
+ *  items.postings: the feature postings of the items, @see IndexPostings
+ *  items.norms: the norms of the weight vectors of the items
+ *  weights: the document frequencies of the features of the items, 
+ *  @see IndexWeights
+ *  level.[level]: for each level, the number of classes (int), the start of
+ *  the items of each class (int * (classes + 1)), followed by the ascending
+ *  item numbers per class (int * items)
+ *  level.[level].postings: for each level, the number of classes (int), the
+ *  start of the postings of each class (int * (classes + 1)), followed by the
+ *  feature postings of each class, in the format of the hash table of the
+ *  IndexPostings, that refer to the items by their position in the class.
+ *  This allows to find the candidate items of a class without looking at
+ *  the items of the other classes.
+ *
+ * The parameters of all levels should share the same training file, training
+ * parser and training limit.
+ *
+ * The store is read back by the @see SimilarityStore.
+ *
+ * @see SimilarityIndexer
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class MultiLevelSimilarityIndexer {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(MultiLevelSimilarityIndexer.class);
+
+    /**
+     * Name of the file holding the training items in the store.
+     */
+    public static final String ITEMS_FILE = "items";
+
+    /**
+     * Prefix of the files holding the class tables of the levels.
+     */
+    public static final String LEVEL_FILE = "level.";
+
+    /**
+     * Parameters for similarity indexing, one for each level.
+     */
+    private List<SimilarityParameters> parameters;
+
+    /**
+     * Directory of the similarity store.
+     */
+    private String directory;
+
+    /**
+     * Constructor.
+     * @param parameters Parameters to use for similarity indexing, one for
+     * each level. All should share the same training file.
+     * @param directory Directory of the similarity store
+     */
+    public MultiLevelSimilarityIndexer(List<SimilarityParameters> parameters,
+            String directory) {
+        if (parameters == null || parameters.isEmpty())
+            throw new RuntimeException("Please provide valid Similarity "
+                    + "Parameters.");
+        for (SimilarityParameters sp : parameters) {
+            if (!sp.getTrainingFile().equals(
+                    parameters.get(0).getTrainingFile()))
+                throw new RuntimeException("All levels should share the same "
+                        + "training file.");
+        }
+        this.parameters = parameters;
+        this.directory = directory;
+    }
+
+    /**
+     * Actual similarity indexing.
+     */
+    public void index() {
+        // Run through the training data once, and determine to which class
+        // each line belongs, for each of the levels
+        int [][] line_class = null;
+        IndexWeights weights = null;
+        try {
+            // Print some info
+            LOG.info("Scanning classIds for {} levels from {}",
+                    parameters.size(), parameters.get(0).getTrainingFile());
+            ClassAssignmentScanner scanner =
+                    new ClassAssignmentScanner(parameters);
+            line_class = scanner.scan();
+            weights = scanner.getWeights();
+        }
+        catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+        // Write the training items and the class tables of the levels
+        createStore(line_class, weights);
+        // Cached search results of a previous store are no longer valid
+        for (int level = 0; level < parameters.size(); level++)
+            new File(getCacheFile(directory, level)).delete();
+    }
+
+    /**
+     * Run through the training data once more, and write each training item
+     * that is assigned to a class in at least one of the levels to the store.
+     * Then write the class table of each level, and the feature postings.
+     * @param line_class for each level, an array holding the class assignment
+     * for each line of the training file, including the line count on the
+     * first line
+     * @param weights the document frequencies of the features of the items
+     * to store
+     */
+    private void createStore(int [][] line_class, IndexWeights weights) {
+        // Start a timer
+        long t1 = System.currentTimeMillis();
+        SimilarityParameters sp = parameters.get(0);
+        int levels = line_class.length;
+        // Determine which lines to store, and the number of items to store
+        BitSet assigned = new BitSet(line_class[0].length);
+        for (int level = 0; level < levels; level++)
+            for (int position = 0; position < line_class[level].length;
+                    position++)
+                if (line_class[level][position] >= 0)
+                    assigned.set(position);
+        int items = assigned.cardinality();
+        // The class of each stored item, for each of the levels
+        int [][] item_class = new int[levels][items];
+        int stored = 0;
+        // The feature hashes of the stored items, and the first hash of each
+        // stored item
+        int [] hashes = new int[4096];
+        int [] first = new int[items + 1];
+        int occurrences = 0;
+        try {
+            // Prepare the directory of the store
+            new File(directory).mkdirs();
+            PrintWriter out = new PrintWriter(new FileWriter(
+                    getItemsFile(directory)));
+            // Start the file with the number of items
+            out.println(items);
+            // Read the input data
+            BufferedReader in = new BufferedReader(
+                    new FileReader(sp.getTrainingFile()));
+            // skip the line count
+            in.readLine();
+            LineParser parser = Util.getParser(sp.getTrainingParser());
+            int counter = 0;
+            String line = in.readLine();
+            while (line != null && stored < items) {
+                // Check whether the line is in a class at any level, +1 to
+                // account for the line count on the first line
+                if (assigned.get(counter + 1)) {
+                    // Store the item, only once
+                    out.println(line);
+                    for (int level = 0; level < levels; level++)
+                        item_class[level][stored] =
+                                line_class[level][counter + 1];
+                    // Keep the feature hashes for the class postings
+                    first[stored] = occurrences;
+                    Point item = parser.parse(line);
+                    if (item instanceof DataItem &&
+                            ((DataItem)item).getData() != null) {
+                        for (Object f : ((DataItem)item).getData()) {
+                            if (occurrences == hashes.length)
+                                hashes = Arrays.copyOf(hashes,
+                                        occurrences * 2);
+                            hashes[occurrences++] = ((String)f).hashCode();
+                        }
+                    }
+                    stored++;
+                }
+                line = in.readLine();
+                // report progress after 1M items
+                if (++counter % 1000000 == 0)
+                    LOG.info("{}\ttraining items stored: {}", counter, stored);
+            }
+            in.close();
+            out.close();
+            first[stored] = occurrences;
+            // Write the class table and the class postings of each of the
+            // levels
+            for (int level = 0; level < levels; level++)
+                writeLevel(level, item_class[level], stored,
+                        parameters.get(level).getClassMapper(), hashes, first);
+            // Store the feature weights, and create the feature postings and
+            // the norms of the stored items
+            weights.write(getWeightsFile(directory));
+            IndexPostings.create(getItemsFile(directory),
+                    sp.getTrainingParser(), weights);
+        }
+        catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+        LOG.info("Stored {} training items for {} levels. [ {} ms.]", stored,
+                levels, (System.currentTimeMillis() - t1));
+    }
+
+    /**
+     * Write the class table and the class postings of a level.
+     * @param level The level
+     * @param item_class The class of each stored item at this level
+     * @param items The number of stored items
+     * @param classMapper The class mapper of the level
+     * @param hashes The feature hashes of the stored items
+     * @param first The index of the first feature hash of each stored item,
+     * followed by the total number of feature hashes
+     * @throws IOException
+     */
+    private void writeLevel(int level, int [] item_class, int items,
+            ClassMapper classMapper, int [] hashes, int [] first)
+            throws IOException {
+        int classes = classMapper.size();
+        // Count the items per class
+        int [] start = new int[classes + 1];
+        for (int i = 0; i < items; i++)
+            if (item_class[i] >= 0)
+                start[item_class[i] + 1]++;
+        for (int c = 0; c < classes; c++)
+            start[c + 1] += start[c];
+        // Fill the classes, the items remain in ascending order
+        int [] fill = new int[classes];
+        System.arraycopy(start, 0, fill, 0, classes);
+        int [] list = new int[start[classes]];
+        for (int i = 0; i < items; i++)
+            if (item_class[i] >= 0)
+                list[fill[item_class[i]]++] = i;
+        // Write the table
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(getLevelFile(directory, level))));
+        try {
+            out.writeInt(classes);
+            for (int c = 0; c <= classes; c++)
+                out.writeInt(start[c]);
+            for (int i = 0; i < list.length; i++)
+                out.writeInt(list[i]);
+        }
+        finally {
+            out.close();
+        }
+        // Write the postings of each class, by the position of the items in
+        // the class
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(getLevelPostingsFile(directory, level))));
+        try {
+            int [][] tables = new int[classes][];
+            int [] owners = new int[16];
+            int [] class_hashes = new int[16];
+            int [] offset = new int[classes + 1];
+            for (int c = 0; c < classes; c++) {
+                // Gather the feature hashes of the items of the class
+                int occurrences = 0;
+                for (int i = start[c]; i < start[c + 1]; i++) {
+                    int item = list[i];
+                    for (int h = first[item]; h < first[item + 1]; h++) {
+                        if (occurrences == owners.length) {
+                            owners = Arrays.copyOf(owners, occurrences * 2);
+                            class_hashes = Arrays.copyOf(class_hashes,
+                                    occurrences * 2);
+                        }
+                        class_hashes[occurrences] = hashes[h];
+                        owners[occurrences++] = i - start[c];
+                    }
+                }
+                tables[c] = IndexPostings.table(class_hashes, owners,
+                        occurrences);
+                offset[c + 1] = offset[c] + tables[c].length;
+            }
+            out.writeInt(classes);
+            for (int c = 0; c <= classes; c++)
+                out.writeInt(offset[c]);
+            for (int c = 0; c < classes; c++)
+                for (int i = 0; i < tables[c].length; i++)
+                    out.writeInt(tables[c][i]);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Remove the store on disk.
+     */
+    public void removeIndex() {
+        FileIO.delete(new File(directory));
+    }
+
+    /**
+     * Get the absolute path of the items file of a store.
+     * @param directory Directory of the similarity store
+     * @return the absolute path of the items file.
+     */
+    public static String getItemsFile(String directory) {
+        return new File(directory, ITEMS_FILE).getPath();
+    }
+
+    /**
+     * Get the absolute path of the feature weights of a store.
+     * @param directory Directory of the similarity store
+     * @return the absolute path of the feature weights.
+     * @see IndexWeights
+     */
+    public static String getWeightsFile(String directory) {
+        return new File(directory, IndexWeights.WEIGHTS_FILE).getPath();
+    }
+
+    /**
+     * Get the absolute path of the class table of a level of a store.
+     * @param directory Directory of the similarity store
+     * @param level The level
+     * @return the absolute path of the class table.
+     */
+    public static String getLevelFile(String directory, int level) {
+        return new File(directory, LEVEL_FILE + level).getPath();
+    }
+
+    /**
+     * Get the absolute path of the class postings of a level of a store.
+     * @param directory Directory of the similarity store
+     * @param level The level
+     * @return the absolute path of the class postings.
+     */
+    public static String getLevelPostingsFile(String directory, int level) {
+        return IndexPostings.getPostingsFile(getLevelFile(directory, level));
+    }
+
+    /**
+     * Get the absolute path of the persisted similarity search results of a
+     * level of a store.
+     * @param directory Directory of the similarity store
+     * @param level The level
+     * @return the absolute path of the persisted search results.
+     * @see SimilarityCache
+     */
+    public static String getCacheFile(String directory, int level) {
+        return new File(directory, SimilarityCache.CACHE_FILE + "." + level)
+                .getPath();
+    }
+}
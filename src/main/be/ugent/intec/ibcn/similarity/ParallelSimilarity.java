@@ -0,0 +1,254 @@
+package be.ugent.intec.ibcn.similarity;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import be.ugent.intec.ibcn.geo.common.datatypes.EncodedDataItem;
+
+/**
+ * Parallel version of the dictionary encoded Jaccard and cosine similarity 
+ * search, for very large class indices.
+ *
+ * The index is recursively divided into ranges that are searched with
+ * fork/join, for all the test items of a batch at once. Each range produces
+ * a partial top-k per test item, which are merged on the way back up. As the
+ * ranking of the TopKCollector is deterministic, the result is the same as
+ * that of the sequential search. For the cosine similarity, each range only
+ * visits the postings of the items within the range.
+ *
+ * @see Similarity
+ * @see TopKCollector
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class ParallelSimilarity {
+
+    /**
+     * Minimal number of training items in a range before it is split.
+     */
+    private static final int MIN_RANGE = 4096;
+
+    /**
+     * Number of ranges per thread to aim for.
+     */
+    private static final int RANGES_PER_THREAD = 4;
+
+    /**
+     * Pool shared by all the parallel similarity searches.
+     */
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    /**
+     * For each of the given EncodedDataItems 'queries', find the most similar
+     * items in an array of EncodedDataItems. The array is searched in parallel
+     * if it holds at least the given threshold number of items, otherwise it 
+     * is searched sequentially.
+     * @param items Array of EncodedDataItems to select the most similar items
+     * from
+     * @param queries The EncodedDataItems to find the most similar items for
+     * @param items_to_retain The number of most similar items to retain.
+     * @param threshold The number of items from which on the search is 
+     * parallelized, or 0 or less to always search sequentially.
+     * @return For each of the queries, a collector with the most similar
+     * items, by their index in the array. The collector is empty for null
+     * queries.
+     */
+    public static TopKCollector[] jaccard(EncodedDataItem [] items,
+            EncodedDataItem [] queries, int items_to_retain, int threshold) {
+        if (threshold > 0 && items.length >= threshold)
+            return jaccard(items, queries, items_to_retain);
+        TopKCollector [] result = new TopKCollector[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            result[q] = new TopKCollector(items_to_retain);
+            if (queries[q] != null)
+                Similarity.jaccard(items, queries[q], result[q]);
+        }
+        return result;
+    }
+
+    /**
+     * For each of the given EncodedDataItems 'queries', find the most similar
+     * items in an array of EncodedDataItems, searching ranges of the array in
+     * parallel.
+     * @param items Array of EncodedDataItems to select the most similar items
+     * from
+     * @param queries The EncodedDataItems to find the most similar items for
+     * @param items_to_retain The number of most similar items to retain.
+     * @return For each of the queries, a collector with the most similar
+     * items, by their index in the array. The collector is empty for null
+     * queries.
+     */
+    public static TopKCollector[] jaccard(EncodedDataItem [] items,
+            EncodedDataItem [] queries, int items_to_retain) {
+        return POOL.invoke(new SearchTask(items, null, null, 0, queries, 0,
+                items.length, items_to_retain, grain(items.length)));
+    }
+
+    /**
+     * For each of the given EncodedDataItems 'queries', find the most similar
+     * items in an array of EncodedDataItems with respect to the cosine 
+     * similarity of their idf weighted features. The array is searched in 
+     * parallel if it holds at least the given threshold number of items, 
+     * otherwise it is searched sequentially.
+     * @param items Array of EncodedDataItems to select the most similar items
+     * from, with their norms set
+     * @param postings The postings of the features of the items
+     * @param idf The idf of each feature, by feature ID
+     * @param defaultIdf The idf of features without ID
+     * @param queries The EncodedDataItems to find the most similar items for
+     * @param items_to_retain The number of most similar items to retain.
+     * @param threshold The number of items from which on the search is 
+     * parallelized, or 0 or less to always search sequentially.
+     * @return For each of the queries, a collector with the most similar
+     * items, by their index in the array. The collector is empty for null
+     * queries.
+     */
+    public static TopKCollector[] cosine(EncodedDataItem [] items,
+            TagPostings postings, double [] idf, double defaultIdf,
+            EncodedDataItem [] queries, int items_to_retain, int threshold) {
+        SearchTask task = new SearchTask(items, postings, idf, defaultIdf,
+                queries, 0, items.length, items_to_retain, 
+                grain(items.length));
+        if (threshold > 0 && items.length >= threshold)
+            return POOL.invoke(task);
+        return task.search();
+    }
+
+    /**
+     * @param items The number of items to search
+     * @return the size of the range below which a range is searched
+     * sequentially.
+     */
+    private static int grain(int items) {
+        return Math.max(MIN_RANGE, items /
+                (POOL.getParallelism() * RANGES_PER_THREAD));
+    }
+
+    /**
+     * Task that searches a range of the index for all the queries.
+     */
+    private static class SearchTask extends RecursiveTask<TopKCollector[]> {
+
+        /**
+         * Serial version UID, ForkJoinTask is Serializable.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The items to search.
+         */
+        private EncodedDataItem [] items;
+
+        /**
+         * The postings of the features of the items, null for the Jaccard
+         * similarity.
+         */
+        private TagPostings postings;
+
+        /**
+         * The idf of each feature, for the cosine similarity.
+         */
+        private double [] idf;
+
+        /**
+         * The idf of features without ID, for the cosine similarity.
+         */
+        private double defaultIdf;
+
+        /**
+         * The items to find the most similar items for.
+         */
+        private EncodedDataItem [] queries;
+
+        /**
+         * Start index of the range (inclusive).
+         */
+        private int begin;
+
+        /**
+         * End index of the range (exclusive).
+         */
+        private int end;
+
+        /**
+         * The number of most similar items to retain.
+         */
+        private int items_to_retain;
+
+        /**
+         * Size of the range below which the range is searched sequentially.
+         */
+        private int grain;
+
+        /**
+         * Constructor.
+         * @param items The items to search
+         * @param postings The postings of the features of the items, or null
+         * to use the Jaccard similarity
+         * @param idf The idf of each feature, for the cosine similarity
+         * @param defaultIdf The idf of features without ID
+         * @param queries The items to find the most similar items for
+         * @param begin Start index of the range (inclusive)
+         * @param end End index of the range (exclusive)
+         * @param items_to_retain The number of most similar items to retain
+         * @param grain Size of the range below which the range is searched
+         * sequentially
+         */
+        public SearchTask(EncodedDataItem [] items, TagPostings postings,
+                double [] idf, double defaultIdf, EncodedDataItem [] queries,
+                int begin, int end, int items_to_retain, int grain) {
+            this.items = items;
+            this.postings = postings;
+            this.idf = idf;
+            this.defaultIdf = defaultIdf;
+            this.queries = queries;
+            this.begin = begin;
+            this.end = end;
+            this.items_to_retain = items_to_retain;
+            this.grain = grain;
+        }
+
+        /**
+         * Search the range sequentially.
+         * @return For each of the queries, a collector with the most similar
+         * items in the range.
+         */
+        public TopKCollector[] search() {
+            TopKCollector [] result = new TopKCollector[queries.length];
+            // Accumulator for the cosine similarity, shared by the queries
+            double [] scores = postings == null ? null : 
+                    new double[end - begin];
+            for (int q = 0; q < queries.length; q++) {
+                result[q] = new TopKCollector(items_to_retain);
+                if (queries[q] == null)
+                    continue;
+                if (postings == null)
+                    Similarity.jaccard(items, begin, end, queries[q],
+                            result[q]);
+                else
+                    Similarity.cosine(items, postings, idf, defaultIdf, 
+                            begin, end, queries[q], scores, result[q]);
+            }
+            return result;
+        }
+
+        @Override
+        protected TopKCollector[] compute() {
+            if (end - begin <= grain)
+                return search();
+            // Split the range in two
+            int middle = (begin + end) >>> 1;
+            SearchTask left = new SearchTask(items, postings, idf, defaultIdf,
+                    queries, begin, middle, items_to_retain, grain);
+            SearchTask right = new SearchTask(items, postings, idf, defaultIdf,
+                    queries, middle, end, items_to_retain, grain);
+            left.fork();
+            TopKCollector [] result = right.compute();
+            TopKCollector [] partial = left.join();
+            // Merge the partial results
+            for (int q = 0; q < queries.length; q++)
+                result[q].addAll(partial[q]);
+            return result;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package be.ugent.intec.ibcn.similarity;
 
 import be.ugent.intec.ibcn.geo.common.datatypes.DataItem;
+import be.ugent.intec.ibcn.geo.common.datatypes.EncodedDataItem;
 import java.util.*;
 
 /**
@@ -10,12 +11,42 @@ import java.util.*;
  * @see http://en.wikipedia.org/wiki/Jaccard_index
  * @see http://www.sciencedirect.com/science/article/pii/S002002551300162X#s0140
  * 
+ * Next to the Jaccard similarity on String features, a dictionary encoded
+ * variant is provided that works on the sorted feature ID arrays of 
+ * EncodedDataItem objects, which does not allocate any objects per comparison.
+ * 
+ * As a weighted alternative, the cosine similarity between the idf weighted
+ * feature vectors of the items is provided (@see IndexWeights). Rather than
+ * comparing the test item with every training item, the dot products are
+ * accumulated over the postings of the features of the test item 
+ * (@see TagPostings), so only the training items that share a feature with
+ * the test item are visited.
+ * 
  * @see SimilarItem
+ * @see TagDictionary
  * 
  * @author Olivier Van Laere <oliviervanlaere@gmail.com>
  */
 public class Similarity {
 
+    /**
+     * Ratio between the lengths of two feature arrays from which on the 
+     * intersection is calculated by galloping through the longest array
+     * instead of merging both arrays.
+     */
+    private static final int GALLOP_RATIO = 16;
+
+    /**
+     * Constant defining the Jaccard similarity measure on feature sets.
+     */
+    public static final int MEASURE_JACCARD = 0;
+
+    /**
+     * Constant defining the cosine similarity measure on idf weighted
+     * features.
+     */
+    public static final int MEASURE_COSINE = 1;
+
     /**
      * Calculate the jaccard Similarity between two items, loaded with their
      * features as Strings.
@@ -73,4 +104,235 @@ public class Similarity {
         }
         return similar_items;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Calculate the jaccard Similarity between two items, loaded with their
+     * dictionary encoded features.
+     * @param item1 EncodedDataItem 1
+     * @param item2 EncodedDataItem 2
+     * @return The jaccard similarity measure, based on their features.
+     */
+    public static double jaccard(EncodedDataItem item1, 
+            EncodedDataItem item2) {
+        return jaccard(item1.getFeatures(), item1.getFeatureCount(), 
+                item2.getFeatures(), item2.getFeatureCount());
+    }
+    
+    /**
+     * Calculate the jaccard Similarity between two sorted arrays of distinct
+     * feature IDs.
+     * @param a Sorted array of distinct feature IDs of the first item
+     * @param aCount The number of distinct features of the first item, which
+     * can be larger than the length of the array if some features have no ID
+     * @param b Sorted array of distinct feature IDs of the second item
+     * @param bCount The number of distinct features of the second item
+     * @return The jaccard similarity measure.
+     */
+    public static double jaccard(int [] a, int aCount, int [] b, int bCount) {
+        double overlap = intersect(a, b);
+        if(overlap <= 0)
+            return 0.0;
+        else
+            return overlap / (aCount + bCount - overlap);
+    }
+    
+    /**
+     * Calculate the size of the intersection of two sorted arrays of distinct
+     * values. Depending on the difference in length of the arrays, a merge or
+     * a galloping intersection is used.
+     * @param a Sorted array of distinct values
+     * @param b Sorted array of distinct values
+     * @return The number of values that occur in both arrays.
+     */
+    public static int intersect(int [] a, int [] b) {
+        if (a.length == 0 || b.length == 0)
+            return 0;
+        if (a.length * GALLOP_RATIO < b.length)
+            return intersectGalloping(a, b);
+        if (b.length * GALLOP_RATIO < a.length)
+            return intersectGalloping(b, a);
+        int overlap = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else {
+                overlap++;
+                i++;
+                j++;
+            }
+        }
+        return overlap;
+    }
+    
+    /**
+     * Calculate the size of the intersection of a short and a long sorted 
+     * array of distinct values, by exponential search in the long array for
+     * each of the values of the short array.
+     * @param small The shortest sorted array of distinct values
+     * @param large The longest sorted array of distinct values
+     * @return The number of values that occur in both arrays.
+     */
+    public static int intersectGalloping(int [] small, int [] large) {
+        int overlap = 0;
+        int low = 0;
+        for (int i = 0; i < small.length && low < large.length; i++) {
+            int value = small[i];
+            // Gallop to find a range that contains the value
+            int step = 1;
+            int high = low;
+            while (high < large.length && large[high] < value) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            if (high >= large.length)
+                high = large.length - 1;
+            // Binary search within the range
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (large[mid] < value)
+                    low = mid + 1;
+                else if (large[mid] > value)
+                    high = mid - 1;
+                else {
+                    overlap++;
+                    low = mid + 1;
+                    break;
+                }
+            }
+        }
+        return overlap;
+    }
+    
+    /**
+     * Find the items in an array of EncodedDataItems that are most similar to
+     * the given EncodedDataItem 'item' with respect to the Jaccard Similarity
+     * score calculated on their dictionary encoded features.
+     * 
+     * The most similar items are gathered in the given collector, by their 
+     * index in the array, which avoids creating an object for each candidate.
+     * @param items Array of EncodedDataItems to select the most similar items 
+     * from
+     * @param item The EncodedDataItem to find the most similar items for
+     * @param collector Collector that retains the most similar items. The 
+     * collector is not cleared by this method.
+     */
+    public static void jaccard(EncodedDataItem [] items, 
+            EncodedDataItem item, TopKCollector collector) {
+        jaccard(items, 0, items.length, item, collector);
+    }
+    
+    /**
+     * Find the items in a range of an array of EncodedDataItems that are most
+     * similar to the given EncodedDataItem 'item'.
+     * @param items Array of EncodedDataItems to select the most similar items 
+     * from
+     * @param begin Start index of the range (inclusive)
+     * @param end End index of the range (exclusive)
+     * @param item The EncodedDataItem to find the most similar items for
+     * @param collector Collector that retains the most similar items. The 
+     * collector is not cleared by this method.
+     */
+    public static void jaccard(EncodedDataItem [] items, int begin, int end,
+            EncodedDataItem item, TopKCollector collector) {
+        int [] features = item.getFeatures();
+        int featureCount = item.getFeatureCount();
+        // For each of the items to consider
+        for (int i = begin; i < end; i++) {
+            // Sanity check
+            if (items[i] != null) {
+                collector.offer(jaccard(features, featureCount, 
+                        items[i].getFeatures(), items[i].getFeatureCount()), 
+                        i);
+            }
+        }
+    }
+    
+    /**
+     * Determine the norm of the weight vector of a test item.
+     * @param item The test item
+     * @param idf The idf of each feature, by feature ID
+     * @param defaultIdf The idf of features without ID
+     * @return the norm of the weight vector of the test item.
+     */
+    public static double norm(EncodedDataItem item, double [] idf, 
+            double defaultIdf) {
+        int [] features = item.getFeatures();
+        double sum = 0;
+        for (int f : features)
+            sum += idf[f] * idf[f];
+        // Features without ID
+        sum += (item.getFeatureCount() - features.length) * 
+                defaultIdf * defaultIdf;
+        return Math.sqrt(sum);
+    }
+    
+    /**
+     * Find the items in a range of an array of EncodedDataItems that are most
+     * similar to the given EncodedDataItem 'item' with respect to the cosine
+     * similarity of their idf weighted features.
+     * 
+     * The dot products are accumulated over the postings of the features of
+     * the item, so only the items that share at least one feature with the 
+     * item are visited and offered to the collector. The norms of the items
+     * are expected to be set, items without norm are skipped.
+     * @param items Array of EncodedDataItems to select the most similar items 
+     * from
+     * @param postings The postings of the features of the items
+     * @param idf The idf of each feature, by feature ID
+     * @param defaultIdf The idf of features without ID
+     * @param begin Start index of the range (inclusive)
+     * @param end End index of the range (exclusive)
+     * @param item The EncodedDataItem to find the most similar items for
+     * @param scores Accumulator for the dot products, of at least the length
+     * of the range, holding only zeros. Only zeros are left on return, so
+     * the accumulator can be reused.
+     * @param collector Collector that retains the most similar items. The 
+     * collector is not cleared by this method.
+     */
+    public static void cosine(EncodedDataItem [] items, TagPostings postings,
+            double [] idf, double defaultIdf, int begin, int end, 
+            EncodedDataItem item, double [] scores, TopKCollector collector) {
+        int [] features = item.getFeatures();
+        double norm = norm(item, idf, defaultIdf);
+        if (norm == 0)
+            return;
+        // Accumulate the dot products over the postings of the features
+        for (int f : features) {
+            int position = postings.find(f);
+            if (position < 0)
+                continue;
+            double weight = idf[f] * idf[f];
+            int last = postings.getEnd(position);
+            for (int p = postings.seek(position, begin); p < last; p++) {
+                int i = postings.getItem(p);
+                if (i >= end)
+                    break;
+                scores[i - begin] += weight;
+            }
+        }
+        // Offer the visited items, and reset the accumulator
+        for (int f : features) {
+            int position = postings.find(f);
+            if (position < 0)
+                continue;
+            int last = postings.getEnd(position);
+            for (int p = postings.seek(position, begin); p < last; p++) {
+                int i = postings.getItem(p);
+                if (i >= end)
+                    break;
+                double dot = scores[i - begin];
+                if (dot == 0)
+                    continue;
+                scores[i - begin] = 0;
+                double itemNorm = items[i].getNorm();
+                if (itemNorm > 0)
+                    collector.offer(dot / (norm * itemNorm), i);
+            }
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package be.ugent.intec.ibcn.similarity;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.ugent.intec.ibcn.geo.common.datatypes.EncodedDataItem;
+import be.ugent.intec.ibcn.geo.common.datatypes.Point;
+
+/**
+ * Cache for the results of the similarity search.
+ *
+ * The most similar training items for a test item only depend on the class
+ * the test item is referenced in and on its (distinct) features. Test items
+ * that share the exact same features and class therefore share the same
+ * result. The cache is keyed by the level, the class ID and the sorted,
+ * distinct feature IDs of the test item, and holds the most similar items
+ * with a positive similarity, along with their similarity.
+ *
+ * During a run, only the first test item of each key is searched; the other
+ * test items with the same key are resolved from the cache once the search
+ * has finished. The results of a level can also be persisted next to the
+ * similarity index, so a next run over the same index can skip the search for
+ * all the test items that were searched before. As the feature IDs depend on
+ * the dictionary of a run, the features are written to file as Strings.
+ * Persisted results with features that are not in the dictionary of a run,
+ * e.g. the results of another test set, are kept as they are and written
+ * back when the results are saved.
+ *
+ * The file format is
+ *  #similar_items_to_consider <tab> similarity_measure
+ *  ClassID #Features_of_test_item Feature1 Feature2 ... <tab> ID Lat Lon Score ...
+ * where the ClassID, the feature count, the features and the retained items
+ * are tab separated, and the features and the values of the items are space
+ * separated.
+ *
+ * @see SimilarityIndexer
+ * @see SpatialAggregation
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class SimilarityCache {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(SimilarityCache.class);
+
+    /**
+     * Name of the file holding the persisted cache.
+     */
+    public static final String CACHE_FILE = "cache";
+
+    /**
+     * The cached results.
+     */
+    private Map<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+    /**
+     * For each level, the persisted lines of the results with features that
+     * are not in the dictionary of this run.
+     */
+    private Map<Integer, List<String>> unmatched =
+            new ConcurrentHashMap<Integer, List<String>>();
+
+    /**
+     * The keys for which a search has been scheduled during this run.
+     */
+    private Set<Key> scheduled = Collections.newSetFromMap(
+            new ConcurrentHashMap<Key, Boolean>());
+
+    /**
+     * @return the number of cached results.
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Get the cached result for a test item.
+     * @param level The level the test item is referenced in
+     * @param classId The class the test item is referenced in
+     * @param query The test item
+     * @return the cached result, or null if there is none (yet).
+     */
+    public Entry get(int level, int classId, EncodedDataItem query) {
+        return entries.get(new Key(level, classId, query.getFeatureCount(),
+                query.getFeatures()));
+    }
+
+    /**
+     * Register the search for a test item.
+     * @param level The level the test item is referenced in
+     * @param classId The class the test item is referenced in
+     * @param query The test item
+     * @return true if the test item needs to be searched, false if the search
+     * for an identical test item has already been scheduled.
+     */
+    public boolean schedule(int level, int classId, EncodedDataItem query) {
+        return scheduled.add(new Key(level, classId, query.getFeatureCount(),
+                query.getFeatures()));
+    }
+
+    /**
+     * Store the result of the search for a test item.
+     * @param level The level the test item is referenced in
+     * @param classId The class the test item is referenced in
+     * @param query The test item
+     * @param items The items that were searched
+     * @param top The most similar items, by their index in the items
+     * @return the cached result.
+     */
+    public Entry put(int level, int classId, EncodedDataItem query,
+            Point [] items, TopKCollector top) {
+        // Only the items with a positive similarity are retained
+        int size = 0;
+        while (size < top.size() && top.getScore(size) > 0)
+            size++;
+        Point [] ranked = new Point[size];
+        double [] scores = new double[size];
+        for (int rank = 0; rank < size; rank++) {
+            // Copy the location only, not the features of the item
+            ranked[rank] = new Point(items[top.getIndex(rank)]);
+            scores[rank] = top.getScore(rank);
+        }
+        Entry entry = new Entry(ranked, scores);
+        entries.put(new Key(level, classId, query.getFeatureCount(),
+                query.getFeatures()), entry);
+        return entry;
+    }
+
+    /**
+     * Load the persisted results of a level. Results with features that are
+     * not in the dictionary can not match any test item, and are only kept
+     * to be saved again.
+     * @param level The level to load the results for
+     * @param filename The file holding the persisted results
+     * @param dictionary Dictionary used to encode the test items
+     * @param capacity The number of similar items to consider
+     * @param measure The similarity measure. A file that was created with a
+     * different number of similar items or measure is ignored.
+     */
+    public void load(int level, String filename, TagDictionary dictionary,
+            int capacity, int measure) {
+        if (!new File(filename).exists())
+            return;
+        int loaded = 0;
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(filename));
+            try {
+                String line = in.readLine();
+                if (line == null || !line.equals(capacity + "\t" + measure)) {
+                    LOG.info("Ignoring cache {}, created for a different "
+                            + "number of similar items or measure", filename);
+                    return;
+                }
+                List<String> kept = new ArrayList<String>();
+                line = in.readLine();
+                // While we have lines
+                while (line != null) {
+                    String [] values = line.split("\t", -1);
+                    Key key = parseKey(level, values, dictionary);
+                    if (key != null) {
+                        entries.put(key, parseEntry(values[3]));
+                        loaded++;
+                    }
+                    else
+                        kept.add(line);
+                    line = in.readLine();
+                }
+                unmatched.put(level, kept);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+        }
+        LOG.info("Loaded {} cached results from {}, kept {} other results",
+                loaded, filename, unmatched.containsKey(level) ?
+                    unmatched.get(level).size() : 0);
+    }
+
+    /**
+     * Parse the key of a persisted result.
+     * @param level The level of the result
+     * @param values The tab separated values of the line
+     * @param dictionary Dictionary used to encode the test items
+     * @return the key, or null if a feature is not in the dictionary.
+     */
+    private static Key parseKey(int level, String [] values,
+            TagDictionary dictionary) {
+        String [] tags = values[2].isEmpty() ? new String[0] :
+                values[2].split(" ");
+        int [] features = new int[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            features[i] = dictionary.getId(tags[i]);
+            if (features[i] < 0)
+                return null;
+        }
+        Arrays.sort(features);
+        return new Key(level, Integer.parseInt(values[0]),
+                Integer.parseInt(values[1]), features);
+    }
+
+    /**
+     * Parse the retained items of a persisted result.
+     * @param value The space separated values of the items
+     * @return the cached result.
+     */
+    private static Entry parseEntry(String value) {
+        String [] values = value.isEmpty() ? new String[0] : value.split(" ");
+        Point [] ranked = new Point[values.length / 4];
+        double [] scores = new double[ranked.length];
+        for (int rank = 0; rank < ranked.length; rank++) {
+            ranked[rank] = new Point(Integer.parseInt(values[4 * rank]),
+                    Double.parseDouble(values[4 * rank + 1]),
+                    Double.parseDouble(values[4 * rank + 2]));
+            scores[rank] = Double.parseDouble(values[4 * rank + 3]);
+        }
+        return new Entry(ranked, scores);
+    }
+
+    /**
+     * Persist the results of a level, including the results that were loaded
+     * and the loaded results with features that are not in the dictionary.
+     * @param level The level to save the results for
+     * @param filename The file to write the results to
+     * @param dictionary Dictionary used to encode the test items
+     * @param capacity The number of similar items that was considered
+     * @param measure The similarity measure that was used
+     */
+    public void save(int level, String filename, TagDictionary dictionary,
+            int capacity, int measure) {
+        int saved = 0;
+        try {
+            // Open writer
+            PrintWriter out = new PrintWriter(new FileWriter(filename));
+            out.println(capacity + "\t" + measure);
+            for (Map.Entry<Key, Entry> e : entries.entrySet()) {
+                Key key = e.getKey();
+                if (key.level != level)
+                    continue;
+                StringBuilder line = new StringBuilder();
+                line.append(key.classId).append('\t').append(key.featureCount)
+                        .append('\t');
+                for (int i = 0; i < key.features.length; i++) {
+                    if (i > 0)
+                        line.append(' ');
+                    line.append(dictionary.getFeature(key.features[i]));
+                }
+                line.append('\t');
+                Entry entry = e.getValue();
+                for (int rank = 0; rank < entry.size(); rank++) {
+                    if (rank > 0)
+                        line.append(' ');
+                    Point item = entry.getItem(rank);
+                    line.append(item.getId()).append(' ')
+                            .append(item.getLatitude()).append(' ')
+                            .append(item.getLongitude()).append(' ')
+                            .append(entry.getScore(rank));
+                }
+                out.println(line);
+                saved++;
+            }
+            // Write back the results of other runs, as they were loaded
+            if (unmatched.containsKey(level)) {
+                for (String line : unmatched.get(level)) {
+                    out.println(line);
+                    saved++;
+                }
+            }
+            out.close();
+        }
+        catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+        }
+        LOG.info("Saved {} cached results to {}", saved, filename);
+    }
+
+    /**
+     * The cached result for a test item: the most similar items with a
+     * positive similarity, sorted by decreasing similarity.
+     */
+    public static class Entry {
+
+        /**
+         * The locations of the most similar items.
+         */
+        private Point [] items;
+
+        /**
+         * The similarity of each of the items.
+         */
+        private double [] scores;
+
+        /**
+         * @return the number of similar items.
+         */
+        public int size() {
+            return this.items.length;
+        }
+
+        /**
+         * @param rank Rank of the item, 0 being the most similar item.
+         * @return the location of the item with the given rank.
+         */
+        public Point getItem(int rank) {
+            return this.items[rank];
+        }
+
+        /**
+         * @param rank Rank of the item, 0 being the most similar item.
+         * @return the similarity of the item with the given rank.
+         */
+        public double getScore(int rank) {
+            return this.scores[rank];
+        }
+
+        /**
+         * Constructor.
+         * @param items The locations of the most similar items
+         * @param scores The similarity of each of the items
+         */
+        public Entry(Point [] items, double [] scores) {
+            this.items = items;
+            this.scores = scores;
+        }
+
+        /**
+         * Aggregate the locations of the similar items.
+         * @param method The aggregation method
+         * @return The location estimate, or null if there are no similar
+         * items.
+         * @see SpatialAggregation
+         */
+        public Point aggregate(int method) {
+            return SpatialAggregation.aggregate(items, scores, method);
+        }
+    }
+
+    /**
+     * Key of a cached result: the level, the class and the distinct features
+     * of a test item.
+     */
+    private static class Key {
+
+        /**
+         * The level.
+         */
+        private final int level;
+
+        /**
+         * The class ID.
+         */
+        private final int classId;
+
+        /**
+         * The number of distinct features of the test item, including the
+         * features that are not in the dictionary.
+         */
+        private final int featureCount;
+
+        /**
+         * The sorted, distinct feature IDs of the test item.
+         */
+        private final int [] features;
+
+        /**
+         * Precomputed hash code.
+         */
+        private final int hash;
+
+        /**
+         * Constructor.
+         * @param level The level
+         * @param classId The class ID
+         * @param featureCount The number of distinct features
+         * @param features The sorted, distinct feature IDs
+         */
+        public Key(int level, int classId, int featureCount, int [] features) {
+            this.level = level;
+            this.classId = classId;
+            this.featureCount = featureCount;
+            this.features = features;
+            this.hash = 31 * (31 * (31 * level + classId) + featureCount) +
+                    Arrays.hashCode(features);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key)o;
+            return hash == other.hash && level == other.level &&
+                    classId == other.classId &&
+                    featureCount == other.featureCount &&
+                    Arrays.equals(features, other.features);
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package be.ugent.intec.ibcn.similarity;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.DoubleBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -21,9 +32,9 @@ import java.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import be.ugent.intec.ibcn.geo.classifier.NaiveBayesResults;
 import be.ugent.intec.ibcn.geo.common.Util;
 import be.ugent.intec.ibcn.geo.common.datatypes.DataItem;
+import be.ugent.intec.ibcn.geo.common.datatypes.EncodedDataItem;
 import be.ugent.intec.ibcn.geo.common.datatypes.Point;
 import be.ugent.intec.ibcn.geo.common.interfaces.LineParser;
 import be.ugent.intec.ibcn.geo.common.interfaces.LineParserDataItemSimilarity;
@@ -35,8 +46,25 @@ import be.ugent.intec.ibcn.geo.common.io.FileIO;
  * that are within the same class. The similarity index is coupled to a given
  * clustering. Changing the clustering requires new indexing.
  * 
- * WARNING: This code might break if run on a training file with more than 
- * 16M-32M training items.
+ * The class assignments are kept in an int array indexed by the line 
+ * position in the training file, so the IDs of the training items can be 
+ * arbitrary.
+ * 
+ * New training data can be added to an existing index without rebuilding it.
+ * The new items are classified and written to an appended segment of the
+ * index of each affected class, next to the index file. Segments are loaded
+ * together with the index file, until they are merged into it by compact().
+ * 
+ * While scanning the training data, the document frequencies of the features
+ * are counted. They are stored in the similarity directory, and the norms of
+ * the weight vectors of the items are stored next to each index file, for
+ * the cosine similarity measure (@see IndexWeights). Appended items are
+ * weighted with the document frequencies of the original index.
+ * 
+ * Next to the index files, a bitmap of the classes that have an index is
+ * written to the similarity directory. This allows the referencers to 
+ * resolve the test items of classes without training items to the medoid, 
+ * without probing the file system for each class.
  * 
  * @author Olivier Van Laere <oliviervanlaere@gmail.com>
  */
@@ -54,15 +82,10 @@ public class SimilarityIndexer {
             Runtime.getRuntime().availableProcessors();
 
     /**
-     * Constant holding the number of lines to read for each thread burst.
-     * The value of 25000 has proven to work well, but this can be tuned to
-     * the performance of a specific system.
-     * 
-     * Please note that the individual threads will 'cache' READ_BURST lines in 
-     * a list. So on a 16-core system the memory load will increase a lot
-     * if this burst rate is too high.
+     * Name of the file in the similarity directory holding the bitmap of
+     * classes that have an index.
      */
-    protected static final int READ_BURST = 25000;
+    public static final String CLASSES_FILE = "classes";
 
     /**
      * Variable holding the maximum number of open files at the same time.
@@ -79,11 +102,6 @@ public class SimilarityIndexer {
         open_file_limit = new_open_file_limit;
     }
     
-    /**
-     * Object used for locking while threads try to lock the input file.
-     */
-    private final Object fileLock = new Object();
-    
     /**
      * Parameters for similarity indexing.
      */
@@ -96,6 +114,11 @@ public class SimilarityIndexer {
      */
     private int linelimit;
 
+    /**
+     * The feature weights of the index, null if unknown.
+     */
+    private IndexWeights weights = null;
+
     /**
      * Constructor.
      * @param parameters Parameters to use for similarity indexing
@@ -108,137 +131,298 @@ public class SimilarityIndexer {
      * Actual similarity indexing.
      */
     public void index() {
-        // Prepare a map for line to class assignments
-        Map<Integer, Integer> id_class_map = new HashMap<Integer, Integer>();
-        // Prepare a map for class to class count assignments
-        Map<Integer, Integer> class_count_map = new HashMap<Integer, Integer>();                
-
+        // Prepare an array for class to class count assignments
+        int [] class_count = new int[parameters.getClassMapper().size()];
         // Run through the training data, and determine to which class each line
         // belongs
-        determineClassAssignments(id_class_map, class_count_map);
+        int [] line_class = determineClassAssignments(class_count);
         // Create the actual similarity index
-        createCacheFiles(id_class_map, class_count_map);
+        createCacheFiles(line_class, class_count);
+        // Store the feature weights, counted while scanning
+        try {
+            weights.write(getWeightsFile(parameters));
+        }
+        catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+            e.printStackTrace();
+        }
+        // Create the feature postings for each of the index files
+        List<String> indexFiles = new ArrayList<String>();
+        for (int classId = 0; classId < class_count.length; classId++)
+            if (class_count[classId] > 0)
+                indexFiles.add(getIndexFile(parameters, classId));
+        createPostings(indexFiles);
+        // Keep track of the classes that have an index
+        writeClasses(class_count, new BitSet(class_count.length));
+        // Cached search results of a previous index are no longer valid
+        new File(getCacheFile(parameters)).delete();
     }
-    
+
     /**
-     * Run through the training data, on the fly, and determine to which 
-     * class from the classifier each item belongs.
-     * @param id_class_map a map for line to class assignments
-     * @param class_count_map a map for class to class count assignments
+     * Add the training items of a new training file to the existing index.
+     * Only the new items are classified, and written to a new segment of the
+     * index of each class they belong to. If a class had no index yet, the
+     * segment becomes the index file of the class.
+     * @param file The file with the new training items, in the format of the
+     * training file
      */
-    private void determineClassAssignments(Map<Integer, Integer> id_class_map, 
-            Map<Integer, Integer> class_count_map) {
+    public void append(String file) {
         // Start a timer
         long t1 = System.currentTimeMillis();
-        // Get a set of the IDs that are found throughout classification
-        Set<Integer> used_classIds = new HashSet<Integer>(
-                new NaiveBayesResults(parameters.getClassificationFile())
-                .getUsedClasses());        
+        // New items are weighted with the existing feature weights
+        loadWeights();
+        int [] class_count = new int[parameters.getClassMapper().size()];
+        // The class of each line of the new training data
+        int [] line_class = new int[1024];
+        int lines = 0;
         try {
-            // Print some info
-            LOG.info("Scanning classId... ({} used classIds) from {}", 
-            		used_classIds.size(), parameters.getTrainingFile());
-            // Fetch the number of lines to process
-            int lines = FileIO.getNumberOfLines(parameters.getTrainingFile());
-            // Determine the number of lines to process in case a limit was set
-            if (parameters.getTrainingLimit() > 0 && 
-                    parameters.getTrainingLimit() < lines) {
-                lines = parameters.getTrainingLimit();
-            }
-            this.linelimit = lines;
-            
-            // Open the input
-            BufferedReader in = new BufferedReader(
-                    new FileReader(parameters.getTrainingFile()));
-            // Prepare a thread pool
-            ExecutorService executor = Executors.newFixedThreadPool(NR_THREADS);
-            // Prepare a list for the futures
-            List<Future<SimIndexHelperResult>> list = 
-                    new ArrayList<Future<SimIndexHelperResult>>();
-            // For each of the lines to process, start working in bursts
-            for (int start = 0; start < lines; start += READ_BURST) {
-                // Create callable, track future, submit
-                Callable<SimIndexHelperResult> worker = 
-                        new SimIndexerHelper(in, start, 
-                        Math.min(lines-start, READ_BURST), 
-                    // Using this the used_classIds, you can restrict indexing
-                    // to the used classes only, but if the classification
-                    // result changes, the indexing needs to be redone
-//                        new HashSet<Integer>(used_classIds));
-                    // When setting the used_classes to null, all classes
-                    // will be indexed. The similarity index only needs
-                    // to be rebuild when a new clustering is used.
-                        null);
-                Future<SimIndexHelperResult> submit = executor.submit(worker);
-                list.add(submit);
+            LOG.info("Classifying new training items from {}", file);
+            LineParser parser = Util.getParser(parameters.getTrainingParser());
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            // skip the line count
+            in.readLine();
+            String line = in.readLine();
+            while (line != null) {
+                Point item = parser.parse(line);
+                // Classify with the existing class mapper
+                int classId = -1;
+                if (item != null)
+                    classId = parameters.getClassMapper().findClassId(item);
+                if (classId >= 0)
+                    class_count[classId]++;
+                if (lines == line_class.length)
+                    line_class = Arrays.copyOf(line_class, lines * 2);
+                line_class[lines++] = classId;
+                line = in.readLine();
             }
-            
-            // Now retrieve the results
-            for (Future<SimIndexHelperResult> future : list) {
-                try {
-                    // Get the result helper
-                    SimIndexHelperResult result = future.get();
-                    // Store all the line to class assignments in the global map
-                    id_class_map.putAll(result.getLine_class_map());
-                    // For each of the classes in the class count map
-                    for (int classId : result.getClass_count_map().keySet()) {
-                        // Fetch the current count
-                        Integer count = class_count_map.get(classId);
-                        // If this is not found
-                        if (count == null)
-                            // Init the count
-                            count = 0;
-                        // Gather the actual item count - this is used to write
-                        // at the top of the index files.
-                        class_count_map.put(classId, count + 
-                                result.getClass_count_map().get(classId));
+            in.close();
+        }
+        catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+        // Determine the classes that receive new training items
+        Set<Integer> remaining = new HashSet<Integer>();
+        for (int classId = 0; classId < class_count.length; classId++)
+            if (class_count[classId] > 0)
+                remaining.add(classId);
+        LOG.info("Appending new training items to {} classes", remaining.size());
+        List<String> segments = new ArrayList<String>();
+        // Until all classes are processed, within the open file limit
+        while (remaining.size() > 0) {
+            Set<Integer> classesInCurrentBatch = new HashSet<Integer>();
+            try {
+                Map<Integer, PrintWriter> classId_writer_map =
+                        new HashMap<Integer, PrintWriter>();
+                for (int classId : remaining) {
+                    if (classId_writer_map.size() < open_file_limit) {
+                        // Make the necessary directories
+                        new File(getBatchDir(parameters, classId)).mkdirs();
+                        String segment = getNextSegmentFile(classId);
+                        PrintWriter out = new PrintWriter(
+                                new FileWriter(segment));
+                        // Start the segment with the number of new items
+                        out.println(class_count[classId]);
+                        classId_writer_map.put(classId, out);
+                        classesInCurrentBatch.add(classId);
+                        segments.add(segment);
                     }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (ExecutionException e) {
-                    e.printStackTrace();
                 }
+                // Read the new training data again
+                BufferedReader in = new BufferedReader(new FileReader(file));
+                // skip the line count
+                in.readLine();
+                String line = in.readLine();
+                for (int i = 0; i < lines && line != null; i++) {
+                    int classId = line_class[i];
+                    if (classId >= 0 &&
+                            classesInCurrentBatch.contains(classId))
+                        classId_writer_map.get(classId).println(line);
+                    line = in.readLine();
+                }
+                in.close();
+                // Close all the open files
+                for (PrintWriter out : classId_writer_map.values())
+                    out.close();
+            }
+            catch (IOException e) {
+                LOG.error("IOException: {}", e.getMessage());
+                e.printStackTrace();
+                System.exit(1);
+            }
+            remaining.removeAll(classesInCurrentBatch);
+        }
+        // Create the feature postings for the new segments
+        createPostings(segments);
+        // Add the classes that received their first index
+        BitSet classes = loadClasses(parameters);
+        if (classes == null) {
+            // Older index without bitmap, check the index files themselves
+            classes = new BitSet(class_count.length);
+            for (int classId = 0; classId < class_count.length; classId++)
+                if (new File(getIndexFile(parameters, classId)).exists())
+                    classes.set(classId);
+        }
+        writeClasses(class_count, classes);
+        // Cached search results do not include the new items
+        new File(getCacheFile(parameters)).delete();
+        LOG.info("Appended {} new training items. [ {} ms.]", lines,
+                (System.currentTimeMillis() - t1));
+    }
+
+    /**
+     * Merge the appended segments of each class into the index file of the
+     * class, processing the classes in parallel.
+     */
+    public void compact() {
+        // Start a timer
+        long t1 = System.currentTimeMillis();
+        // The norms of the compacted index are based on the existing weights
+        loadWeights();
+        // Prepare a thread pool
+        ExecutorService executor = Executors.newFixedThreadPool(NR_THREADS);
+        // Prepare a list for the futures
+        List<Future<Boolean>> list = new ArrayList<Future<Boolean>>();
+        for (int classId = 0; classId < parameters.getClassMapper().size();
+                classId++) {
+            final String indexFile = getIndexFile(parameters, classId);
+            list.add(executor.submit(new Callable<Boolean>() {
+
+                @Override
+                public Boolean call() throws Exception {
+                    return compact(indexFile);
+                }
+            }));
+        }
+        int compacted = 0;
+        for (Future<Boolean> future : list) {
+            try {
+                if (future.get())
+                    compacted++;
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                LOG.error("Exception: {}", e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        executor.shutdown();
+        LOG.info("Compacted {} classes. [ {} ms.]", compacted,
+                (System.currentTimeMillis() - t1));
+    }
+
+    /**
+     * Merge the appended segments of a single index file into the index file.
+     * @param indexFile The index file
+     * @return true if there were segments to merge
+     * @throws IOException
+     */
+    private boolean compact(String indexFile) throws IOException {
+        List<String> segments = getSegmentFiles(indexFile);
+        if (segments.size() <= 1)
+            return false;
+        // Determine the total number of items
+        int total = 0;
+        for (String segment : segments)
+            total += FileIO.getNumberOfLines(segment);
+        // Write all the items to a new index file
+        File compacted = new File(indexFile + ".compact");
+        PrintWriter out = new PrintWriter(new FileWriter(compacted));
+        out.println(total);
+        for (String segment : segments) {
+            BufferedReader in = new BufferedReader(new FileReader(segment));
+            // skip the line count
+            in.readLine();
+            String line = in.readLine();
+            while (line != null) {
+                out.println(line);
+                line = in.readLine();
             }
-            // This will make the executor accept no new threads
-            // and finish all existing threads in the queue
-            executor.shutdown();
-            // Wait until all threads are finish
-            while (!executor.isTerminated()) {}
-            // Close the input
             in.close();
-            // Report some stats
-            LOG.info("Scan time: {}, training items in classes: {}",
-            		(System.currentTimeMillis() - t1), id_class_map.size());
+        }
+        out.close();
+        // Replace the index file first, so the index is never lost
+        Files.move(compacted.toPath(), new File(indexFile).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        IndexPostings.create(indexFile, parameters.getTrainingParser(), 
+                weights);
+        // Only then remove the appended segments, the last one first, so
+        // the remaining segments stay numbered consecutively
+        for (int i = segments.size() - 1; i > 0; i--) {
+            String segment = segments.get(i);
+            new File(segment).delete();
+            new File(IndexPostings.getPostingsFile(segment)).delete();
+            new File(IndexWeights.getNormsFile(segment)).delete();
+        }
+        return true;
+    }
+
+    /**
+     * Run through the training data, on the fly, and determine to which
+     * class from the classifier each item belongs.
+     * @param class_count an array for class to class count assignments,
+     * indexed by class ID
+     * @return an array holding the class assignment for each line of the
+     * training file, including the line count on the first line, or -1 if the
+     * line was not assigned to a class
+     * @see ClassAssignmentScanner
+     */
+    private int[] determineClassAssignments(int [] class_count) {
+        // Prepare the result
+        int [] line_class = null;
+        try {
+            // Print some info
+            LOG.info("Scanning classId... ({} classIds) from {}",
+            		class_count.length, parameters.getTrainingFile());
+            ClassAssignmentScanner scanner = new ClassAssignmentScanner(
+                    Arrays.asList(parameters));
+            line_class = scanner.scan()[0];
+            // Gather the actual item count - this is used to write at the
+            // top of the index files.
+            System.arraycopy(scanner.getClassCounts()[0], 0, class_count, 0,
+                    class_count.length);
+            // The document frequencies, counted while scanning
+            this.weights = scanner.getWeights();
+            // The number of lines to process, without the line count
+            this.linelimit = line_class.length - 1;
         }
         catch (IOException e) {
             LOG.error("IOException: {}", e.getMessage());
             e.printStackTrace();
             System.exit(1);
         }
+        return line_class;
     }
-    
+
     /**
-     * Run through the training data and create files for each class the 
+     * Run through the training data and create files for each class the
      * classifier used when predicting the test data.
-     * @param line_class_map a map for line to class assignments
-     * @param class_count_map a map for class to class count assignments
+     * @param line_class an array holding the class assignment for each line
+     * of the training file, including the line count on the first line
+     * @param class_count an array for class to class count assignments
      */
-    private void createCacheFiles(Map<Integer, Integer> line_class_map, 
-            Map<Integer, Integer> class_count_map) {
+    private void createCacheFiles(int [] line_class, int [] class_count) {
         // Start a timer
         long t1 = System.currentTimeMillis();
+        // Determine the classes that contain training items
+        Set<Integer> remaining = new HashSet<Integer>();
+        for (int classId = 0; classId < class_count.length; classId++)
+            if (class_count[classId] > 0)
+                remaining.add(classId);
         // Until all classes are processed - we need to be process within the
         // OPEN_FILE_LIMIT
-        while (class_count_map.size() > 0) {
+        while (remaining.size() > 0) {
             LOG.info("Creating index for {} remaining classes, batch size: {}",
-            		class_count_map.size(), open_file_limit);
+            		remaining.size(), open_file_limit);
             // Determine what we can do in this batch
             Set<Integer> classesInCurrentBatch = new HashSet<Integer>();
             try {
                 // Create a map to track the filewriters
-                Map<Integer, PrintWriter> classId_writer_map = 
+                Map<Integer, PrintWriter> classId_writer_map =
                         new HashMap<Integer, PrintWriter>();
-                for (int classId : class_count_map.keySet()) {
+                for (int classId : remaining) {
                     if (classId_writer_map.size() < open_file_limit) {
                         // Batch dir
                         String batchDir = getBatchDir(parameters, classId);
@@ -250,7 +434,7 @@ public class SimilarityIndexer {
                         PrintWriter out = new PrintWriter(
                             new FileWriter(getIndexFile(parameters, classId)));
                         // Start the file with the number of items in the class
-                        out.println(class_count_map.get(classId));
+                        out.println(class_count[classId]);
                         // Store a reference to the writer
                         classId_writer_map.put(classId, out);
                         // Add the current class to the current batch
@@ -260,25 +444,18 @@ public class SimilarityIndexer {
                 // Read the input data
                 BufferedReader in = new BufferedReader(
                         new FileReader(parameters.getTrainingFile()));
-                // skip the line count - this might loose an item if the file 
+                // skip the line count - this might loose an item if the file
                 // did not contain that info on the first line.
-                in.readLine(); 
+                in.readLine();
                 int counter = 0;
-                int noTags = 0;
                 String line = in.readLine();
-                // Get the parser
-                LineParser parser = 
-                        Util.getParser(parameters.getTrainingParser());
                 while (line != null) {
-                    DataItem item = (DataItem)parser.parse(line);
-                    // Fetch the class assignment for this line number
-                    Integer classId = null;
-                    if (item != null) 
-                    	classId = line_class_map.get(item.getId());
-                    else
-                    	noTags++;
+                    // Fetch the class assignment for this line number, +1 to
+                    // account for the line count on the first line
+                    int classId = counter + 1 < line_class.length ?
+                            line_class[counter + 1] : -1;
                     // If we the class is in this batch
-                    if (classId != null && 
+                    if (classId >= 0 &&
                             classesInCurrentBatch.contains(classId)) {
                         // write the line to the file
                         classId_writer_map.get(classId).println(line);
@@ -286,12 +463,11 @@ public class SimilarityIndexer {
                     line = in.readLine();
                     // report progress after 1M items
                     if (++counter % 1000000 == 0)
-                        LOG.info("{}\ttraining items without tags: {}", counter, noTags);
+                        LOG.info("{}\ttraining items", counter);
                     // In case we hit the global linelimit
                     if (counter == linelimit)
                         break;
-                }      
-                LOG.info("Training data without tags: {}", noTags);
+                }
                 // Close the input
                 in.close();
                 // Close all the open files
@@ -305,181 +481,104 @@ public class SimilarityIndexer {
                 e.printStackTrace();
                 System.exit(1);
             }
-            // For each of the classes we processed, remove from the 
-            // class_count keyset
-            class_count_map.keySet().removeAll(classesInCurrentBatch);
+            // For each of the classes we processed, remove from the
+            // remaining classes
+            remaining.removeAll(classesInCurrentBatch);
         }
         // Stop the timer
         long t2 = System.currentTimeMillis();
         // Print stats
         LOG.info("All done. [ {} ms.]", (t2-t1));
     }
-    
-    /**
-     * Remove the index data on disk.
-     */
-    public void removeIndex() {
-        FileIO.delete(new File(parameters.getSimilarityDirectory()));
-    }
-    
+
     /**
-     * Callable that processes a part of the training data to find out to which
-     * classID a given line belongs.
+     * Create the feature postings for a list of index files, processing the
+     * files in parallel.
+     * @param indexFiles The index files
+     * @see IndexPostings
      */
-    private class SimIndexerHelper implements Callable<SimIndexHelperResult> {
+    private void createPostings(List<String> indexFiles) {
+        // Start a timer
+        long t1 = System.currentTimeMillis();
+        // Prepare a thread pool
+        ExecutorService executor = Executors.newFixedThreadPool(NR_THREADS);
+        // Prepare a list for the futures
+        List<Future<Void>> list = new ArrayList<Future<Void>>();
+        for (final String indexFile : indexFiles) {
+            list.add(executor.submit(new Callable<Void>() {
 
-        /**
-         * Reference to the shared BufferedReader for the input data.
-         */
-        private BufferedReader file;
-        
-        /**
-         * Value indicating the starting line number for this callable.
-         */
-        private int start;
-        
-        /**
-         * Length of the burst to process with this callable.
-         */        
-        private int burst;
-        
-        /**
-         * Copy of the classIDs used by the classifier.
-         */
-        private Set<Integer> used_classIds;
-        
-        /**
-         * Constructor.
-         * @param file Reference to the BufferedReader for the input
-         * @param start Start index of the line this callable processes
-         * @param burst Length of the burst this callable processes
-         * @param used_classIds Copy of the classIDs used by the classifier
-         */
-        public SimIndexerHelper(BufferedReader file, int start, int burst, 
-                Set<Integer> used_classIds) {
-            this.file = file;
-            this.start = start;
-            this.burst = burst;
-            this.used_classIds = used_classIds;
+                @Override
+                public Void call() throws Exception {
+                    IndexPostings.create(indexFile,
+                            parameters.getTrainingParser(), weights);
+                    return null;
+                }
+            }));
         }
-        
-        /**
-         * Call implementation
-         * @return A SimIndexHelperResult, containing for each of the lines
-         * this callable processes the class assignments, as well as a map with
-         * the number of lines in each class.
-         * @throws Exception 
-         */
-        @Override
-        public SimIndexHelperResult call() throws Exception {
-            // Prepare local map
-            Map<Integer, Integer> id_class_map = 
-                    new HashMap<Integer, Integer>();
-            Map<Integer, Integer> class_count_map = 
-                    new HashMap<Integer, Integer>();
-            List<String> data = new ArrayList<String>();
+        // Wait for all the postings to be written
+        for (Future<Void> future : list) {
             try {
-                // Get the parser
-                LineParser parser = 
-                        Util.getParser(parameters.getTrainingParser());
-                // Try to get a lock on the input data
-                synchronized(fileLock) {
-                    int counter = 0;
-                    // Load a BURST of data
-                    String line;
-                    do {
-                        line = file.readLine();
-                        if (line != null)
-                            data.add(line);
-                    }
-                    // While there are lines, we are in our burst and we are
-                    // within the global line limit
-                    while (line != null && ++counter < burst && 
-                            counter < linelimit);
-                }
-                // Now, for our local line cache, process the lines
-                for (String current_line : data) {
-                    Point item = parser.parse(current_line);
-                    // If we have an item with features
-                    if (item != null) {
-                        // Fetch the class ID by on the fly assignment
-                        int classId = parameters.getClassMapper().
-                                findClass(item).getId();
-                        // If this class is actually used by the classifier
-                        if (used_classIds == null || 
-                                used_classIds.contains(classId)){
-                            // Store the class assignment
-                            id_class_map.put(item.getId(), classId);
-                            // Manage the item count in this class
-                            Integer count = class_count_map.get(classId);
-                            if (count == null)
-                                count = 0;
-                            count++;
-                            class_count_map.put(classId, count);
-                        }
-                    }
-                }
-                // Report updates after processing 1M lines
-                if ((start + burst) % 1000000 == 0)
-                    LOG.info("{}", (start + burst));
-            }
-            catch (IOException e) {
+                future.get();
+            } catch (InterruptedException e) {
                 e.printStackTrace();
-                System.exit(-1);
-            }
-            catch (Exception e) {
+            } catch (ExecutionException e) {
                 LOG.error("Exception: {}", e.getMessage());
                 e.printStackTrace();
             }
-            // Clear the local data cache
-            data.clear();
-            // Return the result
-            return new SimIndexHelperResult(id_class_map, class_count_map);
         }
+        executor.shutdown();
+        LOG.info("Postings for {} index files created. [ {} ms.]", list.size(),
+                (System.currentTimeMillis() - t1));
     }
-    
+
     /**
-     * Helper class that gathers the results for a part of the data. This
-     * allows the input data to be processed by multiple threads.
+     * Write the bitmap of the classes that have an index.
+     * @param class_count The number of (new) training items per class
+     * @param classes The classes that already had an index
      */
-    private class SimIndexHelperResult {
-        
-        /**
-         * Mapping between the line numbers and the class they belong to.
-         */
-        private Map<Integer, Integer> line_class_map;
-        
-        /**
-         * Mapping between the classes and the number of items in them.
-         */
-        private Map<Integer, Integer> class_count_map;
-
-        /**
-         * @return a map with class - item count pairs
-         */
-        public Map<Integer, Integer> getClass_count_map() {
-            return class_count_map;
+    private void writeClasses(int [] class_count, BitSet classes) {
+        for (int classId = 0; classId < class_count.length; classId++)
+            if (class_count[classId] > 0)
+                classes.set(classId);
+        try {
+            new File(parameters.getSimilarityDirectory()).mkdirs();
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(
+                        getClassesFile(parameters))));
+            // The number of classes, followed by the words of the bitmap
+            long [] words = classes.toLongArray();
+            out.writeInt(class_count.length);
+            out.writeInt(words.length);
+            for (long word : words)
+                out.writeLong(word);
+            out.close();
         }
-
-        /**
-         * @return a map with line numbers - class assignment pairs
-         */
-        public Map<Integer, Integer> getLine_class_map() {
-            return line_class_map;
+        catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+            e.printStackTrace();
         }
+        LOG.info("{}/{} classes have an index", classes.cardinality(), 
+                class_count.length);
+    }
 
-        /**
-         * Constructor.
-         * @param line_class_map a map with line numbers - class assignment 
-         * pairs
-         * @param class_count_map a map with class - item count pairs 
-         */
-        public SimIndexHelperResult(Map<Integer, Integer> line_class_map, 
-                Map<Integer, Integer> class_count_map) {
-            this.line_class_map = line_class_map;
-            this.class_count_map = class_count_map;
+    /**
+     * Load the feature weights of the existing index, if any.
+     */
+    private void loadWeights() {
+        try {
+            this.weights = IndexWeights.load(getWeightsFile(parameters));
+        }
+        catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
         }
     }
+
+    /**
+     * Remove the index data on disk.
+     */
+    public void removeIndex() {
+        FileIO.delete(new File(parameters.getSimilarityDirectory()));
+    }
     
     /**
      * Get an absolute path to the current batch directory.
@@ -504,8 +603,120 @@ public class SimilarityIndexer {
         return getBatchDir(parameters, classId) + "index." + classId;
     }
     
-        /**
-     * Load the similarity data from file.
+    /**
+     * Get the absolute path of the bitmap of classes that have an index.
+     * @param parameters Similarity parameters.
+     * @return the absolute path of the bitmap of classes.
+     */
+    public static String getClassesFile(SimilarityParameters parameters) {
+        return parameters.getSimilarityDirectory() + CLASSES_FILE;
+    }
+    
+    /**
+     * Get the absolute path of the persisted similarity search results.
+     * @param parameters Similarity parameters.
+     * @return the absolute path of the persisted search results.
+     * @see SimilarityCache
+     */
+    public static String getCacheFile(SimilarityParameters parameters) {
+        return parameters.getSimilarityDirectory() + SimilarityCache.CACHE_FILE;
+    }
+    
+    /**
+     * Get the absolute path of the feature weights of the index.
+     * @param parameters Similarity parameters.
+     * @return the absolute path of the feature weights.
+     * @see IndexWeights
+     */
+    public static String getWeightsFile(SimilarityParameters parameters) {
+        return parameters.getSimilarityDirectory() + IndexWeights.WEIGHTS_FILE;
+    }
+    
+    /**
+     * Load the bitmap of the classes that have an index.
+     * @param parameters Similarity parameters.
+     * @return the classes that have an index, or null if the index has no
+     * bitmap of classes, in which case the existence of the index has to be
+     * checked for each class.
+     */
+    public static BitSet loadClasses(SimilarityParameters parameters) {
+        File file = new File(getClassesFile(parameters));
+        if (!file.exists())
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                // skip the number of classes
+                in.readInt();
+                long [] words = new long[in.readInt()];
+                for (int i = 0; i < words.length; i++)
+                    words[i] = in.readLong();
+                return BitSet.valueOf(words);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Get the number of training items in the index of a given class.
+     * @param parameters Similarity parameters.
+     * @param classId ClassID for which you want to get the index size.
+     * @return the number of training items in the index, or -1 if there is
+     * no index for the given class.
+     */
+    public static int getIndexSize(SimilarityParameters parameters, 
+            int classId) {
+        List<String> segments = getSegmentFiles(
+                getIndexFile(parameters, classId));
+        if (segments.isEmpty())
+            return -1;
+        int size = 0;
+        for (String segment : segments)
+            size += FileIO.getNumberOfLines(segment);
+        return size;
+    }
+    
+    /**
+     * Get the files that make up a given index: the index file itself, 
+     * followed by the segments appended to it, in the order they were
+     * appended.
+     * @param indexFile The index file
+     * @return the existing files of the index, empty if there is no index.
+     */
+    public static List<String> getSegmentFiles(String indexFile) {
+        List<String> segments = new ArrayList<String>();
+        if (new File(indexFile).exists()) {
+            segments.add(indexFile);
+            for (int segment = 1; 
+                    new File(indexFile + "." + segment).exists(); segment++)
+                segments.add(indexFile + "." + segment);
+        }
+        return segments;
+    }
+    
+    /**
+     * Get the file for the next segment to append to the index of a class.
+     * @param classId ClassID of the index
+     * @return the index file itself if the class has no index yet, otherwise
+     * the file of the next segment.
+     */
+    private String getNextSegmentFile(int classId) {
+        String indexFile = getIndexFile(parameters, classId);
+        List<String> segments = getSegmentFiles(indexFile);
+        if (segments.isEmpty())
+            return indexFile;
+        return indexFile + "." + segments.size();
+    }
+    
+    /**
+     * Load the similarity data from file, including the appended segments.
      * @param filename Specific index to load
      * @param lineparser Parser class to use to parse the input data
      * @param filter Set of items to filter against
@@ -516,8 +727,11 @@ public class SimilarityIndexer {
         // Prepare the result
         DataItem[] data = null;
         try {
+            List<String> segments = getSegmentFiles(filename);
             // Fetch the number of lines to process
-            int lines = FileIO.getNumberOfLines(filename);
+            int lines = 0;
+            for (String segment : segments)
+                lines += FileIO.getNumberOfLines(segment);
             // Init the training items to load
             data = new DataItem[lines];
             // Set up the parser
@@ -525,21 +739,121 @@ public class SimilarityIndexer {
                     Util.getParser(lineparser);
             // Set the filter terms
             parser.setFilter(filter);
+            int id = 0;
+            for (String segment : segments) {
+                // Open the input
+                BufferedReader in = new BufferedReader(new FileReader(segment));
+                // Read the input
+                in.readLine(); // skip the line count on line one
+                String line = in.readLine(); // skip 
+                while (line != null && id < lines) {
+                    data[id++] = parser.parse(line);
+                    line = in.readLine();
+                }
+                // Close the input
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+        }
+        return data;
+    }
+    
+    /**
+     * Load the similarity data from file, including the appended segments,
+     * dictionary encoding the features of the training items while loading.
+     * 
+     * Only the training items that share at least one feature with the 
+     * filter are loaded. If the index has feature postings, the lines of the
+     * other items are not even read, so the cost of loading is proportional to
+     * the number of candidates rather than to the size of the class.
+     * 
+     * @param filename Specific index to load
+     * @param lineparser Parser class to use to parse the input data
+     * @param filter Set of items to filter against
+     * @param dictionary Dictionary used to encode the features
+     * @return An array of EncodedDataItems to use for similarity search, in
+     * the order of the index
+     */
+    public static EncodedDataItem[] loadSimilarityIndex(String filename, 
+            String lineparser, Set<String> filter, TagDictionary dictionary) {
+        // Prepare the result
+        List<EncodedDataItem> data = new ArrayList<EncodedDataItem>();
+        try {
+            // Set up the parser
+            LineParserDataItemSimilarity parser = (LineParserDataItemSimilarity)
+                    Util.getParser(lineparser);
+            // Set the filter terms
+            parser.setFilter(filter);
+            for (String segment : getSegmentFiles(filename))
+                loadSegment(segment, parser, filter, dictionary, data);
+        } catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+        }
+        return data.toArray(new EncodedDataItem[data.size()]);
+    }
+    
+    /**
+     * Load the matching training items of a single file of an index.
+     * @param filename The index file or segment to load
+     * @param parser The parser, with the filter set
+     * @param filter Set of items to filter against
+     * @param dictionary Dictionary used to encode the features
+     * @param data List to add the loaded items to
+     * @throws IOException
+     */
+    private static void loadSegment(String filename, 
+            LineParserDataItemSimilarity parser, Set<String> filter, 
+            TagDictionary dictionary, List<EncodedDataItem> data) 
+            throws IOException {
+        // The norms of the weight vectors of the items, if available
+        DoubleBuffer norms = IndexWeights.openNorms(filename);
+        // Use the postings to read only the candidates, if available
+        IndexPostings postings = IndexPostings.open(filename);
+        if (postings != null) {
+            BitSet candidates = postings.getCandidates(filter);
+            int number = candidates.nextSetBit(0);
+            for (String line : postings.readLines(candidates)) {
+                // Parse, which removes the false positives of the postings
+                DataItem item = parser.parse(line);
+                if (item != null)
+                    data.add(encode(item, number, norms, dictionary));
+                number = candidates.nextSetBit(number + 1);
+            }
+        }
+        else {
             // Open the input
             BufferedReader in = new BufferedReader(new FileReader(filename));
             // Read the input
             in.readLine(); // skip the line count on line one
-            int id = 0;
-            String line = in.readLine(); // skip 
+            String line = in.readLine();
+            int number = 0;
             while (line != null) {
-                data[id++] = parser.parse(line);
+                DataItem item = parser.parse(line);
+                // Encode the item, the String features are no longer needed
+                if (item != null)
+                    data.add(encode(item, number, norms, dictionary));
                 line = in.readLine();
+                number++;
             }
             // Close the input
             in.close();
-        } catch (IOException e) {
-            LOG.error("IOException: {}", e.getMessage());
         }
-        return data;
+    }
+    
+    /**
+     * Encode a loaded training item, releasing its String features.
+     * @param item The training item
+     * @param number The number of the item in the index file
+     * @param norms The norms of the items of the index file, or null
+     * @param dictionary Dictionary used to encode the features
+     * @return The encoded item, with the norm of its weight vector if known.
+     */
+    static EncodedDataItem encode(DataItem item, int number, 
+            DoubleBuffer norms, TagDictionary dictionary) {
+        EncodedDataItem encoded = dictionary.encode(item, false);
+        if (norms != null)
+            encoded.setNorm(norms.get(number));
+        return encoded;
     }
 }
\ No newline at end of file
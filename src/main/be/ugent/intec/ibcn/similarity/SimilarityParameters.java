@@ -65,6 +65,133 @@ public class SimilarityParameters extends ReferencingParameters {
         this.similarItemsToConsider = similarItemsToConsider;
     }
     
+    /**
+     * The similarity measure used to find the most similar items.
+     * @see Similarity
+     */
+    protected int similarityMeasure = Similarity.MEASURE_JACCARD;
+
+    /**
+     * @return the similarity measure used to find the most similar items.
+     */
+    public int getSimilarityMeasure() {
+        return this.similarityMeasure;
+    }
+    
+    /**
+     * Set the similarity measure used to find the most similar items, e.g.
+     * Similarity.MEASURE_COSINE. The Jaccard similarity is used by default.
+     * The cosine similarity requires the feature weights that are created
+     * by the indexers.
+     * @param similarityMeasure 
+     */
+    public void setSimilarityMeasure(int similarityMeasure) {
+        this.similarityMeasure = similarityMeasure;
+    }
+    
+    /**
+     * The method used to aggregate the locations of the most similar items
+     * into a single location estimate.
+     * @see SpatialAggregation
+     */
+    protected int aggregationMethod = 
+            SpatialAggregation.AGGREGATION_MOST_SIMILAR;
+
+    /**
+     * @return the method used to aggregate the locations of the most similar
+     * items into a single location estimate.
+     */
+    public int getAggregationMethod() {
+        return this.aggregationMethod;
+    }
+    
+    /**
+     * Set the method used to aggregate the locations of the most similar 
+     * items into a single location estimate, e.g. 
+     * SpatialAggregation.AGGREGATION_CENTROID. Only the location of the most
+     * similar item is used by default.
+     * @param aggregationMethod 
+     */
+    public void setAggregationMethod(int aggregationMethod) {
+        this.aggregationMethod = aggregationMethod;
+    }
+    
+    /**
+     * Number of training items in a class index from which on the similarity
+     * search for the class is parallelized over ranges of the index. A value
+     * of 0 or less disables parallel search within a class.
+     */
+    protected int parallelSearchThreshold = 100000;
+
+    /**
+     * @return the number of training items in a class index from which on 
+     * the similarity search for the class is parallelized.
+     */
+    public int getParallelSearchThreshold() {
+        return this.parallelSearchThreshold;
+    }
+    
+    /**
+     * Set the number of training items in a class index from which on the
+     * similarity search for the class is parallelized over ranges of the 
+     * index. Use 0 or less to disable parallel search within a class.
+     * @param parallelSearchThreshold 
+     */
+    public void setParallelSearchThreshold(int parallelSearchThreshold) {
+        this.parallelSearchThreshold = parallelSearchThreshold;
+    }
+    
+    /**
+     * Flag indicating whether the results of the similarity search are
+     * persisted next to the similarity index, to be reused by next runs.
+     * @see SimilarityCache
+     */
+    protected boolean persistentCache = false;
+
+    /**
+     * @return true if the results of the similarity search are persisted 
+     * next to the similarity index.
+     */
+    public boolean isPersistentCache() {
+        return this.persistentCache;
+    }
+    
+    /**
+     * Set whether the results of the similarity search are persisted next to
+     * the similarity index. Next runs over the same index then only search 
+     * for the test items that were not searched before. The persisted 
+     * results are removed when the index changes.
+     * @param persistentCache 
+     */
+    public void setPersistentCache(boolean persistentCache) {
+        this.persistentCache = persistentCache;
+    }
+
+    /**
+     * Number of class indexes that can be loaded ahead of the batches that
+     * use them.
+     */
+    protected int prefetchClasses = 4;
+
+    /**
+     * @return the number of class indexes that can be loaded ahead of the
+     * batches that use them.
+     */
+    public int getPrefetchClasses() {
+        return this.prefetchClasses;
+    }
+
+    /**
+     * Set the number of class indexes that are loaded on a separate I/O
+     * thread ahead of the batches that use them, so the similarity threads
+     * do not have to wait for the disk. Each prefetched index stays in memory
+     * until its batches are done. Use 0 or less to disable prefetching.
+     * @param prefetchClasses
+     */
+    public void setPrefetchClasses(int prefetchClasses) {
+        this.prefetchClasses = prefetchClasses;
+    }
+
     /**
      * Default constructor.
      */
@@ -0,0 +1,256 @@
+package be.ugent.intec.ibcn.similarity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.ugent.intec.ibcn.geo.common.Util;
+import be.ugent.intec.ibcn.geo.common.datatypes.DataItem;
+import be.ugent.intec.ibcn.geo.common.datatypes.EncodedDataItem;
+import be.ugent.intec.ibcn.geo.common.interfaces.LineParserDataItemSimilarity;
+
+/**
+ * SimilarityStore: read access to a similarity store created by the
+ * MultiLevelSimilarityIndexer.
+ *
+ * The class tables and the class postings of the levels, the feature postings
+ * and the norms of the stored items are memory mapped once, when the store is
+ * opened, and shared by all the classes that are loaded from the store during
+ * a referencing run. The candidate items of a class are found through the
+ * postings of the class, without looking at the items of other classes.
+ * The mapped buffers are only read with absolute gets, so the store can be
+ * used by multiple threads at the same time.
+ *
+ * @see MultiLevelSimilarityIndexer
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class SimilarityStore {
+
+	/**
+	 * Logger.
+	 */
+	protected static final Logger LOG = LoggerFactory.getLogger(SimilarityStore.class);
+
+    /**
+     * Directory of the similarity store.
+     */
+    private String directory;
+
+    /**
+     * @return the directory of the similarity store.
+     */
+    public String getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * The memory mapped class table of each level.
+     */
+    private List<MappedByteBuffer> tables = new ArrayList<MappedByteBuffer>();
+
+    /**
+     * The memory mapped class postings of each level, null for a level
+     * without class postings.
+     */
+    private List<MappedByteBuffer> classPostings =
+            new ArrayList<MappedByteBuffer>();
+
+    /**
+     * The feature postings of the stored items, null if there are none.
+     */
+    private IndexPostings postings = null;
+
+    /**
+     * The norms of the weight vectors of the stored items, null if there are
+     * none.
+     */
+    private DoubleBuffer norms = null;
+
+    /**
+     * Constructor, maps the class tables of all the levels, the feature
+     * postings and the norms of the store.
+     * @param directory Directory of the similarity store
+     */
+    public SimilarityStore(String directory) {
+        this.directory = directory;
+        try {
+            MappedByteBuffer table = map(
+                    MultiLevelSimilarityIndexer.getLevelFile(directory, 0));
+            while (table != null) {
+                int level = tables.size();
+                tables.add(table);
+                classPostings.add(map(MultiLevelSimilarityIndexer.
+                        getLevelPostingsFile(directory, level)));
+                table = map(MultiLevelSimilarityIndexer.getLevelFile(
+                        directory, level + 1));
+            }
+            String items = MultiLevelSimilarityIndexer.getItemsFile(directory);
+            this.postings = IndexPostings.open(items);
+            this.norms = IndexWeights.openNorms(items);
+        } catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+        }
+        LOG.info("Opened similarity store {} with {} levels", directory,
+                tables.size());
+    }
+
+    /**
+     * Map a file of the store.
+     * @param filename The file
+     * @return The memory mapped file, or null if there is none.
+     * @throws IOException
+     */
+    private static MappedByteBuffer map(String filename) throws IOException {
+        File file = new File(filename);
+        if (!file.exists())
+            return null;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    in.length());
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param level The level
+     * @return the class table of the level, or null if there is none.
+     */
+    private MappedByteBuffer getTable(int level) {
+        return level >= 0 && level < tables.size() ? tables.get(level) : null;
+    }
+
+    /**
+     * Get the number of training items in a class of a given level.
+     * @param level The level
+     * @param classId ClassID for which you want to get the index size.
+     * @return the number of training items in the class, or -1 if there are
+     * no training items in the given class.
+     */
+    public int getIndexSize(int level, int classId) {
+        MappedByteBuffer table = getTable(level);
+        if (table == null || classId < 0 || classId >= table.getInt(0))
+            return -1;
+        int size = table.getInt(4 * (classId + 2)) -
+                table.getInt(4 * (classId + 1));
+        return size > 0 ? size : -1;
+    }
+
+    /**
+     * Determine the classes of a given level that have training items, from
+     * the class table of the level.
+     * @param level The level
+     * @return the classes that have training items, or null if there is no
+     * class table for the given level.
+     */
+    public BitSet loadClasses(int level) {
+        MappedByteBuffer table = getTable(level);
+        if (table == null)
+            return null;
+        int classes = table.getInt(0);
+        BitSet result = new BitSet(classes);
+        // A class has items if its start differs from the next start
+        int start = table.getInt(4);
+        for (int classId = 0; classId < classes; classId++) {
+            int next = table.getInt(4 * (classId + 2));
+            if (next > start)
+                result.set(classId);
+            start = next;
+        }
+        return result;
+    }
+
+    /**
+     * Load the training items of a class of a given level from the store,
+     * dictionary encoding the features of the training items while loading.
+     * Only the training items that share at least one feature with the
+     * filter are read.
+     * @param level The level
+     * @param classId The class to load
+     * @param lineparser Parser class to use to parse the input data
+     * @param filter Set of items to filter against
+     * @param dictionary Dictionary used to encode the features
+     * @return An array of EncodedDataItems to use for similarity search, in
+     * the order of the training file
+     */
+    public EncodedDataItem[] loadSimilarityIndex(int level, int classId,
+            String lineparser, Set<String> filter, TagDictionary dictionary) {
+        // Prepare the result
+        List<EncodedDataItem> data = new ArrayList<EncodedDataItem>();
+        try {
+            MappedByteBuffer table = getTable(level);
+            if (table == null || postings == null ||
+                    classPostings.get(level) == null)
+                throw new IOException("No similarity store in " + directory);
+            // The items of the class that share at least one feature with
+            // the filter, by their position in the class
+            BitSet candidates = getCandidates(level, classId, filter);
+            // Look up the numbers of the candidate items in the store
+            int classes = table.getInt(0);
+            int offset = 4 * (classes + 2) + 4 * table.getInt(
+                    4 * (classId + 1));
+            int [] numbers = new int[candidates.cardinality()];
+            int count = 0;
+            for (int i = candidates.nextSetBit(0); i >= 0;
+                    i = candidates.nextSetBit(i + 1))
+                numbers[count++] = table.getInt(offset + 4 * i);
+            // Set up the parser
+            LineParserDataItemSimilarity parser = (LineParserDataItemSimilarity)
+                    Util.getParser(lineparser);
+            // Set the filter terms
+            parser.setFilter(filter);
+            count = 0;
+            for (String line : postings.readLines(numbers)) {
+                // Parse, which removes the false positives of the postings
+                DataItem item = parser.parse(line);
+                if (item != null)
+                    data.add(SimilarityIndexer.encode(item, numbers[count],
+                            norms, dictionary));
+                count++;
+            }
+        } catch (IOException e) {
+            LOG.error("IOException: {}", e.getMessage());
+        }
+        return data.toArray(new EncodedDataItem[data.size()]);
+    }
+
+    /**
+     * Find the items of a class that possibly share at least one feature with
+     * the given set of features, from the class postings of the level.
+     * @param level The level
+     * @param classId The class
+     * @param filter Set of features
+     * @return A BitSet with the positions of the candidate items in the class.
+     */
+    private BitSet getCandidates(int level, int classId, Set<String> filter) {
+        MappedByteBuffer buffer = classPostings.get(level);
+        int classes = buffer.getInt(0);
+        // The hash table of the class
+        int table = 4 * (classes + 2) + 4 * buffer.getInt(4 * (classId + 1));
+        int buckets = buffer.getInt(table);
+        int postings = table + 4 * (buckets + 2);
+        BitSet candidates = new BitSet(Math.max(getIndexSize(level, classId),
+                0));
+        for (String feature : filter) {
+            int b = IndexPostings.bucket(feature, buckets);
+            int start = buffer.getInt(table + 4 * (b + 1));
+            int end = buffer.getInt(table + 4 * (b + 2));
+            for (int i = start; i < end; i++)
+                candidates.set(buffer.getInt(postings + 4 * i));
+        }
+        return candidates;
+    }
+}
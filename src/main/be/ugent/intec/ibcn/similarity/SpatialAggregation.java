@@ -0,0 +1,225 @@
+package be.ugent.intec.ibcn.similarity;
+
+import be.ugent.intec.ibcn.geo.common.datatypes.Point;
+
+/**
+ * Aggregation of the locations of the most similar items into a single
+ * location estimate.
+ *
+ * Besides simply returning the location of the most similar item, the
+ * locations of all the retained items (with a positive similarity) can be
+ * combined, weighted by their similarity:
+ *  - the weighted centroid, i.e. the normalized weighted mean of the
+ *    locations as 3D unit vectors
+ *  - an approximation of the weighted geometric median, using Weiszfeld
+ *    iterations on the 3D unit vectors, starting from the centroid
+ *
+ * The locations are converted to unit vectors once, after which all the
+ * computations are simple vector operations on a flat array of coordinates,
+ * instead of trigonometric distance calculations between pairs of points.
+ * The chord distance between unit vectors is used in the Weiszfeld
+ * iterations, as it increases monotonically with the great circle distance.
+ *
+ * @see SimilarityParameters
+ * @see TopKCollector
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class SpatialAggregation {
+
+    /**
+     * Constant defining the location of the most similar item as estimate.
+     */
+    public static final int AGGREGATION_MOST_SIMILAR = 0;
+
+    /**
+     * Constant defining the weighted centroid of the most similar items as
+     * estimate.
+     */
+    public static final int AGGREGATION_CENTROID = 1;
+
+    /**
+     * Constant defining the (approximate) weighted geometric median of the
+     * most similar items as estimate.
+     */
+    public static final int AGGREGATION_MEDIAN = 2;
+
+    /**
+     * Maximum number of Weiszfeld iterations for the geometric median.
+     */
+    private static final int MEDIAN_ITERATIONS = 50;
+
+    /**
+     * Movement (as chord length on the unit sphere) below which the Weiszfeld
+     * iterations are considered converged, roughly 1 cm.
+     */
+    private static final double MEDIAN_TOLERANCE = 1e-9;
+
+    /**
+     * Minimal distance or vector length to avoid divisions by zero.
+     */
+    private static final double EPSILON = 1e-12;
+
+    /**
+     * Aggregate the locations of the most similar items.
+     * @param items The items that were searched
+     * @param top The most similar items, by their index in the items
+     * @param method The aggregation method
+     * @return The location estimate, or null if the collector is empty.
+     */
+    public static Point aggregate(Point [] items, TopKCollector top,
+            int method) {
+        // Gather the retained items by rank
+        Point [] ranked = new Point[top.size()];
+        double [] scores = new double[top.size()];
+        for (int rank = 0; rank < top.size(); rank++) {
+            ranked[rank] = items[top.getIndex(rank)];
+            scores[rank] = top.getScore(rank);
+        }
+        return aggregate(ranked, scores, method);
+    }
+
+    /**
+     * Aggregate the locations of the most similar items.
+     * @param ranked The most similar items, sorted by decreasing similarity
+     * @param scores The similarity of each of the items
+     * @param method The aggregation method
+     * @return The location estimate, or null if there are no items.
+     */
+    public static Point aggregate(Point [] ranked, double [] scores,
+            int method) {
+        if (ranked.length == 0)
+            return null;
+        Point best = ranked[0];
+        if (method == AGGREGATION_MOST_SIMILAR || ranked.length == 1)
+            return best;
+        // Convert the items with a positive similarity to unit vectors
+        double [] xyz = new double[3 * ranked.length];
+        double [] weights = new double[ranked.length];
+        int n = 0;
+        for (int rank = 0; rank < ranked.length; rank++) {
+            // The items are sorted by decreasing similarity
+            if (scores[rank] <= 0)
+                break;
+            toVector(ranked[rank].getLatitude(), ranked[rank].getLongitude(),
+                    xyz, n);
+            weights[n++] = scores[rank];
+        }
+        if (n <= 1)
+            return best;
+        double [] estimate = new double[3];
+        centroid(xyz, weights, n, estimate);
+        // The centroid is undefined for (weighted) antipodal locations
+        if (!normalize(estimate))
+            return best;
+        if (method == AGGREGATION_MEDIAN)
+            median(xyz, weights, n, estimate);
+        return toPoint(best.getId(), estimate);
+    }
+
+    /**
+     * Convert a location to a 3D unit vector.
+     * @param latitude Latitude in degrees
+     * @param longitude Longitude in degrees
+     * @param xyz Array to store the vector in
+     * @param index Index of the vector in the array
+     */
+    public static void toVector(double latitude, double longitude,
+            double [] xyz, int index) {
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        double cos = Math.cos(lat);
+        xyz[3 * index] = cos * Math.cos(lon);
+        xyz[3 * index + 1] = cos * Math.sin(lon);
+        xyz[3 * index + 2] = Math.sin(lat);
+    }
+
+    /**
+     * Convert a 3D unit vector to a location.
+     * @param id The ID of the resulting Point
+     * @param v The vector
+     * @return The location as a Point
+     */
+    public static Point toPoint(int id, double [] v) {
+        double latitude = Math.toDegrees(Math.atan2(v[2],
+                Math.sqrt(v[0] * v[0] + v[1] * v[1])));
+        double longitude = Math.toDegrees(Math.atan2(v[1], v[0]));
+        return new Point(id, latitude, longitude);
+    }
+
+    /**
+     * Normalize a vector to unit length.
+     * @param v The vector
+     * @return false if the vector is (near) zero and cannot be normalized.
+     */
+    private static boolean normalize(double [] v) {
+        double length = Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+        if (length < EPSILON)
+            return false;
+        v[0] /= length;
+        v[1] /= length;
+        v[2] /= length;
+        return true;
+    }
+
+    /**
+     * Weighted sum of a number of vectors.
+     * @param xyz The vectors
+     * @param weights The weights of the vectors
+     * @param n The number of vectors
+     * @param result Array to store the (unnormalized) centroid in
+     */
+    public static void centroid(double [] xyz, double [] weights, int n,
+            double [] result) {
+        double x = 0, y = 0, z = 0;
+        for (int i = 0; i < n; i++) {
+            x += weights[i] * xyz[3 * i];
+            y += weights[i] * xyz[3 * i + 1];
+            z += weights[i] * xyz[3 * i + 2];
+        }
+        result[0] = x;
+        result[1] = y;
+        result[2] = z;
+    }
+
+    /**
+     * Approximate the weighted geometric median of a number of unit vectors
+     * with Weiszfeld iterations, projecting each step back onto the sphere.
+     * @param xyz The vectors
+     * @param weights The weights of the vectors
+     * @param n The number of vectors
+     * @param estimate The initial estimate (a unit vector), which is replaced
+     * by the median
+     */
+    public static void median(double [] xyz, double [] weights, int n,
+            double [] estimate) {
+        double [] next = new double[3];
+        for (int iteration = 0; iteration < MEDIAN_ITERATIONS; iteration++) {
+            double x = 0, y = 0, z = 0;
+            for (int i = 0; i < n; i++) {
+                // Chord distance between the estimate and the vector
+                double dx = estimate[0] - xyz[3 * i];
+                double dy = estimate[1] - xyz[3 * i + 1];
+                double dz = estimate[2] - xyz[3 * i + 2];
+                double w = weights[i] / Math.max(EPSILON,
+                        Math.sqrt(dx * dx + dy * dy + dz * dz));
+                x += w * xyz[3 * i];
+                y += w * xyz[3 * i + 1];
+                z += w * xyz[3 * i + 2];
+            }
+            next[0] = x;
+            next[1] = y;
+            next[2] = z;
+            if (!normalize(next))
+                return;
+            // Determine the movement in this step
+            double dx = next[0] - estimate[0];
+            double dy = next[1] - estimate[1];
+            double dz = next[2] - estimate[2];
+            System.arraycopy(next, 0, estimate, 0, 3);
+            if (dx * dx + dy * dy + dz * dz <
+                    MEDIAN_TOLERANCE * MEDIAN_TOLERANCE)
+                return;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package be.ugent.intec.ibcn.similarity;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeSet;
+
+import be.ugent.intec.ibcn.geo.common.datatypes.DataItem;
+import be.ugent.intec.ibcn.geo.common.datatypes.EncodedDataItem;
+
+/**
+ * Dictionary that maps String features (tags) to integer IDs, used for the
+ * dictionary encoded similarity search.
+ *
+ * The dictionary is built once from the features of the test items. Training
+ * items are encoded using the same dictionary when the similarity index is
+ * loaded. Features of training items that do not occur in the dictionary can
+ * never be shared with a test item, so they are only counted, which is all the
+ * Jaccard measure needs.
+ *
+ * The dictionary is not modified after construction, so it can be shared
+ * between threads.
+ *
+ * @see EncodedDataItem
+ * @see Similarity
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class TagDictionary {
+
+    /**
+     * Mapping between features and their IDs.
+     */
+    private Map<String, Integer> ids;
+
+    /**
+     * The features, indexed by their ID.
+     */
+    private String [] features;
+
+    /**
+     * @return the number of features in this dictionary.
+     */
+    public int size() {
+        return this.ids.size();
+    }
+
+    /**
+     * Constructor.
+     * @param features Collection of features to put in the dictionary. The
+     * IDs are assigned in the natural order of the features.
+     */
+    public TagDictionary(Collection<String> features) {
+        this.ids = new HashMap<String, Integer>(features.size() * 2);
+        this.features = new TreeSet<String>(features).toArray(new String[0]);
+        for (int id = 0; id < this.features.length; id++)
+            ids.put(this.features[id], id);
+    }
+
+    /**
+     * Create a dictionary from the String features of a set of DataItems.
+     * @param data DataItems with String features
+     * @return A dictionary containing all the features of the given items
+     */
+    public static TagDictionary fromData(DataItem [] data) {
+        Collection<String> features = new HashSet<String>();
+        for (DataItem item : data)
+            if (item != null && item.getData() != null)
+                for (Object f : item.getData())
+                    features.add((String)f);
+        return new TagDictionary(features);
+    }
+
+    /**
+     * @param feature A String feature
+     * @return The ID of the given feature, or -1 if the feature is unknown.
+     */
+    public int getId(String feature) {
+        Integer id = ids.get(feature);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param id The ID of a feature in this dictionary
+     * @return The String feature with the given ID.
+     */
+    public String getFeature(int id) {
+        return features[id];
+    }
+
+    /**
+     * Encode the String features of a DataItem.
+     * @param item DataItem with String features
+     * @param keepData if set to true, the String features are kept in the
+     * resulting item, otherwise they are released.
+     * @return An EncodedDataItem with the sorted, distinct feature IDs.
+     */
+    public EncodedDataItem encode(DataItem item, boolean keepData) {
+        Object [] data = item.getData();
+        int [] features = new int[data.length];
+        String [] unknown = null;
+        int known = 0;
+        int unknownCount = 0;
+        for (Object f : data) {
+            int id = getId((String)f);
+            if (id >= 0)
+                features[known++] = id;
+            else {
+                if (unknown == null)
+                    unknown = new String[data.length];
+                unknown[unknownCount++] = (String)f;
+            }
+        }
+        // Sort and remove duplicate IDs
+        int distinct = sortDistinct(features, known);
+        // Count the distinct unknown features
+        int distinctUnknown = 0;
+        if (unknownCount > 0) {
+            Arrays.sort(unknown, 0, unknownCount);
+            distinctUnknown = 1;
+            for (int i = 1; i < unknownCount; i++)
+                if (!unknown[i].equals(unknown[i - 1]))
+                    distinctUnknown++;
+        }
+        // Trim the array
+        if (distinct < features.length) {
+            int [] trimmed = new int[distinct];
+            System.arraycopy(features, 0, trimmed, 0, distinct);
+            features = trimmed;
+        }
+        return new EncodedDataItem(item.getId(), item.getLatitude(),
+                item.getLongitude(), keepData ? data : null, features,
+                distinct + distinctUnknown);
+    }
+
+    /**
+     * Encode the String features of an array of DataItems.
+     * @param data DataItems with String features
+     * @param keepData if set to true, the String features are kept in the
+     * resulting items, otherwise they are released.
+     * @return An array of EncodedDataItems, with null values where the
+     * original array contained null values.
+     */
+    public EncodedDataItem[] encode(DataItem [] data, boolean keepData) {
+        EncodedDataItem [] encoded = new EncodedDataItem[data.length];
+        for (int i = 0; i < data.length; i++)
+            if (data[i] != null)
+                encoded[i] = encode(data[i], keepData);
+        return encoded;
+    }
+
+    /**
+     * Sort the first values of an array and remove duplicates in place.
+     * @param values The array to sort
+     * @param length The number of values to consider
+     * @return The number of distinct values, which are at the start of the
+     * array after this call.
+     */
+    private static int sortDistinct(int [] values, int length) {
+        if (length == 0)
+            return 0;
+        Arrays.sort(values, 0, length);
+        int distinct = 1;
+        for (int i = 1; i < length; i++)
+            if (values[i] != values[distinct - 1])
+                values[distinct++] = values[i];
+        return distinct;
+    }
+}
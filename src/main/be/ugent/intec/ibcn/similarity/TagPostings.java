@@ -0,0 +1,132 @@
+package be.ugent.intec.ibcn.similarity;
+
+import java.util.Arrays;
+
+import be.ugent.intec.ibcn.geo.common.datatypes.EncodedDataItem;
+
+/**
+ * In memory feature postings for an array of EncodedDataItems.
+ *
+ * For each feature ID that occurs in the items, the postings hold the
+ * ascending indices of the items that contain the feature. This allows a
+ * scoring kernel to visit only the items that share a feature with a test
+ * item, instead of all the items.
+ *
+ * The postings are stored in three primitive arrays: the distinct feature
+ * IDs in ascending order, the start of the postings of each feature, and the
+ * postings themselves.
+ *
+ * @see Similarity
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class TagPostings {
+
+    /**
+     * Distinct feature IDs, in ascending order.
+     */
+    private int [] features;
+
+    /**
+     * Start of the postings of each feature, and the total number of
+     * postings at the end.
+     */
+    private int [] start;
+
+    /**
+     * Item indices, ascending per feature.
+     */
+    private int [] postings;
+
+    /**
+     * Constructor.
+     * @param items The items to create the postings for
+     */
+    public TagPostings(EncodedDataItem [] items) {
+        // Gather all (feature, item) pairs
+        int occurrences = 0;
+        for (EncodedDataItem item : items)
+            if (item != null)
+                occurrences += item.getFeatures().length;
+        long [] pairs = new long[occurrences];
+        int n = 0;
+        for (int i = 0; i < items.length; i++)
+            if (items[i] != null)
+                for (int f : items[i].getFeatures())
+                    pairs[n++] = ((long)f << 32) | i;
+        // Sort by feature, then by item
+        Arrays.sort(pairs);
+        // Count the distinct features
+        int distinct = 0;
+        for (int i = 0; i < n; i++)
+            if (i == 0 || (pairs[i] >>> 32) != (pairs[i - 1] >>> 32))
+                distinct++;
+        this.features = new int[distinct];
+        this.start = new int[distinct + 1];
+        this.postings = new int[n];
+        int d = -1;
+        for (int i = 0; i < n; i++) {
+            int f = (int)(pairs[i] >>> 32);
+            if (d < 0 || features[d] != f) {
+                features[++d] = f;
+                start[d] = i;
+            }
+            postings[i] = (int)pairs[i];
+        }
+        start[distinct] = n;
+    }
+
+    /**
+     * @param feature A feature ID
+     * @return the position of the feature in the postings, or a negative
+     * value if no item contains the feature.
+     */
+    public int find(int feature) {
+        return Arrays.binarySearch(features, feature);
+    }
+
+    /**
+     * @param position The position of a feature
+     * @return the start of the postings of the feature.
+     */
+    public int getStart(int position) {
+        return start[position];
+    }
+
+    /**
+     * @param position The position of a feature
+     * @return the end (exclusive) of the postings of the feature.
+     */
+    public int getEnd(int position) {
+        return start[position + 1];
+    }
+
+    /**
+     * @param posting A posting
+     * @return the index of the item of the posting.
+     */
+    public int getItem(int posting) {
+        return postings[posting];
+    }
+
+    /**
+     * Find the first posting of a feature for an item at or after a given
+     * index.
+     * @param position The position of a feature
+     * @param index The index of the item
+     * @return the first posting of the feature with an item index at or
+     * after the given index, or the end of the postings of the feature.
+     */
+    public int seek(int position, int index) {
+        int low = start[position];
+        int high = start[position + 1];
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (postings[middle] < index)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,209 @@
+package be.ugent.intec.ibcn.similarity;
+
+/**
+ * Fixed capacity collector for the most similar items of a similarity search.
+ *
+ * The collector keeps the scores and the (array) indices of the retained items
+ * in two primitive arrays organised as a min-heap, so offering a candidate
+ * does not allocate any objects. Candidates that do not make it into the
+ * collector are rejected by a single comparison with the root of the heap.
+ *
+ * Items are ranked by descending score. Items with the same score are ranked
+ * by ascending index, so ties are resolved deterministically, regardless of
+ * the order in which the candidates are offered. As the Jaccard measure only
+ * yields a few distinct values, ties are common.
+ *
+ * A collector can be reused for multiple searches by calling clear().
+ *
+ * @see Similarity
+ *
+ * @author Olivier Van Laere <oliviervanlaere@gmail.com>
+ */
+public class TopKCollector {
+
+    /**
+     * Scores of the retained items.
+     */
+    private double [] scores;
+
+    /**
+     * Indices of the retained items.
+     */
+    private int [] indices;
+
+    /**
+     * Number of items currently retained.
+     */
+    private int size = 0;
+
+    /**
+     * @return the number of items currently retained.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the maximum number of items to retain.
+     */
+    public int capacity() {
+        return this.scores.length;
+    }
+
+    /**
+     * Flag indicating the retained items are sorted by rank, rather than
+     * organised as a heap.
+     */
+    private boolean sorted = false;
+
+    /**
+     * Constructor.
+     * @param capacity The number of most similar items to retain.
+     */
+    public TopKCollector(int capacity) {
+        this.scores = new double[capacity];
+        this.indices = new int[capacity];
+    }
+
+    /**
+     * Remove all the retained items, so the collector can be reused.
+     */
+    public void clear() {
+        this.size = 0;
+        this.sorted = false;
+    }
+
+    /**
+     * @param score1 Score of the first item
+     * @param index1 Index of the first item
+     * @param score2 Score of the second item
+     * @param index2 Index of the second item
+     * @return true if the first item is ranked lower than the second item.
+     */
+    private static boolean worse(double score1, int index1, double score2,
+            int index2) {
+        return score1 < score2 || (score1 == score2 && index1 > index2);
+    }
+
+    /**
+     * @return true if the collector is full and a candidate needs to beat the
+     * lowest ranked item to be retained.
+     */
+    public boolean isFull() {
+        return this.size == this.scores.length;
+    }
+
+    /**
+     * @return the score of the lowest ranked retained item, or negative
+     * infinity if the collector is not full yet. Candidates with a lower score
+     * will be rejected.
+     */
+    public double threshold() {
+        return isFull() && size > 0 ? scores[0] : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Offer a candidate to the collector.
+     * @param score The score of the candidate
+     * @param index The index of the candidate
+     * @return true if the candidate is retained
+     */
+    public boolean offer(double score, int index) {
+        if (sorted)
+            throw new IllegalStateException(
+                    "Collector is sorted, clear it before reuse.");
+        if (size < scores.length) {
+            // Add at the bottom of the heap and restore the heap
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!worse(score, index, scores[parent], indices[parent]))
+                    break;
+                scores[i] = scores[parent];
+                indices[i] = indices[parent];
+                i = parent;
+            }
+            scores[i] = score;
+            indices[i] = index;
+            return true;
+        }
+        // Reject if not better than the lowest ranked item
+        if (size == 0 || !worse(scores[0], indices[0], score, index))
+            return false;
+        // Replace the root and restore the heap
+        siftDown(score, index, size);
+        return true;
+    }
+
+    /**
+     * Offer all the items retained by another collector to this collector.
+     * This allows the results of searches over separate ranges of items to be
+     * merged.
+     * @param other Another collector
+     */
+    public void addAll(TopKCollector other) {
+        for (int i = 0; i < other.size; i++)
+            offer(other.scores[i], other.indices[i]);
+    }
+
+    /**
+     * Put an item at the root of the heap and move it down to its position.
+     * @param score Score of the item
+     * @param index Index of the item
+     * @param length Number of items in the heap
+     */
+    private void siftDown(double score, int index, int length) {
+        int i = 0;
+        int child = 1;
+        while (child < length) {
+            // Select the lowest ranked child
+            if (child + 1 < length && worse(scores[child + 1],
+                    indices[child + 1], scores[child], indices[child]))
+                child++;
+            if (!worse(scores[child], indices[child], score, index))
+                break;
+            scores[i] = scores[child];
+            indices[i] = indices[child];
+            i = child;
+            child = 2 * i + 1;
+        }
+        scores[i] = score;
+        indices[i] = index;
+    }
+
+    /**
+     * Sort the retained items by rank. After sorting, no more candidates can
+     * be offered until the collector is cleared.
+     */
+    public void sort() {
+        if (sorted)
+            return;
+        // Heap sort: move the lowest ranked item to the back
+        for (int end = size - 1; end > 0; end--) {
+            double score = scores[end];
+            int index = indices[end];
+            scores[end] = scores[0];
+            indices[end] = indices[0];
+            siftDown(score, index, end);
+        }
+        sorted = true;
+    }
+
+    /**
+     * @param rank Rank of the item, 0 being the most similar item.
+     * @return the index of the item with the given rank.
+     */
+    public int getIndex(int rank) {
+        sort();
+        return indices[rank];
+    }
+
+    /**
+     * @param rank Rank of the item, 0 being the most similar item.
+     * @return the score of the item with the given rank.
+     */
+    public double getScore(int rank) {
+        sort();
+        return scores[rank];
+    }
+}